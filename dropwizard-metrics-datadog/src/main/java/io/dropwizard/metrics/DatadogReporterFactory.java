@@ -5,16 +5,27 @@ import com.codahale.metrics.ScheduledReporter;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import io.dropwizard.metrics.common.BaseReporterFactory;
+import io.dropwizard.util.DataSize;
+import io.dropwizard.util.Duration;
 import org.coursera.metrics.datadog.DatadogReporter;
 import org.coursera.metrics.datadog.DefaultMetricNameFormatterFactory;
 import org.coursera.metrics.datadog.DynamicTagsCallbackFactory;
+import org.coursera.metrics.datadog.Ec2HostResolver;
+import org.coursera.metrics.datadog.ExpansionPolicy;
 import org.coursera.metrics.datadog.MetricNameFormatterFactory;
+import org.coursera.metrics.datadog.PayloadBudget;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.SharedReporterScheduler;
 import org.coursera.metrics.datadog.transport.AbstractTransportFactory;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.nio.file.Paths;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static org.coursera.metrics.datadog.DatadogReporter.Expansion;
 
@@ -24,6 +35,12 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   @JsonProperty
   private String host = null;
 
+  @JsonProperty
+  private boolean ec2Host = false;
+
+  @JsonProperty
+  private String ec2HostCacheFile = null;
+
   @JsonProperty
   private List<String> tags = null;
 
@@ -39,6 +56,35 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   @JsonProperty
   private EnumSet<Expansion> expansions = EnumSet.allOf(Expansion.class);
 
+  @JsonProperty
+  private Map<String, EnumSet<Expansion>> expansionRules = null;
+
+  @Min(1)
+  @JsonProperty
+  private Integer maxSeriesPerMetric = null;
+
+  @Min(0)
+  @JsonProperty
+  private int maxSeriesPerPayload = 0;
+
+  @JsonProperty
+  private DataSize maxPayloadSize = null;
+
+  @JsonProperty
+  private boolean selfMetrics = false;
+
+  @JsonProperty
+  private boolean degradeOnOverrun = false;
+
+  @JsonProperty
+  private boolean alignToInterval = false;
+
+  @JsonProperty
+  private Duration jitter = null;
+
+  @JsonProperty
+  private boolean sharedScheduler = false;
+
   @Valid
   @NotNull
   @JsonProperty
@@ -50,12 +96,36 @@ public class DatadogReporterFactory extends BaseReporterFactory {
   private AbstractTransportFactory transport = null;
 
   public ScheduledReporter build(MetricRegistry registry) {
-    return DatadogReporter.forRegistry(registry)
-        .withTransport(transport.build())
-        .withHost(host)
+    var builder = DatadogReporter.forRegistry(registry);
+    if (maxSeriesPerMetric != null) {
+      builder.withCardinalityLimit(maxSeriesPerMetric);
+    }
+    if (maxSeriesPerPayload > 0 || maxPayloadSize != null) {
+      builder.withPayloadBudget(new PayloadBudget(maxSeriesPerPayload,
+          maxPayloadSize != null ? maxPayloadSize.toBytes() : 0));
+    }
+    var reporterMetrics = selfMetrics ? new SelfMetrics(registry) : null;
+    builder.withHost(host);
+    if (ec2Host) {
+      var resolver = new Ec2HostResolver.Builder();
+      if (ec2HostCacheFile != null) {
+        resolver.withCacheFile(Paths.get(ec2HostCacheFile));
+      }
+      builder.withEC2Host(resolver.build());
+    }
+    return builder
+        .withSelfMetrics(reporterMetrics)
+        .withDegradeOnOverrun(degradeOnOverrun)
+        .withIntervalAlignment(alignToInterval)
+        .withJitter(jitter != null ? jitter.toMilliseconds() : 0, TimeUnit.MILLISECONDS)
+        .withScheduler(sharedScheduler ? SharedReporterScheduler.getDefault() : null)
+        .withTransport(transport.build(reporterMetrics))
         .withTags(tags)
         .withPrefix(prefix)
         .withExpansions(expansions)
+        .withExpansionPolicy(expansionRules != null
+            ? ExpansionPolicy.builder(expansions).withRules(expansionRules).build()
+            : null)
         .withMetricNameFormatter(metricNameFormatter.build())
         .withDynamicTagCallback(dynamicTagsCallback != null ? dynamicTagsCallback.build() : null)
         .filter(getFilter())
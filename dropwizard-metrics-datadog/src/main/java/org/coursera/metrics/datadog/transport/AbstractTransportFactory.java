@@ -2,8 +2,16 @@ package org.coursera.metrics.datadog.transport;
 
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 import io.dropwizard.jackson.Discoverable;
+import org.coursera.metrics.datadog.SelfMetrics;
 
 @JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
 public interface AbstractTransportFactory extends Discoverable {
   Transport build();
+
+  /**
+   * @param selfMetrics where to publish the transport's own metrics, or null
+   */
+  default Transport build(SelfMetrics selfMetrics) {
+    return build();
+  }
 }
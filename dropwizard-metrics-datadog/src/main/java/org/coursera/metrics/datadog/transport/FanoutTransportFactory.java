@@ -0,0 +1,36 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import org.coursera.metrics.datadog.SelfMetrics;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
+import java.util.List;
+
+@JsonTypeName("fanout")
+public class FanoutTransportFactory implements AbstractTransportFactory {
+
+  @Valid
+  @NotNull
+  @Size(min = 1)
+  @JsonProperty
+  private List<HttpTransportFactory> destinations = null;
+
+  public FanoutTransport build() {
+    return build(null);
+  }
+
+  /**
+   * The metrics of all destinations are published together into {@code selfMetrics}.
+   */
+  @Override
+  public FanoutTransport build(SelfMetrics selfMetrics) {
+    var builder = new FanoutTransport.Builder();
+    for (var destination : destinations) {
+      builder.withDestination(destination.build(selfMetrics));
+    }
+    return builder.build();
+  }
+}
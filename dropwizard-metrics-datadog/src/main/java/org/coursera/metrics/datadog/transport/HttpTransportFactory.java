@@ -3,8 +3,11 @@ package org.coursera.metrics.datadog.transport;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
 import io.dropwizard.util.Duration;
+import org.coursera.metrics.datadog.SelfMetrics;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
 
 @JsonTypeName("http")
 public class HttpTransportFactory implements AbstractTransportFactory {
@@ -13,6 +16,9 @@ public class HttpTransportFactory implements AbstractTransportFactory {
   @JsonProperty
   private String apiKey = null;
 
+  @JsonProperty
+  private String seriesUrl;
+
   @JsonProperty
   private Duration connectTimeout = Duration.seconds(5);
 
@@ -28,12 +34,59 @@ public class HttpTransportFactory implements AbstractTransportFactory {
   @JsonProperty
   private Boolean compression;
 
+  @JsonProperty
+  private boolean pipelining = false;
+
+  @Min(0)
+  @JsonProperty
+  private int shards = 1;
+
+  @Min(0)
+  @JsonProperty
+  private int maxRetries = 0;
+
+  @JsonProperty
+  private Duration retryBackoff = Duration.milliseconds(100);
+
+  @JsonProperty
+  private Duration maxRetryBackoff = Duration.seconds(5);
+
+  @JsonProperty
+  private Duration retryDeadline = Duration.seconds(10);
+
+  @Min(0)
+  @JsonProperty
+  private int circuitBreakerFailures = 0;
+
+  @JsonProperty
+  private Duration circuitBreakerOpenTime = Duration.minutes(1);
+
   public HttpTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public HttpTransport build(SelfMetrics selfMetrics) {
     var builder = new HttpTransport.Builder()
+        .withSelfMetrics(selfMetrics)
         .withApiKey(apiKey)
         .withCompression(Boolean.TRUE.equals(compression))
+        .withPipelining(pipelining)
+        .withShards(shards)
         .withConnectTimeout((int) connectTimeout.toMilliseconds())
-        .withResponseTimeout((int) responseTimeout.toMilliseconds());
+        .withResponseTimeout((int) responseTimeout.toMilliseconds())
+        .withRetries(maxRetries)
+        .withRetryBackoff((int) retryBackoff.toMilliseconds(), (int) maxRetryBackoff.toMilliseconds())
+        .withRetryDeadline((int) retryDeadline.toMilliseconds());
+
+    if (circuitBreakerFailures > 0) {
+      builder = builder.withCircuitBreaker(new CircuitBreaker(circuitBreakerFailures,
+          circuitBreakerOpenTime.toMilliseconds(), TimeUnit.MILLISECONDS));
+    }
+
+    if (seriesUrl != null) {
+      builder = builder.withSeriesUrl(seriesUrl);
+    }
 
     if (proxyPort != 0 || proxyHost != null) {
       if (proxyPort == 0 || proxyHost == null) {
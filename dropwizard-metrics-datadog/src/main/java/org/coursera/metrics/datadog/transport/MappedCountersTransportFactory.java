@@ -0,0 +1,45 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import org.coursera.metrics.datadog.SelfMetrics;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
+@JsonTypeName("mapped")
+public class MappedCountersTransportFactory implements AbstractTransportFactory {
+
+  @NotNull
+  @JsonProperty
+  private String file = null;
+
+  @Min(64)
+  @JsonProperty
+  private int slotSize = 256;
+
+  @Min(1)
+  @JsonProperty
+  private int slotCount = 4096;
+
+  public MappedCountersTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public MappedCountersTransport build(SelfMetrics selfMetrics) {
+    try {
+      return new MappedCountersTransport.Builder()
+          .withFile(Path.of(file))
+          .withSlotSize(slotSize)
+          .withSlotCount(slotCount)
+          .withSelfMetrics(selfMetrics)
+          .build();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot create counters file " + file, e);
+    }
+  }
+}
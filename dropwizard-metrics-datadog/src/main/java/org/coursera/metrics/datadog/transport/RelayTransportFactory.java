@@ -0,0 +1,45 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeName;
+import org.coursera.metrics.datadog.SelfMetrics;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import java.nio.file.Path;
+
+@JsonTypeName("relay")
+public class RelayTransportFactory implements AbstractTransportFactory {
+
+  @NotNull
+  @JsonProperty
+  private String host = "127.0.0.1";
+
+  @JsonProperty
+  private int port = 8126;
+
+  @JsonProperty
+  private String socket = null;
+
+  @Min(1)
+  @Max(RelayTransport.MAX_DATAGRAM_BYTES)
+  @JsonProperty
+  private int maxFrameSize = RelayTransport.MAX_DATAGRAM_BYTES;
+
+  public RelayTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public RelayTransport build(SelfMetrics selfMetrics) {
+    var builder = new RelayTransport.Builder()
+        .withSelfMetrics(selfMetrics)
+        .withAddress(host, port)
+        .withMaxFrameSize(maxFrameSize);
+    if (socket != null) {
+      builder.withSocket(Path.of(socket));
+    }
+    return builder.build();
+  }
+}
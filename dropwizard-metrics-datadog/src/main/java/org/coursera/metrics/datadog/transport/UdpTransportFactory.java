@@ -2,8 +2,12 @@ package org.coursera.metrics.datadog.transport;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonTypeName;
+import io.dropwizard.util.DataSize;
+import io.dropwizard.util.Duration;
+import org.coursera.metrics.datadog.SelfMetrics;
 
 import javax.validation.constraints.NotNull;
+import java.util.concurrent.TimeUnit;
 
 @JsonTypeName("udp")
 public class UdpTransportFactory implements AbstractTransportFactory {
@@ -18,15 +22,41 @@ public class UdpTransportFactory implements AbstractTransportFactory {
   @JsonProperty
   private boolean retryingLookup = false;
 
+  @JsonProperty
+  private Duration addressRefresh = null;
+
+  @JsonProperty
+  private UdpTransport.UnixSocketType unixSocketType = null;
+
+  @JsonProperty
+  private DataSize maxPacketSize = null;
+
+  @JsonProperty
+  private DataSize socketBufferSize = null;
+
+  @JsonProperty
+  private boolean lineCache = false;
+
   @JsonProperty
   private String prefix = null;
 
   public UdpTransport build() {
+    return build(null);
+  }
+
+  @Override
+  public UdpTransport build(SelfMetrics selfMetrics) {
     return new UdpTransport.Builder()
+        .withSelfMetrics(selfMetrics)
         .withPrefix(prefix)
         .withStatsdHost(statsdHost)
-        .withPort(statsdHost.startsWith("unix://") ? 0 : port)
+        .withPort(UdpTransport.isUnixSocket(statsdHost) ? 0 : port)
         .withRetryingLookup(retryingLookup)
+        .withAddressRefresh(addressRefresh == null ? 0 : addressRefresh.toMilliseconds(), TimeUnit.MILLISECONDS)
+        .withUnixSocketType(unixSocketType)
+        .withMaxPacketSize(maxPacketSize == null ? 0 : Math.toIntExact(maxPacketSize.toBytes()))
+        .withSocketBufferSize(socketBufferSize == null ? 0 : Math.toIntExact(socketBufferSize.toBytes()))
+        .withLineCache(lineCache)
         .build();
     }
 }
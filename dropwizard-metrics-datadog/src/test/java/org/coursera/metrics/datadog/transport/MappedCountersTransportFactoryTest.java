@@ -0,0 +1,14 @@
+package org.coursera.metrics.datadog.transport;
+
+import io.dropwizard.jackson.DiscoverableSubtypeResolver;
+import org.fest.assertions.api.Assertions;
+import org.junit.Test;
+
+public class MappedCountersTransportFactoryTest {
+  @Test
+  public void isDiscoverable() {
+    Assertions
+            .assertThat(new DiscoverableSubtypeResolver().getDiscoveredSubtypes())
+            .contains(MappedCountersTransportFactory.class);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,14 @@
+package org.coursera.metrics.datadog.transport;
+
+import io.dropwizard.jackson.DiscoverableSubtypeResolver;
+import org.fest.assertions.api.Assertions;
+import org.junit.Test;
+
+public class RelayTransportFactoryTest {
+  @Test
+  public void isDiscoverable() {
+    Assertions
+            .assertThat(new DiscoverableSubtypeResolver().getDiscoveredSubtypes())
+            .contains(RelayTransportFactory.class);
+  }
+}
\ No newline at end of file
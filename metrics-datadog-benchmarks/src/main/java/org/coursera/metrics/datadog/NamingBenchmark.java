@@ -0,0 +1,47 @@
+package org.coursera.metrics.datadog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-series name and tag handling of a report cycle. Lives in this package because
+ * {@link TagUtils} is package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamingBenchmark {
+
+  private final String encodedName = "service.checkout.latency[env:prod,region:eu-west-1,shard:7]";
+  private final List<String> globalTags = List.of("service:checkout", "env:prod", "version:1.2.3");
+  private final List<String> metricTags = List.of("env:staging", "region:eu-west-1", "shard:7");
+  private final DefaultMetricNameFormatter formatter = new DefaultMetricNameFormatter();
+
+  @Benchmark
+  public TaggedName decode() {
+    return TaggedName.decode(encodedName);
+  }
+
+  @Benchmark
+  public List<String> mergeTags() {
+    return TagUtils.mergeTags(globalTags, metricTags);
+  }
+
+  @Benchmark
+  public String format() {
+    return formatter.format(encodedName, "p95");
+  }
+}
@@ -0,0 +1,100 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.timgroup.statsd.NoOpStatsDClient;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.coursera.metrics.datadog.transport.UdpTransport;
+import org.coursera.metrics.datadog.transport.UdpTransport.DogstatsdRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a counter into a dogstatsd delta, without the cost of the client itself, one
+ * at a time or as a {@link SeriesBatch}, and of writing it with the line cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DogstatsdRequestBenchmark {
+
+  private static final int COUNTERS = 1024;
+
+  private DogstatsdRequest request;
+  private DatagramSocket agent;
+  private UdpTransport lineCacheTransport;
+  private Transport.Request lineCacheRequest;
+  private DatadogCounter[] counters;
+  private SeriesBatch batch;
+  private int next;
+
+  @Setup
+  public void setUp() throws IOException {
+    request = new DogstatsdRequest(new NoOpStatsDClient(), new HashMap<>());
+    agent = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    lineCacheTransport = new UdpTransport.Builder()
+        .withStatsdHost("127.0.0.1")
+        .withPort(agent.getLocalPort())
+        .withLineCache(true)
+        .build();
+    lineCacheRequest = lineCacheTransport.prepare();
+    counters = new DatadogCounter[COUNTERS];
+    for (var i = 0; i < COUNTERS; i++) {
+      counters[i] = new DatadogCounter("service.requests" + i, (long) i, 1_700_000_000L,
+          "benchmark-host", List.of("env:prod", "shard:" + (i % 16)));
+    }
+    batch = new SeriesBatch("benchmark-host", COUNTERS);
+    var tagSets = new int[16];
+    for (var i = 0; i < tagSets.length; i++) {
+      tagSets[i] = batch.addTagSet(List.of("env:prod", "shard:" + i));
+    }
+    for (var i = 0; i < COUNTERS; i++) {
+      batch.add(batch.addMetric("service.requests" + i), tagSets[i % 16], SeriesBatch.COUNTER, 1_700_000_000L, i);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    lineCacheTransport.close();
+    agent.close();
+  }
+
+  @Benchmark
+  public void addCounter() {
+    request.addCounter(counters[next++ & (COUNTERS - 1)]);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNTERS)
+  public void addBatch() {
+    request.addBatch(batch);
+  }
+
+  /**
+   * Includes the cost of sending a packet to a local socket every few dozen counters.
+   */
+  @Benchmark
+  public void addCounterWithLineCache() throws IOException {
+    lineCacheRequest.addCounter(counters[next++ & (COUNTERS - 1)]);
+  }
+}
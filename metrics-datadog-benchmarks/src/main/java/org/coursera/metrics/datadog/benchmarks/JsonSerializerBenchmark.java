@@ -0,0 +1,107 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.serializer.JsonSerializer;
+import org.coursera.metrics.serializer.SerializerBufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append throughput of {@link JsonSerializer}, measured per series over payloads of
+ * {@value #SERIES} series so the buffer does not grow without bound, for series objects and for
+ * the same series in a {@link SeriesBatch}. {@link #appendPooled()} reuses its buffer like the
+ * HTTP transport does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonSerializerBenchmark {
+
+  private static final int SERIES = 1000;
+
+  private DatadogGauge gauge;
+  private DatadogCounter counter;
+  private SeriesBatch batch;
+  private JsonSerializer pooled;
+
+  @Setup
+  public void setUp() {
+    var tags = List.of("env:prod", "service:checkout", "shard:7");
+    gauge = new DatadogGauge("service.endpoint.latency.p95", 12.5, 1_700_000_000L, "benchmark-host", tags);
+    counter = new DatadogCounter("service.endpoint.requests", 1234L, 1_700_000_000L, "benchmark-host", tags);
+
+    pooled = new JsonSerializer(new SerializerBufferPool());
+    batch = new SeriesBatch("benchmark-host", SERIES);
+    var tagSet = batch.addTagSet(tags);
+    var latency = batch.addMetric("service.endpoint.latency.p95");
+    var requests = batch.addMetric("service.endpoint.requests");
+    for (var i = 0; i < SERIES; i++) {
+      if ((i & 1) == 0) {
+        batch.add(latency, tagSet, SeriesBatch.GAUGE, 1_700_000_000L, 12.5);
+      } else {
+        batch.add(requests, tagSet, SeriesBatch.COUNTER, 1_700_000_000L, 1234);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SERIES)
+  public String append() throws IOException {
+    var serializer = new JsonSerializer();
+    serializer.startObject();
+    for (var i = 0; i < SERIES; i++) {
+      if ((i & 1) == 0) {
+        serializer.appendGauge(gauge);
+      } else {
+        serializer.appendCounter(counter);
+      }
+    }
+    serializer.endObject();
+    return serializer.getAsString();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SERIES)
+  public String appendBatch() throws IOException {
+    var serializer = new JsonSerializer();
+    serializer.startObject();
+    serializer.appendBatch(batch);
+    serializer.endObject();
+    return serializer.getAsString();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SERIES)
+  public byte[] appendPooled() throws IOException {
+    pooled.startObject();
+    for (var i = 0; i < SERIES; i++) {
+      if ((i & 1) == 0) {
+        pooled.appendGauge(gauge);
+      } else {
+        pooled.appendCounter(counter);
+      }
+    }
+    pooled.endObject();
+    var body = pooled.getAsBytes();
+    pooled.reset();
+    return body;
+  }
+}
@@ -0,0 +1,120 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.DatadogReporter;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.coursera.metrics.serializer.JsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full report cycle over a registry of mixed metrics, serialized to JSON as the HTTP
+ * transport would, but not sent anywhere.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int metrics;
+
+  private DatadogReporter reporter;
+  private SerializingTransport transport;
+
+  @Setup
+  public void setUp() {
+    var registry = new MetricRegistry();
+    for (var i = 0; i < metrics; i++) {
+      var name = "service.endpoint" + (i % 100) + ".metric" + i + "[env:prod,shard:" + (i % 16) + "]";
+      switch (i % 5) {
+        case 0 -> registry.counter(name).inc(i);
+        case 1 -> registry.register(name, (Gauge<Integer>) () -> 42);
+        case 2 -> registry.histogram(name).update(i);
+        case 3 -> registry.meter(name).mark(i);
+        default -> registry.timer(name).update(i, TimeUnit.MICROSECONDS);
+      }
+    }
+    transport = new SerializingTransport();
+    reporter = DatadogReporter.forRegistry(registry)
+        .withHost("benchmark-host")
+        .withTags(List.of("service:benchmark"))
+        .withTransport(transport)
+        .build();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    reporter.close();
+  }
+
+  @Benchmark
+  public int report() {
+    reporter.report();
+    return transport.lastPayloadLength;
+  }
+
+  static class SerializingTransport implements Transport {
+    volatile int lastPayloadLength;
+
+    @Override
+    public Request prepare() throws IOException {
+      var serializer = new JsonSerializer();
+      serializer.startObject();
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          serializer.appendBatch(batch);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) throws IOException {
+          serializer.appendGauge(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) throws IOException {
+          serializer.appendCounter(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) throws IOException {
+          serializer.appendRate(rate);
+        }
+
+        @Override
+        public void send() throws Exception {
+          serializer.endObject();
+          lastPayloadLength = serializer.getAsString().length();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
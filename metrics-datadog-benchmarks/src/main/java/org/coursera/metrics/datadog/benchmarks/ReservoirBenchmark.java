@@ -0,0 +1,86 @@
+package org.coursera.metrics.datadog.benchmarks;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.LockFreeExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.SlidingTimeWindowArrayReservoir;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import org.coursera.metrics.datadog.reservoir.IntervalReservoir;
+import org.coursera.metrics.datadog.reservoir.StripedHistogramReservoir;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of recording into the stock reservoirs and the ones shipped with this
+ * project. Run {@link #main} to sweep 1 to 64 threads, or pass {@code -t} to the benchmark jar
+ * for a single thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReservoirBenchmark {
+
+  @Param({"exponentiallyDecaying", "lockFreeExponentiallyDecaying", "slidingTimeWindowArray",
+      "uniform", "interval", "striped"})
+  public String reservoir;
+
+  private Reservoir target;
+
+  @Setup
+  public void setUp() {
+    target = switch (reservoir) {
+      case "exponentiallyDecaying" -> new ExponentiallyDecayingReservoir();
+      case "lockFreeExponentiallyDecaying" -> LockFreeExponentiallyDecayingReservoir.builder().build();
+      case "slidingTimeWindowArray" -> new SlidingTimeWindowArrayReservoir(1, TimeUnit.MINUTES);
+      case "uniform" -> new UniformReservoir();
+      case "interval" -> new IntervalReservoir();
+      case "striped" -> new StripedHistogramReservoir();
+      default -> throw new IllegalArgumentException("Unknown reservoir " + reservoir);
+    };
+  }
+
+  @Benchmark
+  public void update() {
+    // Latency-like values spread over a few orders of magnitude.
+    target.update(ThreadLocalRandom.current().nextLong(1_000, 50_000_000));
+  }
+
+  /**
+   * One snapshot per thousand updates, roughly a reporter competing with the writers.
+   */
+  @Benchmark
+  public Snapshot updateWithSnapshots() {
+    var random = ThreadLocalRandom.current();
+    target.update(random.nextLong(1_000, 50_000_000));
+    return random.nextInt(1_000) == 0 ? target.getSnapshot() : null;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (var threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+      var options = new OptionsBuilder()
+          .include(ReservoirBenchmark.class.getSimpleName())
+          .threads(threads)
+          .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -1,18 +1,21 @@
 package org.coursera.metrics.datadog;
 
-import org.apache.hc.client5.http.fluent.Request;
-
 import java.io.IOException;
 
 public class AwsHelper {
 
   public static final String url = "http://169.254.169.254/latest/meta-data/instance-id";
 
+  /**
+   * Blocks until the metadata service answers or times out.
+   *
+   * @see Ec2HostResolver for a lookup that does not block
+   */
   public static String getEc2InstanceId() throws IOException {
     try {
-      return Request.get(url).execute().returnContent().asString();
+      return new Ec2HostResolver.Builder().build().fetchInstanceId();
     } catch (Throwable t) {
       throw new IOException(t);
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,239 @@
+package org.coursera.metrics.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of tagged series reported for each base metric name.
+ * <p/>
+ * Tags are encoded into metric names ({@code name[tag:value,...]}), so every distinct tag
+ * combination becomes its own Datadog series. The limiter admits the first
+ * {@code maxSeriesPerMetric} combinations it sees for a base name; any further combination is
+ * folded into an overflow series in which every tag value is replaced by {@value #OTHER}, so
+ * {@code requests[user:123]} becomes {@code requests[user:other]}. Folded series share a name, so
+ * the reporter aggregates them into a single point per interval: counts and rates are summed,
+ * and gauges and percentiles report their maximum.
+ * When a slot is freed with {@link #forget(String)}, the next folded series reported for that base
+ * name takes it.
+ * <p/>
+ * Only the admitted series are remembered, at most {@code maxSeriesPerMetric} per base name. The
+ * number of distinct series per base name, and of distinct values per tag key, is tracked with
+ * HyperLogLog estimators, so memory does not grow with the series past the cap. The base names
+ * with the most series are kept in a top-K list that can be queried with
+ * {@link #getTopOffenders()}.
+ */
+public class CardinalityLimiter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CardinalityLimiter.class);
+
+  public static final String OTHER = "other";
+
+  private static final int SERIES_PRECISION = 10;
+  private static final int TAG_PRECISION = 8;
+
+  private final int maxSeriesPerMetric;
+  private final int topK;
+  private final Map<String, MetricCardinality> metrics = new ConcurrentHashMap<>();
+  private final List<MetricCardinality> heavyHitters = new ArrayList<>();
+
+  public CardinalityLimiter(int maxSeriesPerMetric) {
+    this(maxSeriesPerMetric, 10);
+  }
+
+  public CardinalityLimiter(int maxSeriesPerMetric, int topK) {
+    if (maxSeriesPerMetric < 1) {
+      throw new IllegalArgumentException("maxSeriesPerMetric must be positive");
+    }
+    if (topK < 1) {
+      throw new IllegalArgumentException("topK must be positive");
+    }
+    this.maxSeriesPerMetric = maxSeriesPerMetric;
+    this.topK = topK;
+  }
+
+  public int getMaxSeriesPerMetric() {
+    return maxSeriesPerMetric;
+  }
+
+  /**
+   * @param name a metric name, possibly with encoded tags
+   * @return the name to report the metric under: either the name itself, or its overflow series
+   */
+  public String admit(String name) {
+    var end = name.indexOf('[');
+    if (end <= 0) {
+      return name;
+    }
+    var metric = metrics.get(name.substring(0, end));
+    // Admitted series are the common case on every later cycle, and need no decoding.
+    if (metric != null && metric.isAdmitted(name)) {
+      return name;
+    }
+
+    var taggedName = TaggedName.decode(name);
+    if (taggedName.getEncodedTags().isEmpty()) {
+      return name;
+    }
+    if (metric == null) {
+      metric = metrics.computeIfAbsent(taggedName.getMetricName(), MetricCardinality::new);
+    }
+    var admitted = metric.admit(name, taggedName.getEncodedTags()) ? name : overflowName(taggedName);
+    updateHeavyHitters(metric);
+    return admitted;
+  }
+
+  /**
+   * Releases the slot held by a series, e.g. after its metric was removed from the registry.
+   */
+  public void forget(String name) {
+    var end = name.indexOf('[');
+    if (end > 0) {
+      var metric = metrics.get(name.substring(0, end));
+      if (metric != null) {
+        metric.forget(name);
+      }
+    }
+  }
+
+  /**
+   * @return the base names with the most distinct series, highest first
+   */
+  public List<Offender> getTopOffenders() {
+    List<MetricCardinality> snapshot;
+    synchronized (heavyHitters) {
+      snapshot = new ArrayList<>(heavyHitters);
+    }
+    var offenders = new ArrayList<Offender>(snapshot.size());
+    for (var metric : snapshot) {
+      offenders.add(metric.toOffender());
+    }
+    offenders.sort(Comparator.comparingLong(Offender::estimatedSeries).reversed());
+    return offenders;
+  }
+
+  /**
+   * @return the offender entry for one base name, or null if it has no tagged series
+   */
+  public Offender getCardinality(String metricName) {
+    var metric = metrics.get(metricName);
+    return metric == null ? null : metric.toOffender();
+  }
+
+  private void updateHeavyHitters(MetricCardinality metric) {
+    synchronized (heavyHitters) {
+      if (heavyHitters.contains(metric)) {
+        return;
+      }
+      if (heavyHitters.size() < topK) {
+        heavyHitters.add(metric);
+        return;
+      }
+      var smallest = heavyHitters.getFirst();
+      for (var candidate : heavyHitters) {
+        if (candidate.estimatedSeries() < smallest.estimatedSeries()) {
+          smallest = candidate;
+        }
+      }
+      if (metric.estimatedSeries() > smallest.estimatedSeries()) {
+        heavyHitters.set(heavyHitters.indexOf(smallest), metric);
+      }
+    }
+  }
+
+  private static String overflowName(TaggedName taggedName) {
+    var builder = new TaggedName.TaggedNameBuilder().metricName(taggedName.getMetricName());
+    for (var tag : taggedName.getEncodedTags()) {
+      var separator = tag.indexOf(':');
+      builder.addTag(separator > 0 ? tag.substring(0, separator) : tag, OTHER);
+    }
+    return builder.build().encode();
+  }
+
+  /**
+   * The cardinality of one base metric name.
+   *
+   * @param metricName the metric name without tags
+   * @param estimatedSeries estimated number of distinct tagged series seen
+   * @param foldedSeries estimated number of distinct series folded into the overflow series
+   * @param tagCardinalities estimated number of distinct values per tag key, highest first
+   */
+  public record Offender(String metricName, long estimatedSeries, long foldedSeries,
+                         List<TagCardinality> tagCardinalities) {
+  }
+
+  public record TagCardinality(String tagKey, long estimatedValues) {
+  }
+
+  private class MetricCardinality {
+    private final String metricName;
+    private final HyperLogLog series = new HyperLogLog(SERIES_PRECISION);
+    private final Map<String, HyperLogLog> tagValues = new HashMap<>();
+    private final Set<String> admitted = new HashSet<>();
+    private long released;
+    private boolean warned;
+    private volatile long estimatedSeries;
+
+    MetricCardinality(String metricName) {
+      this.metricName = metricName;
+    }
+
+    synchronized boolean isAdmitted(String name) {
+      return admitted.contains(name);
+    }
+
+    synchronized boolean admit(String name, List<String> tags) {
+      if (admitted.contains(name)) {
+        return true;
+      }
+      if (series.offer(name)) {
+        estimatedSeries = series.estimate();
+      }
+      for (var tag : tags) {
+        var separator = tag.indexOf(':');
+        var key = separator > 0 ? tag.substring(0, separator) : tag;
+        tagValues.computeIfAbsent(key, k -> new HyperLogLog(TAG_PRECISION)).offer(tag);
+      }
+
+      if (admitted.size() < maxSeriesPerMetric) {
+        admitted.add(name);
+        return true;
+      }
+      if (!warned) {
+        warned = true;
+        LOG.warn("Metric {} exceeded {} tagged series, folding further series into '{}' tag values",
+            metricName, maxSeriesPerMetric, OTHER);
+      }
+      return false;
+    }
+
+    synchronized void forget(String name) {
+      if (admitted.remove(name)) {
+        released++;
+      }
+    }
+
+    long estimatedSeries() {
+      return estimatedSeries;
+    }
+
+    synchronized Offender toOffender() {
+      var tags = new ArrayList<TagCardinality>(tagValues.size());
+      for (var entry : tagValues.entrySet()) {
+        tags.add(new TagCardinality(entry.getKey(), entry.getValue().estimate()));
+      }
+      tags.sort(Comparator.comparingLong(TagCardinality::estimatedValues).reversed());
+      // The estimator cannot forget a series, so released series are taken off its count instead.
+      var folded = Math.max(0, estimatedSeries - admitted.size() - released);
+      return new Offender(metricName, estimatedSeries, folded, tags);
+    }
+  }
+}
@@ -8,10 +8,15 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metered;
 import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
+import org.coursera.metrics.datadog.PayloadBudget.Priority;
+import org.coursera.metrics.datadog.jfr.DatadogGaugeEvaluation;
+import org.coursera.metrics.datadog.jfr.DatadogReportCycle;
 import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 import org.coursera.metrics.datadog.transport.Transport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,51 +24,312 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DatadogReporter extends ScheduledReporter {
 
   private static final Logger LOG = LoggerFactory.getLogger(DatadogReporter.class);
 
+  private static final AtomicInteger REPORTERS = new AtomicInteger();
+
   private static final Expansion[] STATS_EXPANSIONS = { Expansion.MAX, Expansion.MEAN,
       Expansion.MIN, Expansion.STD_DEV, Expansion.MEDIAN, Expansion.P75, Expansion.P95,
       Expansion.P98, Expansion.P99, Expansion.P999 };
   private static final Expansion[] RATE_EXPANSIONS = { Expansion.RATE_1_MINUTE,
       Expansion.RATE_5_MINUTE, Expansion.RATE_15_MINUTE, Expansion.RATE_MEAN };
 
+  private final MetricRegistry registry;
+  private final MetricFilter filter;
+  private final ReentrantLock reportLock = new ReentrantLock();
   private final Transport transport;
   private final Clock clock;
-  private final String host;
-  private final EnumSet<Expansion> expansions;
+  private volatile String host;
+  private final ExpansionPolicy expansionPolicy;
+  private final Map<String, EnumSet<Expansion>> resolvedExpansions = new ConcurrentHashMap<>();
+  private final CardinalityLimiter cardinalityLimiter;
+  private final PayloadBudget payloadBudget;
+  private final SelfMetrics selfMetrics;
+  private final OverrunGuard overrunGuard;
+  private final boolean alignToInterval;
+  private final long jitterMillis;
+  private final int ordinal = REPORTERS.getAndIncrement();
+  private volatile IntervalSchedule schedule;
+  private volatile Cycles cycles;
+  private final SharedReporterScheduler scheduler;
+  private final Map<String, Long> lastCounts = new ConcurrentHashMap<>();
+  private final MetricRegistryListener registryTracker;
   private final MetricNameFormatter metricNameFormatter;
   private final List<String> tags;
   private final String prefix;
   private final DynamicTagsCallback tagsCallback;
   private Transport.Request request;
+  // The series of a report, handed to the request in one batch; kept across reports.
+  private SeriesBatch batch;
+  private int seriesCount;
+  // Whether the metric being reported was folded into an overflow series by the limiter.
+  private boolean folding;
+  private final Map<String, FoldedSeries> foldedSeries = new LinkedHashMap<>();
 
   private DatadogReporter(MetricRegistry metricRegistry,
                           Transport transport,
                           MetricFilter filter,
                           Clock clock,
                           String host,
-                          EnumSet<Expansion> expansions,
+                          ExpansionPolicy expansionPolicy,
                           TimeUnit rateUnit,
                           TimeUnit durationUnit,
                           MetricNameFormatter metricNameFormatter,
                           List<String> tags,
                           String prefix,
-                          DynamicTagsCallback tagsCallback) {
-    super(metricRegistry, "datadog-reporter", filter, rateUnit, durationUnit);
+                          DynamicTagsCallback tagsCallback,
+                          CardinalityLimiter cardinalityLimiter,
+                          PayloadBudget payloadBudget,
+                          SelfMetrics selfMetrics,
+                          boolean degradeOnOverrun,
+                          boolean alignToInterval,
+                          long jitterMillis,
+                          SharedReporterScheduler scheduler,
+                          Ec2HostResolver hostResolver) {
+    super(metricRegistry, "datadog-reporter", filter, rateUnit, durationUnit,
+        scheduler != null ? scheduler.getTimer() : null, scheduler == null);
+    this.registry = metricRegistry;
+    this.filter = filter;
     this.clock = clock;
     this.host = host;
-    this.expansions = expansions;
+    this.expansionPolicy = expansionPolicy;
     this.metricNameFormatter = metricNameFormatter;
     this.tags = (tags == null) ? new ArrayList<>() : tags;
     this.transport = transport;
     this.prefix = prefix;
     this.tagsCallback = tagsCallback;
+    this.cardinalityLimiter = cardinalityLimiter;
+    this.payloadBudget = payloadBudget;
+    this.selfMetrics = selfMetrics;
+    this.overrunGuard = new OverrunGuard(clock, degradeOnOverrun, selfMetrics);
+    this.alignToInterval = alignToInterval;
+    this.jitterMillis = jitterMillis;
+    this.scheduler = scheduler;
+
+    if (hostResolver != null) {
+      var cached = hostResolver.getCachedInstanceId();
+      if (cached != null) {
+        this.host = cached;
+      }
+      hostResolver.resolve().whenComplete((instanceId, e) -> {
+        if (e != null) {
+          LOG.warn("Could not look up the EC2 instance id, reporting with host {}: {}", this.host,
+              e.getMessage());
+        } else {
+          this.host = instanceId;
+          var scheduled = cycles;
+          if (scheduled != null) {
+            scheduled.hostResolved();
+          }
+        }
+      });
+    }
+
+    if (expansionPolicy.isUniform() && cardinalityLimiter == null && payloadBudget == null
+        && !degradeOnOverrun) {
+      this.registryTracker = null;
+    } else {
+      // Resolve per-metric state when a metric is registered rather than on every report.
+      this.registryTracker = new RegistryTracker();
+      metricRegistry.addListener(registryTracker);
+    }
+  }
+
+  /**
+   * Runs scheduled reports through the {@link OverrunGuard}, which skips late cycles, and skips
+   * them without reading the registry while the transport is paused, e.g. while the HTTP
+   * transport's circuit breaker is open. When aligned to the interval, cycles run at a fixed rate
+   * on this host's slot of each interval instead of at a fixed delay from the start. With a
+   * {@link SharedReporterScheduler}, the executor is its timer and cycles run on virtual threads.
+   * <p/>
+   * The slot is derived from the host name, so when the host is looked up on EC2 after the
+   * reporter started, the cycles move to the host's slot once it is known.
+   */
+  @Override
+  protected ScheduledFuture<?> getScheduledFuture(long initialDelay, long period, TimeUnit unit,
+                                                  Runnable runnable,
+                                                  ScheduledExecutorService executor) {
+    var periodNanos = unit.toNanos(period);
+    Runnable guarded = () -> {
+      if (transport.isPaused()) {
+        LOG.debug("Transport is paused, skipping report");
+        if (selfMetrics != null) {
+          selfMetrics.recordPausedCycle();
+        }
+        return;
+      }
+      overrunGuard.run(runnable, periodNanos, schedule);
+    };
+    if (scheduler != null) {
+      guarded = scheduler.dispatching(guarded, overrunGuard::skipBusy);
+    }
+    var scheduled = new Cycles(unit.toMillis(initialDelay), unit.toMillis(period), guarded, executor);
+    cycles = scheduled;
+    scheduled.start();
+    return scheduled;
+  }
+
+  /**
+   * Like {@link ScheduledReporter#report()}, but holds a lock instead of the reporter's monitor, so
+   * that a cycle running on a virtual thread does not pin its carrier while it waits on the network.
+   */
+  @Override
+  public void report() {
+    reportLock.lock();
+    try {
+      report(registry.getGauges(filter), registry.getCounters(filter), registry.getHistograms(filter),
+          registry.getMeters(filter), registry.getTimers(filter));
+    } finally {
+      reportLock.unlock();
+    }
+  }
+
+  /**
+   * @return the key this reporter's slot in the interval is derived from
+   */
+  private String scheduleKey() {
+    if (host != null) {
+      return host;
+    }
+    // Without a host every pod would hash the same key and report at the same moment. The ordinal
+    // keeps the reporters of one process apart, and is stable across restarts.
+    return IntervalSchedule.localKey() + "#" + ordinal;
+  }
+
+  /**
+   * The scheduled cycles, which can be moved to another slot in the interval.
+   */
+  private class Cycles implements ScheduledFuture<Object> {
+    private final long initialDelayMillis;
+    private final long periodMillis;
+    private final Runnable task;
+    private final ScheduledExecutorService executor;
+    private long startMillis;
+    private long offsetMillis;
+    private ScheduledFuture<?> current;
+    private boolean cancelled;
+
+    Cycles(long initialDelayMillis, long periodMillis, Runnable task, ScheduledExecutorService executor) {
+      this.initialDelayMillis = initialDelayMillis;
+      this.periodMillis = periodMillis;
+      this.task = task;
+      this.executor = executor;
+    }
+
+    synchronized void start() {
+      startMillis = clock.getTime();
+      offsetMillis = IntervalSchedule.offsetFor(scheduleKey(), jitterMillis, periodMillis);
+      schedule(initialDelayMillis + offsetMillis);
+    }
+
+    /**
+     * Move the cycles to the slot of the resolved host, if it differs from the one in use.
+     */
+    synchronized void hostResolved() {
+      if (current == null || cancelled) {
+        return;
+      }
+      var resolvedOffset = IntervalSchedule.offsetFor(scheduleKey(), jitterMillis, periodMillis);
+      if (resolvedOffset == offsetMillis || periodMillis <= 0) {
+        return;
+      }
+      offsetMillis = resolvedOffset;
+      current.cancel(false);
+      // The next cycle the reporter would have run had the host been known from the start.
+      var next = startMillis + initialDelayMillis + offsetMillis;
+      var now = clock.getTime();
+      if (next < now) {
+        next += ((now - next) / periodMillis + 1) * periodMillis;
+      }
+      try {
+        schedule(next - now);
+        LOG.debug("Moved report cycles to an offset of {} ms for host {}", offsetMillis, host);
+      } catch (RejectedExecutionException e) {
+        // The reporter was stopped in the meantime.
+        cancelled = true;
+      }
+    }
+
+    private void schedule(long delayMillis) {
+      if (alignToInterval && periodMillis > 0) {
+        schedule = new IntervalSchedule(periodMillis, offsetMillis);
+        current = executor.scheduleAtFixedRate(task, schedule.initialDelayMillis(clock.getTime()),
+            periodMillis, TimeUnit.MILLISECONDS);
+      } else {
+        current = DatadogReporter.super.getScheduledFuture(delayMillis, periodMillis,
+            TimeUnit.MILLISECONDS, task, executor);
+      }
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+      cancelled = true;
+      return current.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+      return cancelled || current.isDone();
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+      return currentFuture().get();
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return currentFuture().get(timeout, unit);
+    }
+
+    @Override
+    public synchronized long getDelay(TimeUnit unit) {
+      return current.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    private synchronized ScheduledFuture<?> currentFuture() {
+      return current;
+    }
+  }
+
+  @Override
+  public void stop() {
+    try {
+      super.stop();
+    } finally {
+      if (registryTracker != null) {
+        registry.removeListener(registryTracker);
+      }
+    }
   }
 
   @Override
@@ -72,7 +338,15 @@ public class DatadogReporter extends ScheduledReporter {
                      SortedMap<String, Histogram> histograms,
                      SortedMap<String, Meter> meters,
                      SortedMap<String, Timer> timers) {
-    var timestamp = clock.getTime() / 1000;
+    var cycleEvent = DatadogReportCycle.isEventEnabled() ? new DatadogReportCycle() : null;
+    if (cycleEvent != null) {
+      cycleEvent.begin();
+    }
+    var start = System.nanoTime();
+    // The host may be resolved during the cycle; every series of a cycle reports the same one.
+    var host = this.host;
+    var aligned = schedule;
+    var timestamp = aligned != null ? aligned.timestamp(clock.getTime()) : clock.getTime() / 1000;
 
     var newTags = tags;
     if (tagsCallback != null) {
@@ -82,134 +356,201 @@ public class DatadogReporter extends ScheduledReporter {
       }
     }
 
+    if (batch == null || !Objects.equals(batch.getHost(), host)) {
+      batch = new SeriesBatch(host);
+    }
+
     try {
       request = transport.prepare();
+      seriesCount = 0;
+      if (payloadBudget != null) {
+        request = payloadBudget.wrap(request, timestamp, host, newTags);
+      }
 
       for (var entry : gauges.entrySet()) {
-        reportGauge(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+        reportGauge(prefix(admit(entry.getKey())), entry.getValue(), timestamp, host, newTags);
       }
 
+      var suppressUnchanged = overrunGuard.suppressUnchanged();
+
       for (var entry : counters.entrySet()) {
-        reportCounter(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+        var idle = isIdle(entry.getKey(), entry.getValue().getCount());
+        if (!(idle && suppressUnchanged)) {
+          reportCounter(prefix(admit(entry.getKey())), entry.getValue(), timestamp, host, newTags,
+              idle);
+        }
       }
 
       for (var entry : histograms.entrySet()) {
-        reportHistogram(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+        var idle = isIdle(entry.getKey(), entry.getValue().getCount());
+        if (!(idle && suppressUnchanged)) {
+          reportHistogram(prefix(admit(entry.getKey())), entry.getValue(), timestamp, host, newTags,
+              expansionsFor(entry.getKey()), idle);
+        }
       }
 
       for (var entry : meters.entrySet()) {
-        reportMetered(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+        var idle = isIdle(entry.getKey(), entry.getValue().getCount());
+        if (!(idle && suppressUnchanged)) {
+          reportMetered(prefix(admit(entry.getKey())), entry.getValue(), timestamp, host, newTags,
+              expansionsFor(entry.getKey()), idle);
+        }
       }
 
       for (var entry : timers.entrySet()) {
-        reportTimer(prefix(entry.getKey()), entry.getValue(), timestamp, newTags);
+        var idle = isIdle(entry.getKey(), entry.getValue().getCount());
+        if (!(idle && suppressUnchanged)) {
+          reportTimer(prefix(admit(entry.getKey())), entry.getValue(), timestamp, host, newTags,
+              expansionsFor(entry.getKey()), idle);
+        }
       }
 
+      flushFolded();
+      if (batch.size() > 0) {
+        request.addBatch(batch);
+      }
+      var collected = System.nanoTime();
       request.send();
+      var sent = System.nanoTime();
+      if (selfMetrics != null) {
+        selfMetrics.recordCollect(collected - start);
+        selfMetrics.recordSend(sent - collected);
+        selfMetrics.recordSeries(seriesCount);
+      }
+      if (cycleEvent != null) {
+        cycleEvent.seriesCount = seriesCount;
+        cycleEvent.collectDuration = collected - start;
+        cycleEvent.sendDuration = sent - collected;
+        cycleEvent.commit();
+      }
     } catch (Throwable e) {
       LOG.error("Error reporting metrics to Datadog", e);
+      if (request != null) {
+        request.abort();
+      }
+    } finally {
+      request = null;
+      batch.clear();
+      foldedSeries.clear();
     }
   }
 
-  private void reportTimer(String name, Timer timer, long timestamp, List<String> tags)
-      throws IOException {
-    final Snapshot snapshot = timer.getSnapshot();
+  private void reportTimer(String name, Timer timer, long timestamp, String host, List<String> tags,
+                           EnumSet<Expansion> expansions, boolean idle) {
+    // Only take a snapshot when at least one statistic is wanted, and only compute the ones
+    // that are enabled, since percentiles are the expensive part of a timer.
+    if (containsAny(expansions, STATS_EXPANSIONS)) {
+      final Snapshot snapshot = timer.getSnapshot();
 
-    double[] values = { snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(),
-        snapshot.getMedian(), snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-        snapshot.get99thPercentile(), snapshot.get999thPercentile() };
-
-    for (var i = 0; i < STATS_EXPANSIONS.length; i++) {
-      if (expansions.contains(STATS_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-            toNumber(convertDuration(values[i])),
-            timestamp,
-            host,
-            tags));
+      for (var expansion : STATS_EXPANSIONS) {
+        if (expansions.contains(expansion)) {
+          addGauge(
+              appendExpansionSuffix(name, expansion),
+              toNumber(convertDuration(statistic(snapshot, expansion).doubleValue())),
+              timestamp,
+              host,
+              tags,
+              priority(expansion, idle),
+              false);
+        }
       }
     }
 
-    reportMetered(name, timer, timestamp, tags);
+    reportMetered(name, timer, timestamp, host, tags, expansions, idle);
   }
 
-  private void reportMetered(String name, Metered meter, long timestamp, List<String> tags)
-      throws IOException {
+  private void reportMetered(String name, Metered meter, long timestamp, String host,
+                             List<String> tags, EnumSet<Expansion> expansions, boolean idle) {
     if (expansions.contains(Expansion.COUNT)) {
-      request.addGauge(new DatadogGauge(
+      addGauge(
           appendExpansionSuffix(name, Expansion.COUNT),
           meter.getCount(),
           timestamp,
           host,
-          tags));
+          tags,
+          priority(Expansion.COUNT, idle),
+          true);
     }
 
-    double[] values = { meter.getOneMinuteRate(), meter.getFiveMinuteRate(),
-        meter.getFifteenMinuteRate(), meter.getMeanRate() };
-
-    for (var i = 0; i < RATE_EXPANSIONS.length; i++) {
-      if (expansions.contains(RATE_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, RATE_EXPANSIONS[i]),
-            toNumber(convertRate(values[i])),
+    for (var expansion : RATE_EXPANSIONS) {
+      if (expansions.contains(expansion)) {
+        addGauge(
+            appendExpansionSuffix(name, expansion),
+            toNumber(convertRate(rate(meter, expansion))),
             timestamp,
             host,
-            tags));
+            tags,
+            priority(expansion, idle),
+            true);
       }
     }
   }
 
-  private void reportHistogram(String name, Histogram histogram, long timestamp, List<String> tags)
-      throws IOException {
-    var snapshot = histogram.getSnapshot();
-
+  private void reportHistogram(String name, Histogram histogram, long timestamp, String host,
+                               List<String> tags, EnumSet<Expansion> expansions, boolean idle) {
     if (expansions.contains(Expansion.COUNT)) {
-      request.addGauge(new DatadogGauge(
+      addGauge(
           appendExpansionSuffix(name, Expansion.COUNT),
           histogram.getCount(),
           timestamp,
           host,
-          tags));
+          tags,
+          priority(Expansion.COUNT, idle),
+          true);
     }
 
-    Number[] values = { snapshot.getMax(), snapshot.getMean(), snapshot.getMin(), snapshot.getStdDev(),
-        snapshot.getMedian(), snapshot.get75thPercentile(), snapshot.get95thPercentile(), snapshot.get98thPercentile(),
-        snapshot.get99thPercentile(), snapshot.get999thPercentile() };
+    if (containsAny(expansions, STATS_EXPANSIONS)) {
+      var snapshot = histogram.getSnapshot();
 
-    for (var i = 0; i < STATS_EXPANSIONS.length; i++) {
-      if (expansions.contains(STATS_EXPANSIONS[i])) {
-        request.addGauge(new DatadogGauge(
-            appendExpansionSuffix(name, STATS_EXPANSIONS[i]),
-            toNumber(values[i]),
-            timestamp,
-            host,
-            tags));
+      for (var expansion : STATS_EXPANSIONS) {
+        if (expansions.contains(expansion)) {
+          addGauge(
+              appendExpansionSuffix(name, expansion),
+              toNumber(statistic(snapshot, expansion)),
+              timestamp,
+              host,
+              tags,
+              priority(expansion, idle),
+              false);
+        }
       }
     }
   }
 
-  private void reportCounter(String name, Counter counter, long timestamp, List<String> tags)
-      throws IOException {
+  private void reportCounter(String name, Counter counter, long timestamp, String host,
+                             List<String> tags, boolean idle) {
     // A Metrics counter is actually a Datadog Gauge.  Datadog Counters are for rates which is
     // similar to the Metrics Meter type.  Metrics counters have increment and decrement
     // functionality, which implies they are instantaneously measurable, which implies they are
     // actually a gauge. The Metrics documentation agrees, stating:
     // "A counter is just a gauge for an AtomicLong instance. You can increment or decrement its
     // value. For example, we may want a more efficient way of measuring the pending job in a queue"
-    request.addGauge(new DatadogGauge(metricNameFormatter.format(name), counter.getCount(),
-        timestamp, host, tags));
+    addGauge(metricNameFormatter.format(name), counter.getCount(),
+        timestamp, host, tags, idle ? Priority.LOW : Priority.HIGH, true);
   }
 
   /**
    * Gauges are the only metrics which can throw exceptions. With a thrown exception all
    * other metrics will not be reported to Datadog.
   */
-  private void reportGauge(String name, Gauge<?> gauge, long timestamp, List<String> tags) {
+  private void reportGauge(String name, Gauge<?> gauge, long timestamp, String host,
+                           List<String> tags) {
     try {
+      var event = DatadogGaugeEvaluation.isEventEnabled() ? new DatadogGaugeEvaluation() : null;
+      if (event != null) {
+        event.begin();
+      }
       var value = toNumber(gauge.getValue());
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.metric = name;
+          event.commit();
+        }
+      }
       if (value != null) {
-        request.addGauge(new DatadogGauge(metricNameFormatter.format(name), value, timestamp, host,
-                tags));
+        addGauge(metricNameFormatter.format(name), value, timestamp, host, tags, Priority.HIGH,
+            false);
       }
     } catch (Exception e) {
       var errorMessage = String.format("Error reporting gauge metric (name: %s, tags: %s) to Datadog, " +
@@ -218,6 +559,166 @@ public class DatadogReporter extends ScheduledReporter {
     }
   }
 
+  /**
+   * @param additive whether the values of several series can be summed into one, like counts
+   * and rates
+   */
+  private void addGauge(String name, Number value, long timestamp, String host, List<String> tags,
+                        Priority priority, boolean additive) {
+    if (folding) {
+      fold(new DatadogGauge(name, value, timestamp, host, tags), priority, additive);
+    } else if (request instanceof PayloadBudget.BudgetedRequest budgeted) {
+      seriesCount++;
+      budgeted.add(new DatadogGauge(name, value, timestamp, host, tags), priority);
+    } else {
+      seriesCount++;
+      addRow(name, value.doubleValue(), timestamp, tags);
+    }
+  }
+
+  private void add(DatadogGauge gauge, Priority priority) {
+    seriesCount++;
+    if (request instanceof PayloadBudget.BudgetedRequest budgeted) {
+      budgeted.add(gauge, priority);
+    } else {
+      batch.add(gauge);
+    }
+  }
+
+  /**
+   * Adds a gauge to the cycle's batch, decoding tags from its name like {@link DatadogGauge}
+   * does. Names without tags share the cycle's tag list, so the batch stores it once.
+   */
+  private void addRow(String name, double value, long timestamp, List<String> tags) {
+    int metricId;
+    int tagSetId;
+    if (name.indexOf('[') < 0) {
+      metricId = batch.addMetric(name);
+      tagSetId = batch.addTagSet(tags != null ? tags : List.of());
+    } else {
+      var taggedName = TaggedName.decode(name);
+      var rowTags = taggedName.getEncodedTags();
+      if (tags != null) {
+        rowTags.addAll(tags);
+      }
+      metricId = batch.addMetric(taggedName.getMetricName());
+      tagSetId = batch.addTagSet(rowTags);
+    }
+    batch.add(metricId, tagSetId, SeriesBatch.GAUGE, timestamp, value);
+  }
+
+  /**
+   * The priority of a series when a payload budget has to shed some.
+   */
+  private static Priority priority(Expansion expansion, boolean idle) {
+    if (idle) {
+      return Priority.LOW;
+    }
+    return switch (expansion) {
+      case COUNT -> Priority.HIGH;
+      case P98, P999, STD_DEV, RATE_5_MINUTE, RATE_15_MINUTE -> Priority.LOW;
+      default -> Priority.NORMAL;
+    };
+  }
+
+  /**
+   * A metric is idle when its count did not change since the previous report. Only tracked
+   * when a payload budget may need to shed series.
+   */
+  private boolean isIdle(String name, long count) {
+    if (payloadBudget == null && !overrunGuard.degrades()) {
+      return false;
+    }
+    var previous = lastCounts.put(name, count);
+    return previous != null && previous == count;
+  }
+
+  private static Number statistic(Snapshot snapshot, Expansion expansion) {
+    return switch (expansion) {
+      case MAX -> snapshot.getMax();
+      case MEAN -> snapshot.getMean();
+      case MIN -> snapshot.getMin();
+      case STD_DEV -> snapshot.getStdDev();
+      case MEDIAN -> snapshot.getMedian();
+      case P75 -> snapshot.get75thPercentile();
+      case P95 -> snapshot.get95thPercentile();
+      case P98 -> snapshot.get98thPercentile();
+      case P99 -> snapshot.get99thPercentile();
+      case P999 -> snapshot.get999thPercentile();
+      default -> throw new IllegalArgumentException("Not a snapshot statistic: " + expansion);
+    };
+  }
+
+  private static double rate(Metered meter, Expansion expansion) {
+    return switch (expansion) {
+      case RATE_1_MINUTE -> meter.getOneMinuteRate();
+      case RATE_5_MINUTE -> meter.getFiveMinuteRate();
+      case RATE_15_MINUTE -> meter.getFifteenMinuteRate();
+      case RATE_MEAN -> meter.getMeanRate();
+      default -> throw new IllegalArgumentException("Not a rate: " + expansion);
+    };
+  }
+
+  private static boolean containsAny(EnumSet<Expansion> expansions, Expansion[] candidates) {
+    for (var candidate : candidates) {
+      if (expansions.contains(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private EnumSet<Expansion> expansionsFor(String name) {
+    if (expansionPolicy.isUniform()) {
+      return overrunGuard.restrict(expansionPolicy.getDefaultExpansions());
+    }
+    // Metrics passed to report() directly may never have been registered.
+    return overrunGuard.restrict(resolvedExpansions.computeIfAbsent(name, expansionPolicy::resolve));
+  }
+
+  private String admit(String name) {
+    if (cardinalityLimiter == null) {
+      return name;
+    }
+    var admitted = cardinalityLimiter.admit(name);
+    folding = !admitted.equals(name);
+    return admitted;
+  }
+
+  /**
+   * Several series share an overflow name, and the intake would keep only one of their points.
+   * Their counts and rates are summed into one point instead, and their gauges and percentiles,
+   * which cannot be summed, report the maximum.
+   */
+  private void fold(DatadogGauge gauge, Priority priority, boolean additive) {
+    var key = gauge.getMetric() + gauge.getTags();
+    var folded = foldedSeries.get(key);
+    if (folded == null) {
+      foldedSeries.put(key, new FoldedSeries(gauge, priority, additive));
+    } else {
+      folded.add(gauge, priority);
+    }
+  }
+
+  private void flushFolded() {
+    for (var folded : foldedSeries.values()) {
+      add(folded.toGauge(), folded.priority);
+    }
+    foldedSeries.clear();
+    folding = false;
+  }
+
+  /**
+   * @return the cardinality limiter of this reporter, or null if series are not limited
+   */
+  public CardinalityLimiter getCardinalityLimiter() {
+    return cardinalityLimiter;
+  }
+
+  public OverrunGuard getOverrunGuard() {
+    return overrunGuard;
+  }
+
   private Number toNumber(Object o) {
     if (o instanceof Number) {
       return (Number) o;
@@ -237,6 +738,115 @@ public class DatadogReporter extends ScheduledReporter {
     }
   }
 
+  /**
+   * The sum, or for values that cannot be summed the maximum, of the series folded into one
+   * overflow series during a report.
+   */
+  private static class FoldedSeries {
+    private final DatadogGauge first;
+    private final boolean additive;
+    private Priority priority;
+    private Number max;
+    private boolean integral;
+    private long longSum;
+    private double doubleSum;
+
+    FoldedSeries(DatadogGauge gauge, Priority priority, boolean additive) {
+      this.first = gauge;
+      this.additive = additive;
+      this.priority = priority;
+      this.integral = true;
+      add(gauge, null);
+    }
+
+    void add(DatadogGauge gauge, Priority priority) {
+      if (priority != null && priority.compareTo(this.priority) < 0) {
+        this.priority = priority;
+      }
+      var value = gauge.getPoints().getFirst().get(1);
+      if (!additive) {
+        if (max == null || value.doubleValue() > max.doubleValue()) {
+          max = value;
+        }
+      } else if (integral && (value instanceof Long || value instanceof Integer)) {
+        longSum += value.longValue();
+      } else {
+        integral = false;
+        doubleSum += value.doubleValue();
+      }
+    }
+
+    DatadogGauge toGauge() {
+      Number value;
+      if (!additive) {
+        value = max;
+      } else {
+        value = integral ? (Number) longSum : (Number) (longSum + doubleSum);
+      }
+      return new DatadogGauge(first.getMetric(), value, first.getPoints().getFirst().get(0).longValue(),
+          first.getHost(), first.getTags());
+    }
+  }
+
+  /**
+   * Keeps the per-metric expansion cache and the cardinality limiter in step with the registry.
+   */
+  private class RegistryTracker extends MetricRegistryListener.Base {
+    @Override
+    public void onGaugeRemoved(String name) {
+      forget(name);
+    }
+
+    @Override
+    public void onCounterRemoved(String name) {
+      forget(name);
+    }
+
+    @Override
+    public void onHistogramAdded(String name, Histogram histogram) {
+      resolve(name);
+    }
+
+    @Override
+    public void onHistogramRemoved(String name) {
+      forget(name);
+    }
+
+    @Override
+    public void onMeterAdded(String name, Meter meter) {
+      resolve(name);
+    }
+
+    @Override
+    public void onMeterRemoved(String name) {
+      forget(name);
+    }
+
+    @Override
+    public void onTimerAdded(String name, Timer timer) {
+      resolve(name);
+    }
+
+    @Override
+    public void onTimerRemoved(String name) {
+      forget(name);
+    }
+
+    private void resolve(String name) {
+      if (!expansionPolicy.isUniform()) {
+        resolvedExpansions.put(name, expansionPolicy.resolve(name));
+      }
+    }
+
+    private void forget(String name) {
+      resolvedExpansions.remove(name);
+      lastCounts.remove(name);
+      if (cardinalityLimiter != null) {
+        cardinalityLimiter.forget(name);
+      }
+    }
+  }
+
   public static enum Expansion {
     COUNT("count"),
     RATE_MEAN("meanRate"),
@@ -276,6 +886,7 @@ public class DatadogReporter extends ScheduledReporter {
     private final MetricRegistry registry;
     private String host;
     private EnumSet<Expansion> expansions;
+    private ExpansionPolicy expansionPolicy;
     private Clock clock;
     private TimeUnit rateUnit;
     private TimeUnit durationUnit;
@@ -285,6 +896,14 @@ public class DatadogReporter extends ScheduledReporter {
     private Transport transport;
     private String prefix;
     private DynamicTagsCallback tagsCallback;
+    private CardinalityLimiter cardinalityLimiter;
+    private PayloadBudget payloadBudget;
+    private SelfMetrics selfMetrics;
+    private boolean degradeOnOverrun;
+    private boolean alignToInterval;
+    private long jitterMillis;
+    private SharedReporterScheduler scheduler;
+    private Ec2HostResolver hostResolver;
 
     public Builder(MetricRegistry registry) {
       this.registry = registry;
@@ -299,11 +918,27 @@ public class DatadogReporter extends ScheduledReporter {
 
     public Builder withHost(String host) {
       this.host = host;
+      this.hostResolver = null;
       return this;
     }
 
+    /**
+     * Report under the EC2 instance id. The id is looked up in the background, so the reporter
+     * can start right away; until the id is known, series are reported without a host.
+     *
+     * @throws IOException never; kept for compatibility
+     */
     public Builder withEC2Host() throws IOException {
-      this.host = AwsHelper.getEc2InstanceId();
+      return withEC2Host(new Ec2HostResolver.Builder().build());
+    }
+
+    /**
+     * Report under the EC2 instance id looked up by the given resolver. Until it is known,
+     * series are reported under the resolver's cached id if there is one, and otherwise under the
+     * host set before, if any.
+     */
+    public Builder withEC2Host(Ec2HostResolver hostResolver) {
+      this.hostResolver = hostResolver;
       return this;
     }
 
@@ -312,11 +947,101 @@ public class DatadogReporter extends ScheduledReporter {
       return this;
     }
 
+    /**
+     * Per-metric expansions. Metrics that no rule of the policy matches fall back to the
+     * policy's default expansions, which take precedence over {@link #withExpansions(EnumSet)}.
+     *
+     * @see ExpansionPolicy
+     */
+    public Builder withExpansionPolicy(ExpansionPolicy expansionPolicy) {
+      this.expansionPolicy = expansionPolicy;
+      return this;
+    }
+
     public Builder withDynamicTagCallback(DynamicTagsCallback tagsCallback) {
       this.tagsCallback = tagsCallback;
       return this;
     }
 
+    /**
+     * Limit the number of tagged series reported for each metric name. Series past the limit are
+     * reported with their tag values replaced by "other".
+     *
+     * @param maxSeriesPerMetric maximum number of distinct tag combinations per metric name
+     * @see CardinalityLimiter
+     */
+    public Builder withCardinalityLimit(int maxSeriesPerMetric) {
+      this.cardinalityLimiter = new CardinalityLimiter(maxSeriesPerMetric);
+      return this;
+    }
+
+    public Builder withCardinalityLimiter(CardinalityLimiter cardinalityLimiter) {
+      this.cardinalityLimiter = cardinalityLimiter;
+      return this;
+    }
+
+    /**
+     * Cap the number of series and the payload size of each report. Over budget, low priority
+     * series such as extended percentiles, 5 and 15 minute rates and idle metrics are shed first.
+     *
+     * @see PayloadBudget
+     */
+    public Builder withPayloadBudget(PayloadBudget payloadBudget) {
+      this.payloadBudget = payloadBudget;
+      return this;
+    }
+
+    /**
+     * Publish metrics about the reporter itself, such as collection and send durations and
+     * series counts. Pass the same instance to the transport's builder to include its metrics.
+     *
+     * @see SelfMetrics
+     */
+    public Builder withSelfMetrics(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
+    /**
+     * Under sustained overrun of the reporting period, step down to reporting fewer expansions
+     * and then to leaving out unchanged metrics, until cycles are fast again. Late scheduled
+     * cycles are skipped either way.
+     *
+     * @see OverrunGuard
+     */
+    public Builder withDegradeOnOverrun(boolean degradeOnOverrun) {
+      this.degradeOnOverrun = degradeOnOverrun;
+      return this;
+    }
+
+    /**
+     * Run scheduled reports on wall-clock multiples of the period, e.g. at :00, :10, :20 for a
+     * ten second period, and report the boundary as the timestamp of every series.
+     */
+    public Builder withIntervalAlignment(boolean alignToInterval) {
+      this.alignToInterval = alignToInterval;
+      return this;
+    }
+
+    /**
+     * Schedule this reporter on a scheduler shared with other reporters instead of on a thread of
+     * its own. Its report cycles then run on virtual threads.
+     */
+    public Builder withScheduler(SharedReporterScheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * Delay scheduled reports by an offset between zero and the given maximum (capped at the
+     * period), derived from a hash of the host name, so hosts that start together do not all
+     * report at the same moment. The offset is the same on every run and restart of a host.
+     */
+    public Builder withJitter(long maxJitter, TimeUnit unit) {
+      this.jitterMillis = unit.toMillis(maxJitter);
+      return this;
+    }
+
     public Builder convertRatesTo(TimeUnit rateUnit) {
       this.rateUnit = rateUnit;
       return this;
@@ -385,13 +1110,21 @@ public class DatadogReporter extends ScheduledReporter {
           this.filter,
           this.clock,
           this.host,
-          this.expansions,
+          this.expansionPolicy != null ? this.expansionPolicy : ExpansionPolicy.uniform(this.expansions),
           this.rateUnit,
           this.durationUnit,
           this.metricNameFormatter,
           this.tags,
           this.prefix,
-          this.tagsCallback);
+          this.tagsCallback,
+          this.cardinalityLimiter,
+          this.payloadBudget,
+          this.selfMetrics,
+          this.degradeOnOverrun,
+          this.alignToInterval,
+          this.jitterMillis,
+          this.scheduler,
+          this.hostResolver);
     }
   }
 }
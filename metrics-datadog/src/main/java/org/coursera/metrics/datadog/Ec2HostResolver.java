@@ -0,0 +1,238 @@
+package org.coursera.metrics.datadog;
+
+import org.apache.hc.client5.http.fluent.Request;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.routing.DefaultRoutePlanner;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Looks up the EC2 instance id from the instance metadata service, without blocking the caller.
+ * <p/>
+ * Uses the IMDSv2 session token flow, and falls back to a plain IMDSv1 request if the token
+ * endpoint answers with an error. Every request has a short timeout, so off EC2 the lookup does
+ * not stall startup, and a failed lookup is retried a few times with a growing backoff, so a
+ * single metadata service timeout does not leave the host unresolved. With a cache file, a resolved id is written to it and
+ * can be read back on the next start, so a restarted host reports under its id right away while
+ * the id is looked up again in the background.
+ */
+public class Ec2HostResolver {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Ec2HostResolver.class);
+
+  public static final String DEFAULT_METADATA_URL = "http://169.254.169.254";
+
+  private static final String TOKEN_TTL_SECONDS = "21600";
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+  private final String metadataUrl;
+  private final int timeout;      // in milliseconds
+  private final Path cacheFile;
+  private final int maxRetries;
+  private final int retryBackoff;     // in milliseconds
+
+  private Ec2HostResolver(String metadataUrl, int timeout, Path cacheFile, int maxRetries, int retryBackoff) {
+    this.metadataUrl = metadataUrl;
+    this.timeout = timeout;
+    this.cacheFile = cacheFile;
+    this.maxRetries = maxRetries;
+    this.retryBackoff = retryBackoff;
+  }
+
+  public static class Builder {
+    private String metadataUrl = DEFAULT_METADATA_URL;
+    private int timeout = 1000;
+    private Path cacheFile;
+    private int maxRetries = 5;
+    private int retryBackoff = 1000;
+
+    /**
+     * The base URL of the metadata service, e.g. a local stand-in for tests.
+     */
+    public Builder withMetadataUrl(String metadataUrl) {
+      this.metadataUrl = metadataUrl;
+      return this;
+    }
+
+    /**
+     * Connect and response timeout of each request to the metadata service. Defaults to one
+     * second.
+     */
+    public Builder withTimeout(int milliseconds) {
+      this.timeout = milliseconds;
+      return this;
+    }
+
+    /**
+     * A file to keep the resolved instance id in across restarts.
+     */
+    public Builder withCacheFile(Path cacheFile) {
+      this.cacheFile = cacheFile;
+      return this;
+    }
+
+    /**
+     * How many times {@link #resolve()} looks the id up again after a failure. Defaults to 5.
+     */
+    public Builder withRetries(int maxRetries) {
+      if (maxRetries < 0) {
+        throw new IllegalArgumentException("maxRetries must not be negative");
+      }
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * The wait before the first retry, doubled on every further retry up to a minute. Defaults to
+     * one second.
+     */
+    public Builder withRetryBackoff(int milliseconds) {
+      if (milliseconds < 1) {
+        throw new IllegalArgumentException("retryBackoff must be positive");
+      }
+      this.retryBackoff = milliseconds;
+      return this;
+    }
+
+    public Ec2HostResolver build() {
+      if (metadataUrl == null || metadataUrl.isEmpty()) {
+        throw new IllegalArgumentException("metadataUrl must be defined");
+      }
+      if (timeout < 1) {
+        throw new IllegalArgumentException("timeout must be positive");
+      }
+      return new Ec2HostResolver(metadataUrl, timeout, cacheFile, maxRetries, retryBackoff);
+    }
+  }
+
+  /**
+   * Asks the metadata service for the instance id on a virtual thread, retrying as configured,
+   * and caches the answer.
+   *
+   * @return the instance id, or a future that completes exceptionally if the service could not
+   * be reached within the retries
+   */
+  public CompletableFuture<String> resolve() {
+    var resolved = new CompletableFuture<String>();
+    Thread.ofVirtual().name("datadog-ec2-host").start(() -> {
+      for (var attempt = 0; ; attempt++) {
+        try {
+          var instanceId = fetchInstanceId();
+          if (!instanceId.equals(getCachedInstanceId())) {
+            writeCache(instanceId);
+          }
+          resolved.complete(instanceId);
+          return;
+        } catch (IOException | RuntimeException e) {
+          if (attempt >= maxRetries) {
+            resolved.completeExceptionally(e);
+            return;
+          }
+          var backoff = Math.min(MAX_BACKOFF_MILLIS, (long) retryBackoff << Math.min(attempt, 30));
+          LOG.debug("Could not look up the EC2 instance id, retrying in {} ms: {}", backoff, e.getMessage());
+          try {
+            Thread.sleep(backoff);
+          } catch (InterruptedException interrupted) {
+            resolved.completeExceptionally(interrupted);
+            return;
+          }
+        }
+      }
+    });
+    return resolved;
+  }
+
+  /**
+   * @return the instance id from the cache file, or null
+   */
+  public String getCachedInstanceId() {
+    if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+      return null;
+    }
+    try {
+      var instanceId = Files.readString(cacheFile, StandardCharsets.UTF_8).trim();
+      return instanceId.isEmpty() ? null : instanceId;
+    } catch (IOException e) {
+      LOG.warn("Could not read EC2 instance id cache {}: {}", cacheFile, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Asks the metadata service for the instance id, blocking for at most a few timeouts.
+   */
+  public String fetchInstanceId() throws IOException {
+    var token = fetchToken();
+    var request = Request.get(metadataUrl + "/latest/meta-data/instance-id")
+        .connectTimeout(Timeout.ofMilliseconds(timeout))
+        .responseTimeout(Timeout.ofMilliseconds(timeout));
+    if (token != null) {
+      request.addHeader("X-aws-ec2-metadata-token", token);
+    }
+    var instanceId = request.execute(MetadataClient.CLIENT).handleResponse(response -> {
+      if (response.getCode() != 200) {
+        throw new IOException("Instance metadata service answered " + response.getCode());
+      }
+      return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8).trim();
+    });
+    if (instanceId.isEmpty()) {
+      throw new IOException("Instance metadata service returned an empty instance id");
+    }
+    return instanceId;
+  }
+
+  /**
+   * @return an IMDSv2 session token, or null if the service only speaks IMDSv1
+   */
+  private String fetchToken() throws IOException {
+    return Request.put(metadataUrl + "/latest/api/token")
+        .addHeader("X-aws-ec2-metadata-token-ttl-seconds", TOKEN_TTL_SECONDS)
+        .connectTimeout(Timeout.ofMilliseconds(timeout))
+        .responseTimeout(Timeout.ofMilliseconds(timeout))
+        .execute(MetadataClient.CLIENT)
+        .handleResponse(response -> {
+          if (response.getCode() != 200) {
+            LOG.debug("No IMDSv2 token (status {}), falling back to IMDSv1", response.getCode());
+            return null;
+          }
+          return EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8).trim();
+        });
+  }
+
+  /**
+   * The metadata service is link-local: a proxy cannot reach it, and retries are already
+   * scheduled by {@link #resolve()}, so the client neither retries on its own nor honors the
+   * system proxy settings, unlike the fluent API's default client.
+   */
+  private static class MetadataClient {
+    static final CloseableHttpClient CLIENT = HttpClients.custom()
+        .disableAutomaticRetries()
+        .setRoutePlanner(new DefaultRoutePlanner(null))
+        .build();
+  }
+
+  private void writeCache(String instanceId) {
+    if (cacheFile == null) {
+      return;
+    }
+    try {
+      var parent = cacheFile.toAbsolutePath().getParent();
+      Files.createDirectories(parent);
+      var temp = Files.createTempFile(parent, cacheFile.getFileName().toString(), ".tmp");
+      Files.writeString(temp, instanceId, StandardCharsets.UTF_8);
+      Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Could not write EC2 instance id cache {}: {}", cacheFile, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps metric names to the set of {@link Expansion}s that should be reported for them.
+ * <p/>
+ * Rules are glob patterns over the registry name of a metric, where {@code *} matches any
+ * (possibly empty) run of characters. A pattern without wildcards matches the metric name
+ * exactly; {@code "api.checkout.*"} is a prefix rule. When several rules match, the one with the
+ * most literal characters wins, and ties go to the rule that was added first. Metrics that no
+ * rule matches get the default expansions.
+ * <p/>
+ * The rules are compiled into a character trie, so resolving a name walks the trie along the name
+ * instead of testing every rule in turn. The walk follows every node the name can be at in
+ * lockstep, one character at a time, so it is linear in the length of the name however many
+ * wildcards the rules have. {@link DatadogReporter} resolves each metric once when it is
+ * registered and caches the result, so the policy is not consulted on every report.
+ */
+public class ExpansionPolicy {
+
+  private final EnumSet<Expansion> defaultExpansions;
+  private final Node root;
+  private final boolean uniform;
+
+  private ExpansionPolicy(EnumSet<Expansion> defaultExpansions, List<Rule> rules) {
+    this.defaultExpansions = defaultExpansions;
+    this.uniform = rules.isEmpty();
+    this.root = new Node();
+    for (var rule : rules) {
+      insert(rule);
+    }
+  }
+
+  /**
+   * A policy that applies the same expansions to every metric.
+   */
+  public static ExpansionPolicy uniform(EnumSet<Expansion> expansions) {
+    return new ExpansionPolicy(expansions, List.of());
+  }
+
+  public static Builder builder(EnumSet<Expansion> defaultExpansions) {
+    return new Builder(defaultExpansions);
+  }
+
+  public EnumSet<Expansion> getDefaultExpansions() {
+    return defaultExpansions;
+  }
+
+  /**
+   * @return true if every metric gets the default expansions
+   */
+  public boolean isUniform() {
+    return uniform;
+  }
+
+  /**
+   * @param name the registry name of a metric, without any reporter prefix
+   * @return the expansions of the most specific matching rule, or the default expansions
+   */
+  public EnumSet<Expansion> resolve(String name) {
+    var active = new ArrayList<Node>();
+    enter(root, active);
+    for (var i = 0; i < name.length() && !active.isEmpty(); i++) {
+      var c = name.charAt(i);
+      var next = new ArrayList<Node>(active.size());
+      for (var node : active) {
+        // A node reached through a wildcard may absorb any number of further characters.
+        if (node.absorbs) {
+          enter(node, next);
+        }
+        var child = node.children.get(c);
+        if (child != null) {
+          enter(child, next);
+        }
+      }
+      active = next;
+    }
+
+    Rule best = null;
+    for (var node : active) {
+      if (node.rule != null) {
+        best = better(best, node.rule);
+      }
+    }
+    return best == null ? defaultExpansions : best.expansions;
+  }
+
+  /**
+   * Add a node, and the wildcard after it that may match no characters, to the active nodes.
+   */
+  private static void enter(Node node, List<Node> active) {
+    for (; node != null; node = node.wildcard) {
+      if (!active.contains(node)) {
+        active.add(node);
+      }
+    }
+  }
+
+  private void insert(Rule rule) {
+    var node = root;
+    var pattern = rule.pattern;
+    for (var i = 0; i < pattern.length(); i++) {
+      var c = pattern.charAt(i);
+      if (c == '*') {
+        // Consecutive wildcards are equivalent to a single one.
+        if (node.wildcard == null) {
+          node.wildcard = new Node();
+          node.wildcard.absorbs = true;
+        }
+        node = node.wildcard;
+        while (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+          i++;
+        }
+      } else {
+        node = node.children.computeIfAbsent(c, k -> new Node());
+      }
+    }
+    if (node.rule == null) {
+      node.rule = rule;
+    }
+  }
+
+  private static Rule better(Rule current, Rule candidate) {
+    if (current == null) {
+      return candidate;
+    }
+    if (candidate.literals != current.literals) {
+      return candidate.literals > current.literals ? candidate : current;
+    }
+    return candidate.order < current.order ? candidate : current;
+  }
+
+  private static class Node {
+    private final Map<Character, Node> children = new HashMap<>();
+    private Node wildcard;
+    private boolean absorbs;
+    private Rule rule;
+  }
+
+  private record Rule(String pattern, EnumSet<Expansion> expansions, int literals, int order) {
+  }
+
+  public static class Builder {
+    private final EnumSet<Expansion> defaultExpansions;
+    private final List<Rule> rules = new ArrayList<>();
+
+    public Builder(EnumSet<Expansion> defaultExpansions) {
+      if (defaultExpansions == null) {
+        throw new IllegalArgumentException("defaultExpansions must be defined");
+      }
+      this.defaultExpansions = defaultExpansions;
+    }
+
+    /**
+     * @param pattern glob over metric names, {@code *} matches any run of characters
+     * @param expansions the expansions to report for metrics matching the pattern
+     */
+    public Builder withRule(String pattern, EnumSet<Expansion> expansions) {
+      if (pattern == null || pattern.isEmpty()) {
+        throw new IllegalArgumentException("pattern must be defined");
+      }
+      if (expansions == null) {
+        throw new IllegalArgumentException("expansions must be defined for pattern " + pattern);
+      }
+      var literals = pattern.replace("*", "").length();
+      rules.add(new Rule(pattern, EnumSet.copyOf(expansions), literals, rules.size()));
+      return this;
+    }
+
+    public Builder withRules(Map<String, EnumSet<Expansion>> rules) {
+      for (var entry : rules.entrySet()) {
+        withRule(entry.getKey(), entry.getValue());
+      }
+      return this;
+    }
+
+    public ExpansionPolicy build() {
+      return new ExpansionPolicy(defaultExpansions, rules);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package org.coursera.metrics.datadog;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wall-clock aligned reporting with a fixed per-host offset.
+ * <p/>
+ * Cycles run at every multiple of the period since the epoch, plus an offset derived from a hash
+ * of the host name. Every host reports on its own slot in the interval, so a fleet that starts
+ * at the same moment does not post all at once, and a given host keeps its slot across restarts.
+ * Report timestamps are rounded back to the interval boundary, so every host reports the same
+ * timestamps regardless of its offset. Reporters without a configured host hash the local host
+ * name instead, so that pods sharing a configuration still spread out.
+ */
+class IntervalSchedule {
+
+  private static volatile String localKey;
+
+  private final long periodMillis;
+  private final long offsetMillis;
+
+  IntervalSchedule(long periodMillis, long offsetMillis) {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("period must be positive");
+    }
+    this.periodMillis = periodMillis;
+    this.offsetMillis = Math.floorMod(offsetMillis, periodMillis);
+  }
+
+  /**
+   * @param key identifies the host, e.g. its name
+   * @param maxJitterMillis upper bound of the offset, capped at the period
+   */
+  static long offsetFor(String key, long maxJitterMillis, long periodMillis) {
+    var bound = Math.min(maxJitterMillis, periodMillis);
+    if (bound <= 0) {
+      return 0;
+    }
+    return Math.floorMod(HyperLogLog.hash(key == null ? "" : key), bound);
+  }
+
+  /**
+   * @return a key that tells this process apart from others: the local host name, or failing that
+   *     the pid, or a random value
+   */
+  static String localKey() {
+    var key = localKey;
+    if (key == null) {
+      key = resolveLocalKey();
+      localKey = key;
+    }
+    return key;
+  }
+
+  private static String resolveLocalKey() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException | SecurityException e) {
+      // Fall through to the pid.
+    }
+    try {
+      return "pid:" + ProcessHandle.current().pid();
+    } catch (UnsupportedOperationException | SecurityException e) {
+      return "random:" + ThreadLocalRandom.current().nextLong();
+    }
+  }
+
+  long getPeriodMillis() {
+    return periodMillis;
+  }
+
+  long getOffsetMillis() {
+    return offsetMillis;
+  }
+
+  /**
+   * @return the delay until the next slot of this host
+   */
+  long initialDelayMillis(long nowMillis) {
+    var next = Math.floorDiv(nowMillis - offsetMillis, periodMillis) * periodMillis + periodMillis
+        + offsetMillis;
+    return next - nowMillis;
+  }
+
+  /**
+   * @return the interval boundary a cycle running at the given time reports for, in seconds
+   */
+  long timestamp(long nowMillis) {
+    // Round rather than truncate, so a cycle that fires a little early keeps its own boundary.
+    var intervals = Math.round((nowMillis - offsetMillis) / (double) periodMillis);
+    return intervals * periodMillis / 1000;
+  }
+}
@@ -0,0 +1,205 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects scheduled reports against cycles that take longer than the reporting period.
+ * <p/>
+ * A scheduled cycle that is a catch-up run is skipped: the scheduler is catching up on runs it
+ * missed while a slow report was in progress, and running them back to back would only report
+ * the same data again and make the backlog worse. With a fixed delay between cycles, that is a
+ * cycle that starts less than half a period after the previous one finished. With cycles aligned
+ * to an {@link IntervalSchedule} at a fixed rate, it is a cycle whose interval was already
+ * reported, as a cycle may start right after a long previous one and still be on time.
+ * <p/>
+ * With degradation enabled, the guard also steps the reporter down to a cheaper {@link Mode}
+ * after {@value #DEGRADE_AFTER} consecutive cycles that overran the period, and back up one mode
+ * after {@value #RECOVER_AFTER} consecutive cycles that took less than a quarter of it. Every
+ * transition is logged and counted.
+ */
+public class OverrunGuard {
+
+  private static final Logger LOG = LoggerFactory.getLogger(OverrunGuard.class);
+
+  static final int DEGRADE_AFTER = 3;
+  static final int RECOVER_AFTER = 10;
+
+  public enum Mode {
+    /**
+     * Every configured expansion.
+     */
+    FULL(Expansion.ALL),
+    /**
+     * Counts, one-minute rates, mean, max, p95 and p99 only.
+     */
+    REDUCED(EnumSet.of(Expansion.COUNT, Expansion.RATE_1_MINUTE, Expansion.MEAN, Expansion.MAX,
+        Expansion.P95, Expansion.P99)),
+    /**
+     * Counts and p99 only, and metrics whose count did not change since the previous report
+     * are not reported at all.
+     */
+    MINIMAL(EnumSet.of(Expansion.COUNT, Expansion.P99));
+
+    private final EnumSet<Expansion> allowed;
+
+    Mode(EnumSet<Expansion> allowed) {
+      this.allowed = allowed;
+    }
+  }
+
+  private final Clock clock;
+  private final boolean degrade;
+  private final SelfMetrics selfMetrics;
+  private final Map<EnumSet<Expansion>, EnumSet<Expansion>> reduced = new ConcurrentHashMap<>();
+  private final Map<EnumSet<Expansion>, EnumSet<Expansion>> minimal = new ConcurrentHashMap<>();
+  private final AtomicLong skippedCycles = new AtomicLong();
+  private final AtomicLong transitions = new AtomicLong();
+  private volatile Mode mode = Mode.FULL;
+  private long lastEnd;
+  private long lastInterval;
+  private boolean ranOnce;
+  private int overruns;
+  private int fastCycles;
+
+  OverrunGuard(Clock clock, boolean degrade, SelfMetrics selfMetrics) {
+    this.clock = clock;
+    this.degrade = degrade;
+    this.selfMetrics = selfMetrics;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public long getSkippedCycles() {
+    return skippedCycles.get();
+  }
+
+  /**
+   * @return the number of mode changes, in either direction
+   */
+  public long getTransitions() {
+    return transitions.get();
+  }
+
+  boolean degrades() {
+    return degrade;
+  }
+
+  /**
+   * @return the expansions to report in the current mode
+   */
+  EnumSet<Expansion> restrict(EnumSet<Expansion> expansions) {
+    return switch (mode) {
+      case FULL -> expansions;
+      case REDUCED -> reduced.computeIfAbsent(expansions, e -> intersect(e, Mode.REDUCED));
+      case MINIMAL -> minimal.computeIfAbsent(expansions, e -> intersect(e, Mode.MINIMAL));
+    };
+  }
+
+  /**
+   * @return true if metrics that did not change since the previous report should be left out
+   */
+  boolean suppressUnchanged() {
+    return mode == Mode.MINIMAL;
+  }
+
+  /**
+   * Run one scheduled cycle, unless it is a catch-up run.
+   */
+  void run(Runnable cycle, long periodNanos) {
+    run(cycle, periodNanos, null);
+  }
+
+  /**
+   * @param schedule the schedule of cycles run at a fixed rate, or null for a fixed delay
+   */
+  void run(Runnable cycle, long periodNanos, IntervalSchedule schedule) {
+    var start = clock.getTick();
+    if (schedule != null) {
+      var interval = schedule.timestamp(clock.getTime());
+      if (ranOnce && interval <= lastInterval) {
+        countSkip();
+        LOG.debug("Skipping report cycle, the interval at {} was already reported", interval);
+        return;
+      }
+      lastInterval = interval;
+    } else if (ranOnce && start - lastEnd < periodNanos / 2) {
+      countSkip();
+      LOG.debug("Skipping report cycle that started {} ms after the previous one finished",
+          (start - lastEnd) / 1_000_000);
+      return;
+    }
+    try {
+      cycle.run();
+    } finally {
+      lastEnd = clock.getTick();
+      ranOnce = true;
+      completed(lastEnd - start, periodNanos);
+    }
+  }
+
+  /**
+   * Count a cycle that was not started because the previous one was still running.
+   */
+  void skipBusy() {
+    countSkip();
+    LOG.debug("Skipping report cycle, the previous one is still running");
+  }
+
+  private void countSkip() {
+    skippedCycles.incrementAndGet();
+    if (selfMetrics != null) {
+      selfMetrics.recordSkippedCycle();
+    }
+  }
+
+  private void completed(long durationNanos, long periodNanos) {
+    if (durationNanos > periodNanos) {
+      fastCycles = 0;
+      if (++overruns >= DEGRADE_AFTER && degrade && mode != Mode.MINIMAL) {
+        overruns = 0;
+        transition(Mode.values()[mode.ordinal() + 1], durationNanos, periodNanos);
+      }
+    } else if (durationNanos < periodNanos / 4) {
+      overruns = 0;
+      if (++fastCycles >= RECOVER_AFTER && mode != Mode.FULL) {
+        fastCycles = 0;
+        transition(Mode.values()[mode.ordinal() - 1], durationNanos, periodNanos);
+      }
+    } else {
+      overruns = 0;
+      fastCycles = 0;
+    }
+  }
+
+  private void transition(Mode next, long durationNanos, long periodNanos) {
+    if (next.ordinal() > mode.ordinal()) {
+      LOG.warn("Report cycles overran the {} ms period {} times in a row (last took {} ms), "
+              + "switching from {} to {} mode", periodNanos / 1_000_000, DEGRADE_AFTER,
+          durationNanos / 1_000_000, mode, next);
+    } else {
+      LOG.info("Report cycles recovered (last took {} ms), switching from {} to {} mode",
+          durationNanos / 1_000_000, mode, next);
+    }
+    mode = next;
+    transitions.incrementAndGet();
+    if (selfMetrics != null) {
+      selfMetrics.recordModeChange();
+    }
+  }
+
+  private static EnumSet<Expansion> intersect(EnumSet<Expansion> expansions, Mode mode) {
+    var result = EnumSet.copyOf(expansions);
+    result.retainAll(mode.allowed);
+    return result;
+  }
+}
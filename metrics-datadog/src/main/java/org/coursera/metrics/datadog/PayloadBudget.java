@@ -0,0 +1,215 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of series and the estimated payload size of a single report.
+ * <p/>
+ * When a budget is configured, {@link DatadogReporter} tags every series with a
+ * {@link Priority} and buffers the cycle's series instead of streaming them to the transport.
+ * If the cycle is over budget, series are shed lowest priority first, and latest first within a
+ * priority, until it fits. The series that remain are handed to the transport in their original
+ * order, as one batch ending with a {@code datadog.reporter.series.shed} gauge holding the number
+ * of series shed in that cycle. The gauge is sent every cycle, with 0 when nothing was shed, so that it
+ * drops back once the payload fits again.
+ * <p/>
+ * Sizes are estimated from the length of the metric name, tags and host, and are meant to keep
+ * the uncompressed JSON body under the intake's limit rather than to match it byte for byte.
+ */
+public class PayloadBudget {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PayloadBudget.class);
+
+  public static final String SHED_SERIES_METRIC = "datadog.reporter.series.shed";
+
+  // Fixed JSON overhead of one v2 series: field names, braces, point and resource.
+  private static final int SERIES_OVERHEAD_BYTES = 110;
+
+  public enum Priority {
+    /**
+     * Gauges, counters and counts.
+     */
+    HIGH,
+    /**
+     * Common statistics and rates.
+     */
+    NORMAL,
+    /**
+     * Extended percentiles, slow-moving rates and metrics that did not change since the
+     * previous report. Shed first.
+     */
+    LOW
+  }
+
+  private final int maxSeries;
+  private final long maxBytes;
+  private final AtomicLong shedSeries = new AtomicLong();
+
+  /**
+   * @param maxSeries maximum number of series per report, or 0 for no limit
+   * @param maxBytes maximum estimated uncompressed payload size per report, or 0 for no limit
+   */
+  public PayloadBudget(int maxSeries, long maxBytes) {
+    if (maxSeries < 0 || maxBytes < 0) {
+      throw new IllegalArgumentException("budget limits must not be negative");
+    }
+    this.maxSeries = maxSeries;
+    this.maxBytes = maxBytes;
+  }
+
+  public int getMaxSeries() {
+    return maxSeries;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * @return the total number of series shed since this budget was created
+   */
+  public long getShedSeries() {
+    return shedSeries.get();
+  }
+
+  /**
+   * Wrap a transport request so that series added to it are held back and shed as needed
+   * when it is sent.
+   */
+  public BudgetedRequest wrap(Transport.Request delegate, long timestamp, String host,
+                              List<String> tags) {
+    return new BudgetedRequest(delegate, timestamp, host, tags);
+  }
+
+  static int estimateBytes(DatadogSeries<?> series) {
+    var bytes = SERIES_OVERHEAD_BYTES + series.getMetric().length();
+    if (series.getHost() != null) {
+      bytes += series.getHost().length();
+    }
+    for (var tag : series.getTags()) {
+      bytes += tag.length() + 3;
+    }
+    return bytes;
+  }
+
+  public class BudgetedRequest implements Transport.Request {
+    private final Transport.Request delegate;
+    private final long timestamp;
+    private final String host;
+    private final List<String> tags;
+    private final List<Entry> entries = new ArrayList<>();
+    private long bytes;
+
+    private BudgetedRequest(Transport.Request delegate, long timestamp, String host,
+                            List<String> tags) {
+      this.delegate = delegate;
+      this.timestamp = timestamp;
+      this.host = host;
+      this.tags = tags;
+    }
+
+    public void add(DatadogSeries<?> series, Priority priority) {
+      var size = estimateBytes(series);
+      entries.add(new Entry(series, priority, size));
+      bytes += size;
+    }
+
+    /**
+     * Series added without a priority are never shed before prioritized ones.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) {
+      for (var row = 0; row < batch.size(); row++) {
+        add(batch.toSeries(row), Priority.HIGH);
+      }
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) {
+      add(gauge, Priority.HIGH);
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) {
+      add(counter, Priority.HIGH);
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) {
+      add(rate, Priority.HIGH);
+    }
+
+    @Override
+    public void send() throws Exception {
+      var shedGauge = new DatadogGauge(SHED_SERIES_METRIC, 0, timestamp, host, tags);
+      var shed = shed(estimateBytes(shedGauge));
+
+      var batch = new SeriesBatch(host, entries.size() + 1);
+      for (var entry : entries) {
+        if (entry != null) {
+          batch.add(entry.series);
+        }
+      }
+      batch.add(new DatadogGauge(SHED_SERIES_METRIC, shed, timestamp, host, tags));
+      delegate.addBatch(batch);
+      delegate.send();
+    }
+
+    @Override
+    public void abort() {
+      delegate.abort();
+    }
+
+    /**
+     * Null out entries until the rest fits, keeping room for the shed gauge.
+     *
+     * @return the number of series shed
+     */
+    private int shed(int reservedBytes) {
+      var seriesLimit = maxSeries > 0 ? maxSeries - 1 : Integer.MAX_VALUE;
+      var bytesLimit = maxBytes > 0 ? maxBytes - reservedBytes : Long.MAX_VALUE;
+      var remaining = entries.size();
+      if (remaining <= seriesLimit && bytes <= bytesLimit) {
+        return 0;
+      }
+
+      var shedByPriority = new EnumMap<Priority, Integer>(Priority.class);
+      var priorities = Priority.values();
+      for (var p = priorities.length - 1; p >= 0; p--) {
+        for (var i = entries.size() - 1; i >= 0; i--) {
+          if (remaining <= seriesLimit && bytes <= bytesLimit) {
+            break;
+          }
+          var entry = entries.get(i);
+          if (entry != null && entry.priority == priorities[p]) {
+            entries.set(i, null);
+            remaining--;
+            bytes -= entry.bytes;
+            shedByPriority.merge(entry.priority, 1, Integer::sum);
+          }
+        }
+      }
+
+      var shed = entries.size() - remaining;
+      shedSeries.addAndGet(shed);
+      LOG.warn("Report exceeded payload budget (max series: {}, max bytes: {}), shed {} series: {}",
+          maxSeries, maxBytes, shed, shedByPriority);
+      return shed;
+    }
+  }
+
+  private record Entry(DatadogSeries<?> series, Priority priority, int bytes) {
+  }
+}
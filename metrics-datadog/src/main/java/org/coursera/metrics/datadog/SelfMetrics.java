@@ -0,0 +1,186 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.coursera.metrics.datadog.reservoir.IntervalReservoir;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Metrics about the reporter and its transports, published into a registry of the caller's
+ * choosing.
+ * <p/>
+ * Every metric is registered when this object is created, so nothing is registered while a
+ * report is running, and the registry may be the one being reported: the reporter's own metrics
+ * then show up in the next report rather than feeding back into the current one. Timers and
+ * histograms use {@link IntervalReservoir}s, and all recording methods take primitives, so
+ * recording does not allocate.
+ * <p/>
+ * Metric names, all under the prefix ({@value #DEFAULT_PREFIX} by default):
+ * <ul>
+ *   <li>{@code collect}, {@code send}: time spent reading the registry and building series, and
+ *   time spent in the transport's send, per report</li>
+ *   <li>{@code serialize}: time the HTTP transport spent serializing series to JSON</li>
+ *   <li>{@code series}: series per report</li>
+ *   <li>{@code payload.bytes}, {@code payload.compressedBytes}: HTTP body size before and after
+ *   compression</li>
+ *   <li>{@code http.1xx} to {@code http.5xx}, {@code http.errors}: HTTP responses by status class,
+ *   and sends that failed without a response</li>
+ *   <li>{@code retries}, {@code dropped}: send retries, and series dropped because a send
+ *   failed</li>
+ *   <li>{@code udp.queueDepth}, {@code udp.errors}: dogstatsd packets waiting to be written, and
+ *   dogstatsd client errors</li>
+ *   <li>{@code dns.resolve}, {@code dns.errors}, {@code dns.changes}: background lookups of the
+ *   dogstatsd agent's address, failed lookups, and lookups that found a new address</li>
+ *   <li>{@code cycles.skipped}, {@code mode.changes}: scheduled reports skipped because they
+ *   were late, and changes of the reporter's {@link OverrunGuard.Mode}</li>
+ *   <li>{@code cycles.paused}: scheduled reports skipped because the transport was paused,
+ *   e.g. while its circuit breaker was open</li>
+ * </ul>
+ */
+public class SelfMetrics {
+
+  public static final String DEFAULT_PREFIX = "datadog.reporter";
+
+  private final MetricRegistry registry;
+  private final String prefix;
+  private final Timer collect;
+  private final Timer serialize;
+  private final Timer send;
+  private final Histogram series;
+  private final Histogram payloadBytes;
+  private final Histogram compressedPayloadBytes;
+  private final Counter[] httpStatuses = new Counter[6];
+  private final Counter httpErrors;
+  private final Counter retries;
+  private final Counter dropped;
+  private final Counter udpErrors;
+  private final Timer resolve;
+  private final Counter resolveErrors;
+  private final Counter addressChanges;
+  private final Counter skippedCycles;
+  private final Counter modeChanges;
+  private final Counter pausedCycles;
+
+  public SelfMetrics(MetricRegistry registry) {
+    this(registry, DEFAULT_PREFIX);
+  }
+
+  public SelfMetrics(MetricRegistry registry, String prefix) {
+    if (registry == null) {
+      throw new IllegalArgumentException("registry must be defined");
+    }
+    this.registry = registry;
+    this.prefix = prefix;
+    this.collect = timer("collect");
+    this.serialize = timer("serialize");
+    this.send = timer("send");
+    this.series = histogram("series");
+    this.payloadBytes = histogram("payload.bytes");
+    this.compressedPayloadBytes = histogram("payload.compressedBytes");
+    for (var statusClass = 1; statusClass < httpStatuses.length; statusClass++) {
+      httpStatuses[statusClass] = registry.counter(name("http." + statusClass + "xx"));
+    }
+    this.httpErrors = registry.counter(name("http.errors"));
+    this.retries = registry.counter(name("retries"));
+    this.dropped = registry.counter(name("dropped"));
+    this.udpErrors = registry.counter(name("udp.errors"));
+    this.resolve = timer("dns.resolve");
+    this.resolveErrors = registry.counter(name("dns.errors"));
+    this.addressChanges = registry.counter(name("dns.changes"));
+    this.skippedCycles = registry.counter(name("cycles.skipped"));
+    this.modeChanges = registry.counter(name("mode.changes"));
+    this.pausedCycles = registry.counter(name("cycles.paused"));
+  }
+
+  public void recordCollect(long nanos) {
+    collect.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordSerialize(long nanos) {
+    serialize.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordSend(long nanos) {
+    send.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordSeries(int count) {
+    series.update(count);
+  }
+
+  public void recordPayload(long bytes, long compressedBytes) {
+    payloadBytes.update(bytes);
+    compressedPayloadBytes.update(compressedBytes);
+  }
+
+  public void recordHttpStatus(int status) {
+    var statusClass = status / 100;
+    if (statusClass > 0 && statusClass < httpStatuses.length) {
+      httpStatuses[statusClass].inc();
+    }
+  }
+
+  public void recordHttpError() {
+    httpErrors.inc();
+  }
+
+  public void recordRetry() {
+    retries.inc();
+  }
+
+  public void recordDropped(int seriesCount) {
+    dropped.inc(seriesCount);
+  }
+
+  public void recordUdpError() {
+    udpErrors.inc();
+  }
+
+  public void recordResolution(long nanos) {
+    resolve.update(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void recordResolutionError() {
+    resolveErrors.inc();
+  }
+
+  public void recordAddressChange() {
+    addressChanges.inc();
+  }
+
+  public void recordSkippedCycle() {
+    skippedCycles.inc();
+  }
+
+  public void recordModeChange() {
+    modeChanges.inc();
+  }
+
+  public void recordPausedCycle() {
+    pausedCycles.inc();
+  }
+
+  /**
+   * Publish the number of dogstatsd packets waiting to be written.
+   */
+  public void watchUdpQueue(IntSupplier depth) {
+    registry.gauge(name("udp.queueDepth"), () -> (Gauge<Integer>) depth::getAsInt);
+  }
+
+  private Timer timer(String name) {
+    return registry.timer(name(name), () -> new Timer(new IntervalReservoir()));
+  }
+
+  private Histogram histogram(String name) {
+    return registry.histogram(name(name), () -> new Histogram(new IntervalReservoir()));
+  }
+
+  private String name(String name) {
+    return prefix == null || prefix.isEmpty() ? name : prefix + "." + name;
+  }
+}
@@ -0,0 +1,129 @@
+package org.coursera.metrics.datadog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Schedules any number of {@link DatadogReporter}s on a single timer thread, and runs their
+ * report cycles on virtual threads, so the number of platform threads stays the same however
+ * many reporters there are, e.g. one per tenant registry.
+ * <p/>
+ * A reporter whose previous cycle is still running when the next one is due skips it, like the
+ * {@link OverrunGuard} does for a dedicated thread. Reporters may share one transport, which then
+ * also shares its connections, socket or file; the HTTP, UDP, relay, mapped counters and fan-out
+ * transports are safe to use from concurrent cycles.
+ * <p/>
+ * Cycles only take locks that release their carrier thread while they wait on the network, so
+ * the number of carrier threads does not limit how many can run. The number of cycles running
+ * at once is capped at a fixed number instead, {@value #DEFAULT_MAX_CONCURRENT_CYCLES} unless
+ * configured otherwise, to bound the connections and buffers held when an intake is slow.
+ * Cycles over the cap wait for a turn without pinning.
+ * <p/>
+ * Stopping a reporter does not stop the scheduler; close it once every reporter using it has been
+ * stopped.
+ */
+public class SharedReporterScheduler implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedReporterScheduler.class);
+
+  public static final int DEFAULT_MAX_CONCURRENT_CYCLES = 16;
+
+  private final ScheduledExecutorService timer;
+  private final ExecutorService cycles;
+  private final Semaphore slots;
+
+  /**
+   * Runs at most {@value #DEFAULT_MAX_CONCURRENT_CYCLES} cycles at once.
+   */
+  public SharedReporterScheduler() {
+    this(DEFAULT_MAX_CONCURRENT_CYCLES);
+  }
+
+  /**
+   * @param maxConcurrentCycles how many report cycles may run at once
+   */
+  public SharedReporterScheduler(int maxConcurrentCycles) {
+    if (maxConcurrentCycles < 1) {
+      throw new IllegalArgumentException("maxConcurrentCycles must be positive");
+    }
+    this.slots = new Semaphore(maxConcurrentCycles);
+    this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "datadog-reporter-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.cycles = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("datadog-reporter-", 0).factory());
+  }
+
+  /**
+   * @return a scheduler shared by the whole JVM, created on first use and never closed
+   */
+  public static SharedReporterScheduler getDefault() {
+    return DefaultHolder.INSTANCE;
+  }
+
+  ScheduledExecutorService getTimer() {
+    return timer;
+  }
+
+  /**
+   * @return a task for the timer that starts {@code cycle} on a virtual thread, or runs
+   * {@code busy} instead while the previous cycle is still running
+   */
+  Runnable dispatching(Runnable cycle, Runnable busy) {
+    var running = new AtomicBoolean();
+    return () -> {
+      if (!running.compareAndSet(false, true)) {
+        busy.run();
+        return;
+      }
+      try {
+        cycles.execute(() -> {
+          try {
+            slots.acquire();
+            try {
+              cycle.run();
+            } finally {
+              slots.release();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            running.set(false);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        running.set(false);
+      }
+    };
+  }
+
+  /**
+   * Stops scheduling and waits briefly for cycles in progress.
+   */
+  @Override
+  public void close() {
+    timer.shutdown();
+    cycles.shutdown();
+    try {
+      if (!cycles.awaitTermination(1, TimeUnit.SECONDS)) {
+        LOG.warn("Report cycles still running after closing the scheduler");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class DefaultHolder {
+    static final SharedReporterScheduler INSTANCE = new SharedReporterScheduler();
+  }
+}
@@ -0,0 +1,31 @@
+package org.coursera.metrics.datadog.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * A gauge whose {@code getValue()} took longer than the threshold, 1 ms unless the recording
+ * overrides it. Gauges run arbitrary user code on the reporter thread, so a slow one delays the
+ * whole report. Records a stack trace to show where the gauge was evaluated.
+ */
+@Name("org.coursera.metrics.datadog.GaugeEvaluation")
+@Label("Datadog Gauge Evaluation")
+@Category("Datadog")
+@Description("A slow gauge evaluation during a Datadog report")
+@Threshold("1 ms")
+public class DatadogGaugeEvaluation extends Event {
+
+  private static final EventType TYPE = EventType.getEventType(DatadogGaugeEvaluation.class);
+
+  @Label("Metric")
+  public String metric;
+
+  public static boolean isEventEnabled() {
+    return TYPE.isEnabled();
+  }
+}
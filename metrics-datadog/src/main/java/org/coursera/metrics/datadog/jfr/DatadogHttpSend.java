@@ -0,0 +1,52 @@
+package org.coursera.metrics.datadog.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One POST of a series payload by the HTTP transport. The event's duration is the latency of the
+ * request, from sending it to reading the response.
+ */
+@Name("org.coursera.metrics.datadog.HttpSend")
+@Label("Datadog HTTP Send")
+@Category("Datadog")
+@Description("A series payload posted to the Datadog intake")
+@StackTrace(false)
+public class DatadogHttpSend extends Event {
+
+  private static final EventType TYPE = EventType.getEventType(DatadogHttpSend.class);
+
+  @Label("URL")
+  public String url;
+
+  @Label("Series")
+  public int seriesCount;
+
+  @Label("Bytes")
+  @Description("Uncompressed payload size")
+  @DataAmount
+  public long bytes;
+
+  @Label("Compressed Bytes")
+  @Description("Size of the request body as sent")
+  @DataAmount
+  public long compressedBytes;
+
+  @Label("Attempt")
+  @Description("1 for the first attempt, higher for retries")
+  public int attempt;
+
+  @Label("Status")
+  @Description("HTTP status code, or 0 if no response was received")
+  public int status;
+
+  public static boolean isEventEnabled() {
+    return TYPE.isEnabled();
+  }
+}
@@ -0,0 +1,43 @@
+package org.coursera.metrics.datadog.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One {@code DatadogReporter.report()} cycle. The event's duration is the whole cycle.
+ */
+@Name("org.coursera.metrics.datadog.ReportCycle")
+@Label("Datadog Report Cycle")
+@Category("Datadog")
+@Description("A report of the metric registry to Datadog")
+@StackTrace(false)
+public class DatadogReportCycle extends Event {
+
+  private static final EventType TYPE = EventType.getEventType(DatadogReportCycle.class);
+
+  @Label("Series")
+  public int seriesCount;
+
+  @Label("Collect Duration")
+  @Description("Time spent reading the registry and handing series to the transport")
+  @Timespan(Timespan.NANOSECONDS)
+  public long collectDuration;
+
+  @Label("Send Duration")
+  @Description("Time spent in the transport's send")
+  @Timespan(Timespan.NANOSECONDS)
+  public long sendDuration;
+
+  /**
+   * @return true if a recording is capturing this event, so callers can skip creating it
+   */
+  public static boolean isEventEnabled() {
+    return TYPE.isEnabled();
+  }
+}
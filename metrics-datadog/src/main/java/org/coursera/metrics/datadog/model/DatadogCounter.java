@@ -8,6 +8,11 @@ public class DatadogCounter extends DatadogSeries<Long> {
     super(name, count, epoch, host, additionalTags);
   }
 
+  public DatadogCounter(String name, Long count, Long epoch, String host, List<String> additionalTags,
+                        boolean decoded) {
+    super(name, count, epoch, host, additionalTags, decoded);
+  }
+
   public String getType() {
     return "counter";
   }
@@ -8,6 +8,11 @@ public class DatadogGauge extends DatadogSeries<Number> {
     super(name, count, epoch, host, additionalTags);
   }
 
+  public DatadogGauge(String name, Number count, Long epoch, String host, List<String> additionalTags,
+                      boolean decoded) {
+    super(name, count, epoch, host, additionalTags, decoded);
+  }
+
   public String getType() {
     return "gauge";
   }
@@ -8,6 +8,11 @@ public class DatadogRate extends DatadogSeries<Long> {
     super(name, count, epoch, host, additionalTags);
   }
 
+  public DatadogRate(String name, Long count, Long epoch, String host, List<String> additionalTags,
+                     boolean decoded) {
+    super(name, count, epoch, host, additionalTags, decoded);
+  }
+
   public String getType() {
     return "rate";
   }
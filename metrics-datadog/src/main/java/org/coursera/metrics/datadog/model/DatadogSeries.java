@@ -18,9 +18,23 @@ public abstract class DatadogSeries<T extends Number> {
   private final List<String> tags;
 
   public DatadogSeries(String name, T count, Long epoch, String host, List<String> additionalTags) {
-    var taggedName = TaggedName.decode(name);
-    this.name = taggedName.getMetricName();
-    this.tags = taggedName.getEncodedTags();
+    this(name, count, epoch, host, additionalTags, false);
+  }
+
+  /**
+   * @param decoded whether the name is already a metric name, to use as given, rather than a
+   * name with tags encoded in it like {@code name[tag:value]}
+   */
+  public DatadogSeries(String name, T count, Long epoch, String host, List<String> additionalTags,
+                       boolean decoded) {
+    if (decoded) {
+      this.name = name;
+      this.tags = new ArrayList<>();
+    } else {
+      var taggedName = TaggedName.decode(name);
+      this.name = taggedName.getMetricName();
+      this.tags = taggedName.getEncodedTags();
+    }
 
     if (additionalTags != null) {
       this.tags.addAll(additionalTags);
@@ -30,6 +44,14 @@ public abstract class DatadogSeries<T extends Number> {
     this.host = host;
   }
 
+  T count() {
+    return count;
+  }
+
+  Long epoch() {
+    return epoch;
+  }
+
   @JsonInclude(Include.NON_NULL)
   public String getHost() {
     return host;
@@ -57,7 +79,8 @@ public abstract class DatadogSeries<T extends Number> {
   public boolean equals(Object o) {
     if (this == o) return true;
     if (!(o instanceof DatadogSeries that)) return false;
-    if (!count.equals(that.count)) return false;
+    // Compared as doubles, which is how every transport writes a point's value.
+    if (Double.compare(count.doubleValue(), that.count.doubleValue()) != 0) return false;
     if (!epoch.equals(that.epoch)) return false;
     if (!host.equals(that.host)) return false;
     if (!name.equals(that.name)) return false;
@@ -69,7 +92,7 @@ public abstract class DatadogSeries<T extends Number> {
   @Override
   public int hashCode() {
     int result = name.hashCode();
-    result = 31 * result + count.hashCode();
+    result = 31 * result + Double.hashCode(count.doubleValue());
     result = 31 * result + epoch.hashCode();
     result = 31 * result + host.hashCode();
     result = 31 * result + tags.hashCode();
@@ -0,0 +1,221 @@
+package org.coursera.metrics.datadog.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A block of series stored in columns, for transports to write without a {@link DatadogSeries}
+ * object per series. Each row holds a metric id, a tag set id, a type, a timestamp and a value.
+ * Metric names and tag sets are stored once, and rows refer to them by the ids returned by
+ * {@link #addMetric(String)} and {@link #addTagSet(List)}. A tag set shared by a whole report is
+ * therefore neither copied nor hashed per series.
+ * <p/>
+ * Every row is reported from the batch's host. Metric names are written as given, without
+ * decoding tags from them like {@link DatadogSeries} does. Values are doubles, so counts above
+ * 2<sup>53</sup> lose precision.
+ * <p/>
+ * A batch is not thread-safe. {@link #clear()} empties it for the next report and keeps its
+ * arrays.
+ */
+public final class SeriesBatch {
+
+  public static final int GAUGE = 0;
+  public static final int COUNTER = 1;
+  public static final int RATE = 2;
+
+  private final String host;
+
+  private String[] metrics;
+  private int metricCount;
+  private List<?>[] tagSets;
+  private int tagSetCount;
+
+  private int[] metricIds;
+  private int[] tagSetIds;
+  private byte[] types;
+  private long[] timestamps;
+  private double[] values;
+  private int size;
+
+  public SeriesBatch(String host) {
+    this(host, 64);
+  }
+
+  public SeriesBatch(String host, int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.host = host;
+    this.metrics = new String[capacity];
+    this.tagSets = new List<?>[4];
+    this.metricIds = new int[capacity];
+    this.tagSetIds = new int[capacity];
+    this.types = new byte[capacity];
+    this.timestamps = new long[capacity];
+    this.values = new double[capacity];
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  /**
+   * @return the id rows refer to the metric by
+   */
+  public int addMetric(String metric) {
+    if (metricCount == metrics.length) {
+      metrics = Arrays.copyOf(metrics, metricCount * 2);
+    }
+    metrics[metricCount] = metric;
+    return metricCount++;
+  }
+
+  /**
+   * Adding the same list as the previous call returns the same id.
+   *
+   * @return the id rows refer to the tag set by
+   */
+  public int addTagSet(List<String> tags) {
+    if (tagSetCount > 0 && tagSets[tagSetCount - 1] == tags) {
+      return tagSetCount - 1;
+    }
+    if (tagSetCount == tagSets.length) {
+      tagSets = Arrays.copyOf(tagSets, tagSetCount * 2);
+    }
+    tagSets[tagSetCount] = tags;
+    return tagSetCount++;
+  }
+
+  /**
+   * Add a row.
+   *
+   * @param type {@link #GAUGE}, {@link #COUNTER} or {@link #RATE}
+   */
+  public void add(int metricId, int tagSetId, int type, long timestamp, double value) {
+    if (metricId < 0 || metricId >= metricCount) {
+      throw new IllegalArgumentException("Unknown metric id " + metricId);
+    }
+    if (tagSetId < 0 || tagSetId >= tagSetCount) {
+      throw new IllegalArgumentException("Unknown tag set id " + tagSetId);
+    }
+    if (type != GAUGE && type != COUNTER && type != RATE) {
+      throw new IllegalArgumentException("Unknown type " + type);
+    }
+    if (size == types.length) {
+      var capacity = size * 2;
+      metricIds = Arrays.copyOf(metricIds, capacity);
+      tagSetIds = Arrays.copyOf(tagSetIds, capacity);
+      types = Arrays.copyOf(types, capacity);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      values = Arrays.copyOf(values, capacity);
+    }
+    metricIds[size] = metricId;
+    tagSetIds[size] = tagSetId;
+    types[size] = (byte) type;
+    timestamps[size] = timestamp;
+    values[size] = value;
+    size++;
+  }
+
+  /**
+   * Add a series as a row, with its already decoded metric name and tags. The series' host is
+   * not kept; the row is reported from the batch's host.
+   */
+  public void add(DatadogSeries<?> series) {
+    var type = series instanceof DatadogCounter ? COUNTER : series instanceof DatadogRate ? RATE : GAUGE;
+    add(addMetric(series.getMetric()), addTagSet(series.getTags()), type, series.epoch(),
+        series.count().doubleValue());
+  }
+
+  /**
+   * @return a batch holding only the given series, reported from its host
+   */
+  public static SeriesBatch of(DatadogSeries<?> series) {
+    var batch = new SeriesBatch(series.getHost(), 1);
+    batch.add(series);
+    return batch;
+  }
+
+  /**
+   * @return a batch with the same rows, metrics and tag sets, for a transport that writes the
+   * batch after the caller has cleared and refilled this one
+   */
+  public SeriesBatch copy() {
+    var copy = new SeriesBatch(host, Math.max(1, size));
+    copy.metrics = Arrays.copyOf(metrics, Math.max(1, metricCount));
+    copy.metricCount = metricCount;
+    copy.tagSets = Arrays.copyOf(tagSets, Math.max(1, tagSetCount));
+    copy.tagSetCount = tagSetCount;
+    System.arraycopy(metricIds, 0, copy.metricIds, 0, size);
+    System.arraycopy(tagSetIds, 0, copy.tagSetIds, 0, size);
+    System.arraycopy(types, 0, copy.types, 0, size);
+    System.arraycopy(timestamps, 0, copy.timestamps, 0, size);
+    System.arraycopy(values, 0, copy.values, 0, size);
+    copy.size = size;
+    return copy;
+  }
+
+  /**
+   * Remove every row, metric and tag set.
+   */
+  public void clear() {
+    Arrays.fill(metrics, 0, metricCount, null);
+    Arrays.fill(tagSets, 0, tagSetCount, null);
+    metricCount = 0;
+    tagSetCount = 0;
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int tagSetCount() {
+    return tagSetCount;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<String> tagSet(int tagSetId) {
+    return (List<String>) tagSets[tagSetId];
+  }
+
+  public int metricId(int row) {
+    return metricIds[row];
+  }
+
+  public int tagSetId(int row) {
+    return tagSetIds[row];
+  }
+
+  public String metric(int row) {
+    return metrics[metricIds[row]];
+  }
+
+  public List<String> tags(int row) {
+    return tagSet(tagSetIds[row]);
+  }
+
+  public int type(int row) {
+    return types[row];
+  }
+
+  public long timestamp(int row) {
+    return timestamps[row];
+  }
+
+  public double value(int row) {
+    return values[row];
+  }
+
+  /**
+   * @return the row as a series, for transports without a columnar path. Like the columnar
+   * paths, the series keeps the row's metric name as given, with the row's tags.
+   */
+  public DatadogSeries<?> toSeries(int row) {
+    return switch (types[row]) {
+      case COUNTER -> new DatadogCounter(metric(row), (long) values[row], timestamps[row], host, tags(row), true);
+      case RATE -> new DatadogRate(metric(row), (long) values[row], timestamps[row], host, tags(row), true);
+      default -> new DatadogGauge(metric(row), values[row], timestamps[row], host, tags(row), true);
+    };
+  }
+}
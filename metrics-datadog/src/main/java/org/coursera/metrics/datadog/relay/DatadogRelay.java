@@ -0,0 +1,548 @@
+package org.coursera.metrics.datadog.relay;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.coursera.metrics.datadog.DatadogReporter;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.transport.HttpTransport;
+import org.coursera.metrics.datadog.transport.RelayTransport;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives reports from the {@link RelayTransport}s of the JVMs on a host, merges them, and ships
+ * them to Datadog in batches through one upstream transport, typically a compressed
+ * {@link HttpTransport}, so that the host keeps one intake connection instead of one per JVM.
+ * <p/>
+ * Series received within a flush interval with the same metric, type, host, tags and timestamp
+ * are merged: counts are summed, and gauges and rates keep the last value received. Every
+ * {@code flushInterval}, or sooner once {@code maxPendingSeries} series are waiting, the merged
+ * series are sent upstream in requests of at most {@code maxBatchSeries} series. A request that
+ * fails is dropped. A unix socket client that sends a frame longer than {@code maxFrameSize} is
+ * disconnected, so that one client cannot make the relay buffer without bound.
+ * <p/>
+ * The relay can be embedded, or run on its own with {@link #main(String[])}.
+ */
+public class DatadogRelay implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DatadogRelay.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper()
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  // Metric types of the v2 series API. JsonSerializer writes counters as unspecified.
+  private static final int UNSPECIFIED = 0;
+  private static final int COUNT = 1;
+  private static final int RATE = 2;
+
+  private final Transport upstream;
+  private final InetSocketAddress udpAddress;
+  private final Path socket;
+  private final long flushIntervalMillis;
+  private final int maxBatchSeries;
+  private final int maxPendingSeries;
+  private final int maxFrameSize;
+  private final Counter received = new Counter();
+  private final Counter malformed = new Counter();
+  private final Counter sent = new Counter();
+  private final Counter dropped = new Counter();
+  private final ScheduledExecutorService flusher;
+  private final AtomicBoolean flushRequested = new AtomicBoolean();
+  private final Object lock = new Object();
+  private Map<SeriesKey, MergedValue> pending = new LinkedHashMap<>();
+  private DatagramChannel datagramChannel;
+  private ServerSocketChannel serverChannel;
+
+  private DatadogRelay(Transport upstream, InetSocketAddress udpAddress, Path socket, long flushIntervalMillis,
+                       int maxBatchSeries, int maxPendingSeries, int maxFrameSize, MetricRegistry registry) {
+    this.upstream = upstream;
+    this.udpAddress = udpAddress;
+    this.socket = socket;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.maxBatchSeries = maxBatchSeries;
+    this.maxPendingSeries = maxPendingSeries;
+    this.maxFrameSize = maxFrameSize;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "datadog-relay-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (registry != null) {
+      registry.register("datadog.relay.received", received);
+      registry.register("datadog.relay.malformed", malformed);
+      registry.register("datadog.relay.sent", sent);
+      registry.register("datadog.relay.dropped", dropped);
+    }
+  }
+
+  public static class Builder {
+    Transport upstream;
+    InetSocketAddress udpAddress;
+    Path socket;
+    long flushIntervalMillis = 10_000;
+    int maxBatchSeries = 10_000;
+    int maxPendingSeries = 100_000;
+    int maxFrameSize = RelayTransport.MAX_SOCKET_FRAME_BYTES;
+    MetricRegistry registry;
+
+    /**
+     * Where merged series are sent.
+     */
+    public Builder withUpstream(Transport upstream) {
+      this.upstream = upstream;
+      return this;
+    }
+
+    /**
+     * Receive UDP datagrams on this address, e.g. {@code 127.0.0.1:8126}.
+     */
+    public Builder withUdpAddress(InetSocketAddress udpAddress) {
+      this.udpAddress = udpAddress;
+      return this;
+    }
+
+    /**
+     * Receive frames on this unix domain socket. A file left behind at the path is replaced.
+     */
+    public Builder withSocket(Path socket) {
+      this.socket = socket;
+      return this;
+    }
+
+    public Builder withFlushInterval(long interval, TimeUnit unit) {
+      if (interval <= 0) {
+        throw new IllegalArgumentException("flushInterval must be positive");
+      }
+      this.flushIntervalMillis = unit.toMillis(interval);
+      return this;
+    }
+
+    /**
+     * The most series sent upstream in one request.
+     */
+    public Builder withMaxBatchSeries(int maxBatchSeries) {
+      if (maxBatchSeries <= 0) {
+        throw new IllegalArgumentException("maxBatchSeries must be positive");
+      }
+      this.maxBatchSeries = maxBatchSeries;
+      return this;
+    }
+
+    /**
+     * Flush before the interval is up once this many merged series are waiting.
+     */
+    public Builder withMaxPendingSeries(int maxPendingSeries) {
+      if (maxPendingSeries <= 0) {
+        throw new IllegalArgumentException("maxPendingSeries must be positive");
+      }
+      this.maxPendingSeries = maxPendingSeries;
+      return this;
+    }
+
+    /**
+     * The longest frame accepted over the unix socket, without its newline. A client that sends a
+     * longer one is disconnected. Defaults to {@link RelayTransport#MAX_SOCKET_FRAME_BYTES}.
+     */
+    public Builder withMaxFrameSize(int bytes) {
+      if (bytes <= 0) {
+        throw new IllegalArgumentException("maxFrameSize must be positive");
+      }
+      this.maxFrameSize = bytes;
+      return this;
+    }
+
+    /**
+     * Publish the number of series received, sent and dropped, and of malformed frames, under
+     * {@code datadog.relay}.
+     */
+    public Builder withMetricRegistry(MetricRegistry registry) {
+      this.registry = registry;
+      return this;
+    }
+
+    public DatadogRelay build() {
+      if (upstream == null) {
+        throw new IllegalArgumentException("an upstream transport must be defined");
+      }
+      if (udpAddress == null && socket == null) {
+        throw new IllegalArgumentException("a UDP address or a unix socket must be defined");
+      }
+      return new DatadogRelay(upstream, udpAddress, socket, flushIntervalMillis, maxBatchSeries,
+          maxPendingSeries, maxFrameSize, registry);
+    }
+  }
+
+  /**
+   * Bind the sockets and start receiving and flushing.
+   */
+  public DatadogRelay start() throws IOException {
+    if (udpAddress != null) {
+      datagramChannel = DatagramChannel.open();
+      datagramChannel.bind(udpAddress);
+      Thread.ofVirtual().name("datadog-relay-udp").start(() -> receiveDatagrams(datagramChannel));
+      LOG.info("Relay receiving UDP on {}", datagramChannel.getLocalAddress());
+    }
+    if (socket != null) {
+      Files.deleteIfExists(socket);
+      serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+      serverChannel.bind(UnixDomainSocketAddress.of(socket));
+      Thread.ofVirtual().name("datadog-relay-accept").start(() -> acceptConnections(serverChannel));
+      LOG.info("Relay receiving on unix socket {}", socket);
+    }
+    flusher.scheduleAtFixedRate(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * @return the bound UDP address, e.g. to find the port when binding to port 0
+   */
+  public InetSocketAddress getUdpAddress() throws IOException {
+    return datagramChannel == null ? null : (InetSocketAddress) datagramChannel.getLocalAddress();
+  }
+
+  /**
+   * Stops receiving, sends what is still pending, and closes the upstream transport.
+   */
+  @Override
+  public void close() throws IOException {
+    if (datagramChannel != null) {
+      datagramChannel.close();
+    }
+    if (serverChannel != null) {
+      serverChannel.close();
+      Files.deleteIfExists(socket);
+    }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    upstream.close();
+  }
+
+  private void receiveDatagrams(DatagramChannel channel) {
+    var buffer = ByteBuffer.allocate(RelayTransport.MAX_DATAGRAM_BYTES);
+    while (channel.isOpen()) {
+      try {
+        buffer.clear();
+        channel.receive(buffer);
+        accept(buffer.array(), buffer.position());
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        LOG.warn("Error receiving relay datagram: {}", e.getMessage());
+      } catch (RuntimeException e) {
+        malformed.inc();
+        LOG.warn("Dropping relay datagram that could not be merged", e);
+      }
+    }
+  }
+
+  private void acceptConnections(ServerSocketChannel server) {
+    while (server.isOpen()) {
+      try {
+        var client = server.accept();
+        Thread.ofVirtual().name("datadog-relay-connection").start(() -> receiveFrames(client));
+      } catch (ClosedChannelException e) {
+        return;
+      } catch (IOException e) {
+        LOG.warn("Error accepting relay connection: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Read newline-delimited frames, holding at most {@code maxFrameSize} bytes of a frame.
+   */
+  private void receiveFrames(SocketChannel client) {
+    var buffer = ByteBuffer.allocate(64 * 1024);
+    var frame = new byte[Math.min(maxFrameSize, buffer.capacity())];
+    var length = 0;
+    try (client) {
+      while (client.read(buffer) >= 0) {
+        var data = buffer.array();
+        var end = buffer.position();
+        var from = 0;
+        while (from < end) {
+          var newline = from;
+          while (newline < end && data[newline] != '\n') {
+            newline++;
+          }
+          var needed = length + newline - from;
+          if (needed > maxFrameSize) {
+            malformed.inc();
+            LOG.warn("Closing relay connection that sent a frame longer than {} bytes", maxFrameSize);
+            return;
+          }
+          if (needed > frame.length) {
+            frame = Arrays.copyOf(frame, (int) Math.min(maxFrameSize, Math.max(needed, frame.length * 2L)));
+          }
+          System.arraycopy(data, from, frame, length, newline - from);
+          length = needed;
+          if (newline == end) {
+            break;
+          }
+          acceptFrame(frame, length);
+          length = 0;
+          from = newline + 1;
+        }
+        buffer.clear();
+      }
+    } catch (IOException e) {
+      LOG.debug("Relay connection closed: {}", e.getMessage());
+    }
+  }
+
+  private void acceptFrame(byte[] frame, int length) {
+    try {
+      accept(frame, length);
+    } catch (RuntimeException e) {
+      malformed.inc();
+      LOG.warn("Dropping relay frame that could not be merged", e);
+    }
+  }
+
+  // Visible for testing.
+  void accept(byte[] bytes, int length) {
+    Frame frame;
+    try {
+      frame = MAPPER.readValue(bytes, 0, length, Frame.class);
+    } catch (IOException e) {
+      malformed.inc();
+      LOG.debug("Dropping malformed relay frame: {}", e.getMessage());
+      return;
+    }
+    if (frame.series() == null) {
+      return;
+    }
+    for (var series : frame.series()) {
+      if (!isValid(series)) {
+        malformed.inc();
+        LOG.debug("Dropping relay frame with an incomplete series: {}", series);
+        return;
+      }
+    }
+
+    var count = 0;
+    int size;
+    synchronized (lock) {
+      for (var series : frame.series()) {
+        var host = host(series.resources());
+        var tags = series.tags() == null ? List.<String>of() : series.tags();
+        for (var point : series.points()) {
+          var key = new SeriesKey(series.type(), series.metric(), host, tags, point.timestamp());
+          var merged = pending.get(key);
+          if (merged == null) {
+            pending.put(key, new MergedValue(point.value()));
+          } else if (isCount(series.type())) {
+            merged.value += point.value();
+          } else {
+            merged.value = point.value();
+          }
+          count++;
+        }
+      }
+      size = pending.size();
+    }
+    received.inc(count);
+    if (size >= maxPendingSeries && flushRequested.compareAndSet(false, true)) {
+      flusher.execute(this::flush);
+    }
+  }
+
+  /**
+   * Send everything merged so far upstream.
+   */
+  // Visible for testing.
+  synchronized void flush() {
+    flushRequested.set(false);
+    Map<SeriesKey, MergedValue> batch;
+    synchronized (lock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<>();
+    }
+
+    var entries = new ArrayList<>(batch.entrySet());
+    for (var from = 0; from < entries.size(); from += maxBatchSeries) {
+      var chunk = entries.subList(from, Math.min(entries.size(), from + maxBatchSeries));
+      Transport.Request request = null;
+      try {
+        request = upstream.prepare();
+        for (var entry : chunk) {
+          var key = entry.getKey();
+          var value = entry.getValue().value;
+          // Frames carry metric names as the sending request received them; they are not decoded again.
+          switch (key.type()) {
+            case UNSPECIFIED, COUNT -> request.addCounter(new DatadogCounter(key.metric(), Math.round(value), key.timestamp(), key.host(), key.tags(), true));
+            case RATE -> request.addRate(new DatadogRate(key.metric(), Math.round(value), key.timestamp(), key.host(), key.tags(), true));
+            default -> request.addGauge(new DatadogGauge(key.metric(), value, key.timestamp(), key.host(), key.tags(), true));
+          }
+        }
+        request.send();
+        sent.inc(chunk.size());
+      } catch (Exception e) {
+        dropped.inc(chunk.size());
+        LOG.error("Error sending {} relayed series", chunk.size(), e);
+        if (request != null) {
+          request.abort();
+        }
+      }
+    }
+  }
+
+  private static boolean isValid(Series series) {
+    if (series == null || series.metric() == null || series.points() == null) {
+      return false;
+    }
+    if (series.points().contains(null)) {
+      return false;
+    }
+    return series.resources() == null || !series.resources().contains(null);
+  }
+
+  private static boolean isCount(int type) {
+    return type == UNSPECIFIED || type == COUNT;
+  }
+
+  private static String host(List<Resource> resources) {
+    if (resources != null) {
+      for (var resource : resources) {
+        if ("host".equals(resource.type())) {
+          return resource.name();
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Runs a relay until the JVM is stopped. Options, as {@code --name=value}:
+   * <ul>
+   *   <li>{@code api-key}: the Datadog API key, or set {@code DD_API_KEY}</li>
+   *   <li>{@code series-url}: the series intake URL, to send to another Datadog site</li>
+   *   <li>{@code udp}: the {@code host:port} to receive UDP on, by default {@code 127.0.0.1:8126}
+   *   unless a socket is given</li>
+   *   <li>{@code socket}: the path of a unix domain socket to receive on</li>
+   *   <li>{@code flush-interval}: seconds between flushes, by default 10</li>
+   *   <li>{@code host}: the host the relay's own metrics are reported from</li>
+   * </ul>
+   */
+  public static void main(String[] args) throws Exception {
+    var options = new HashMap<String, String>();
+    for (var arg : args) {
+      var separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got " + arg);
+      }
+      options.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    var apiKey = options.getOrDefault("api-key", System.getenv("DD_API_KEY"));
+    if (apiKey == null || apiKey.isEmpty()) {
+      throw new IllegalArgumentException("--api-key or DD_API_KEY is required");
+    }
+
+    var registry = new MetricRegistry();
+    var selfMetrics = new SelfMetrics(registry);
+    var transport = new HttpTransport.Builder()
+        .withApiKey(apiKey)
+        .withCompression(true)
+        .withRetries(2)
+        .withSelfMetrics(selfMetrics);
+    if (options.containsKey("series-url")) {
+      transport.withSeriesUrl(options.get("series-url"));
+    }
+    var upstream = transport.build();
+
+    var builder = new Builder()
+        .withUpstream(upstream)
+        .withFlushInterval(Long.parseLong(options.getOrDefault("flush-interval", "10")), TimeUnit.SECONDS)
+        .withMetricRegistry(registry);
+    if (options.containsKey("socket")) {
+      builder.withSocket(Path.of(options.get("socket")));
+    }
+    if (options.containsKey("udp") || !options.containsKey("socket")) {
+      var udp = options.getOrDefault("udp", "127.0.0.1:8126");
+      var separator = udp.lastIndexOf(':');
+      builder.withUdpAddress(new InetSocketAddress(udp.substring(0, separator), Integer.parseInt(udp.substring(separator + 1))));
+    }
+    var relay = builder.build().start();
+
+    // The relay's own metrics go out through the same connection.
+    var reporter = DatadogReporter.forRegistry(registry)
+        .withTransport(upstream)
+        .withHost(options.get("host"))
+        .withSelfMetrics(selfMetrics)
+        .build();
+    reporter.start(relay.flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+    var stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      reporter.stop();
+      try {
+        relay.close();
+      } catch (IOException e) {
+        LOG.error("Error closing relay", e);
+      }
+      stopped.countDown();
+    }, "datadog-relay-shutdown"));
+    stopped.await();
+  }
+
+  private record SeriesKey(int type, String metric, String host, List<String> tags, long timestamp) {
+  }
+
+  private static class MergedValue {
+    private double value;
+
+    MergedValue(double value) {
+      this.value = value;
+    }
+  }
+
+  private record Frame(List<Series> series) {
+  }
+
+  private record Series(String metric, List<Point> points, List<String> tags, int type, List<Resource> resources) {
+  }
+
+  private record Point(long timestamp, double value) {
+  }
+
+  private record Resource(String name, String type) {
+  }
+}
@@ -0,0 +1,204 @@
+package org.coursera.metrics.datadog.relay;
+
+import org.coursera.metrics.datadog.transport.HttpTransport;
+import org.coursera.metrics.datadog.transport.MappedCountersReader;
+import org.coursera.metrics.datadog.transport.MappedCountersTransport;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards the series that processes write with {@link MappedCountersTransport} to Datadog. It
+ * scans their counters files on an interval and sends the series updated since the previous scan
+ * in one request to the upstream transport, usually an {@link HttpTransport}.
+ * <p/>
+ * The sidecar can be embedded, or run on its own with {@link #main(String[])}.
+ */
+public class MappedCountersSidecar implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedCountersSidecar.class);
+
+  private final List<MappedCountersReader> readers;
+  private final Transport upstream;
+  private final long intervalMillis;
+  private ScheduledExecutorService executor;
+
+  private MappedCountersSidecar(List<MappedCountersReader> readers, Transport upstream, long intervalMillis) {
+    this.readers = readers;
+    this.upstream = upstream;
+    this.intervalMillis = intervalMillis;
+  }
+
+  public static class Builder {
+    private final List<Path> files = new ArrayList<>();
+    private Transport upstream;
+    private long intervalMillis = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * A counters file to forward. May be called once per writing process.
+     */
+    public Builder withFile(Path file) {
+      files.add(file);
+      return this;
+    }
+
+    /**
+     * The transport the series are forwarded through.
+     */
+    public Builder withUpstream(Transport upstream) {
+      this.upstream = upstream;
+      return this;
+    }
+
+    /**
+     * How often to scan the files. Defaults to 10 seconds.
+     */
+    public Builder withInterval(long interval, TimeUnit unit) {
+      if (interval <= 0) {
+        throw new IllegalArgumentException("interval must be positive");
+      }
+      this.intervalMillis = unit.toMillis(interval);
+      return this;
+    }
+
+    public MappedCountersSidecar build() {
+      if (files.isEmpty()) {
+        throw new IllegalArgumentException("At least one file must be defined");
+      }
+      if (upstream == null) {
+        throw new IllegalArgumentException("upstream must be defined");
+      }
+      return new MappedCountersSidecar(files.stream().map(MappedCountersReader::new).toList(), upstream, intervalMillis);
+    }
+  }
+
+  public synchronized MappedCountersSidecar start() {
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "datadog-mapped-counters");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        forward();
+      } catch (Exception e) {
+        LOG.error("Error forwarding counters", e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Scan every file and send the updated series upstream.
+   *
+   * @return the number of series sent
+   */
+  public synchronized int forward() throws Exception {
+    var request = upstream.prepare();
+    var added = 0;
+    for (var reader : readers) {
+      try {
+        added += reader.read(request);
+      } catch (IOException e) {
+        LOG.warn("Error reading {}", reader.getFile(), e);
+      }
+    }
+    if (added == 0) {
+      request.abort();
+      return 0;
+    }
+    try {
+      request.send();
+    } catch (Exception e) {
+      request.abort();
+      throw e;
+    }
+    return added;
+  }
+
+  /**
+   * Forward a last time and close the upstream transport.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    try {
+      forward();
+    } catch (Exception e) {
+      LOG.error("Error forwarding counters", e);
+    } finally {
+      upstream.close();
+    }
+  }
+
+  /**
+   * Run a sidecar that forwards to Datadog's HTTP intake. Options are given as
+   * {@code --name=value}:
+   * <ul>
+   *   <li>{@code file}: the counters file to forward, comma separated for several, required</li>
+   *   <li>{@code api-key}: the Datadog API key, by default the {@code DD_API_KEY} environment
+   *   variable</li>
+   *   <li>{@code series-url}: the series intake URL, to send to another Datadog site</li>
+   *   <li>{@code interval}: seconds between scans, by default 10</li>
+   * </ul>
+   */
+  public static void main(String[] args) throws Exception {
+    var options = new HashMap<String, String>();
+    for (var arg : args) {
+      var separator = arg.indexOf('=');
+      if (!arg.startsWith("--") || separator < 0) {
+        throw new IllegalArgumentException("Expected --name=value, got " + arg);
+      }
+      options.put(arg.substring(2, separator), arg.substring(separator + 1));
+    }
+    var apiKey = options.getOrDefault("api-key", System.getenv("DD_API_KEY"));
+    if (apiKey == null || apiKey.isEmpty()) {
+      throw new IllegalArgumentException("--api-key or DD_API_KEY is required");
+    }
+    if (!options.containsKey("file")) {
+      throw new IllegalArgumentException("--file is required");
+    }
+
+    var transport = new HttpTransport.Builder()
+        .withApiKey(apiKey)
+        .withCompression(true)
+        .withRetries(2);
+    if (options.containsKey("series-url")) {
+      transport.withSeriesUrl(options.get("series-url"));
+    }
+
+    var builder = new Builder()
+        .withUpstream(transport.build())
+        .withInterval(Long.parseLong(options.getOrDefault("interval", "10")), TimeUnit.SECONDS);
+    for (var file : options.get("file").split(",")) {
+      builder.withFile(Path.of(file.trim()));
+    }
+    var sidecar = builder.build().start();
+
+    var stopped = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        sidecar.close();
+      } catch (IOException e) {
+        LOG.error("Error closing sidecar", e);
+      }
+      stopped.countDown();
+    }, "datadog-mapped-counters-shutdown"));
+    stopped.await();
+  }
+}
@@ -0,0 +1,120 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A snapshot over log-linear histogram buckets.
+ * <p/>
+ * Each value is represented by the midpoint of its bucket, so quantiles carry the relative error
+ * of the bucket layout. The count, minimum, maximum and mean are exact.
+ */
+public class HistogramSnapshot extends Snapshot {
+
+  private final long[] values;
+  private final long[] counts;
+  private final long count;
+  private final long min;
+  private final long max;
+  private final double mean;
+
+  /**
+   * @param values representative value of each non-empty bucket, ascending
+   * @param counts number of values in each of those buckets
+   */
+  HistogramSnapshot(long[] values, long[] counts, long count, long min, long max, double mean) {
+    this.values = values;
+    this.counts = counts;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+  }
+
+  /**
+   * @return the exact number of values in the snapshot
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public double getValue(double quantile) {
+    if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+      throw new IllegalArgumentException(quantile + " is not in [0..1]");
+    }
+    if (count == 0) {
+      return 0.0;
+    }
+    var rank = Math.max(1, (long) Math.ceil(quantile * count));
+    var seen = 0L;
+    for (var i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(Math.max(values[i], min), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Expands the buckets into one representative value per recorded value, which can be large.
+   */
+  @Override
+  public long[] getValues() {
+    var expanded = new long[size()];
+    var pos = 0;
+    for (var i = 0; i < counts.length && pos < expanded.length; i++) {
+      for (var n = 0L; n < counts[i] && pos < expanded.length; n++) {
+        expanded[pos++] = values[i];
+      }
+    }
+    return expanded;
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(count, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public double getMean() {
+    return mean;
+  }
+
+  @Override
+  public long getMin() {
+    return min;
+  }
+
+  @Override
+  public double getStdDev() {
+    if (count <= 1) {
+      return 0;
+    }
+    var sum = 0.0;
+    for (var i = 0; i < counts.length; i++) {
+      var diff = values[i] - mean;
+      sum += diff * diff * counts[i];
+    }
+    return Math.sqrt(sum / (count - 1));
+  }
+
+  @Override
+  public void dump(OutputStream output) {
+    try (var out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+      for (var i = 0; i < counts.length; i++) {
+        out.printf("%d %d%n", values[i], counts[i]);
+      }
+    }
+  }
+}
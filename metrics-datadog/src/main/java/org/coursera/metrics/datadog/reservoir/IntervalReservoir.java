@@ -0,0 +1,143 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A reservoir that holds the values of one reporting interval and starts over every time a
+ * snapshot is taken.
+ * <p/>
+ * The exponentially decaying reservoir that Dropwizard uses by default reports statistics over an
+ * overlapping window of about five minutes, so a spike shows up in several consecutive reports.
+ * This reservoir instead reports each value in exactly one snapshot, which matches how Datadog
+ * aggregates points per interval. The count, minimum, maximum and mean of an interval are exact;
+ * quantiles come from a uniform sample of {@code size} values.
+ * <p/>
+ * Recording never locks: writers record into the current buffer, and taking a snapshot swaps in
+ * the spare buffer and waits for in-flight writers to leave the old one. The two buffers are
+ * reused, so steady state allocates only the snapshot itself.
+ * <p/>
+ * Since reading resets it, the reservoir should be read by a single reporter. For example:
+ * <pre>
+ *   registry.timer("requests", () -&gt; new Timer(new IntervalReservoir()));
+ * </pre>
+ */
+public class IntervalReservoir implements Reservoir {
+
+  private static final int DEFAULT_SIZE = 1028;
+
+  private final int size;
+  private volatile Interval current;
+  private Interval spare;
+
+  public IntervalReservoir() {
+    this(DEFAULT_SIZE);
+  }
+
+  /**
+   * @param size the number of values sampled per interval for quantiles
+   */
+  public IntervalReservoir(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be positive");
+    }
+    this.size = size;
+    this.current = new Interval(size);
+    this.spare = new Interval(size);
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(current.count.get(), size);
+  }
+
+  @Override
+  public void update(long value) {
+    while (true) {
+      var interval = current;
+      interval.writers.incrementAndGet();
+      // A snapshot may have swapped buffers between the read and the increment above; it then
+      // no longer waits for us, so record into the new buffer instead.
+      if (interval == current) {
+        try {
+          interval.record(value);
+        } finally {
+          interval.writers.decrementAndGet();
+        }
+        return;
+      }
+      interval.writers.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the values recorded since the previous snapshot
+   */
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    var next = spare;
+    next.reset();
+    var finished = current;
+    current = next;
+    while (finished.writers.get() != 0) {
+      Thread.onSpinWait();
+    }
+    spare = finished;
+    return finished.toSnapshot();
+  }
+
+  private static class Interval {
+    private final AtomicInteger writers = new AtomicInteger();
+    private final AtomicLong count = new AtomicLong();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator max = new LongAccumulator(Math::max, Long.MIN_VALUE);
+    private final AtomicLongArray samples;
+
+    Interval(int size) {
+      this.samples = new AtomicLongArray(size);
+    }
+
+    void record(long value) {
+      var n = count.incrementAndGet();
+      sum.add(value);
+      min.accumulate(value);
+      max.accumulate(value);
+      // Vitter's algorithm R keeps a uniform sample of the interval.
+      if (n <= samples.length()) {
+        samples.set((int) n - 1, value);
+      } else {
+        var r = ThreadLocalRandom.current().nextLong(n);
+        if (r < samples.length()) {
+          samples.set((int) r, value);
+        }
+      }
+    }
+
+    void reset() {
+      count.set(0);
+      sum.reset();
+      min.reset();
+      max.reset();
+    }
+
+    IntervalSnapshot toSnapshot() {
+      var n = count.get();
+      if (n == 0) {
+        return IntervalSnapshot.EMPTY;
+      }
+      var values = new long[(int) Math.min(n, samples.length())];
+      for (var i = 0; i < values.length; i++) {
+        values[i] = samples.get(i);
+      }
+      return new IntervalSnapshot(values, n, min.get(), max.get(), (double) sum.sum() / n);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The values recorded during a single reporting interval.
+ * <p/>
+ * Quantiles and the standard deviation are computed from a uniform sample of the interval, while
+ * the count, minimum, maximum and mean are exact.
+ */
+public class IntervalSnapshot extends Snapshot {
+
+  static final IntervalSnapshot EMPTY = new IntervalSnapshot(new long[0], 0, 0, 0, 0);
+
+  private final long[] values;
+  private final long count;
+  private final long min;
+  private final long max;
+  private final double mean;
+
+  /**
+   * @param values sampled values, sorted in place
+   */
+  IntervalSnapshot(long[] values, long count, long min, long max, double mean) {
+    Arrays.sort(values);
+    this.values = values;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+  }
+
+  /**
+   * @return the exact number of values recorded during the interval
+   */
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public double getValue(double quantile) {
+    if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+      throw new IllegalArgumentException(quantile + " is not in [0..1]");
+    }
+    if (values.length == 0) {
+      return 0.0;
+    }
+
+    var pos = quantile * (values.length + 1);
+    var index = (int) pos;
+    if (index < 1) {
+      return values[0];
+    }
+    if (index >= values.length) {
+      return values[values.length - 1];
+    }
+    var lower = values[index - 1];
+    var upper = values[index];
+    return lower + (pos - Math.floor(pos)) * (upper - lower);
+  }
+
+  @Override
+  public long[] getValues() {
+    return Arrays.copyOf(values, values.length);
+  }
+
+  @Override
+  public int size() {
+    return values.length;
+  }
+
+  @Override
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public double getMean() {
+    return mean;
+  }
+
+  @Override
+  public long getMin() {
+    return min;
+  }
+
+  @Override
+  public double getStdDev() {
+    if (values.length <= 1) {
+      return 0;
+    }
+    var sampleMean = 0.0;
+    for (var value : values) {
+      sampleMean += value;
+    }
+    sampleMean /= values.length;
+    var sum = 0.0;
+    for (var value : values) {
+      var diff = value - sampleMean;
+      sum += diff * diff;
+    }
+    return Math.sqrt(sum / (values.length - 1));
+  }
+
+  @Override
+  public void dump(OutputStream output) {
+    try (var out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+      for (var value : values) {
+        out.printf("%d%n", value);
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A reservoir for heavily contended timers and histograms that records into per-thread stripes
+ * of log-linear buckets and merges them when a snapshot is taken.
+ * <p/>
+ * Values are bucketed HDR-style: values below {@code 2^precisionBits} get a bucket each, and
+ * above that every power of two is split into {@code 2^(precisionBits - 1)} linear buckets, which
+ * bounds the relative error of quantiles to about {@code 2^-precisionBits}. Each thread hashes to
+ * one of up to {@code stripes} cells, each with its own {@code long[]} of buckets, so recording is
+ * a handful of atomic adds on memory that other threads rarely touch and never waits on a lock.
+ * Cells are created on first use, so a lightly used metric only pays for the cells it needs.
+ * <p/>
+ * Taking a snapshot drains every cell, so, like {@link IntervalReservoir}, each value is reported
+ * in exactly one snapshot and the reservoir should be read by a single reporter. A value recorded
+ * while a snapshot is being taken goes either to that snapshot or to the next one.
+ */
+public class StripedHistogramReservoir implements Reservoir {
+
+  private static final VarHandle BUCKETS = MethodHandles.arrayElementVarHandle(long[].class);
+
+  private static final int DEFAULT_PRECISION_BITS = 6;
+  private static final int MAX_STRIPES = 64;
+
+  private final int precisionBits;
+  private final int bucketCount;
+  private final int stripeMask;
+  private final AtomicReferenceArray<Stripe> stripes;
+
+  public StripedHistogramReservoir() {
+    this(DEFAULT_PRECISION_BITS, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param precisionBits bits of precision per power of two, between 2 and 10
+   * @param stripes maximum number of cells, rounded up to a power of two and capped at 64
+   */
+  public StripedHistogramReservoir(int precisionBits, int stripes) {
+    if (precisionBits < 2 || precisionBits > 10) {
+      throw new IllegalArgumentException("precisionBits must be between 2 and 10");
+    }
+    if (stripes < 1) {
+      throw new IllegalArgumentException("stripes must be positive");
+    }
+    this.precisionBits = precisionBits;
+    this.bucketCount = (1 << precisionBits) + (63 - precisionBits) * (1 << (precisionBits - 1));
+    var capped = Math.min(stripes, MAX_STRIPES);
+    var size = capped == 1 ? 1 : Integer.highestOneBit(capped - 1) << 1;
+    this.stripeMask = size - 1;
+    this.stripes = new AtomicReferenceArray<>(size);
+  }
+
+  @Override
+  public int size() {
+    var count = 0L;
+    for (var i = 0; i < stripes.length(); i++) {
+      var stripe = stripes.get(i);
+      if (stripe != null) {
+        count += stripe.count.get();
+      }
+    }
+    return (int) Math.min(count, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public void update(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    var stripe = stripe();
+    BUCKETS.getAndAdd(stripe.buckets, bucketIndex(value), 1L);
+    stripe.count.getAndIncrement();
+    stripe.sum.getAndAdd(value);
+    stripe.min(value);
+    stripe.max(value);
+  }
+
+  /**
+   * @return the values recorded since the previous snapshot
+   */
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    var merged = new long[bucketCount];
+    var count = 0L;
+    var sum = 0L;
+    var min = Long.MAX_VALUE;
+    var max = Long.MIN_VALUE;
+    for (var i = 0; i < stripes.length(); i++) {
+      var stripe = stripes.get(i);
+      if (stripe == null) {
+        continue;
+      }
+      for (var b = 0; b < bucketCount; b++) {
+        if ((long) BUCKETS.getVolatile(stripe.buckets, b) != 0) {
+          merged[b] += (long) BUCKETS.getAndSet(stripe.buckets, b, 0L);
+        }
+      }
+      count += stripe.count.getAndSet(0);
+      sum += stripe.sum.getAndSet(0);
+      min = Math.min(min, stripe.min.getAndSet(Long.MAX_VALUE));
+      max = Math.max(max, stripe.max.getAndSet(Long.MIN_VALUE));
+    }
+
+    var nonEmpty = 0;
+    var total = 0L;
+    for (var bucket : merged) {
+      if (bucket != 0) {
+        nonEmpty++;
+        total += bucket;
+      }
+    }
+    if (total == 0) {
+      return new HistogramSnapshot(new long[0], new long[0], 0, 0, 0, 0);
+    }
+
+    var values = new long[nonEmpty];
+    var counts = new long[nonEmpty];
+    for (int b = 0, i = 0; b < bucketCount; b++) {
+      if (merged[b] != 0) {
+        values[i] = representative(b);
+        counts[i++] = merged[b];
+      }
+    }
+    // Buckets are the source of truth for the count; the separately drained sum may be off by a
+    // value recorded concurrently, which only nudges the mean.
+    var mean = count == 0 ? 0.0 : (double) sum / count;
+    return new HistogramSnapshot(values, counts, total,
+        min == Long.MAX_VALUE ? values[0] : min,
+        max == Long.MIN_VALUE ? values[nonEmpty - 1] : max,
+        mean);
+  }
+
+  int bucketIndex(long value) {
+    var linear = 1 << precisionBits;
+    if (value < linear) {
+      return (int) value;
+    }
+    var shift = 63 - Long.numberOfLeadingZeros(value) - precisionBits + 1;
+    var half = linear >>> 1;
+    var mantissa = (int) (value >>> shift);
+    return linear + (shift - 1) * half + (mantissa - half);
+  }
+
+  long lowerBound(int index) {
+    var linear = 1 << precisionBits;
+    if (index < linear) {
+      return index;
+    }
+    var half = linear >>> 1;
+    var offset = index - linear;
+    var shift = offset / half + 1;
+    return (long) (half + offset % half) << shift;
+  }
+
+  long upperBound(int index) {
+    if (index + 1 >= bucketCount) {
+      return Long.MAX_VALUE;
+    }
+    return lowerBound(index + 1) - 1;
+  }
+
+  private long representative(int index) {
+    var lower = lowerBound(index);
+    return lower + (upperBound(index) - lower) / 2;
+  }
+
+  private Stripe stripe() {
+    var id = Thread.currentThread().threadId();
+    id *= 0x9e3779b97f4a7c15L;
+    var index = (int) (id ^ (id >>> 32)) & stripeMask;
+    var stripe = stripes.get(index);
+    if (stripe == null) {
+      stripes.compareAndSet(index, null, new Stripe(bucketCount));
+      stripe = stripes.get(index);
+    }
+    return stripe;
+  }
+
+  private static class Stripe {
+    private final long[] buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    Stripe(int bucketCount) {
+      this.buckets = new long[bucketCount];
+    }
+
+    void min(long value) {
+      var current = min.get();
+      while (value < current && !min.compareAndSet(current, value)) {
+        current = min.get();
+      }
+    }
+
+    void max(long value) {
+      var current = max.get();
+      while (value > current && !max.compareAndSet(current, value)) {
+        current = max.get();
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the resolved address of the dogstatsd agent, and refreshes it in the background.
+ * <p/>
+ * The host is resolved when the resolver is created and then every {@code ttl} on a daemon
+ * thread of its own. {@link #getAddress()} only returns the cached address, so sending never
+ * waits on DNS. A failed refresh keeps the last address. When a refresh finds a new address,
+ * e.g. because the agent pod moved, it is swapped in and listeners are told about it.
+ */
+public class CachingAddressResolver implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CachingAddressResolver.class);
+
+  private final String host;
+  private final int port;
+  private final SelfMetrics selfMetrics;
+  private final ScheduledExecutorService refresher;
+  private final List<Consumer<InetSocketAddress>> listeners = new CopyOnWriteArrayList<>();
+  private final Set<Runnable> pending = ConcurrentHashMap.newKeySet();
+  private volatile InetSocketAddress address;
+
+  /**
+   * @param selfMetrics where to publish resolution time, failures and address changes, or null
+   */
+  public CachingAddressResolver(String host, int port, long ttl, TimeUnit unit, SelfMetrics selfMetrics) {
+    if (ttl <= 0) {
+      throw new IllegalArgumentException("ttl must be positive");
+    }
+    this.host = host;
+    this.port = port;
+    this.selfMetrics = selfMetrics;
+    this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      var thread = new Thread(runnable, "datadog-statsd-resolver");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refresh();
+    refresher.scheduleWithFixedDelay(this::refresh, ttl, ttl, unit);
+  }
+
+  /**
+   * @return the last resolved address, or null if the host never resolved
+   */
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * @return an address lookup for the dogstatsd client that returns the cached address
+   */
+  public Callable<SocketAddress> asLookup() {
+    return () -> {
+      var current = address;
+      if (current == null) {
+        throw new UnknownHostException(host);
+      }
+      return current;
+    };
+  }
+
+  /**
+   * Call {@code listener} on the resolver's thread whenever the host resolves to a new address.
+   */
+  public void onChange(Consumer<InetSocketAddress> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Run a task on the resolver's thread after a delay, or when the resolver is closed.
+   */
+  void later(Runnable task, long delay, TimeUnit unit) {
+    pending.add(task);
+    refresher.schedule(() -> runPending(task), delay, unit);
+  }
+
+  private void runPending(Runnable task) {
+    if (pending.remove(task)) {
+      task.run();
+    }
+  }
+
+  void refresh() {
+    var start = System.nanoTime();
+    InetSocketAddress resolved;
+    try {
+      resolved = new InetSocketAddress(InetAddress.getByName(host), port);
+    } catch (UnknownHostException e) {
+      if (selfMetrics != null) {
+        selfMetrics.recordResolutionError();
+      }
+      LOG.warn("Could not resolve statsd host {}, keeping address {}: {}", host, address, e.getMessage());
+      return;
+    } finally {
+      if (selfMetrics != null) {
+        selfMetrics.recordResolution(System.nanoTime() - start);
+      }
+    }
+
+    var previous = address;
+    if (resolved.equals(previous)) {
+      return;
+    }
+    address = resolved;
+    if (previous != null) {
+      LOG.info("Statsd host {} moved from {} to {}", host, previous.getAddress(), resolved.getAddress());
+      if (selfMetrics != null) {
+        selfMetrics.recordAddressChange();
+      }
+    }
+    for (var listener : listeners) {
+      try {
+        listener.accept(resolved);
+      } catch (RuntimeException e) {
+        LOG.error("Error switching to statsd address {}", resolved, e);
+      }
+    }
+  }
+
+  /**
+   * Stops refreshing, and runs tasks that were waiting for their delay.
+   */
+  @Override
+  public void close() {
+    refresher.shutdownNow();
+    for (var task : pending) {
+      runPending(task);
+    }
+  }
+}
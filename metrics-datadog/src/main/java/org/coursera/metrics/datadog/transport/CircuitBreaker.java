@@ -0,0 +1,102 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops a transport from sending after repeated failures, so reports are not built only to be
+ * thrown away while the intake is down.
+ * <p/>
+ * The breaker opens after {@code failureThreshold} failed sends in a row. While it is open
+ * {@link #allowRequest()} returns false, and {@link org.coursera.metrics.datadog.DatadogReporter}
+ * skips its reports without reading the registry. Once {@code openDuration} has passed, a single
+ * report is let through as a probe: if it succeeds the breaker closes, and if it fails the breaker
+ * opens again. A probe that never reports back is replaced by another one after
+ * {@code openDuration}.
+ */
+public class CircuitBreaker {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openNanos;
+  private final Clock clock;
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+
+  public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+    this(failureThreshold, openDuration, unit, Clock.defaultClock());
+  }
+
+  CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit, Clock clock) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failureThreshold must be positive");
+    }
+    if (openDuration <= 0) {
+      throw new IllegalArgumentException("openDuration must be positive");
+    }
+    this.failureThreshold = failureThreshold;
+    this.openNanos = unit.toNanos(openDuration);
+    this.clock = clock;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * @return true if the breaker is open and not yet due for a probe; unlike
+   * {@link #allowRequest()}, never changes the state
+   */
+  public synchronized boolean isOpen() {
+    return state != State.CLOSED && clock.getTick() - openedAt < openNanos;
+  }
+
+  /**
+   * @return true if a report may be sent now; moves an open breaker to half-open when it is time
+   * for a probe
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    var now = clock.getTick();
+    if (now - openedAt < openNanos) {
+      return false;
+    }
+    state = State.HALF_OPEN;
+    openedAt = now;
+    LOG.info("Probing the Datadog intake after {} failed sends", failures);
+    return true;
+  }
+
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      LOG.info("Datadog intake recovered, resuming reports");
+    }
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    failures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      if (state == State.CLOSED) {
+        LOG.warn("{} sends to Datadog failed in a row, pausing reports for {} ms", failures,
+            TimeUnit.NANOSECONDS.toMillis(openNanos));
+      }
+      state = State.OPEN;
+      openedAt = clock.getTick();
+    }
+  }
+}
@@ -0,0 +1,411 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes dogstatsd lines straight to a UDP socket, caching the encoded bytes of every series.
+ * <p/>
+ * The name and tags of a series do not change between reports, so the first time a series is
+ * seen its {@code prefix.name:} and {@code |g|#tags} parts are encoded once and kept. Every
+ * report after that only formats the value, into a pooled buffer that is sent when the next
+ * line would not fit in {@code maxPacketSize}. Gauge values are formatted like the dogstatsd
+ * client does, with at most six decimals, and in scientific notation when that would be too long.
+ * <p/>
+ * Series are cached per tag list and then per metric name, so a lookup neither allocates a key
+ * nor hashes the tags again while consecutive series share the same tag list instance, as the
+ * rows of a {@link SeriesBatch} do. Series that come and go are evicted once the cache holds {@value #MAX_SERIES} of them:
+ * every series not reported since the previous eviction is dropped. A counter's last count is
+ * kept apart from the evictable lines, so a counter that was skipped for a while, e.g. because it
+ * did not change, still sends a delta rather than its total when it is reported again. Last
+ * counts are therefore kept for every counter series ever reported.
+ * <p/>
+ * Lines are sent from the reporting thread instead of a client queue, and unlike the dogstatsd
+ * client no telemetry or container id is sent.
+ */
+class DogstatsdLineCache implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DogstatsdLineCache.class);
+
+  // Stops series that come and go from growing the cache forever.
+  private static final int MAX_SERIES = 100_000;
+  // Longest value we format: a sign, 19 digits, a point and six decimals, with room to spare.
+  private static final int MAX_VALUE_BYTES = 32;
+  private static final long DECIMAL_SCALE = 1_000_000L;
+  private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10_000, 100_000};
+  // Set by the Datadog admission controller; the dogstatsd client adds it to every metric.
+  private static final String ENTITY_ID_ENV = "DD_ENTITY_ID";
+
+  private final String prefix;
+  private final String constantTags;
+  private final Callable<SocketAddress> addressLookup;
+  private final int maxPacketSize;
+  private final SelfMetrics selfMetrics;
+  private final DatagramChannel channel;
+  private final Map<List<String>, TagSetSeries> tagSets = new ConcurrentHashMap<>();
+  private final AtomicInteger cachedSeries = new AtomicInteger();
+  private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final int maxSeries;
+  // The size at which to evict series again.
+  private int evictAt;
+
+  DogstatsdLineCache(String prefix, String[] constantTags, Callable<SocketAddress> addressLookup,
+                     int maxPacketSize, int socketBufferSize, SelfMetrics selfMetrics) throws IOException {
+    this(prefix, constantTags, addressLookup, maxPacketSize, socketBufferSize, selfMetrics, MAX_SERIES);
+  }
+
+  DogstatsdLineCache(String prefix, String[] constantTags, Callable<SocketAddress> addressLookup,
+                     int maxPacketSize, int socketBufferSize, SelfMetrics selfMetrics,
+                     int maxSeries) throws IOException {
+    this.prefix = prefix == null || prefix.isEmpty() ? "" : prefix + ".";
+    var entityId = System.getenv(ENTITY_ID_ENV);
+    var tags = String.join(",", constantTags);
+    if (entityId != null && !entityId.isEmpty()) {
+      tags = tags.isEmpty() ? "dd.internal.entity_id:" + entityId : tags + ",dd.internal.entity_id:" + entityId;
+    }
+    this.constantTags = tags;
+    this.addressLookup = addressLookup;
+    this.maxPacketSize = maxPacketSize;
+    this.selfMetrics = selfMetrics;
+    this.maxSeries = maxSeries;
+    this.evictAt = maxSeries;
+    this.channel = DatagramChannel.open();
+    if (socketBufferSize > 0) {
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, socketBufferSize);
+    }
+  }
+
+  Transport.Request newRequest() {
+    return new Request();
+  }
+
+  int size() {
+    return cachedSeries.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Drop the series not reported since the previous eviction, once the cache is full. Series
+   * that are still reported are kept, so the cache grows past {@value #MAX_SERIES} if that many
+   * are.
+   *
+   * @return whether series were evicted
+   */
+  private synchronized boolean evictUnused() {
+    if (cachedSeries.get() < evictAt) {
+      return false;
+    }
+    var before = cachedSeries.get();
+    tagSets.values().removeIf(tagSet -> {
+      evictUnused(tagSet.gauges);
+      evictUnused(tagSet.counters);
+      // A tag list with counters stays, as it holds their last counts.
+      return tagSet.gauges.isEmpty() && tagSet.lastCounts.isEmpty();
+    });
+    // Evicting again only after a quarter more series keeps the scans cheap.
+    evictAt = Math.max(maxSeries, cachedSeries.get() + maxSeries / 4);
+    LOG.debug("Dogstatsd line cache evicted {} unused series of {}", before - cachedSeries.get(), before);
+    return true;
+  }
+
+  private void evictUnused(Map<String, EncodedSeries> lines) {
+    lines.values().removeIf(encoded -> {
+      if (!encoded.used) {
+        cachedSeries.decrementAndGet();
+        return true;
+      }
+      encoded.used = false;
+      return false;
+    });
+  }
+
+  private EncodedSeries encode(TagSetSeries tagSet, String metric, char type) {
+    cachedSeries.incrementAndGet();
+    var suffix = new StringBuilder().append('|').append(type);
+    var tags = tagSet.tags;
+    if (!constantTags.isEmpty() || !tags.isEmpty()) {
+      suffix.append("|#").append(constantTags);
+      for (var i = 0; i < tags.size(); i++) {
+        if (i > 0 || !constantTags.isEmpty()) {
+          suffix.append(',');
+        }
+        suffix.append(tags.get(i));
+      }
+    }
+    return new EncodedSeries(
+        (prefix + metric + ":").getBytes(StandardCharsets.UTF_8),
+        suffix.toString().getBytes(StandardCharsets.UTF_8),
+        type == 'c' ? tagSet.lastCounts.computeIfAbsent(metric, m -> new AtomicLong(Long.MIN_VALUE)) : null);
+  }
+
+  private class Request implements Transport.Request {
+    private ByteBuffer buffer;
+    private SocketAddress address;
+    // The tag list of the previous series, which the next one most likely shares.
+    private List<String> lastTags;
+    private TagSetSeries lastTagSet;
+
+    private EncodedSeries encoded(String metric, List<String> tags, char type) {
+      var lines = tagSet(tags).lines(type);
+      var encoded = lines.get(metric);
+      if (encoded == null) {
+        if (evictUnused()) {
+          // The eviction may have dropped the tag list's entry.
+          lastTags = null;
+        }
+        var tagSet = tagSet(tags);
+        encoded = tagSet.lines(type).computeIfAbsent(metric, m -> encode(tagSet, m, type));
+      } else if (!encoded.used) {
+        encoded.used = true;
+      }
+      return encoded;
+    }
+
+    private TagSetSeries tagSet(List<String> tags) {
+      if (tags != lastTags) {
+        lastTagSet = tagSets.computeIfAbsent(tags, TagSetSeries::new);
+        lastTags = tags;
+      }
+      return lastTagSet;
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) {
+      addGauge(encoded(gauge.getMetric(), gauge.getTags(), 'g'), gauge.getPoints().getFirst().get(1).doubleValue());
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) {
+      addCounter(encoded(counter.getMetric(), counter.getTags(), 'c'), counter.getPoints().getFirst().get(1).longValue());
+    }
+
+    /**
+     * Rates are skipped, like {@link #addRate(DatadogRate)} does.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) {
+      for (var row = 0; row < batch.size(); row++) {
+        switch (batch.type(row)) {
+          case SeriesBatch.GAUGE -> addGauge(encoded(batch.metric(row), batch.tags(row), 'g'), batch.value(row));
+          case SeriesBatch.COUNTER -> addCounter(encoded(batch.metric(row), batch.tags(row), 'c'), (long) batch.value(row));
+          default -> {
+          }
+        }
+      }
+    }
+
+    private void addGauge(EncodedSeries encoded, double value) {
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return;
+      }
+      var line = reserve(encoded);
+      if (line != null) {
+        putDouble(line, value);
+        line.put(encoded.suffix);
+      }
+    }
+
+    private void addCounter(EncodedSeries encoded, long value) {
+      // statsd expects deltas, so report the increase since the previous report.
+      var lastSeen = encoded.lastCount.getAndSet(value);
+      var delta = lastSeen == Long.MIN_VALUE ? value : Math.max(0, value - lastSeen);
+      var line = reserve(encoded);
+      if (line != null) {
+        putLong(line, delta);
+        line.put(encoded.suffix);
+      }
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) {
+    }
+
+    @Override
+    public void send() {
+      if (buffer != null) {
+        try {
+          flush();
+        } finally {
+          buffers.offer(buffer);
+          buffer = null;
+        }
+      }
+    }
+
+    /**
+     * @return the buffer with the line's prefix written, or null if the line can never fit
+     */
+    private ByteBuffer reserve(EncodedSeries encoded) {
+      var length = encoded.prefix.length + MAX_VALUE_BYTES + encoded.suffix.length + 1;
+      if (length > maxPacketSize) {
+        if (selfMetrics != null) {
+          selfMetrics.recordUdpError();
+        }
+        LOG.error("Dropping dogstatsd line longer than {} bytes: {}", maxPacketSize,
+            new String(encoded.prefix, StandardCharsets.UTF_8));
+        return null;
+      }
+      if (buffer == null) {
+        buffer = buffers.poll();
+        if (buffer == null) {
+          buffer = ByteBuffer.allocateDirect(maxPacketSize);
+        }
+        buffer.clear();
+      } else if (buffer.remaining() < length) {
+        flush();
+      }
+      if (buffer.position() > 0) {
+        buffer.put((byte) '\n');
+      }
+      return buffer.put(encoded.prefix);
+    }
+
+    private void flush() {
+      if (buffer.position() == 0) {
+        return;
+      }
+      buffer.flip();
+      try {
+        if (address == null) {
+          address = addressLookup.call();
+        }
+        channel.send(buffer, address);
+      } catch (IOException e) {
+        if (selfMetrics != null) {
+          selfMetrics.recordUdpError();
+        }
+        LOG.error("Error sending dogstatsd packet to {}: {}", address, e.getMessage());
+      } catch (Exception e) {
+        if (selfMetrics != null) {
+          selfMetrics.recordUdpError();
+        }
+        LOG.error("Error resolving the statsd address: {}", e.getMessage());
+      } finally {
+        buffer.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes a value the way the dogstatsd client formats it, with at most six decimals and
+   * without trailing zeros.
+   */
+  static void putDouble(ByteBuffer buffer, double value) {
+    if (value == (long) value && value != Long.MAX_VALUE && value != Long.MIN_VALUE) {
+      putLong(buffer, (long) value);
+      return;
+    }
+    var scaled = value * DECIMAL_SCALE;
+    if (Math.abs(scaled) >= Long.MAX_VALUE) {
+      var text = BigDecimal.valueOf(value).setScale(6, RoundingMode.HALF_EVEN)
+          .stripTrailingZeros().toPlainString();
+      if (text.length() > MAX_VALUE_BYTES) {
+        // E.g. 1e300, which written out would overflow the room reserved for the value.
+        text = Double.toString(value);
+      }
+      buffer.put(text.getBytes(StandardCharsets.US_ASCII));
+      return;
+    }
+    var fixed = Math.round(scaled);
+    if (fixed < 0) {
+      buffer.put((byte) '-');
+      fixed = -fixed;
+    }
+    putLong(buffer, fixed / DECIMAL_SCALE);
+    var fraction = fixed % DECIMAL_SCALE;
+    if (fraction == 0) {
+      return;
+    }
+    var digits = 6;
+    while (fraction % 10 == 0) {
+      fraction /= 10;
+      digits--;
+    }
+    buffer.put((byte) '.');
+    for (var i = digits - 1; i >= 0; i--) {
+      buffer.put((byte) ('0' + (int) (fraction / POWERS_OF_TEN[i] % 10)));
+    }
+  }
+
+  static void putLong(ByteBuffer buffer, long value) {
+    if (value == Long.MIN_VALUE) {
+      buffer.put(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+      return;
+    }
+    if (value < 0) {
+      buffer.put((byte) '-');
+      value = -value;
+    }
+    var digits = 1;
+    for (var v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    var end = buffer.position() + digits;
+    for (var i = end - 1; i >= buffer.position(); i--) {
+      buffer.put(i, (byte) ('0' + (int) (value % 10)));
+      value /= 10;
+    }
+    buffer.position(end);
+  }
+
+  /**
+   * The series reported with one tag list.
+   */
+  private static class TagSetSeries {
+    private final List<String> tags;
+    private final Map<String, EncodedSeries> gauges = new ConcurrentHashMap<>();
+    private final Map<String, EncodedSeries> counters = new ConcurrentHashMap<>();
+    // Never evicted, see the class comment.
+    private final Map<String, AtomicLong> lastCounts = new ConcurrentHashMap<>();
+
+    TagSetSeries(List<String> tags) {
+      this.tags = tags;
+    }
+
+    Map<String, EncodedSeries> lines(char type) {
+      return type == 'c' ? counters : gauges;
+    }
+  }
+
+  private static class EncodedSeries {
+    private final byte[] prefix;
+    private final byte[] suffix;
+    // The counter's entry in its tag list's last counts, or null for a gauge.
+    private final AtomicLong lastCount;
+    // Whether the series was reported since the previous eviction.
+    private volatile boolean used = true;
+
+    EncodedSeries(byte[] prefix, byte[] suffix, AtomicLong lastCount) {
+      this.prefix = prefix;
+      this.suffix = suffix;
+      this.lastCount = lastCount;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.HttpTransport.Payload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends every report to several Datadog intakes, e.g. to two organizations during a migration.
+ * <p/>
+ * A report is serialized once, and compressed at most once, and the same bytes are posted to
+ * every destination. Each destination is an {@link HttpTransport} with its own API key, URL,
+ * retries and circuit breaker, and posts from its own thread, so {@link Request#send()} does not
+ * wait for any of them. A destination that is still busy with the previous report when the next
+ * one is ready skips it, so one slow intake neither holds up the others nor piles up payloads.
+ */
+public class FanoutTransport implements Transport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FanoutTransport.class);
+
+  private final List<Destination> destinations;
+
+  private FanoutTransport(List<HttpTransport> transports) {
+    var destinations = new ArrayList<Destination>(transports.size());
+    for (var i = 0; i < transports.size(); i++) {
+      destinations.add(new Destination(transports.get(i), i));
+    }
+    this.destinations = destinations;
+  }
+
+  public static class Builder {
+    private final List<HttpTransport> destinations = new ArrayList<>();
+
+    public Builder withDestination(HttpTransport destination) {
+      this.destinations.add(destination);
+      return this;
+    }
+
+    public FanoutTransport build() {
+      if (destinations.isEmpty()) {
+        throw new IllegalArgumentException("at least one destination must be defined");
+      }
+      return new FanoutTransport(List.copyOf(destinations));
+    }
+  }
+
+  public List<HttpTransport> getDestinations() {
+    var transports = new ArrayList<HttpTransport>(destinations.size());
+    for (var destination : destinations) {
+      transports.add(destination.transport);
+    }
+    return transports;
+  }
+
+  @Override
+  public Request prepare() throws IOException {
+    return new FanoutRequest(new HttpTransport.HttpRequest(destinations.getFirst().transport));
+  }
+
+  /**
+   * @return true only while every destination's circuit breaker is open
+   */
+  @Override
+  public boolean isPaused() {
+    for (var destination : destinations) {
+      var breaker = destination.transport.getCircuitBreaker();
+      if (breaker == null || !breaker.isOpen()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Waits for sends in progress to finish, then closes every destination.
+   */
+  @Override
+  public void close() throws IOException {
+    for (var destination : destinations) {
+      destination.worker.shutdown();
+    }
+    try {
+      for (var destination : destinations) {
+        if (!destination.worker.awaitTermination(30, TimeUnit.SECONDS)) {
+          LOG.warn("Timed out waiting for the send to {} to finish", destination.transport.getSeriesUrl());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (var destination : destinations) {
+      destination.transport.close();
+    }
+  }
+
+  private static class Destination {
+    private final HttpTransport transport;
+    private final ExecutorService worker;
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    Destination(HttpTransport transport, int index) {
+      this.transport = transport;
+      this.worker = Executors.newSingleThreadExecutor(runnable -> {
+        var thread = new Thread(runnable, "datadog-fanout-" + index);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+
+    void submit(Payload payload) {
+      if (!busy.compareAndSet(false, true)) {
+        LOG.warn("Still sending the previous report to {}, skipping {} series",
+            transport.getSeriesUrl(), payload.getSeriesCount());
+        transport.dropped(payload);
+        return;
+      }
+      if (transport.isPaused()) {
+        busy.set(false);
+        transport.dropped(payload);
+        return;
+      }
+      payload.retain();
+      try {
+        worker.execute(() -> {
+          try {
+            transport.deliver(payload);
+          } catch (RuntimeException e) {
+            LOG.error("Error sending metrics to {}", transport.getSeriesUrl(), e);
+          } finally {
+            payload.release();
+            busy.set(false);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        payload.release();
+        busy.set(false);
+        transport.dropped(payload);
+      }
+    }
+  }
+
+  private class FanoutRequest implements Request {
+    private final HttpTransport.HttpRequest request;
+
+    FanoutRequest(HttpTransport.HttpRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) throws IOException {
+      request.addGauge(gauge);
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) throws IOException {
+      request.addCounter(counter);
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) throws IOException {
+      request.addRate(rate);
+    }
+
+    @Override
+    public void addBatch(SeriesBatch batch) throws IOException {
+      request.addBatch(batch);
+    }
+
+    @Override
+    public void send() throws Exception {
+      var payload = request.payload();
+      try {
+        for (var destination : destinations) {
+          destination.submit(payload);
+        }
+      } finally {
+        payload.release();
+      }
+    }
+
+    @Override
+    public void abort() {
+      request.abort();
+    }
+  }
+}
@@ -1,34 +1,64 @@
 package org.coursera.metrics.datadog.transport;
 
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.hc.core5.http.ParseException;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.jfr.DatadogHttpSend;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 import org.coursera.metrics.serializer.JsonSerializer;
 import org.coursera.metrics.serializer.Serializer;
+import org.coursera.metrics.serializer.SerializerBufferPool;
 
+import org.apache.hc.client5.http.config.ConnectionConfig;
 import org.apache.hc.client5.http.fluent.Executor;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
 import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.HttpException;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.core5.http.io.HttpClientResponseHandler;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
-import java.util.zip.DeflaterInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * Uses the datadog http webservice to push metrics.
+ * <p/>
+ * Failed sends can be retried: connection errors, 429 and 5xx responses are retried up to
+ * {@code maxRetries} times with exponential backoff and jitter, waiting as long as the intake
+ * asks for in a {@code Retry-After} header, as long as the next attempt starts before the retry
+ * deadline. An optional {@link CircuitBreaker} stops reports altogether while sends keep
+ * failing.
  *
  * @see <a href="http://docs.datadoghq.com/api/">API docs</a>
  */
@@ -37,34 +67,107 @@ public class HttpTransport implements Transport {
   private static final Logger LOG = LoggerFactory.getLogger(HttpTransport.class);
 
   private static final String SERIES_URL = "https://api.datadoghq.eu/api/v2/series";
+  private final String seriesUrl;
   private final String apiKey;
   private final int connectTimeout;     // in milliseconds
   private final int responseTimeout;      // in milliseconds
   private final HttpHost proxy;
   private final Executor executor;
   private final boolean useCompression;
+  private final SelfMetrics selfMetrics;
+  private final int maxRetries;
+  private final int initialBackoff;     // in milliseconds
+  private final int maxBackoff;         // in milliseconds
+  private final int retryDeadline;      // in milliseconds
+  private final CircuitBreaker circuitBreaker;
+  private final boolean pipelining;
+  private final int shards;
+  // Sized from this transport's own payloads.
+  private final SerializerBufferPool bufferPool;
+  // Posts the shards of a report, when there are several.
+  private final ExecutorService shardSender;
 
-  private HttpTransport(String apiKey,
+  private HttpTransport(String seriesUrl,
+                        String apiKey,
                         int connectTimeout,
                         int responseTimeout,
                         HttpHost proxy,
                         Executor executor,
-                        boolean useCompression) {
+                        boolean useCompression,
+                        SelfMetrics selfMetrics,
+                        int maxRetries,
+                        int initialBackoff,
+                        int maxBackoff,
+                        int retryDeadline,
+                        CircuitBreaker circuitBreaker,
+                        boolean pipelining,
+                        int shards) {
+    this.seriesUrl = seriesUrl;
     this.apiKey = apiKey;
     this.connectTimeout = connectTimeout;
     this.responseTimeout = responseTimeout;
     this.proxy = proxy;
     this.useCompression = useCompression;
-    this.executor = Objects.requireNonNullElseGet(executor, Executor::newInstance);
+    this.selfMetrics = selfMetrics;
+    this.maxRetries = maxRetries;
+    this.initialBackoff = initialBackoff;
+    this.maxBackoff = maxBackoff;
+    this.retryDeadline = retryDeadline;
+    this.circuitBreaker = circuitBreaker;
+    this.pipelining = pipelining;
+    this.shards = shards;
+    this.bufferPool = new SerializerBufferPool(2048, Math.max(2, shards));
+    this.shardSender = shards > 1
+        ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("datadog-shard-", 0).factory())
+        : null;
+    this.executor = Objects.requireNonNullElseGet(executor, () -> Executor.newInstance(DefaultClient.CLIENT));
+  }
+
+  /**
+   * Configured like the fluent API's default client, but without its automatic retries, which
+   * would re-post a request on 429 and 503 regardless of the transport's retry settings.
+   */
+  private static class DefaultClient {
+    static final CloseableHttpClient CLIENT = HttpClientBuilder.create()
+        .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+            .useSystemProperties()
+            .setMaxConnPerRoute(100)
+            .setMaxConnTotal(200)
+            .setDefaultConnectionConfig(ConnectionConfig.custom()
+                .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                .build())
+            .build())
+        .useSystemProperties()
+        .disableAutomaticRetries()
+        .evictExpiredConnections()
+        .evictIdleConnections(TimeValue.ofMinutes(1))
+        .build();
   }
 
   public static class Builder {
+    String seriesUrl = SERIES_URL;
     String apiKey;
     int connectTimeout = 5000;
     int responseTimeout = 5000;
     HttpHost proxy;
     Executor executor;
     boolean useCompression = false;
+    SelfMetrics selfMetrics;
+    int maxRetries = 0;
+    int initialBackoff = 100;
+    int maxBackoff = 5000;
+    int retryDeadline = 10000;
+    CircuitBreaker circuitBreaker;
+    boolean pipelining = false;
+    int shards = 1;
+
+    /**
+     * The v2 series intake URL, e.g. for another Datadog site or a local proxy.
+     */
+    public Builder withSeriesUrl(String seriesUrl) {
+      this.seriesUrl = seriesUrl;
+      return this;
+    }
 
     public Builder withApiKey(String key) {
       this.apiKey = key;
@@ -96,18 +199,313 @@ public class HttpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Publish serialization time, payload sizes, response statuses and dropped series.
+     */
+    public Builder withSelfMetrics(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
+    /**
+     * Retry sends that failed with a connection error, 429 or 5xx up to this many times.
+     * Defaults to 0.
+     */
+    public Builder withRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * The wait before the first retry, doubled for every further retry up to the maximum. The
+     * actual wait is picked at random between half and all of it.
+     */
+    public Builder withRetryBackoff(int initialMilliseconds, int maxMilliseconds) {
+      this.initialBackoff = initialMilliseconds;
+      this.maxBackoff = maxMilliseconds;
+      return this;
+    }
+
+    /**
+     * No retry is started later than this after the first attempt, so that a send does not
+     * run into the next report. Should be shorter than the reporting period.
+     */
+    public Builder withRetryDeadline(int milliseconds) {
+      this.retryDeadline = milliseconds;
+      return this;
+    }
+
+    public Builder withCircuitBreaker(CircuitBreaker circuitBreaker) {
+      this.circuitBreaker = circuitBreaker;
+      return this;
+    }
+
+    /**
+     * Serialize and compress on two other threads while the reporter is still collecting
+     * series, see {@link PipelinedRequest}. Defaults to false.
+     */
+    public Builder withPipelining(boolean pipelining) {
+      this.pipelining = pipelining;
+      return this;
+    }
+
+    /**
+     * Split every report into this many payloads, built in parallel and posted as separate
+     * requests, see {@link ShardedRequest}. 0 uses one shard per available processor. Defaults
+     * to 1, a single payload.
+     */
+    public Builder withShards(int shards) {
+      if (shards < 0) {
+        throw new IllegalArgumentException("shards must not be negative");
+      }
+      this.shards = shards;
+      return this;
+    }
+
     public HttpTransport build() {
-      return new HttpTransport(apiKey, connectTimeout, responseTimeout, proxy, executor, useCompression);
+      if (seriesUrl == null || seriesUrl.isEmpty()) {
+        throw new IllegalArgumentException("seriesUrl must be defined");
+      }
+      if (maxRetries < 0) {
+        throw new IllegalArgumentException("maxRetries must not be negative");
+      }
+      if (initialBackoff < 1 || maxBackoff < initialBackoff) {
+        throw new IllegalArgumentException("retry backoff must be positive and not exceed its maximum");
+      }
+      if (pipelining && shards != 1) {
+        throw new IllegalArgumentException("pipelining cannot be combined with shards");
+      }
+      return new HttpTransport(seriesUrl, apiKey, connectTimeout, responseTimeout, proxy, executor, useCompression, selfMetrics,
+          maxRetries, initialBackoff, maxBackoff, retryDeadline, circuitBreaker, pipelining,
+          shards == 0 ? Runtime.getRuntime().availableProcessors() : shards);
     }
   }
 
   @Override
   public Request prepare() throws IOException {
-    return new HttpRequest(this);
+    if (shards > 1) {
+      return new ShardedRequest(this);
+    }
+    return pipelining ? new PipelinedRequest(this) : new HttpRequest(this);
+  }
+
+  /**
+   * @return true while the circuit breaker is open
+   */
+  @Override
+  public boolean isPaused() {
+    return circuitBreaker != null && !circuitBreaker.allowRequest();
+  }
+
+  public String getSeriesUrl() {
+    return seriesUrl;
+  }
+
+  public int getShards() {
+    return shards;
+  }
+
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  SerializerBufferPool getBufferPool() {
+    return bufferPool;
   }
 
   @Override
   public void close() throws IOException {
+    if (shardSender != null) {
+      shardSender.shutdown();
+    }
+  }
+
+  /**
+   * @return the wait in milliseconds asked for by a {@code Retry-After} header, or -1 if there
+   * is none or it cannot be parsed
+   */
+  static long retryAfterMillis(String value, long nowMillis) {
+    if (value == null) {
+      return -1;
+    }
+    value = value.trim();
+    try {
+      return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+    } catch (NumberFormatException e) {
+      // Otherwise it is an HTTP date
+    }
+    try {
+      var date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+      return Math.max(0, date.toInstant().toEpochMilli() - nowMillis);
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @param retry 0 for the first retry
+   */
+  long backoffMillis(int retry) {
+    var cap = Math.min(maxBackoff, (long) initialBackoff << Math.min(retry, 30));
+    return cap / 2 + ThreadLocalRandom.current().nextLong(cap - cap / 2 + 1);
+  }
+
+  /**
+   * Post a payload, retrying as configured, and record the outcome on the circuit breaker.
+   */
+  void deliver(Payload payload) {
+    record(send(payload));
+  }
+
+  private void record(Delivery delivery) {
+    if (circuitBreaker == null) {
+      return;
+    }
+    switch (delivery) {
+      case SENT -> circuitBreaker.recordSuccess();
+      case FAILED -> circuitBreaker.recordFailure();
+      default -> {
+        // Interrupted, e.g. by a shutdown, which says nothing about the intake.
+      }
+    }
+  }
+
+  /**
+   * Post a payload, retrying as configured, without recording the outcome on the circuit
+   * breaker. A payload that is not sent is counted as dropped.
+   */
+  private Delivery send(Payload payload) {
+    // Compressed once per payload, so that retries and other destinations post the same bytes.
+    var sentLength = useCompression ? payload.deflatedLength() : payload.bodyLength;
+    if (selfMetrics != null) {
+      selfMetrics.recordPayload(payload.bodyLength, sentLength);
+    }
+
+    var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDeadline);
+    for (var attempt = 1; ; attempt++) {
+      var outcome = post(payload, attempt);
+      if (outcome.isSuccess()) {
+        return Delivery.SENT;
+      }
+      if (!outcome.isRetryable()) {
+        // E.g. a revoked API key, which would fail every report until it is fixed.
+        dropped(payload);
+        return Delivery.FAILED;
+      }
+
+      var retry = attempt - 1;
+      var wait = outcome.retryAfterMillis() >= 0 ? outcome.retryAfterMillis() : backoffMillis(retry);
+      if (retry >= maxRetries || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait) > deadline) {
+        if (maxRetries > 0) {
+          LOG.warn("Giving up sending {} series to Datadog after {} attempts", payload.seriesCount, attempt);
+        }
+        dropped(payload);
+        return Delivery.FAILED;
+      }
+      if (selfMetrics != null) {
+        selfMetrics.recordRetry();
+      }
+      LOG.debug("Retrying send to Datadog in {} ms", wait);
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        dropped(payload);
+        return Delivery.INTERRUPTED;
+      }
+    }
+  }
+
+  void dropped(Payload payload) {
+    if (selfMetrics != null) {
+      selfMetrics.recordDropped(payload.seriesCount);
+    }
+  }
+
+  private Outcome post(Payload payload, int attempt) {
+    var request = org.apache.hc.client5.http.fluent.Request.post(seriesUrl)
+            .useExpectContinue()
+            .addHeader("DD-API-KEY", apiKey)
+            .connectTimeout(Timeout.ofMilliseconds(connectTimeout))
+            .responseTimeout(Timeout.ofMilliseconds(responseTimeout));
+
+    if (useCompression) {
+      request
+              .addHeader("Content-Encoding", "deflate")
+              .addHeader("Content-MD5", payload.md5Hex())
+              .bodyByteArray(payload.deflated(), 0, payload.deflatedLength(), ContentType.APPLICATION_JSON);
+    } else {
+      request.bodyByteArray(payload.body, 0, payload.bodyLength, ContentType.APPLICATION_JSON);
+    }
+
+    if (proxy != null) {
+      request.viaProxy(proxy);
+    }
+
+    var event = DatadogHttpSend.isEventEnabled() ? new DatadogHttpSend() : null;
+    if (event != null) {
+      event.begin();
+    }
+    var start = System.currentTimeMillis();
+    try {
+      var response = executor.execute(request);
+
+      var elapsed = System.currentTimeMillis() - start;
+
+      return response.handleResponse(new HttpClientResponseHandler<Outcome>() {
+        @Override
+        public Outcome handleResponse(ClassicHttpResponse classicHttpResponse) throws HttpException, IOException {
+          var statusCode = classicHttpResponse.getCode();
+          if (event != null) {
+            event.status = statusCode;
+          }
+          if (selfMetrics != null) {
+            selfMetrics.recordHttpStatus(statusCode);
+          }
+          if (statusCode >= 400) {
+            if (LOG.isWarnEnabled()) {
+              LOG.warn(getLogMessage("Failure sending metrics to Datadog: ", classicHttpResponse));
+            }
+          } else if (LOG.isDebugEnabled()) {
+            LOG.debug(getLogMessage("Sent metrics to Datadog: ", classicHttpResponse));
+          }
+          var retryAfter = classicHttpResponse.getFirstHeader("Retry-After");
+          return new Outcome(statusCode,
+              retryAfterMillis(retryAfter != null ? retryAfter.getValue() : null, System.currentTimeMillis()));
+        }
+
+        private String getLogMessage(String headline, ClassicHttpResponse response) throws IOException, ParseException {
+          var sb = new StringBuilder();
+          sb.append(headline);
+          sb.append("\n");
+          sb.append("  Timing: ").append(elapsed).append(" ms\n");
+          sb.append("  Status: ").append(response.getCode()).append("\n");
+
+          var content = EntityUtils.toString(response.getEntity(), "UTF-8");
+          sb.append("  Content: ").append(content);
+          return sb.toString();
+        }
+
+      });
+    } catch (IOException e) {
+      if (selfMetrics != null) {
+        selfMetrics.recordHttpError();
+      }
+      LOG.warn("Failed to send metrics to Datadog: url: {}, proxy: {}, error: {}", seriesUrl, proxy, e.getMessage());
+      return new Outcome(0, -1);
+    } finally {
+      if (event != null) {
+        event.end();
+        if (event.shouldCommit()) {
+          event.url = seriesUrl;
+          event.seriesCount = payload.seriesCount;
+          event.bytes = payload.bodyLength;
+          event.compressedBytes = useCompression ? payload.deflatedLength() : payload.bodyLength;
+          event.attempt = attempt;
+          event.commit();
+        }
+      }
+    }
   }
 
   public static class HttpRequest implements Transport.Request {
@@ -115,119 +513,729 @@ public class HttpTransport implements Transport {
 
     protected final HttpTransport transport;
 
+    private long serializeNanos;
+    private int seriesCount;
+    // Whether the serializer's buffer was handed to a payload, which releases it once posted.
+    private boolean handedOff;
+
     public HttpRequest(HttpTransport transport) throws IOException {
       this.transport = transport;
-      serializer = new JsonSerializer();
+      serializer = new JsonSerializer(transport.bufferPool);
       serializer.startObject();
     }
 
     @Override
     public void addGauge(DatadogGauge gauge) throws IOException {
+      var start = System.nanoTime();
       serializer.appendGauge(gauge);
+      appended(start);
     }
 
     @Override
     public void addCounter(DatadogCounter counter) throws IOException {
+      var start = System.nanoTime();
       serializer.appendCounter(counter);
+      appended(start);
     }
 
     @Override
     public void addRate(DatadogRate rate) throws IOException {
+      var start = System.nanoTime();
       serializer.appendRate(rate);
+      appended(start);
+    }
+
+    /**
+     * Writes the batch's columns straight to the request body.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) throws IOException {
+      var start = System.nanoTime();
+      serializer.appendBatch(batch);
+      serializeNanos += System.nanoTime() - start;
+      seriesCount += batch.size();
+    }
+
+    /**
+     * Writes one row of a batch straight to the request body.
+     */
+    void addRow(SeriesBatch batch, int row) throws IOException {
+      var start = System.nanoTime();
+      serializer.appendRow(batch, row);
+      appended(start);
+    }
+
+    private void appended(long start) {
+      serializeNanos += System.nanoTime() - start;
+      seriesCount++;
     }
 
     @Override
     public void send() throws Exception {
+      var payload = payload();
+      try {
+        transport.deliver(payload);
+      } finally {
+        payload.release();
+      }
+    }
+
+    /**
+     * Finish serializing the series added so far. The payload posts from the serializer's
+     * buffer, and gives it back to the transport's pool once it is released.
+     */
+    Payload payload() throws IOException {
+      var start = System.nanoTime();
       serializer.endObject();
-      var postBody = serializer.getAsString();
+      var body = serializer.getAsByteBuffer();
+      handedOff = true;
+      if (transport.selfMetrics != null) {
+        transport.selfMetrics.recordSerialize(serializeNanos + System.nanoTime() - start);
+      }
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Sending HTTP POST request to proxy {}, uncompressed POST body length is: {}", transport.proxy, postBody.length());
-        LOG.debug("Uncompressed POST body is: \n{}", postBody);
-      }
-      var start = System.currentTimeMillis();
-      var request = org.apache.hc.client5.http.fluent.Request.post(SERIES_URL)
-              .useExpectContinue()
-              .addHeader("DD-API-KEY", transport.apiKey)
-              .connectTimeout(Timeout.ofMicroseconds(transport.connectTimeout))
-              .responseTimeout(Timeout.ofMicroseconds(transport.responseTimeout));
-
-      if (transport.useCompression) {
-        request
-                .addHeader("Content-Encoding", "deflate")
-                .addHeader("Content-MD5", DigestUtils.md5Hex(postBody))
-                .bodyStream(deflated(postBody), ContentType.APPLICATION_JSON);
-      } else {
-        request.bodyString(postBody, ContentType.APPLICATION_JSON);
+        LOG.debug("Sending HTTP POST request to proxy {}, uncompressed POST body length is: {}", transport.proxy, body.limit());
+        LOG.debug("Uncompressed POST body is: \n{}", new String(body.array(), 0, body.limit(), StandardCharsets.UTF_8));
       }
+      return new Payload(body.array(), body.limit(), seriesCount, this::releaseBuffer);
+    }
 
-      if (transport.proxy != null) {
-        request.viaProxy(transport.proxy);
+    /**
+     * Give the serializer's buffer back to the transport's pool, unless a payload holds it.
+     */
+    @Override
+    public void abort() {
+      if (!handedOff) {
+        releaseBuffer();
       }
+    }
 
+    private void releaseBuffer() {
       try {
-        var response = transport.executor.execute(request);
-
-        var elapsed = System.currentTimeMillis() - start;
-
-        if (LOG.isWarnEnabled()) {
-          response.handleResponse(new HttpClientResponseHandler<Void>() {
-            @Override
-            public Void handleResponse(ClassicHttpResponse classicHttpResponse) throws HttpException, IOException {
-              var statusCode = classicHttpResponse.getCode();
-              if (statusCode >= 400) {
-                LOG.warn(getLogMessage("Failure sending metrics to Datadog: ", classicHttpResponse));
-              } else {
-                if (LOG.isDebugEnabled()) {
-                  LOG.debug(getLogMessage("Sent metrics to Datadog: ", classicHttpResponse));
-                }
+        serializer.reset();
+      } catch (IOException e) {
+        LOG.debug("Error releasing a request's buffer: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Serializes and compresses a report while it is being collected. The reporter thread only
+   * fills chunks of series. A serializer stage encodes each chunk to JSON, and a compressor stage
+   * deflates it. Each stage runs on its own virtual thread, and the stages are connected by
+   * {@link SpscRing}s. The stages overlap, so a report takes about as long as the slowest of
+   * them instead of their sum.
+   * <p/>
+   * The body is the same JSON {@link HttpRequest} would produce, and it is compressed as one zlib
+   * stream fed chunk by chunk. Compressed, only the deflated body is kept.
+   * <p/>
+   * The stages start with the first chunk, and end with the request: {@link #send()} and
+   * {@link #abort()} both close the ring of series. After a failure, either stage only drains
+   * its input until then, so that neither the reporter thread nor the other stage is left
+   * waiting on a full ring.
+   */
+  static class PipelinedRequest implements Transport.Request {
+    static final int CHUNK_SERIES = 256;
+    private static final int RING_CAPACITY = 16;
+    // Stages give up on a request that is neither sent nor aborted, instead of waiting forever.
+    private static final long ABANDON_SECONDS = 60;
+    private static final Object END = new Object();
+
+    private final HttpTransport transport;
+    // Chunks of series and copies of batches, then END.
+    private final SpscRing<Object> series = new SpscRing<>(RING_CAPACITY);
+    // Chunks of JSON, then END.
+    private final SpscRing<Object> json = new SpscRing<>(RING_CAPACITY);
+    private final CompletableFuture<Payload> payload = new CompletableFuture<>();
+    private volatile Throwable failure;
+    private DatadogSeries<?>[] chunk = new DatadogSeries<?>[CHUNK_SERIES];
+    private int chunkSize;
+    private int seriesCount;
+    private boolean started;
+    private boolean ended;
+    // Written by the serializer stage, read once the payload is complete.
+    private long serializeNanos;
+
+    PipelinedRequest(HttpTransport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) throws IOException {
+      add(gauge);
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) throws IOException {
+      add(counter);
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) throws IOException {
+      add(rate);
+    }
+
+    /**
+     * Hands a copy of the batch to the serializer stage, which writes its columns directly.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) throws IOException {
+      checkFailure();
+      if (batch.size() == 0) {
+        return;
+      }
+      putChunk();
+      put(batch.copy());
+      seriesCount += batch.size();
+    }
+
+    private void add(DatadogSeries<?> item) throws IOException {
+      checkFailure();
+      chunk[chunkSize++] = item;
+      seriesCount++;
+      if (chunkSize == CHUNK_SERIES) {
+        putChunk();
+      }
+    }
+
+    private void checkFailure() throws IOException {
+      if (failure != null) {
+        throw new IOException("Error serializing series", failure);
+      }
+    }
+
+    private void putChunk() {
+      if (chunkSize > 0) {
+        put(chunk);
+        chunk = new DatadogSeries<?>[CHUNK_SERIES];
+        chunkSize = 0;
+      }
+    }
+
+    private void put(Object item) {
+      if (!started) {
+        started = true;
+        Thread.ofVirtual().name("datadog-serializer").start(this::serialize);
+        Thread.ofVirtual().name("datadog-compressor").start(this::compress);
+      }
+      series.put(item);
+    }
+
+    @Override
+    public void send() throws Exception {
+      transport.deliver(payload());
+    }
+
+    /**
+     * Stop the stages, which drop the chunks still queued and give their buffers back.
+     */
+    @Override
+    public void abort() {
+      if (ended) {
+        return;
+      }
+      ended = true;
+      fail(new IOException("Request was aborted"));
+      chunk = null;
+      if (started) {
+        series.put(END);
+      }
+    }
+
+    /**
+     * Wait for the stages to finish the series added so far.
+     */
+    Payload payload() throws IOException {
+      if (failure != null) {
+        abort();
+        throw new IOException("Error serializing series", failure);
+      }
+      putChunk();
+      put(END);
+      ended = true;
+      try {
+        var result = payload.get();
+        if (transport.selfMetrics != null) {
+          transport.selfMetrics.recordSerialize(serializeNanos);
+        }
+        return result;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while serializing series", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Error serializing series", e.getCause());
+      }
+    }
+
+    private void fail(Throwable e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+
+    /**
+     * @return the next item, or END if none came within {@link #ABANDON_SECONDS}
+     */
+    private Object next(SpscRing<Object> ring) {
+      var item = ring.take(ABANDON_SECONDS, TimeUnit.SECONDS);
+      if (item == null) {
+        fail(new IOException("Request was neither sent nor aborted within " + ABANDON_SECONDS + " seconds"));
+        return END;
+      }
+      return item;
+    }
+
+    private void drain(SpscRing<Object> ring) {
+      while (next(ring) != END) {
+        // Dropped
+      }
+    }
+
+    private void serialize() {
+      // Pooled, so that the payload size feeds the transport's estimate of the next one.
+      var serializer = new JsonSerializer(transport.bufferPool);
+      var drained = false;
+      try {
+        serializer.startObject();
+        for (var item = next(series); item != END; item = next(series)) {
+          if (failure != null) {
+            continue;
+          }
+          var start = System.nanoTime();
+          if (item instanceof SeriesBatch batch) {
+            serializer.appendBatch(batch);
+          } else {
+            for (var next : (DatadogSeries<?>[]) item) {
+              if (next == null) {
+                break;
               }
-              return null;
+              append(serializer, next);
             }
+          }
+          json.put(serializer.takeChunk());
+          serializeNanos += System.nanoTime() - start;
+        }
+        drained = true;
+        if (failure == null) {
+          var start = System.nanoTime();
+          serializer.endObject();
+          json.put(serializer.takeChunk());
+          serializeNanos += System.nanoTime() - start;
+        }
+      } catch (Throwable e) {
+        fail(e);
+        if (!drained) {
+          drain(series);
+        }
+      } finally {
+        // Released first, so that the size is recorded by the time the payload is complete.
+        try {
+          serializer.reset();
+        } catch (IOException e) {
+          LOG.debug("Error releasing the serializer: {}", e.getMessage());
+        }
+        json.put(END);
+      }
+    }
+
+    private static void append(JsonSerializer serializer, DatadogSeries<?> item) throws IOException {
+      if (item instanceof DatadogCounter counter) {
+        serializer.appendCounter(counter);
+      } else if (item instanceof DatadogRate rate) {
+        serializer.appendRate(rate);
+      } else {
+        serializer.appendGauge((DatadogGauge) item);
+      }
+    }
+
+    private void compress() {
+      var deflater = transport.useCompression ? new Deflater() : null;
+      var drained = false;
+      try {
+        var expected = (int) Math.max(2048, transport.bufferPool.getAverageSize());
+        var body = deflater == null ? new ByteArrayOutputStream(expected) : null;
+        var deflated = deflater != null ? new ByteArrayOutputStream(Math.max(64, expected / 4)) : null;
+        var md5 = deflater != null ? DigestUtils.getMd5Digest() : null;
+        var buffer = deflater != null ? new byte[8192] : null;
+        var length = 0;
+        for (var item = next(json); item != END; item = next(json)) {
+          if (failure != null) {
+            continue;
+          }
+          var bytes = (byte[]) item;
+          length += bytes.length;
+          if (deflater == null) {
+            body.write(bytes, 0, bytes.length);
+            continue;
+          }
+          md5.update(bytes);
+          deflater.setInput(bytes);
+          while (!deflater.needsInput()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+          }
+        }
+        drained = true;
+        if (failure != null) {
+          payload.completeExceptionally(failure);
+        } else if (deflater == null) {
+          payload.complete(new Payload(body.toByteArray(), seriesCount));
+        } else {
+          deflater.finish();
+          while (!deflater.finished()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+          }
+          payload.complete(new Payload(length, seriesCount, deflated.toByteArray(), Hex.encodeHexString(md5.digest())));
+        }
+      } catch (Throwable e) {
+        fail(e);
+        payload.completeExceptionally(e);
+        if (!drained) {
+          drain(json);
+        }
+      } finally {
+        if (deflater != null) {
+          deflater.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits a report into {@link #getShards()} payloads by a hash of each series' metric, host
+   * and tags. A series therefore lands in the same shard on every report and in every process,
+   * and the series of a shard keep the order they were added in. Each shard is serialized as its
+   * series are added. At {@link #send()}, the shards are compressed and posted concurrently, with
+   * the transport's retries.
+   * <p/>
+   * The report counts once towards the circuit breaker, as a failure if any shard failed. While
+   * the breaker is half-open, one shard is posted first as the probe, and the others only if it
+   * got through.
+   */
+  static class ShardedRequest implements Transport.Request {
+    private final HttpTransport transport;
+    // Created with the first series of each shard.
+    private final HttpRequest[] shards;
+
+    ShardedRequest(HttpTransport transport) {
+      this.transport = transport;
+      this.shards = new HttpRequest[transport.shards];
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) throws IOException {
+      shard(shard(gauge, shards.length)).addGauge(gauge);
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) throws IOException {
+      shard(shard(counter, shards.length)).addCounter(counter);
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) throws IOException {
+      shard(shard(rate, shards.length)).addRate(rate);
+    }
+
+    /**
+     * Writes each row straight to its shard's body.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) throws IOException {
+      var host = Objects.hashCode(batch.getHost());
+      var tagSets = new int[batch.tagSetCount()];
+      for (var i = 0; i < tagSets.length; i++) {
+        tagSets[i] = Objects.hashCode(batch.tagSet(i));
+      }
+      for (var row = 0; row < batch.size(); row++) {
+        var shard = shard(batch.metric(row).hashCode(), host, tagSets[batch.tagSetId(row)], shards.length);
+        shard(shard).addRow(batch, row);
+      }
+    }
+
+    private HttpRequest shard(int index) throws IOException {
+      if (shards[index] == null) {
+        shards[index] = new HttpRequest(transport);
+      }
+      return shards[index];
+    }
 
-            private String getLogMessage(String headline, ClassicHttpResponse response) throws IOException, ParseException {
-              var sb = new StringBuilder();
-              sb.append(headline);
-              sb.append("\n");
-              sb.append("  Timing: ").append(elapsed).append(" ms\n");
-              sb.append("  Status: ").append(response.getCode()).append("\n");
+    /**
+     * Built from {@link String#hashCode()} and {@link List#hashCode()}, which are specified, so
+     * that the shard does not change between JVMs.
+     */
+    static int shard(DatadogSeries<?> series, int shardCount) {
+      return shard(series.getMetric().hashCode(), Objects.hashCode(series.getHost()), series.getTags().hashCode(),
+          shardCount);
+    }
+
+    private static int shard(int metricHash, int hostHash, int tagsHash, int shardCount) {
+      var hash = 31 * (31 * metricHash + hostHash) + tagsHash;
+      // Spread the bits, as similar names differ only in their low bits.
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      return Math.floorMod(hash, shardCount);
+    }
 
-              var content = EntityUtils.toString(response.getEntity(), "UTF-8");
-              sb.append("  Content: ").append(content);
-              return sb.toString();
+    /**
+     * Waits until every shard has been posted or dropped.
+     */
+    @Override
+    public void send() throws Exception {
+      var payloads = payloads();
+      try {
+        send(payloads);
+      } finally {
+        for (var payload : payloads) {
+          payload.release();
+        }
+      }
+    }
+
+    private void send(List<Payload> payloads) throws IOException {
+      if (payloads.isEmpty()) {
+        return;
+      }
+      var breaker = transport.circuitBreaker;
+      if (breaker != null && breaker.getState() == CircuitBreaker.State.HALF_OPEN) {
+        var probe = transport.send(payloads.getFirst());
+        if (probe != Delivery.SENT) {
+          for (var payload : payloads.subList(1, payloads.size())) {
+            transport.dropped(payload);
+          }
+          transport.record(probe);
+          return;
+        }
+        payloads = payloads.subList(1, payloads.size());
+        if (payloads.isEmpty()) {
+          transport.record(probe);
+          return;
+        }
+      }
+      transport.record(sendAll(payloads));
+    }
+
+    /**
+     * Post the payloads concurrently, the first one from the calling thread.
+     *
+     * @return the worst outcome
+     */
+    private Delivery sendAll(List<Payload> payloads) throws IOException {
+      var sends = new ArrayList<Future<Delivery>>(payloads.size() - 1);
+      for (var payload : payloads.subList(1, payloads.size())) {
+        // Held by the sending thread, which may still be posting if this one is interrupted.
+        payload.retain();
+        try {
+          sends.add(transport.shardSender.submit(() -> {
+            try {
+              return transport.send(payload);
+            } finally {
+              payload.release();
             }
+          }));
+        } catch (RejectedExecutionException e) {
+          payload.release();
+          throw e;
+        }
+      }
+      var delivery = transport.send(payloads.getFirst());
+      IOException failure = null;
+      for (var send : sends) {
+        try {
+          delivery = worse(delivery, send.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return worse(delivery, Delivery.INTERRUPTED);
+        } catch (ExecutionException e) {
+          delivery = Delivery.FAILED;
+          if (failure == null) {
+            failure = new IOException("Error sending a shard of series", e.getCause());
+          } else {
+            failure.addSuppressed(e.getCause());
+          }
+        }
+      }
+      if (failure != null) {
+        transport.record(delivery);
+        throw failure;
+      }
+      return delivery;
+    }
 
-          });
-        } else {
-          response.discardContent();
+    private static Delivery worse(Delivery a, Delivery b) {
+      return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    /**
+     * Finish serializing the shards that have series, in shard order.
+     */
+    List<Payload> payloads() throws IOException {
+      var payloads = new ArrayList<Payload>(shards.length);
+      for (var i = 0; i < shards.length; i++) {
+        if (shards[i] != null) {
+          var shard = shards[i];
+          shards[i] = null;
+          payloads.add(shard.payload());
         }
-      } catch (IOException e) {
-        LOG.warn("Failed to send metrics to Datadog: proxy: {}, error: {}", transport.proxy, e.getMessage());
       }
+      return payloads;
     }
 
-    private static InputStream deflated(String str) throws IOException {
-      if (str == null || str.isEmpty()) {
-        return new ByteArrayInputStream(new byte[0]);
+    @Override
+    public void abort() {
+      for (var i = 0; i < shards.length; i++) {
+        if (shards[i] != null) {
+          shards[i].abort();
+          shards[i] = null;
+        }
       }
-      var inputStream = new ByteArrayInputStream(str.getBytes(StandardCharsets.UTF_8));
-      return new DeflaterInputStream(inputStream) {
-        @Override
-        public void close() throws IOException {
-          if (LOG.isDebugEnabled()) {
-            var sb = new StringBuilder();
-            var bytesWritten = def.getBytesWritten();
-            var bytesRead = def.getBytesRead();
-            sb.append("POST body length compressed / uncompressed / compression ratio: ");
-            sb.append(bytesWritten);
-            sb.append(" / ");
-            sb.append(bytesRead);
-            sb.append(" / ");
-            sb.append(String.format( "%.2f", bytesRead / (double)bytesWritten));
-            LOG.debug(sb.toString());
+    }
+  }
+
+  /**
+   * A serialized report, ready to be posted to one or more intakes.
+   * <p/>
+   * The body may be a view of a pooled serializer buffer. It is posted, compressed and hashed in
+   * place, and handed back to the pool when the last holder of the payload releases it, so each
+   * destination or thread that posts the payload first {@link #retain()}s it.
+   */
+  static class Payload {
+    // Null when only the compressed body was kept, or once released.
+    private byte[] body;
+    private final int bodyLength;
+    private final int seriesCount;
+    private byte[] deflated;
+    private int deflatedLength;
+    private String md5Hex;
+    private Runnable release;
+    private int holds = 1;
+
+    Payload(byte[] body, int seriesCount) {
+      this(body, body.length, seriesCount, null);
+    }
+
+    /**
+     * @param body holds the payload in its first {@code bodyLength} bytes
+     * @param release gives the body back once the payload is released, or null
+     */
+    Payload(byte[] body, int bodyLength, int seriesCount, Runnable release) {
+      this.body = body;
+      this.bodyLength = bodyLength;
+      this.seriesCount = seriesCount;
+      this.release = release;
+    }
+
+    /**
+     * A payload compressed while it was serialized, of which only the compressed body is kept.
+     *
+     * @param md5Hex the digest of the uncompressed body
+     */
+    Payload(int bodyLength, int seriesCount, byte[] deflated, String md5Hex) {
+      this.body = null;
+      this.bodyLength = bodyLength;
+      this.seriesCount = seriesCount;
+      this.deflated = deflated;
+      this.deflatedLength = deflated.length;
+      this.md5Hex = md5Hex;
+    }
+
+    int getSeriesCount() {
+      return seriesCount;
+    }
+
+    synchronized void retain() {
+      holds++;
+    }
+
+    /**
+     * Give up a hold on the payload. The last one gives the body back.
+     */
+    void release() {
+      Runnable releaseBody = null;
+      synchronized (this) {
+        if (--holds == 0 && release != null) {
+          releaseBody = release;
+          release = null;
+          body = null;
+        }
+      }
+      if (releaseBody != null) {
+        releaseBody.run();
+      }
+    }
+
+    /**
+     * @return the compressed body, in its first {@link #deflatedLength()} bytes
+     */
+    synchronized byte[] deflated() {
+      if (deflated == null) {
+        deflate();
+      }
+      return deflated;
+    }
+
+    synchronized int deflatedLength() {
+      if (deflated == null) {
+        deflate();
+      }
+      return deflatedLength;
+    }
+
+    synchronized String md5Hex() {
+      if (md5Hex == null) {
+        var digest = DigestUtils.getMd5Digest();
+        digest.update(body, 0, bodyLength);
+        md5Hex = Hex.encodeHexString(digest.digest());
+      }
+      return md5Hex;
+    }
+
+    private void deflate() {
+      var deflater = new Deflater();
+      try {
+        deflater.setInput(body, 0, bodyLength);
+        deflater.finish();
+        var out = new byte[Math.max(64, bodyLength / 4)];
+        var length = 0;
+        while (!deflater.finished()) {
+          if (length == out.length) {
+            out = Arrays.copyOf(out, out.length * 2);
           }
-          super.close();
+          length += deflater.deflate(out, length, out.length - length);
         }
-      };
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("POST body length compressed / uncompressed / compression ratio: {} / {} / {}",
+              length, bodyLength, String.format("%.2f", bodyLength / (double) length));
+        }
+        deflated = out;
+        deflatedLength = length;
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * How a payload fared once its retries are over, from best to worst.
+   */
+  private enum Delivery {
+    SENT,
+    INTERRUPTED,
+    FAILED
+  }
+
+  /**
+   * The result of one POST.
+   *
+   * @param status the HTTP status, or 0 if no response was received
+   * @param retryAfterMillis the wait asked for by the intake, or -1
+   */
+  private record Outcome(int status, long retryAfterMillis) {
+    boolean isSuccess() {
+      return status > 0 && status < 400;
+    }
+
+    boolean isRetryable() {
+      return status == 0 || status == 429 || status >= 500;
     }
   }
 }
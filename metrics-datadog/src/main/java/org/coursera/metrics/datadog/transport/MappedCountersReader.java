@@ -0,0 +1,176 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.ALLOCATED_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.COUNTER;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.GAUGE;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.HEADER_BYTES;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.INTS;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.LABEL_LENGTH_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.LABEL_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.LONGS;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.MAGIC;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.RATE;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.SEQUENCE_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.SLOT_COUNT_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.SLOT_SIZE_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.TIMESTAMP_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.TYPE_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.VALUE_OFFSET;
+import static org.coursera.metrics.datadog.transport.MappedCountersTransport.VERSION;
+
+/**
+ * Reads the file written by a {@link MappedCountersTransport} and adds the series updated since
+ * the last read to a request of another transport.
+ * <p/>
+ * Labels are decoded once per slot. When the writing process restarts and replaces the file, the
+ * reader maps the new one on its next read. A slot that is being written is read again until its
+ * timestamp and value are from the same report; one that stays mid-write, e.g. because the writer
+ * died, is skipped until the next read.
+ */
+public class MappedCountersReader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedCountersReader.class);
+
+  private static final int MAX_READ_ATTEMPTS = 1000;
+
+  private final Path file;
+  private Object fileKey;
+  private MappedByteBuffer buffer;
+  private int slotSize;
+  private int decoded;
+  private Label[] labels;
+  private long[] forwarded;
+
+  public MappedCountersReader(Path file) {
+    this.file = file;
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Add every series whose timestamp moved since the last read to the request.
+   *
+   * @return the number of series added
+   */
+  public int read(Transport.Request request) throws IOException {
+    if (!map()) {
+      return 0;
+    }
+
+    var allocated = (int) INTS.getAcquire(buffer, ALLOCATED_OFFSET);
+    for (; decoded < allocated; decoded++) {
+      labels[decoded] = decode(decoded);
+    }
+
+    var added = 0;
+    for (var slot = 0; slot < allocated; slot++) {
+      var offset = HEADER_BYTES + slot * slotSize;
+      long timestamp = 0;
+      long value = 0;
+      var consistent = false;
+      for (var attempt = 0; attempt < MAX_READ_ATTEMPTS && !consistent; attempt++) {
+        var sequence = (long) LONGS.getAcquire(buffer, offset + SEQUENCE_OFFSET);
+        if ((sequence & 1) != 0) {
+          Thread.onSpinWait();
+          continue;
+        }
+        timestamp = (long) LONGS.getOpaque(buffer, offset + TIMESTAMP_OFFSET);
+        value = (long) LONGS.getOpaque(buffer, offset + VALUE_OFFSET);
+        VarHandle.loadLoadFence();
+        consistent = (long) LONGS.getOpaque(buffer, offset + SEQUENCE_OFFSET) == sequence;
+      }
+      if (!consistent || timestamp == forwarded[slot]) {
+        continue;
+      }
+      forwarded[slot] = timestamp;
+
+      // Labels hold metric names as the writer's request received them; they are not decoded again.
+      var label = labels[slot];
+      switch (label.type) {
+        case GAUGE -> request.addGauge(
+            new DatadogGauge(label.metric, Double.longBitsToDouble(value), timestamp, label.host, label.tags, true));
+        case COUNTER -> request.addCounter(new DatadogCounter(label.metric, value, timestamp, label.host, label.tags, true));
+        case RATE -> request.addRate(new DatadogRate(label.metric, value, timestamp, label.host, label.tags, true));
+        default -> {
+          continue;
+        }
+      }
+      added++;
+    }
+    return added;
+  }
+
+  /**
+   * Map the file if it is new or was replaced since the last read.
+   *
+   * @return whether a complete file is mapped
+   */
+  private boolean map() throws IOException {
+    Object key;
+    try {
+      key = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    } catch (NoSuchFileException e) {
+      return buffer != null;
+    }
+    if (buffer != null && Objects.equals(key, fileKey)) {
+      return true;
+    }
+
+    MappedByteBuffer mapped;
+    try (var channel = FileChannel.open(file)) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (mapped.capacity() < HEADER_BYTES
+        || (int) INTS.getAcquire(mapped, 0) != MAGIC
+        || (int) INTS.get(mapped, 4) != VERSION) {
+      LOG.warn("Ignoring {}, it is not a counters file of version {}", file, VERSION);
+      return false;
+    }
+    var slotCount = (int) INTS.get(mapped, SLOT_COUNT_OFFSET);
+    buffer = mapped;
+    fileKey = key;
+    slotSize = (int) INTS.get(mapped, SLOT_SIZE_OFFSET);
+    decoded = 0;
+    labels = new Label[slotCount];
+    forwarded = new long[slotCount];
+    Arrays.fill(forwarded, Long.MIN_VALUE);
+    LOG.info("Reading {} with {} slots of {} bytes", file, slotCount, slotSize);
+    return true;
+  }
+
+  private Label decode(int slot) {
+    var offset = HEADER_BYTES + slot * slotSize;
+    var bytes = new byte[(int) INTS.get(buffer, offset + LABEL_LENGTH_OFFSET)];
+    buffer.get(offset + LABEL_OFFSET, bytes);
+    var parts = new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+    return new Label(
+        (int) INTS.get(buffer, offset + TYPE_OFFSET),
+        parts[0],
+        parts[1].isEmpty() ? null : parts[1],
+        List.of(parts).subList(2, parts.length));
+  }
+
+  private record Label(int type, String metric, String host, List<String> tags) {
+  }
+}
@@ -0,0 +1,291 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes the current value of every series into a memory-mapped file, for a sidecar to read
+ * with {@link MappedCountersReader} and forward to Datadog. Reporting never serializes anything
+ * or touches a socket. Each report is a few ordered stores into memory that the operating
+ * system shares with the sidecar.
+ * <p/>
+ * The file is a 64 byte header followed by fixed-size slots, one per series, in the spirit of
+ * Aeron's counters:
+ * <pre>
+ * header: magic, version, slot size, slot count, allocated slots (all ints)
+ * slot:   type (int), label length (int), timestamp (long), value (long), sequence (long),
+ *         label (UTF-8)
+ * </pre>
+ * A series gets a slot the first time it is reported and keeps it. Its label (metric, host and
+ * tags, separated by newlines) is written once, and then published by a release store of the
+ * allocated count. Timestamp and value are updated under a seqlock: the slot's sequence is made
+ * odd, both are stored, and the sequence is made even again with a release store. A reader that
+ * sees the same even sequence before and after reading them has a timestamp and value from the
+ * same report, and otherwise reads again. Reporters sharing the transport may report the same
+ * series at once, so a writer takes the slot by moving its sequence from even to odd with a
+ * compare-and-set, and waits while another writer holds it.
+ * Gauges are stored as the bits of a double, counters and rates as longs. Series beyond the
+ * slot count are dropped.
+ * <p/>
+ * The file is built under a temporary name and moved into place, so a sidecar never sees it
+ * half-written. A process that restarts replaces the file instead of truncating the one the
+ * sidecar has mapped.
+ */
+public class MappedCountersTransport implements Transport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedCountersTransport.class);
+
+  static final int MAGIC = 0x44444d43;
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 64;
+  static final int SLOT_SIZE_OFFSET = 8;
+  static final int SLOT_COUNT_OFFSET = 12;
+  static final int ALLOCATED_OFFSET = 16;
+
+  static final int TYPE_OFFSET = 0;
+  static final int LABEL_LENGTH_OFFSET = 4;
+  static final int TIMESTAMP_OFFSET = 8;
+  static final int VALUE_OFFSET = 16;
+  static final int SEQUENCE_OFFSET = 24;
+  static final int LABEL_OFFSET = 32;
+
+  static final int GAUGE = 1;
+  static final int COUNTER = 2;
+  static final int RATE = 3;
+
+  static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final Path file;
+  private final int slotSize;
+  private final int slotCount;
+  private final SelfMetrics selfMetrics;
+  private final MappedByteBuffer buffer;
+  private final Map<SeriesKey, Integer> slots = new ConcurrentHashMap<>();
+  private int allocated;
+  private boolean warnedFull;
+
+  private MappedCountersTransport(Path file, int slotSize, int slotCount, SelfMetrics selfMetrics) throws IOException {
+    this.file = file;
+    this.slotSize = slotSize;
+    this.slotCount = slotCount;
+    this.selfMetrics = selfMetrics;
+
+    var directory = file.toAbsolutePath().getParent();
+    Files.createDirectories(directory);
+    var temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+    try (var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) slotSize * slotCount);
+    }
+    INTS.set(buffer, 4, VERSION);
+    INTS.set(buffer, SLOT_SIZE_OFFSET, slotSize);
+    INTS.set(buffer, SLOT_COUNT_OFFSET, slotCount);
+    INTS.setRelease(buffer, 0, MAGIC);
+    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    LOG.info("Created MappedCountersTransport at {} with {} slots of {} bytes", file, slotCount, slotSize);
+  }
+
+  public static class Builder {
+    Path file;
+    int slotSize = 256;
+    int slotCount = 4096;
+    SelfMetrics selfMetrics;
+
+    public Builder withFile(Path file) {
+      this.file = file;
+      return this;
+    }
+
+    /**
+     * Bytes per series, including the 32 byte slot header; the label gets the rest. A multiple
+     * of 64, so that slots do not share cache lines. Defaults to 256.
+     */
+    public Builder withSlotSize(int slotSize) {
+      if (slotSize < 64 || slotSize % 64 != 0) {
+        throw new IllegalArgumentException("slotSize must be a positive multiple of 64");
+      }
+      this.slotSize = slotSize;
+      return this;
+    }
+
+    /**
+     * The most series the file holds. Defaults to 4096.
+     */
+    public Builder withSlotCount(int slotCount) {
+      if (slotCount <= 0) {
+        throw new IllegalArgumentException("slotCount must be positive");
+      }
+      this.slotCount = slotCount;
+      return this;
+    }
+
+    /**
+     * Publish the number of series dropped because the file was full or their label too long.
+     */
+    public Builder withSelfMetrics(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
+    public MappedCountersTransport build() throws IOException {
+      if (file == null) {
+        throw new IllegalArgumentException("file must be defined");
+      }
+      return new MappedCountersTransport(file, slotSize, slotCount, selfMetrics);
+    }
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  @Override
+  public Request prepare() {
+    return new MappedRequest(this);
+  }
+
+  /**
+   * The mapping stays valid until the transport is garbage collected, and the file is left for
+   * the sidecar.
+   */
+  @Override
+  public void close() {
+  }
+
+  private void write(DatadogSeries<?> series, int type, long value) {
+    var slot = slotFor(series, type);
+    if (slot < 0) {
+      return;
+    }
+    var offset = HEADER_BYTES + slot * slotSize;
+    long sequence;
+    while (true) {
+      sequence = (long) LONGS.getAcquire(buffer, offset + SEQUENCE_OFFSET);
+      // The compare-and-set also orders the stores below after the odd sequence.
+      if ((sequence & 1) == 0
+          && LONGS.compareAndSet(buffer, offset + SEQUENCE_OFFSET, sequence, sequence + 1)) {
+        break;
+      }
+      Thread.onSpinWait();
+    }
+    LONGS.setOpaque(buffer, offset + VALUE_OFFSET, value);
+    LONGS.setOpaque(buffer, offset + TIMESTAMP_OFFSET, series.getPoints().getFirst().getFirst().longValue());
+    LONGS.setRelease(buffer, offset + SEQUENCE_OFFSET, sequence + 2);
+  }
+
+  private int slotFor(DatadogSeries<?> series, int type) {
+    var key = new SeriesKey(type, series.getMetric(), series.getHost(), series.getTags());
+    var slot = slots.get(key);
+    if (slot == null) {
+      slot = allocate(key);
+    }
+    return slot;
+  }
+
+  private synchronized int allocate(SeriesKey key) {
+    var slot = slots.get(key);
+    if (slot != null) {
+      return slot;
+    }
+    var label = label(key).getBytes(StandardCharsets.UTF_8);
+    if (label.length > slotSize - LABEL_OFFSET) {
+      LOG.warn("Dropping series {}, its label is longer than {} bytes", key.metric(), slotSize - LABEL_OFFSET);
+      dropped();
+      return -1;
+    }
+    if (allocated == slotCount) {
+      if (!warnedFull) {
+        LOG.warn("Counters file {} is full with {} series, dropping new series", file, slotCount);
+        warnedFull = true;
+      }
+      dropped();
+      return -1;
+    }
+
+    var offset = HEADER_BYTES + allocated * slotSize;
+    INTS.set(buffer, offset + TYPE_OFFSET, key.type());
+    INTS.set(buffer, offset + LABEL_LENGTH_OFFSET, label.length);
+    buffer.put(offset + LABEL_OFFSET, label);
+    slot = allocated++;
+    INTS.setRelease(buffer, ALLOCATED_OFFSET, allocated);
+    slots.put(key, slot);
+    return slot;
+  }
+
+  private void dropped() {
+    if (selfMetrics != null) {
+      selfMetrics.recordDropped(1);
+    }
+  }
+
+  static String label(SeriesKey key) {
+    var label = new StringBuilder(key.metric()).append('\n');
+    if (key.host() != null) {
+      label.append(key.host());
+    }
+    for (var tag : key.tags()) {
+      label.append('\n').append(tag);
+    }
+    return label.toString();
+  }
+
+  record SeriesKey(int type, String metric, String host, List<String> tags) {
+  }
+
+  public static class MappedRequest implements Transport.Request {
+    private final MappedCountersTransport transport;
+
+    MappedRequest(MappedCountersTransport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void addBatch(SeriesBatch batch) throws IOException {
+      Transport.Request.addEachSeries(batch, this);
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) {
+      var value = gauge.getPoints().getFirst().get(1).doubleValue();
+      transport.write(gauge, GAUGE, Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) {
+      transport.write(counter, COUNTER, counter.getPoints().getFirst().get(1).longValue());
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) {
+      transport.write(rate, RATE, rate.getPoints().getFirst().get(1).longValue());
+    }
+
+    /**
+     * Values are already in the file.
+     */
+    @Override
+    public void send() {
+    }
+  }
+}
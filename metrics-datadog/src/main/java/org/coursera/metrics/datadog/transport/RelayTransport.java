@@ -0,0 +1,294 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.serializer.JsonSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends series to a local relay, see {@code org.coursera.metrics.datadog.relay.DatadogRelay},
+ * which merges the reports of every JVM on the host and ships them to Datadog over a single
+ * HTTP connection.
+ * <p/>
+ * Each report is serialized to the same JSON body the HTTP transport posts, and sent either as
+ * UDP datagrams or as newline-delimited frames over a unix domain socket. A report that does not
+ * fit in one datagram, or in one frame of at most {@link #MAX_SOCKET_FRAME_BYTES}, is split into
+ * several, between series.
+ */
+public class RelayTransport implements Transport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RelayTransport.class);
+
+  /**
+   * The largest UDP payload over IPv4.
+   */
+  public static final int MAX_DATAGRAM_BYTES = 65507;
+
+  /**
+   * The largest frame sent over a unix domain socket, and the largest the relay accepts by
+   * default.
+   */
+  public static final int MAX_SOCKET_FRAME_BYTES = 1 << 20;
+
+  private final SocketAddress address;
+  private final boolean isUnixSocket;
+  private final int maxFrameSize;
+  private final SelfMetrics selfMetrics;
+  // A lock rather than the monitor, so that a cycle on a virtual thread does not pin its carrier
+  // while it writes.
+  private final ReentrantLock channelLock = new ReentrantLock();
+  private DatagramChannel datagramChannel;
+  private SocketChannel socketChannel;
+
+  private RelayTransport(SocketAddress address, int maxFrameSize, SelfMetrics selfMetrics) {
+    this.address = address;
+    this.isUnixSocket = address instanceof UnixDomainSocketAddress;
+    this.maxFrameSize = maxFrameSize;
+    this.selfMetrics = selfMetrics;
+    LOG.info("Created RelayTransport to {}", address);
+  }
+
+  public static class Builder {
+    String host = "127.0.0.1";
+    int port = 8126;
+    Path socket;
+    int maxFrameSize = MAX_DATAGRAM_BYTES;
+    SelfMetrics selfMetrics;
+
+    /**
+     * Send UDP datagrams to the relay at this address.
+     */
+    public Builder withAddress(String host, int port) {
+      this.host = host;
+      this.port = port;
+      this.socket = null;
+      return this;
+    }
+
+    /**
+     * Send to the relay over this unix domain socket instead of UDP.
+     */
+    public Builder withSocket(Path socket) {
+      this.socket = socket;
+      return this;
+    }
+
+    /**
+     * The largest datagram to send over UDP. Defaults to {@link #MAX_DATAGRAM_BYTES}.
+     */
+    public Builder withMaxFrameSize(int bytes) {
+      if (bytes <= 0 || bytes > MAX_DATAGRAM_BYTES) {
+        throw new IllegalArgumentException("maxFrameSize must be between 1 and " + MAX_DATAGRAM_BYTES);
+      }
+      this.maxFrameSize = bytes;
+      return this;
+    }
+
+    /**
+     * Publish serialization time, and series dropped because the relay could not be reached.
+     */
+    public Builder withSelfMetrics(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
+    public RelayTransport build() {
+      var address = socket != null
+          ? UnixDomainSocketAddress.of(socket)
+          : new InetSocketAddress(host, port);
+      return new RelayTransport(address, maxFrameSize, selfMetrics);
+    }
+  }
+
+  public SocketAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public Request prepare() throws IOException {
+    return new RelayRequest(this);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channelLock.lock();
+    try {
+      if (datagramChannel != null) {
+        datagramChannel.close();
+      }
+      if (socketChannel != null) {
+        socketChannel.close();
+      }
+    } finally {
+      channelLock.unlock();
+    }
+  }
+
+  /**
+   * Serialize series into frames, packing as many whole series into each frame as fit in a
+   * datagram.
+   */
+  List<byte[]> frames(List<DatadogSeries<?>> series) throws IOException {
+    // Serialize the report once, taking each series' JSON on its own so that frames can be cut
+    // on series boundaries without serializing again.
+    var serializer = new JsonSerializer();
+    serializer.startObject();
+    var head = serializer.takeChunk();
+    var items = new ArrayList<byte[]>(series.size());
+    for (var item : series) {
+      if (item instanceof DatadogCounter counter) {
+        serializer.appendCounter(counter);
+      } else if (item instanceof DatadogRate rate) {
+        serializer.appendRate(rate);
+      } else {
+        serializer.appendGauge((DatadogGauge) item);
+      }
+      var json = serializer.takeChunk();
+      // The generator writes the separator before every series but the first.
+      items.add(json.length > 0 && json[0] == ',' ? Arrays.copyOfRange(json, 1, json.length) : json);
+    }
+    serializer.endObject();
+    var tail = serializer.takeChunk();
+
+    var frames = new ArrayList<byte[]>();
+    var frame = new ByteArrayOutputStream();
+    var frameSize = isUnixSocket ? MAX_SOCKET_FRAME_BYTES : maxFrameSize;
+    var limit = frameSize - head.length - tail.length;
+    for (var i = 0; i < items.size(); i++) {
+      var item = items.get(i);
+      if (item.length > limit) {
+        LOG.error("Dropping series {} that does not fit in a {} byte frame", series.get(i).getMetric(), frameSize);
+        if (selfMetrics != null) {
+          selfMetrics.recordDropped(1);
+        }
+        continue;
+      }
+      if (frame.size() > 0 && (long) frame.size() + 1 + item.length > limit) {
+        frames.add(frame(head, frame, tail));
+        frame.reset();
+      }
+      if (frame.size() > 0) {
+        frame.write(',');
+      }
+      frame.write(item);
+    }
+    if (frame.size() > 0) {
+      frames.add(frame(head, frame, tail));
+    }
+    return frames;
+  }
+
+  private static byte[] frame(byte[] head, ByteArrayOutputStream series, byte[] tail) {
+    var frame = new byte[head.length + series.size() + tail.length];
+    System.arraycopy(head, 0, frame, 0, head.length);
+    System.arraycopy(series.toByteArray(), 0, frame, head.length, series.size());
+    System.arraycopy(tail, 0, frame, head.length + series.size(), tail.length);
+    return frame;
+  }
+
+  private void write(byte[] frame) throws IOException {
+    channelLock.lock();
+    try {
+      if (!isUnixSocket) {
+        if (datagramChannel == null) {
+          datagramChannel = DatagramChannel.open();
+        }
+        datagramChannel.send(ByteBuffer.wrap(frame), address);
+        return;
+      }
+
+      try {
+        if (socketChannel == null) {
+          socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+          socketChannel.connect(address);
+        }
+        var buffer = ByteBuffer.allocate(frame.length + 1).put(frame).put((byte) '\n').flip();
+        while (buffer.hasRemaining()) {
+          socketChannel.write(buffer);
+        }
+      } catch (IOException e) {
+        // Reconnect on the next report, e.g. after the relay restarted.
+        if (socketChannel != null) {
+          socketChannel.close();
+          socketChannel = null;
+        }
+        throw e;
+      }
+    } finally {
+      channelLock.unlock();
+    }
+  }
+
+  public static class RelayRequest implements Transport.Request {
+    private final RelayTransport transport;
+    private final List<DatadogSeries<?>> series = new ArrayList<>();
+
+    RelayRequest(RelayTransport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void addBatch(SeriesBatch batch) {
+      for (var row = 0; row < batch.size(); row++) {
+        series.add(batch.toSeries(row));
+      }
+    }
+
+    @Override
+    public void addGauge(DatadogGauge gauge) {
+      series.add(gauge);
+    }
+
+    @Override
+    public void addCounter(DatadogCounter counter) {
+      series.add(counter);
+    }
+
+    @Override
+    public void addRate(DatadogRate rate) {
+      series.add(rate);
+    }
+
+    @Override
+    public void send() throws Exception {
+      if (series.isEmpty()) {
+        return;
+      }
+      var start = System.nanoTime();
+      var frames = transport.frames(series);
+      if (transport.selfMetrics != null) {
+        transport.selfMetrics.recordSerialize(System.nanoTime() - start);
+      }
+      try {
+        for (var frame : frames) {
+          transport.write(frame);
+        }
+      } catch (IOException e) {
+        if (transport.selfMetrics != null) {
+          transport.selfMetrics.recordDropped(series.size());
+        }
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.coursera.metrics.datadog.transport;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue between exactly one producer thread and one consumer thread, without locks.
+ * Each side owns one index and publishes it with a release store. A side that has to wait spins
+ * briefly, then yields, then parks for short intervals.
+ */
+final class SpscRing<E> {
+
+  private static final VarHandle HEAD;
+  private static final VarHandle TAIL;
+  private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  static {
+    try {
+      var lookup = MethodHandles.lookup();
+      HEAD = lookup.findVarHandle(SpscRing.class, "head", long.class);
+      TAIL = lookup.findVarHandle(SpscRing.class, "tail", long.class);
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final Object[] items;
+  private final int mask;
+  // The next slot to take, written only by the consumer.
+  private long head;
+  // The next slot to fill, written only by the producer.
+  private long tail;
+
+  /**
+   * @param capacity a power of two
+   */
+  SpscRing(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two");
+    }
+    this.items = new Object[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * @return false if the ring is full
+   */
+  boolean offer(E item) {
+    var t = tail;
+    if (t - (long) HEAD.getAcquire(this) == items.length) {
+      return false;
+    }
+    items[(int) t & mask] = item;
+    TAIL.setRelease(this, t + 1);
+    return true;
+  }
+
+  /**
+   * @return the oldest item, or null if the ring is empty
+   */
+  @SuppressWarnings("unchecked")
+  E poll() {
+    var h = head;
+    if (h == (long) TAIL.getAcquire(this)) {
+      return null;
+    }
+    var index = (int) h & mask;
+    var item = (E) items[index];
+    items[index] = null;
+    HEAD.setRelease(this, h + 1);
+    return item;
+  }
+
+  void put(E item) {
+    for (var attempt = 0; !offer(item); attempt++) {
+      idle(attempt);
+    }
+  }
+
+  /**
+   * @return the oldest item, or null if none arrived within the timeout
+   */
+  E take(long timeout, TimeUnit unit) {
+    var deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (var attempt = 0; ; attempt++) {
+      var item = poll();
+      if (item != null) {
+        return item;
+      }
+      if (attempt % 1024 == 0 && System.nanoTime() > deadline) {
+        return null;
+      }
+      idle(attempt);
+    }
+  }
+
+  private static void idle(int attempt) {
+    if (attempt < 64) {
+      Thread.onSpinWait();
+    } else if (attempt < 128) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(PARK_NANOS);
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.coursera.metrics.datadog.transport;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -17,31 +18,81 @@ public interface Transport extends Closeable {
    */
   Request prepare() throws IOException;
 
+  /**
+   * Whether sending is paused, e.g. because the intake keeps failing. The reporter skips a
+   * report, without reading the registry or serializing anything, while it is.
+   */
+  default boolean isPaused() {
+    return false;
+  }
+
   /**
    * A request for batching of metrics to be pushed to datadog.
    * The call order is expected to be:
-   *    one or more of addGauge, addCounter -> send()
+   *    one or more of addBatch, addGauge, addCounter, addRate -> send()
+   * or, when the report fails before it is sent, abort() instead of send().
+   * <p/>
+   * The reporter adds each report as one {@link SeriesBatch}. Every implementation writes the
+   * metric names and tags of a batch as given: tags encoded in a name, like
+   * {@code name[tag:value]}, are decoded when the series is created, not by the transport.
    */
   interface Request {
 
     /**
-     * Add a gauge
+     * Add every row of a batch
      */
-    void addGauge(DatadogGauge gauge) throws IOException;
+    void addBatch(SeriesBatch batch) throws IOException;
 
     /**
-     * Add a counter to the request
+     * Add a gauge. Requests with a cheaper path for a single series override this; by default
+     * it is added as a batch of one.
      */
-    void addCounter(DatadogCounter counter) throws IOException;
+    default void addGauge(DatadogGauge gauge) throws IOException {
+      addBatch(SeriesBatch.of(gauge));
+    }
 
     /**
      * Add a counter to the request
      */
-    void addRate(DatadogRate rate) throws IOException;
+    default void addCounter(DatadogCounter counter) throws IOException {
+      addBatch(SeriesBatch.of(counter));
+    }
+
+    /**
+     * Add a rate to the request
+     */
+    default void addRate(DatadogRate rate) throws IOException {
+      addBatch(SeriesBatch.of(rate));
+    }
 
     /**
      * Send the request to datadog
      */
     void send() throws Exception;
+
+    /**
+     * Give up a request that will not be sent, e.g. because collecting the report failed, and
+     * release what it holds. Also called after a failed {@link #send()}.
+     */
+    default void abort() {
+    }
+
+    /**
+     * Add every row of a batch to a request as a series, for requests that handle series one by
+     * one. The request must override the per-series methods, which otherwise call back into
+     * {@link #addBatch(SeriesBatch)}.
+     */
+    static void addEachSeries(SeriesBatch batch, Request request) throws IOException {
+      for (var row = 0; row < batch.size(); row++) {
+        var series = batch.toSeries(row);
+        if (series instanceof DatadogCounter counter) {
+          request.addCounter(counter);
+        } else if (series instanceof DatadogRate rate) {
+          request.addRate(rate);
+        } else {
+          request.addGauge((DatadogGauge) series);
+        }
+      }
+    }
   }
 }
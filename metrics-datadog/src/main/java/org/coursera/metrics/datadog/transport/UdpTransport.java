@@ -1,18 +1,26 @@
 package org.coursera.metrics.datadog.transport;
 
+import com.timgroup.statsd.NoOpStatsDClient;
+import com.timgroup.statsd.NonBlockingStatsDClient;
 import com.timgroup.statsd.NonBlockingStatsDClientBuilder;
 import com.timgroup.statsd.StatsDClient;
+import org.coursera.metrics.datadog.SelfMetrics;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.SocketAddress;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 /**
  * Uses dogstatsd UDP protocol to push metrics to datadog. Note that datadog doesn't support
@@ -21,33 +29,139 @@ import java.util.concurrent.Callable;
  * Also dogstatsd UDP doesn't support batching of metrics, so it pushes metrics as it receives
  * rather than batching.
  *
+ * <p/>
+ * A statsd host of the form {@code unix:///path/to/dsd.socket} sends to a local agent over a
+ * unix domain socket instead, see {@link Builder#withUnixSocketType(UnixSocketType)}.
+ *
  * @see <a href="http://docs.datadoghq.com/guides/dogstatsd">dogstatsd</a>
  */
 public class UdpTransport implements Transport {
 
   private static final Logger LOG = LoggerFactory.getLogger(UdpTransport.class);
-  private final StatsDClient statsd;
-  private final Map<String, Long> lastSeenCounters = new HashMap<>();
 
-  private UdpTransport(String prefix, String statsdHost, int port, boolean isRetryingLookup, String[] globalTags) {
-    var socketAddressCallable = isRetryingLookup
+  private static final Pattern UNIX_SOCKET = Pattern.compile("unix(gram|stream)?://(.+)");
+
+  // The client pools this many packet buffers by default; with larger packets the pool shrinks
+  // so that it takes about as much memory as with the default 8 KB ones.
+  private static final int DEFAULT_BUFFER_POOL_BYTES = 512 * 8192;
+  private static final int MIN_BUFFER_POOL_SIZE = 16;
+
+  /**
+   * How to talk to an agent listening on a unix domain socket.
+   */
+  public enum UnixSocketType {
+    /**
+     * One datagram per packet. A packet the socket cannot take is dropped.
+     */
+    DATAGRAM("unixgram"),
+    /**
+     * Length-prefixed frames over a connected socket.
+     */
+    STREAM("unixstream");
+
+    private final String scheme;
+
+    UnixSocketType(String scheme) {
+      this.scheme = scheme;
+    }
+  }
+
+  // How long a client replaced after an address change keeps draining before it is stopped.
+  private static final long CLIENT_DRAIN_MILLIS = 5000;
+
+  private volatile StatsDClient statsd;
+  private final CachingAddressResolver addressResolver;
+  private final Supplier<StatsDClient> clientFactory;
+  private final DogstatsdLineCache lineCache;
+  // Shared by every request, which may be sent from concurrent report cycles.
+  private final Map<String, Long> lastSeenCounters = new ConcurrentHashMap<>();
+
+  private UdpTransport(String prefix, String statsdHost, int port, boolean isRetryingLookup, String[] globalTags,
+                       SelfMetrics selfMetrics, CachingAddressResolver addressResolver,
+                       UnixSocketType unixSocketType, int maxPacketSize, int socketBufferSize,
+                       boolean useLineCache) {
+    this.addressResolver = addressResolver;
+    var unixSocketUrl = unixSocketUrl(statsdHost, unixSocketType);
+    var socketAddressCallable = unixSocketUrl != null
+            ? null
+            : addressResolver != null
+            ? addressResolver.asLookup()
+            : isRetryingLookup
             ? volatileAddressResolver(statsdHost, port)
             : staticAddressResolver(statsdHost, port);
 
-    statsd = new NonBlockingStatsDClientBuilder()
-            .prefix(prefix)
-            .queueSize(Integer.MAX_VALUE)
-            .constantTags(globalTags)
-            .errorHandler(e ->
-              LOG.error("statsdHost: {}, port: {}, isRetryingLookup {}, errorMessage: {}", statsdHost, port, isRetryingLookup, e.getMessage())
-            )
-            .addressLookup(socketAddressCallable)
-            .build();
+    clientFactory = () -> {
+      var builder = new InstrumentedStatsDClientBuilder()
+              .prefix(prefix)
+              .queueSize(Integer.MAX_VALUE)
+              .constantTags(globalTags)
+              .errorHandler(e -> {
+                if (selfMetrics != null) {
+                  selfMetrics.recordUdpError();
+                }
+                LOG.error("statsdHost: {}, port: {}, isRetryingLookup {}, errorMessage: {}", statsdHost, port, isRetryingLookup, e.getMessage());
+              });
+      if (unixSocketUrl != null) {
+        builder.address(unixSocketUrl);
+      } else {
+        builder.addressLookup(socketAddressCallable);
+      }
+      if (maxPacketSize > 0) {
+        builder.maxPacketSizeBytes(maxPacketSize)
+            .bufferPoolSize(Math.max(MIN_BUFFER_POOL_SIZE, DEFAULT_BUFFER_POOL_BYTES / maxPacketSize));
+      }
+      if (socketBufferSize > 0) {
+        builder.socketBufferSize(socketBufferSize);
+      }
+      return builder.build();
+    };
+
+    if (useLineCache && unixSocketUrl != null) {
+      LOG.warn("The dogstatsd line cache only supports UDP, using the dogstatsd client for {}", statsdHost);
+      useLineCache = false;
+    }
+    if (useLineCache) {
+      try {
+        lineCache = new DogstatsdLineCache(prefix, globalTags, socketAddressCallable,
+            maxPacketSize > 0 ? maxPacketSize : NonBlockingStatsDClient.DEFAULT_UDP_MAX_PACKET_SIZE_BYTES,
+            socketBufferSize, selfMetrics);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      statsd = new NoOpStatsDClient();
+    } else if (addressResolver == null) {
+      lineCache = null;
+      statsd = clientFactory.get();
+    } else {
+      lineCache = null;
+      // The agent may not be resolvable yet; drop metrics until it is rather than failing.
+      statsd = addressResolver.getAddress() != null ? clientFactory.get() : new NoOpStatsDClient();
+      addressResolver.onChange(address -> replaceClient());
+    }
+    if (selfMetrics != null) {
+      selfMetrics.watchUdpQueue(() -> statsd instanceof InstrumentedStatsDClient client ? client.getQueueDepth() : 0);
+    }
     LOG.info("Created UdpTransport {} with statsdHost: {}, port: {}, isRetryingLookup: {}", statsd, statsdHost, port, isRetryingLookup);
   }
 
+  /**
+   * The dogstatsd client resolves its address once, so a moved agent gets a new client. The old
+   * one is stopped once requests that already hold it are likely done.
+   */
+  private void replaceClient() {
+    var previous = statsd;
+    statsd = clientFactory.get();
+    addressResolver.later(previous::stop, CLIENT_DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
   @Override
   public void close() throws IOException {
+    if (addressResolver != null) {
+      addressResolver.close();
+    }
+    if (lineCache != null) {
+      lineCache.close();
+    }
     statsd.stop();
   }
 
@@ -56,6 +170,12 @@ public class UdpTransport implements Transport {
     String statsdHost = "localhost";
     int port = 8125;
     boolean isLookupRetrying = false;
+    long addressRefreshMillis = 0;
+    UnixSocketType unixSocketType;
+    int maxPacketSize = 0;
+    int socketBufferSize = 0;
+    boolean useLineCache = false;
+    SelfMetrics selfMetrics;
 
     public Builder withPrefix(String prefix) {
       this.prefix = prefix;
@@ -77,13 +197,89 @@ public class UdpTransport implements Transport {
       return this;
     }
 
+    /**
+     * Resolve the statsd host in the background every {@code ttl} instead of on the sending
+     * thread, and switch to the new address when it changes. Takes precedence over
+     * {@link #withRetryingLookup(boolean)}, and does not apply to unix sockets.
+     */
+    public Builder withAddressRefresh(long ttl, TimeUnit unit) {
+      if (ttl < 0) {
+        throw new IllegalArgumentException("ttl must not be negative");
+      }
+      this.addressRefreshMillis = unit.toMillis(ttl);
+      return this;
+    }
+
+    /**
+     * How to connect when the statsd host is a {@code unix://} path. Defaults to
+     * {@link UnixSocketType#DATAGRAM}, or to the type named by a {@code unixgram://} or
+     * {@code unixstream://} host.
+     */
+    public Builder withUnixSocketType(UnixSocketType unixSocketType) {
+      this.unixSocketType = unixSocketType;
+      return this;
+    }
+
+    /**
+     * The largest packet, or stream frame, the client writes; metrics are packed into packets up
+     * to this size. Defaults to 1432 bytes for UDP and 8 KB for unix sockets. A local agent over
+     * a unix socket accepts much larger ones, e.g. 64 KB, which packs many more metrics into each
+     * write; the agent's {@code dogstatsd_buffer_size} must be at least as large.
+     */
+    public Builder withMaxPacketSize(int bytes) {
+      if (bytes < 0) {
+        throw new IllegalArgumentException("maxPacketSize must not be negative");
+      }
+      this.maxPacketSize = bytes;
+      return this;
+    }
+
+    /**
+     * The send buffer size of the socket. A unix datagram socket needs room for at least one
+     * packet of {@link #withMaxPacketSize(int)}. Defaults to the operating system's default.
+     */
+    public Builder withSocketBufferSize(int bytes) {
+      if (bytes < 0) {
+        throw new IllegalArgumentException("socketBufferSize must not be negative");
+      }
+      this.socketBufferSize = bytes;
+      return this;
+    }
+
+    /**
+     * Write dogstatsd lines to the socket directly instead of through the dogstatsd client,
+     * encoding each series' name and tags once and only formatting its value on every report.
+     * Only applies to UDP.
+     */
+    public Builder withLineCache(boolean useLineCache) {
+      this.useLineCache = useLineCache;
+      return this;
+    }
+
+    /**
+     * Publish the dogstatsd client's queue depth and error count.
+     */
+    public Builder withSelfMetrics(SelfMetrics selfMetrics) {
+      this.selfMetrics = selfMetrics;
+      return this;
+    }
+
     public UdpTransport build() {
-      return new UdpTransport(prefix, statsdHost, port, isLookupRetrying, new String[0]);
+      CachingAddressResolver addressResolver = null;
+      if (addressRefreshMillis > 0 && !isUnixSocket(statsdHost)) {
+        addressResolver = new CachingAddressResolver(statsdHost, port, addressRefreshMillis,
+            TimeUnit.MILLISECONDS, selfMetrics);
+      }
+      return new UdpTransport(prefix, statsdHost, port, isLookupRetrying, new String[0], selfMetrics,
+          addressResolver, unixSocketType, maxPacketSize, socketBufferSize, useLineCache);
     }
   }
 
   @Override
   public Request prepare() throws IOException {
+    if (lineCache != null) {
+      return lineCache.newRequest();
+    }
     return new DogstatsdRequest(statsd, lastSeenCounters);
   }
 
@@ -105,8 +301,7 @@ public class UdpTransport implements Transport {
           LOG.debug("Gauge {} has more than one data point, will pick the first point only", gauge.getMetric());
       }
       var value = gauge.getPoints().getFirst().get(1).doubleValue();
-      var tags = gauge.getTags().toArray(new String[0]);
-      statsdClient.gauge(gauge.getMetric(), value, tags);
+      statsdClient.gauge(gauge.getMetric(), value, gauge.getTags().toArray(new String[0]));
     }
 
     /**
@@ -119,30 +314,59 @@ public class UdpTransport implements Transport {
       }
       var value = counter.getPoints().getFirst().get(1).longValue();
       var tags = counter.getTags().toArray(new String[0]);
-      var sb = new StringBuilder();
-      for (var i = tags.length - 1; i >= 0; i--) {
-        sb.append(tags[i]);
-        if (i > 0) {
-          sb.append(",");
+      count(counter.getMetric(), value, tags, seenTags(tags));
+    }
+
+    /**
+     * Converts each tag set of the batch to the client's tag array once, instead of once per
+     * series. Rates are skipped, like {@link #addRate(DatadogRate)} does.
+     */
+    @Override
+    public void addBatch(SeriesBatch batch) {
+      var tagArrays = new String[batch.tagSetCount()][];
+      var seenTags = new String[batch.tagSetCount()];
+      for (var row = 0; row < batch.size(); row++) {
+        var tagSetId = batch.tagSetId(row);
+        if (tagArrays[tagSetId] == null) {
+          tagArrays[tagSetId] = batch.tagSet(tagSetId).toArray(new String[0]);
+          seenTags[tagSetId] = seenTags(tagArrays[tagSetId]);
+        }
+        switch (batch.type(row)) {
+          case SeriesBatch.GAUGE -> statsdClient.gauge(batch.metric(row), batch.value(row), tagArrays[tagSetId]);
+          case SeriesBatch.COUNTER -> count(batch.metric(row), (long) batch.value(row), tagArrays[tagSetId], seenTags[tagSetId]);
+          default -> {
+          }
         }
       }
+    }
 
-      var metric = counter.getMetric();
-      var finalMetricsSeenName = metric + ":" + sb;
+    private void count(String metric, long value, String[] tags, String seenTags) {
+      var finalMetricsSeenName = metric + ":" + seenTags;
       var finalValue = value;
-      if (lastSeenCounters.containsKey(finalMetricsSeenName)) {
+      // Store the last value we saw so that the next addCounter call can make
+      // the proper relative value
+      var lastSeen = lastSeenCounters.put(finalMetricsSeenName, value);
+      if (lastSeen != null) {
         // If we've seen this counter before then calculate the difference
         // by subtracting the new value from the old. StatsD expects a relative
         // counter, not an absolute!
-        finalValue = Math.max(0, value - lastSeenCounters.get(finalMetricsSeenName));
+        finalValue = Math.max(0, value - lastSeen);
       }
-      // Store the last value we saw so that the next addCounter call can make
-      // the proper relative value
-      lastSeenCounters.put(finalMetricsSeenName, value);
 
       statsdClient.count(metric, finalValue, tags);
     }
 
+    private static String seenTags(String[] tags) {
+      var sb = new StringBuilder();
+      for (var i = tags.length - 1; i >= 0; i--) {
+        sb.append(tags[i]);
+        if (i > 0) {
+          sb.append(",");
+        }
+      }
+      return sb.toString();
+    }
+
     @Override
     public void addRate(DatadogRate rate) throws IOException {
 
@@ -156,6 +380,46 @@ public class UdpTransport implements Transport {
     }
   }
 
+  /**
+   * Builds a client whose queue of packets waiting to be written can be observed.
+   */
+  private static class InstrumentedStatsDClientBuilder extends NonBlockingStatsDClientBuilder {
+    @Override
+    public NonBlockingStatsDClient build() {
+      return new InstrumentedStatsDClient(resolve());
+    }
+  }
+
+  private static class InstrumentedStatsDClient extends NonBlockingStatsDClient {
+    InstrumentedStatsDClient(NonBlockingStatsDClientBuilder builder) {
+      super(builder);
+    }
+
+    int getQueueDepth() {
+      return statsDProcessor.getOutboundQueue().size();
+    }
+  }
+
+  /**
+   * @return true if {@code statsdHost} is a {@code unix://}, {@code unixgram://} or
+   * {@code unixstream://} socket path
+   */
+  public static boolean isUnixSocket(String statsdHost) {
+    return UNIX_SOCKET.matcher(statsdHost).matches();
+  }
+
+  // Visible for testing.
+  static String unixSocketUrl(String statsdHost, UnixSocketType unixSocketType) {
+    var matcher = UNIX_SOCKET.matcher(statsdHost);
+    if (!matcher.matches()) {
+      return null;
+    }
+    if (unixSocketType == null) {
+      unixSocketType = "stream".equals(matcher.group(1)) ? UnixSocketType.STREAM : UnixSocketType.DATAGRAM;
+    }
+    return unixSocketType.scheme + "://" + matcher.group(2);
+  }
+
   // Visible for testing.
   static Callable<SocketAddress> staticAddressResolver(final String host, final int port) {
     try {
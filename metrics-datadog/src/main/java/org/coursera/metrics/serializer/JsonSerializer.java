@@ -2,33 +2,53 @@ package org.coursera.metrics.serializer;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.model.DatadogRate;
 import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
  * Serialize datadog time series object into json
+ * <p/>
+ * Series are streamed to the generator field by field, so that a {@link SeriesBatch} is written
+ * straight from its columns. With a {@link SerializerBufferPool}, the output buffer is taken from
+ * the pool on {@link #startObject()} and returned to it on {@link #reset()}.
  *
  * @see <a href="http://docs.datadoghq.com/api/">API docs</a>
  */
 public class JsonSerializer implements Serializer {
   private static final JsonFactory JSON_FACTORY = new JsonFactory();
-  private static final ObjectMapper MAPPER = new ObjectMapper(JSON_FACTORY);
 
+  // Intake types of the batch types, indexed by SeriesBatch.GAUGE, COUNTER and RATE.
+  private static final int[] BATCH_TYPES = {
+      MetricType.from("gauge"), MetricType.from("counter"), MetricType.from("rate")};
+
+  private final SerializerBufferPool bufferPool;
   private JsonGenerator jsonOut;
   private ByteArrayOutputStream outputStream;
+  // Bytes handed out by takeChunk() since startObject().
+  private long taken;
+
+  public JsonSerializer() {
+    this(null);
+  }
+
+  public JsonSerializer(SerializerBufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
 
   @Override
   public void startObject() throws IOException {
-    outputStream = new ByteArrayOutputStream(2048);
+    outputStream = bufferPool != null ? bufferPool.acquire() : new SerializerBufferPool.Buffer(2048);
+    taken = 0;
     jsonOut = JSON_FACTORY.createGenerator(outputStream);
     jsonOut.writeStartObject();
     jsonOut.writeArrayFieldStart("series");
@@ -36,66 +56,146 @@ public class JsonSerializer implements Serializer {
 
   @Override
   public void appendGauge(DatadogGauge gauge) throws IOException {
-    MAPPER.writeValue(jsonOut, new MetricSeries(gauge));
+    appendSeries(gauge);
   }
 
   @Override
   public void appendCounter(DatadogCounter counter) throws IOException {
-    MAPPER.writeValue(jsonOut, new MetricSeries(counter));
+    appendSeries(counter);
   }
 
   @Override
   public void appendRate(DatadogRate rate) throws IOException {
-    MAPPER.writeValue(jsonOut, new MetricSeries(rate));
+    appendSeries(rate);
   }
 
-  private record MetricSeries(String metric, List<MetricPoint> points, List<String> tags, int type, List<MetricResource> resources) {
-    MetricSeries(DatadogSeries<?> datadogSeries) {
-      this(datadogSeries.getMetric(),
-              datadogSeries.getPoints().stream()
-                      .map(p -> new MetricPoint(p.getFirst().longValue(), p.getLast().doubleValue())).toList(),
-              datadogSeries.getTags(),
-              MetricType.from(datadogSeries),
-              List.of(new MetricResource(datadogSeries.getHost(), "host")));
+  @Override
+  public void appendBatch(SeriesBatch batch) throws IOException {
+    for (var row = 0; row < batch.size(); row++) {
+      appendRow(batch, row);
     }
+  }
 
-    private enum MetricType {
-      UNSPECIFIED(0),
-      COUNT(1),
-      RATE(2),
-      GAUGE(3);
+  @Override
+  public void appendRow(SeriesBatch batch, int row) throws IOException {
+    startSeries(batch.metric(row));
+    writePoint(batch.timestamp(row), batch.value(row));
+    endSeries(batch.tags(row), BATCH_TYPES[batch.type(row)], batch.getHost());
+  }
 
-      final int value;
+  private void appendSeries(DatadogSeries<?> series) throws IOException {
+    startSeries(series.getMetric());
+    for (var point : series.getPoints()) {
+      writePoint(point.getFirst().longValue(), point.getLast().doubleValue());
+    }
+    endSeries(series.getTags(), MetricType.from(series.getType()), series.getHost());
+  }
 
-      MetricType(int value) {
-        this.value = value;
-      }
+  private void startSeries(String metric) throws IOException {
+    jsonOut.writeStartObject();
+    jsonOut.writeStringField("metric", metric);
+    jsonOut.writeArrayFieldStart("points");
+  }
 
-      public static int from(DatadogSeries<?> datadogSeries) {
-        for (var type : values()) {
-          if (type.name().equalsIgnoreCase(datadogSeries.getType())) {
-            return type.value;
-          }
-        }
-        return 0;
+  private void writePoint(long timestamp, double value) throws IOException {
+    jsonOut.writeStartObject();
+    jsonOut.writeNumberField("timestamp", timestamp);
+    jsonOut.writeNumberField("value", value);
+    jsonOut.writeEndObject();
+  }
+
+  private void endSeries(List<String> tags, int type, String host) throws IOException {
+    jsonOut.writeEndArray();
+    jsonOut.writeArrayFieldStart("tags");
+    if (tags != null) {
+      for (var tag : tags) {
+        jsonOut.writeString(tag);
       }
     }
+    jsonOut.writeEndArray();
+    jsonOut.writeNumberField("type", type);
+    jsonOut.writeArrayFieldStart("resources");
+    jsonOut.writeStartObject();
+    jsonOut.writeStringField("name", host);
+    jsonOut.writeStringField("type", "host");
+    jsonOut.writeEndObject();
+    jsonOut.writeEndArray();
+    jsonOut.writeEndObject();
+  }
 
-    private record MetricPoint(long timestamp, double value) {}
+  private enum MetricType {
+    UNSPECIFIED(0),
+    COUNT(1),
+    RATE(2),
+    GAUGE(3);
+
+    final int value;
+
+    MetricType(int value) {
+      this.value = value;
+    }
 
-    private record MetricResource(String name, String type) {}
+    static int from(String seriesType) {
+      for (var type : values()) {
+        if (type.name().equalsIgnoreCase(seriesType)) {
+          return type.value;
+        }
+      }
+      return 0;
+    }
   }
 
   @Override
   public void endObject() throws IOException {
     jsonOut.writeEndArray();
     jsonOut.writeEndObject();
-    jsonOut.flush();
-    outputStream.close();
+    // Also hands the generator's own buffers back to Jackson's recycler.
+    jsonOut.close();
   }
 
   @Override
   public String getAsString() throws UnsupportedEncodingException {
     return outputStream.toString(StandardCharsets.UTF_8);
   }
+
+  @Override
+  public byte[] getAsBytes() {
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * @return a view of the serializer's buffer, without copying it
+   */
+  @Override
+  public ByteBuffer getAsByteBuffer() {
+    var buffer = (SerializerBufferPool.Buffer) outputStream;
+    return ByteBuffer.wrap(buffer.array(), 0, buffer.size());
+  }
+
+  /**
+   * Take the bytes serialized since the previous call, or since {@link #startObject()}, so that
+   * a payload can be handed on in chunks while it is being written. The concatenated chunks,
+   * up to the one taken after {@link #endObject()}, make up the whole object.
+   */
+  public byte[] takeChunk() throws IOException {
+    if (!jsonOut.isClosed()) {
+      jsonOut.flush();
+    }
+    var chunk = outputStream.toByteArray();
+    outputStream.reset();
+    taken += chunk.length;
+    return chunk;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    if (jsonOut != null && !jsonOut.isClosed()) {
+      jsonOut.close();
+    }
+    if (bufferPool != null && outputStream != null) {
+      bufferPool.release(outputStream, taken + outputStream.size());
+    }
+    jsonOut = null;
+    outputStream = null;
+  }
 }
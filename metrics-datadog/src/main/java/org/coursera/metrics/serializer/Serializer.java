@@ -3,14 +3,18 @@ package org.coursera.metrics.serializer;
 import org.coursera.metrics.datadog.model.DatadogCounter;
 import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This defines the interface to build a datadog request body.
  * The call order is expected to be:
- *   startObject() -> One or more of appendGauge/appendCounter -> endObject()
- * Note that this is a single-use class and nothing can be appended once endObject() is called.
+ *   startObject() -> One or more of appendGauge/appendCounter/appendRate/appendBatch/appendRow -> endObject()
+ * Nothing can be appended once endObject() is called, until reset() makes the serializer ready
+ * for startObject() again.
  */
 public interface Serializer {
 
@@ -34,6 +38,29 @@ public interface Serializer {
    */
   void appendRate(DatadogRate rate) throws IOException;
 
+  /**
+   * Append every row of a batch to the time series
+   */
+  default void appendBatch(SeriesBatch batch) throws IOException {
+    for (var row = 0; row < batch.size(); row++) {
+      appendRow(batch, row);
+    }
+  }
+
+  /**
+   * Append one row of a batch to the time series
+   */
+  default void appendRow(SeriesBatch batch, int row) throws IOException {
+    var series = batch.toSeries(row);
+    if (series instanceof DatadogCounter counter) {
+      appendCounter(counter);
+    } else if (series instanceof DatadogRate rate) {
+      appendRate(rate);
+    } else {
+      appendGauge((DatadogGauge) series);
+    }
+  }
+
   /**
    * Mark ending of the datadog time series object
    */
@@ -43,4 +70,25 @@ public interface Serializer {
    * Get datadog time series object serialized as a string
    */
   String getAsString() throws IOException;
+
+  /**
+   * Get datadog time series object serialized as UTF-8
+   */
+  default byte[] getAsBytes() throws IOException {
+    return getAsString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get datadog time series object serialized as UTF-8, starting at position 0. The buffer may
+   * be the serializer's own, and is only valid until {@link #reset()}.
+   */
+  default ByteBuffer getAsByteBuffer() throws IOException {
+    return ByteBuffer.wrap(getAsBytes());
+  }
+
+  /**
+   * Discard the serialized object and release its buffers
+   */
+  default void reset() throws IOException {
+  }
 }
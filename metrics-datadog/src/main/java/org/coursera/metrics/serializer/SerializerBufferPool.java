@@ -0,0 +1,101 @@
+package org.coursera.metrics.serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * Buffers for {@link JsonSerializer} that are reused from one payload to the next, so that a
+ * report does not grow a fresh buffer through a dozen doublings to reach its usual size.
+ * <p/>
+ * The pool keeps a moving average of the payload sizes it has seen. A buffer that has to be
+ * allocated is sized with some headroom above that average. A buffer that comes back much
+ * larger than the average is dropped instead of pooled, so memory taken by a one-off large
+ * payload is released once payloads shrink again.
+ */
+public class SerializerBufferPool {
+
+  // Weight of the latest payload in the moving average.
+  private static final double ALPHA = 0.2;
+  private static final double HEADROOM = 1.25;
+  // Buffers larger than this many times the average are not pooled.
+  private static final double MAX_OVERSIZE = 2;
+
+  private final int minCapacity;
+  private final int maxPooled;
+  private final ArrayDeque<Buffer> pooled = new ArrayDeque<>();
+  private double averageSize;
+
+  public SerializerBufferPool() {
+    this(2048, 2);
+  }
+
+  /**
+   * @param minCapacity the smallest buffer to allocate
+   * @param maxPooled how many idle buffers to keep, e.g. one per request in flight at once
+   */
+  public SerializerBufferPool(int minCapacity, int maxPooled) {
+    if (minCapacity <= 0) {
+      throw new IllegalArgumentException("minCapacity must be positive");
+    }
+    if (maxPooled < 0) {
+      throw new IllegalArgumentException("maxPooled must not be negative");
+    }
+    this.minCapacity = minCapacity;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * @return the moving average of released payload sizes, in bytes
+   */
+  public synchronized long getAverageSize() {
+    return Math.round(averageSize);
+  }
+
+  synchronized int getPooledCount() {
+    return pooled.size();
+  }
+
+  synchronized ByteArrayOutputStream acquire() {
+    var buffer = pooled.poll();
+    if (buffer == null) {
+      buffer = new Buffer(Math.max(minCapacity, (int) Math.min(Integer.MAX_VALUE - 8, averageSize * HEADROOM)));
+    }
+    return buffer;
+  }
+
+  /**
+   * Return a buffer from {@link #acquire()}, recording the size of the payload written to it.
+   */
+  void release(ByteArrayOutputStream stream) {
+    release(stream, stream.size());
+  }
+
+  /**
+   * Return a buffer from {@link #acquire()} that a payload was taken from in chunks.
+   *
+   * @param size the size of the whole payload, rather than of what is left in the buffer
+   */
+  synchronized void release(ByteArrayOutputStream stream, long size) {
+    var buffer = (Buffer) stream;
+    averageSize = averageSize == 0 ? size : averageSize + ALPHA * (size - averageSize);
+    buffer.reset();
+    if (pooled.size() < maxPooled
+        && buffer.capacity() <= Math.max(minCapacity, averageSize * HEADROOM * MAX_OVERSIZE)) {
+      pooled.push(buffer);
+    }
+  }
+
+  static class Buffer extends ByteArrayOutputStream {
+    Buffer(int capacity) {
+      super(capacity);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    byte[] array() {
+      return buf;
+    }
+  }
+}
@@ -0,0 +1,300 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.FakeDatadogIntake;
+import org.coursera.metrics.datadog.transport.FanoutTransport;
+import org.coursera.metrics.datadog.transport.HttpTransport;
+import org.coursera.metrics.datadog.transport.MappedCountersTransport;
+import org.coursera.metrics.datadog.transport.RelayTransport;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.coursera.metrics.datadog.transport.UdpTransport;
+import org.coursera.metrics.serializer.JsonSerializer;
+import org.coursera.metrics.serializer.SerializerBufferPool;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Guards the garbage produced by a report cycle.
+ * <p/>
+ * Each test reports a fixed registry through one transport, measures the bytes allocated by the
+ * reporting thread with {@link com.sun.management.ThreadMXBean}, and fails if the bytes per cycle
+ * or per series exceed the baseline in {@code allocation-baselines.properties}. Work done on
+ * other threads, like the dogstatsd client's sender or the posts of fanout destinations, is not
+ * counted. {@link JsonSerializer} is the only serializer, so the {@code json} case covers the
+ * serializers. When an intended change moves the numbers, update the baselines from the values
+ * this test logs.
+ */
+public class AllocationRegressionTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AllocationRegressionTest.class);
+
+  private static final int WARMUP_CYCLES = 30;
+  private static final int MEASURED_CYCLES = 10;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static Properties baselines;
+  private static FakeDatadogIntake intake;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    assumeTrue(THREADS.isThreadAllocatedMemorySupported());
+    THREADS.setThreadAllocatedMemoryEnabled(true);
+    baselines = new Properties();
+    try (var in = AllocationRegressionTest.class.getResourceAsStream("/allocation-baselines.properties")) {
+      baselines.load(in);
+    }
+    intake = new FakeDatadogIntake();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    if (intake != null) {
+      intake.close();
+    }
+  }
+
+  @Test
+  public void jsonSerializer() throws Exception {
+    check("json", new SerializingTransport());
+  }
+
+  @Test
+  public void httpTransport() throws Exception {
+    check("http", new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .build());
+  }
+
+  @Test
+  public void httpTransportWithCompression() throws Exception {
+    check("http.compressed", new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .build());
+  }
+
+  @Test
+  public void udpTransport() throws Exception {
+    check("udp", new UdpTransport.Builder().withStatsdHost("localhost").build());
+  }
+
+  @Test
+  public void udpTransportOverAUnixSocket() throws Exception {
+    var socket = Files.createTempDirectory("dsd").resolve("dsd.socket");
+    try (var agent = UnixDatagramChannel.open()) {
+      agent.bind(new UnixSocketAddress(socket.toFile()));
+      check("udp.uds", new UdpTransport.Builder().withStatsdHost("unix://" + socket).build());
+    } finally {
+      Files.deleteIfExists(socket);
+    }
+  }
+
+  @Test
+  public void udpTransportWithLineCache() throws Exception {
+    try (var agent = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+      check("udp.lineCache", new UdpTransport.Builder()
+          .withStatsdHost("127.0.0.1")
+          .withPort(agent.getLocalPort())
+          .withLineCache(true)
+          .build());
+    }
+  }
+
+  @Test
+  public void relayTransport() throws Exception {
+    try (var relay = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+      check("relay", new RelayTransport.Builder()
+          .withAddress("127.0.0.1", relay.getLocalPort())
+          .build());
+    }
+  }
+
+  @Test
+  public void fanoutTransport() throws Exception {
+    check("fanout", new FanoutTransport.Builder()
+        .withDestination(new HttpTransport.Builder()
+            .withSeriesUrl(intake.getSeriesUrl())
+            .withApiKey("test-key")
+            .withCompression(true)
+            .build())
+        .build());
+  }
+
+  @Test
+  public void mappedCountersTransport() throws Exception {
+    var file = Files.createTempDirectory("counters").resolve("alloc.counters");
+    check("mappedCounters", new MappedCountersTransport.Builder().withFile(file).build());
+  }
+
+  private static void check(String name, Transport transport) throws Exception {
+    var counting = new CountingTransport(transport);
+    try (var reporter = reporter(counting)) {
+      for (var i = 0; i < WARMUP_CYCLES; i++) {
+        reporter.report();
+      }
+
+      var series = counting.series;
+      var before = THREADS.getCurrentThreadAllocatedBytes();
+      for (var i = 0; i < MEASURED_CYCLES; i++) {
+        reporter.report();
+      }
+      var perCycle = (THREADS.getCurrentThreadAllocatedBytes() - before) / MEASURED_CYCLES;
+      var perSeries = perCycle / series;
+      LOG.info("{}: {} bytes per cycle, {} bytes per series ({} series)", name, perCycle, perSeries, series);
+
+      var maxPerCycle = Long.parseLong(baselines.getProperty(name + ".bytesPerCycle"));
+      var maxPerSeries = Long.parseLong(baselines.getProperty(name + ".bytesPerSeries"));
+      assertTrue(name + " allocated " + perCycle + " bytes per cycle, baseline is " + maxPerCycle,
+          perCycle <= maxPerCycle);
+      assertTrue(name + " allocated " + perSeries + " bytes per series, baseline is " + maxPerSeries,
+          perSeries <= maxPerSeries);
+    } finally {
+      transport.close();
+    }
+  }
+
+  private static DatadogReporter reporter(Transport transport) {
+    var registry = new MetricRegistry();
+    for (var i = 0; i < 200; i++) {
+      registry.counter("alloc.counter" + i + "[shard:" + (i % 8) + "]").inc(i);
+    }
+    for (var i = 0; i < 100; i++) {
+      var value = i;
+      registry.register("alloc.gauge" + i, (Gauge<Integer>) () -> value);
+    }
+    for (var i = 0; i < 50; i++) {
+      registry.histogram("alloc.histogram" + i).update(i);
+      registry.meter("alloc.meter" + i).mark(i);
+      registry.timer("alloc.timer" + i + "[endpoint:e" + (i % 4) + "]").update(i, TimeUnit.MILLISECONDS);
+    }
+    return DatadogReporter.forRegistry(registry)
+        .withHost("alloc-host")
+        .withTags(List.of("env:test"))
+        .withTransport(transport)
+        .build();
+  }
+
+  /**
+   * Serializes to JSON like the HTTP transport, without sending.
+   */
+  private static class SerializingTransport implements Transport {
+    private final SerializerBufferPool bufferPool = new SerializerBufferPool();
+
+    @Override
+    public Request prepare() throws IOException {
+      var serializer = new JsonSerializer(bufferPool);
+      serializer.startObject();
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          serializer.appendBatch(batch);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) throws IOException {
+          serializer.appendGauge(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) throws IOException {
+          serializer.appendCounter(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) throws IOException {
+          serializer.appendRate(rate);
+        }
+
+        @Override
+        public void send() throws Exception {
+          serializer.endObject();
+          serializer.getAsBytes();
+          serializer.reset();
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Counts the series of the last cycle.
+   */
+  private static class CountingTransport implements Transport {
+    private final Transport delegate;
+    private int series;
+
+    CountingTransport(Transport delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Request prepare() throws IOException {
+      var request = delegate.prepare();
+      series = 0;
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          series += batch.size();
+          request.addBatch(batch);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) throws IOException {
+          series++;
+          request.addGauge(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) throws IOException {
+          series++;
+          request.addCounter(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) throws IOException {
+          series++;
+          request.addRate(rate);
+        }
+
+        @Override
+        public void send() throws Exception {
+          request.send();
+        }
+      };
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+}
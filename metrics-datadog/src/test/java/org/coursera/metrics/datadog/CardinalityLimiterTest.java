@@ -0,0 +1,121 @@
+package org.coursera.metrics.datadog;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CardinalityLimiterTest {
+
+  @Test
+  public void untaggedNamesAreAlwaysAdmitted() {
+    var limiter = new CardinalityLimiter(1);
+
+    assertEquals("requests", limiter.admit("requests"));
+    assertEquals("errors", limiter.admit("errors"));
+    assertNull(limiter.getCardinality("requests"));
+  }
+
+  @Test
+  public void foldsSeriesPastTheCap() {
+    var limiter = new CardinalityLimiter(2);
+
+    assertEquals("requests[user:1,env:prod]", limiter.admit("requests[user:1,env:prod]"));
+    assertEquals("requests[user:2,env:prod]", limiter.admit("requests[user:2,env:prod]"));
+    assertEquals("requests[user:other,env:other]", limiter.admit("requests[user:3,env:prod]"));
+    assertEquals("requests[user:other,env:other]", limiter.admit("requests[user:4,env:prod]"));
+
+    // Admitted series keep their slot on later cycles.
+    assertEquals("requests[user:1,env:prod]", limiter.admit("requests[user:1,env:prod]"));
+    // The cap applies per base name.
+    assertEquals("errors[user:3]", limiter.admit("errors[user:3]"));
+  }
+
+  @Test
+  public void forgottenSeriesReleaseTheirSlot() {
+    var limiter = new CardinalityLimiter(1);
+
+    limiter.admit("requests[user:1]");
+    limiter.forget("requests[user:1]");
+
+    assertEquals("requests[user:2]", limiter.admit("requests[user:2]"));
+  }
+
+  @Test
+  public void foldedSeriesTakeFreedSlots() {
+    var limiter = new CardinalityLimiter(1);
+
+    limiter.admit("requests[user:1]");
+    assertEquals("requests[user:other]", limiter.admit("requests[user:2]"));
+    limiter.forget("requests[user:1]");
+
+    assertEquals("requests[user:2]", limiter.admit("requests[user:2]"));
+    assertEquals(0, limiter.getCardinality("requests").foldedSeries());
+  }
+
+  @Test
+  public void estimatesSeriesAndTagCardinality() {
+    var limiter = new CardinalityLimiter(100);
+    for (var i = 0; i < 5000; i++) {
+      limiter.admit("requests[user:" + i + ",env:prod]");
+    }
+
+    var offender = limiter.getCardinality("requests");
+    assertEquals("requests", offender.metricName());
+    assertEquals(5000, offender.estimatedSeries(), 5000 * 0.1);
+    assertEquals(4900, offender.foldedSeries(), 5000 * 0.1);
+
+    var tags = offender.tagCardinalities();
+    assertEquals("user", tags.get(0).tagKey());
+    assertEquals(5000, tags.get(0).estimatedValues(), 5000 * 0.2);
+    assertEquals("env", tags.get(1).tagKey());
+    assertEquals(1, tags.get(1).estimatedValues());
+  }
+
+  @Test
+  public void keepsTheTopOffenders() {
+    var limiter = new CardinalityLimiter(1000, 2);
+    admitMany(limiter, "small", 10);
+    admitMany(limiter, "large", 500);
+    admitMany(limiter, "medium", 100);
+
+    List<CardinalityLimiter.Offender> offenders = limiter.getTopOffenders();
+    assertEquals(2, offenders.size());
+    assertEquals("large", offenders.get(0).metricName());
+    assertEquals("medium", offenders.get(1).metricName());
+  }
+
+  @Test
+  public void admittedSeriesKeepTheirName() {
+    var limiter = new CardinalityLimiter(1);
+    var first = limiter.admit("requests[user:1]");
+
+    assertSame(first, limiter.admit("requests[user:1]"));
+    assertEquals(1, limiter.getTopOffenders().size());
+  }
+
+  @Test
+  public void remembersOnlyTheAdmittedSeries() {
+    var limiter = new CardinalityLimiter(2);
+    for (var i = 0; i < 10_000; i++) {
+      limiter.admit("requests[user:" + i + "]");
+    }
+
+    // The first two series kept their slots, later ones were counted but not remembered.
+    assertEquals("requests[user:1]", limiter.admit("requests[user:1]"));
+    assertEquals("requests[user:other]", limiter.admit("requests[user:9999]"));
+    limiter.forget("requests[user:9999]");
+    assertEquals("requests[user:other]", limiter.admit("requests[user:5000]"));
+    limiter.forget("requests[user:0]");
+    assertEquals("requests[user:5000]", limiter.admit("requests[user:5000]"));
+  }
+
+  private static void admitMany(CardinalityLimiter limiter, String metric, int series) {
+    for (var i = 0; i < series; i++) {
+      limiter.admit(metric + "[id:" + i + "]");
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.transport.FakeDatadogIntake;
+import org.coursera.metrics.datadog.transport.HttpTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes large registries through the reporter and the HTTP transport into a fake intake.
+ */
+public class DatadogReporterScaleTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DatadogReporterScaleTest.class);
+
+  private static final int SERIES = 100_000;
+
+  private FakeDatadogIntake intake;
+  private MetricRegistry registry;
+  private DatadogReporter reporter;
+
+  @Before
+  public void setUp() throws Exception {
+    intake = new FakeDatadogIntake();
+    registry = new MetricRegistry();
+    for (var i = 0; i < SERIES / 2; i++) {
+      registry.counter("scale.counter" + i + "[shard:" + (i % 100) + "]").inc(i);
+      var value = i;
+      registry.register("scale.gauge" + i, (Gauge<Integer>) () -> value);
+    }
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withResponseTimeout(30_000)
+        .build();
+    reporter = DatadogReporter.forRegistry(registry)
+        .withHost("scale-host")
+        .withTags(List.of("env:test"))
+        .withExpansions(EnumSet.of(DatadogReporter.Expansion.COUNT))
+        .withTransport(transport)
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    intake.close();
+  }
+
+  @Test
+  public void reportsEverySeriesOfALargeRegistry() {
+    var start = System.nanoTime();
+    reporter.report();
+    var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    LOG.info("Reported {} series in {} ms ({} series/s)", SERIES, elapsedMillis,
+        SERIES * 1000L / Math.max(1, elapsedMillis));
+
+    assertEquals(List.of(), intake.getRejections());
+    assertEquals(1, intake.getCompressedRequestCount());
+    var received = new HashMap<String, FakeDatadogIntake.Series>();
+    for (var series : intake.getSeries()) {
+      received.put(series.metric() + series.tags(), series);
+    }
+    assertEquals(SERIES, received.size());
+    for (var i = 0; i < SERIES / 2; i += 997) {
+      // Counters are reported as gauges.
+      var counter = received.get("scale.counter" + i + "[shard:" + (i % 100) + ", env:test]");
+      assertEquals(i, counter.value(), 0.0);
+      assertEquals(3, counter.type());
+      assertEquals("scale-host", counter.host());
+      var gauge = received.get("scale.gauge" + i + "[env:test]");
+      assertEquals(i, gauge.value(), 0.0);
+      assertEquals(3, gauge.type());
+    }
+    assertTrue("report took " + elapsedMillis + " ms", elapsedMillis < 60_000);
+  }
+
+  @Test
+  public void recoversAfterIntakeFailures() {
+    intake.failNext(503, 1);
+    reporter.report();
+    assertEquals(0, intake.getSeries().size());
+
+    reporter.report();
+    assertEquals(2, intake.getRequestCount());
+    assertEquals(SERIES, intake.getSeries().size());
+  }
+}
@@ -15,6 +15,7 @@ import org.coursera.metrics.datadog.model.DatadogGauge;
 import org.coursera.metrics.datadog.transport.Transport;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -22,11 +23,20 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -49,7 +59,7 @@ public class DatadogReporterTest {
     @Before
     public void setUp() throws IOException {
         when(clock.getTime()).thenReturn(timestamp * 1000);
-        when(transport.prepare()).thenReturn(request);
+        when(transport.prepare()).thenReturn(new ReplayingRequest(request));
         metricsRegistry = new MetricRegistry();
         tags = new ArrayList<>();
         tags.add("env:prod");
@@ -178,6 +188,22 @@ public class DatadogReporterTest {
         verifyNoMoreInteractions(transport, request);
     }
 
+    @Test
+    public void abortsTheRequestWhenTheReportFails() throws Exception {
+        var counter = mock(Counter.class);
+        when(counter.getCount()).thenReturn(100L);
+        doThrow(new IOException("serializer failed")).when(request).addGauge(any());
+
+        reporter.report(map(),
+                map("counter", counter),
+                map(),
+                map(),
+                map());
+
+        verify(request).abort();
+        verify(request, never()).send();
+    }
+
     @Test
     public void reportsCounters() throws Exception {
         var counter = mock(Counter.class);
@@ -546,6 +572,270 @@ public class DatadogReporterTest {
         }
     }
 
+    @Test
+    public void reportsWithExpansionPolicy() throws Exception {
+        var policy = ExpansionPolicy.builder(EnumSet.of(Expansion.COUNT))
+                .withRule("critical.*", EnumSet.of(Expansion.COUNT, Expansion.P999))
+                .build();
+
+        try (var reporterWithPolicy = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .withTransport(transport)
+                .withExpansionPolicy(policy)
+                .build()) {
+
+            var critical = mock(Timer.class);
+            when(critical.getCount()).thenReturn(1L);
+            var snapshot = mock(Snapshot.class);
+            when(snapshot.get999thPercentile())
+                    .thenReturn((double) TimeUnit.MILLISECONDS.toNanos(900));
+            when(critical.getSnapshot()).thenReturn(snapshot);
+
+            var ordinary = mock(Timer.class);
+            when(ordinary.getCount()).thenReturn(2L);
+
+            var timers = new TreeMap<String, Timer>();
+            timers.put("critical.timer", critical);
+            timers.put("ordinary.timer", ordinary);
+
+            reporterWithPolicy.report(map(), map(), map(), map(), timers);
+
+            var inOrder = inOrder(transport, request);
+            inOrder.verify(transport).prepare();
+            inOrder.verify(request).addGauge(new DatadogGauge("critical.timer.p999", 900.0, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge("critical.timer.count", 1L, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge("ordinary.timer.count", 2L, timestamp, HOST, tags));
+            inOrder.verify(request).send();
+
+            verify(snapshot).get999thPercentile();
+            verifyNoMoreInteractions(snapshot);
+            verify(ordinary, never()).getSnapshot();
+        }
+    }
+
+    @Test
+    public void resolvesExpansionPolicyForRegisteredMetrics() throws Exception {
+        var policy = ExpansionPolicy.builder(EnumSet.noneOf(Expansion.class))
+                .withRule("critical.*", EnumSet.of(Expansion.COUNT))
+                .build();
+
+        try (var reporterWithPolicy = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .withTransport(transport)
+                .withExpansionPolicy(policy)
+                .build()) {
+
+            metricsRegistry.meter("critical.meter").mark(3);
+            metricsRegistry.meter("ordinary.meter").mark(4);
+
+            reporterWithPolicy.report();
+
+            verify(request).addGauge(new DatadogGauge("critical.meter.count", 3L, timestamp, HOST, tags));
+            verify(request).send();
+            verifyNoMoreInteractions(request);
+        }
+    }
+
+    @Test
+    public void reportsWithCardinalityLimit() throws Exception {
+        try (var reporterWithLimit = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .withTransport(transport)
+                .withCardinalityLimit(1)
+                .build()) {
+
+            metricsRegistry.counter("requests[user:1]").inc(1);
+            metricsRegistry.counter("requests[user:2]").inc(2);
+
+            reporterWithLimit.report();
+
+            verify(request).addGauge(new DatadogGauge("requests[user:1]", 1L, timestamp, HOST, tags));
+            verify(request).addGauge(new DatadogGauge("requests[user:other]", 2L, timestamp, HOST, tags));
+            assertEquals(1, reporterWithLimit.getCardinalityLimiter().getCardinality("requests").foldedSeries());
+        }
+    }
+
+    @Test
+    public void foldsCountsAndGaugesAndReassignsFreedSlots() throws Exception {
+        try (var reporterWithLimit = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .withTransport(transport)
+                .withCardinalityLimit(1)
+                .build()) {
+
+            metricsRegistry.counter("requests[user:1]").inc(1);
+            metricsRegistry.counter("requests[user:2]").inc(2);
+            metricsRegistry.counter("requests[user:3]").inc(4);
+            metricsRegistry.register("queue[user:1]", (Gauge<Integer>) () -> 1);
+            metricsRegistry.register("queue[user:2]", (Gauge<Integer>) () -> 2);
+            metricsRegistry.register("queue[user:3]", (Gauge<Integer>) () -> 5);
+            metricsRegistry.register("queue[user:4]", (Gauge<Integer>) () -> 3);
+
+            reporterWithLimit.report();
+
+            verify(request).addGauge(new DatadogGauge("requests[user:1]", 1L, timestamp, HOST, tags));
+            verify(request).addGauge(new DatadogGauge("requests[user:other]", 6L, timestamp, HOST, tags));
+            verify(request).addGauge(new DatadogGauge("queue[user:1]", 1, timestamp, HOST, tags));
+            // Gauges cannot be summed, so the overflow series reports the largest folded value.
+            verify(request).addGauge(new DatadogGauge("queue[user:other]", 5, timestamp, HOST, tags));
+            verify(request).send();
+            verifyNoMoreInteractions(request);
+
+            metricsRegistry.remove("requests[user:1]");
+            reporterWithLimit.report();
+
+            verify(request).addGauge(new DatadogGauge("requests[user:2]", 2L, timestamp, HOST, tags));
+            verify(request).addGauge(new DatadogGauge("requests[user:other]", 4L, timestamp, HOST, tags));
+        }
+    }
+
+    @Test
+    public void alignsScheduledReportsToTheInterval() throws Exception {
+        var executor = mock(ScheduledExecutorService.class);
+        var offset = IntervalSchedule.offsetFor(HOST, 5_000, 10_000);
+        var now = (timestamp / 10 * 10 + 10) * 1000 + offset + 1_200;
+        when(clock.getTime()).thenReturn(now);
+        try (var alignedReporter = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .withTransport(transport)
+                .withIntervalAlignment(true)
+                .withJitter(5, TimeUnit.SECONDS)
+                .build()) {
+
+            alignedReporter.getScheduledFuture(10, 10, TimeUnit.SECONDS, () -> { }, executor);
+            verify(executor).scheduleAtFixedRate(any(Runnable.class), eq(10_000L - 1_200),
+                    eq(10_000L), eq(TimeUnit.MILLISECONDS));
+
+            alignedReporter.report(map("gauge", gauge(1)), map(), map(), map(), map());
+            verify(request).addGauge(new DatadogGauge("gauge", 1, now / 10_000 * 10, HOST, tags));
+        }
+    }
+
+    @Test
+    public void reportsWithoutHoldingTheReportersMonitor() throws Exception {
+        metricsRegistry.counter("requests").inc();
+        // A cycle that held the monitor while sending would pin the carrier of its virtual thread.
+        synchronized (reporter) {
+            var cycle = Thread.ofVirtual().start(reporter::report);
+            cycle.join(5000);
+            assertFalse(cycle.isAlive());
+        }
+        verify(request).addGauge(new DatadogGauge("requests", 1L, timestamp, HOST, tags));
+    }
+
+    @Test
+    public void spreadsReportersWithoutAHost() throws Exception {
+        var executor = mock(ScheduledExecutorService.class);
+        when(clock.getTime()).thenReturn(timestamp * 1000);
+        var delays = ArgumentCaptor.forClass(Long.class);
+        try (var first = DatadogReporter.forRegistry(metricsRegistry)
+                .withClock(clock)
+                .withTransport(transport)
+                .withIntervalAlignment(true)
+                .withJitter(60, TimeUnit.SECONDS)
+                .build();
+             var second = DatadogReporter.forRegistry(metricsRegistry)
+                .withClock(clock)
+                .withTransport(transport)
+                .withIntervalAlignment(true)
+                .withJitter(60, TimeUnit.SECONDS)
+                .build()) {
+
+            first.getScheduledFuture(60, 60, TimeUnit.SECONDS, () -> { }, executor);
+            second.getScheduledFuture(60, 60, TimeUnit.SECONDS, () -> { }, executor);
+            verify(executor, times(2)).scheduleAtFixedRate(any(Runnable.class), delays.capture(),
+                    eq(60_000L), eq(TimeUnit.MILLISECONDS));
+            assertNotEquals(delays.getAllValues().get(0), delays.getAllValues().get(1));
+        }
+    }
+
+    @Test
+    public void skipsScheduledReportsWhileTheTransportIsPaused() throws Exception {
+        var executor = mock(ScheduledExecutorService.class);
+        var selfRegistry = new MetricRegistry();
+        var reported = new AtomicInteger();
+        when(transport.isPaused()).thenReturn(true);
+        try (var pausingReporter = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withClock(clock)
+                .withTransport(transport)
+                .withSelfMetrics(new SelfMetrics(selfRegistry))
+                .build()) {
+
+            pausingReporter.getScheduledFuture(10, 10, TimeUnit.SECONDS, reported::incrementAndGet, executor);
+            var scheduled = ArgumentCaptor.forClass(Runnable.class);
+            verify(executor).scheduleWithFixedDelay(scheduled.capture(), eq(10_000L), eq(10_000L),
+                    eq(TimeUnit.MILLISECONDS));
+
+            scheduled.getValue().run();
+            assertEquals(0, reported.get());
+            assertEquals(1, selfRegistry.counter("datadog.reporter.cycles.paused").getCount());
+
+            when(transport.isPaused()).thenReturn(false);
+            scheduled.getValue().run();
+            assertEquals(1, reported.get());
+        }
+    }
+
+    @Test
+    public void reportsWithPayloadBudget() throws Exception {
+        var budget = new PayloadBudget(3, 0);
+        try (var reporterWithBudget = DatadogReporter
+                .forRegistry(metricsRegistry)
+                .withHost(HOST)
+                .withClock(clock)
+                .withTags(tags)
+                .withTransport(transport)
+                .withExpansions(EnumSet.of(Expansion.COUNT, Expansion.RATE_1_MINUTE))
+                .withPayloadBudget(budget)
+                .build()) {
+
+            var meter = new Meter();
+            meter.mark();
+
+            var counter = mock(Counter.class);
+            when(counter.getCount()).thenReturn(100L);
+
+            reporterWithBudget.report(map(), map("counter", counter), map(), map("meter", meter), map());
+
+            var inOrder = inOrder(transport, request);
+            inOrder.verify(transport).prepare();
+            inOrder.verify(request).addGauge(new DatadogGauge("counter", 100L, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge("meter.count", 1L, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 1, timestamp, HOST, tags));
+            inOrder.verify(request).send();
+            verifyNoMoreInteractions(request);
+
+            // The counter did not change, so it is shed ahead of the meter's normal priority rate.
+            meter.mark();
+            reporterWithBudget.report(map(), map("counter", counter), map(), map("meter", meter), map());
+
+            inOrder.verify(transport).prepare();
+            inOrder.verify(request).addGauge(new DatadogGauge("meter.count", 2L, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge("meter.1MinuteRate", 0.0, timestamp, HOST, tags));
+            inOrder.verify(request).addGauge(new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 1, timestamp, HOST, tags));
+            inOrder.verify(request).send();
+            assertEquals(2, budget.getShedSeries());
+        }
+    }
+
     private record NameMetricFilter(String include) implements MetricFilter {
         public boolean matches(final String name, final Metric metric) {
             return (name.contains(include));
@@ -0,0 +1,264 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class Ec2HostResolverTest {
+
+  private static final String INSTANCE_ID = "i-0123456789abcdef0";
+  private static final String TOKEN = "test-token";
+
+  private HttpServer server;
+  private volatile boolean tokens = true;
+  private volatile long latencyMillis;
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger lookups = new AtomicInteger();
+  private volatile boolean dropConnections;
+  private Path cacheDir;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/latest/api/token", this::token);
+    server.createContext("/latest/meta-data/instance-id", this::instanceId);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    cacheDir = Files.createTempDirectory("ec2-host");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.stop(0);
+    try (var files = Files.walk(cacheDir)) {
+      files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void usesImdsV2Token() throws Exception {
+    assertEquals(INSTANCE_ID, resolver().build().fetchInstanceId());
+  }
+
+  @Test
+  public void fallsBackToImdsV1() throws Exception {
+    tokens = false;
+
+    assertEquals(INSTANCE_ID, resolver().build().fetchInstanceId());
+  }
+
+  @Test
+  public void cachesTheInstanceIdAcrossRestarts() throws Exception {
+    var cacheFile = cacheDir.resolve("instance-id");
+    assertEquals(INSTANCE_ID, resolver().withCacheFile(cacheFile).build().resolve().get());
+    server.stop(0);
+
+    var restarted = resolver().withCacheFile(cacheFile).withRetries(0).build();
+    assertEquals(INSTANCE_ID, restarted.getCachedInstanceId());
+    try {
+      restarted.resolve().get();
+      fail("metadata service is down");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void retriesFailedLookups() throws Exception {
+    failures.set(2);
+
+    var resolved = resolver().withRetries(2).withRetryBackoff(10).build().resolve();
+
+    assertEquals(INSTANCE_ID, resolved.get(5, TimeUnit.SECONDS));
+    assertEquals(0, failures.get());
+  }
+
+  @Test
+  public void leavesRetriesToTheResolver() throws Exception {
+    dropConnections = true;
+
+    try {
+      resolver().build().fetchInstanceId();
+      fail("the connection was dropped");
+    } catch (IOException expected) {
+    }
+    // A client with automatic retries would have sent the idempotent GET again.
+    assertEquals(1, lookups.get());
+  }
+
+  @Test
+  public void givesUpAfterTheRetries() throws Exception {
+    failures.set(3);
+
+    try {
+      resolver().withRetries(2).withRetryBackoff(10).build().resolve().get(5, TimeUnit.SECONDS);
+      fail("every attempt failed");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void movesAlignedCyclesToTheResolvedHostsSlot() throws Exception {
+    latencyMillis = 300;
+    var executor = mock(ScheduledExecutorService.class);
+    var firstCycles = mock(ScheduledFuture.class);
+    var movedCycles = mock(ScheduledFuture.class);
+    when(executor.scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), any(TimeUnit.class)))
+        .thenReturn(firstCycles, movedCycles);
+    var clock = mock(Clock.class);
+    var now = 1_700_000_000_000L;
+    when(clock.getTime()).thenReturn(now);
+
+    try (var reporter = DatadogReporter.forRegistry(new MetricRegistry())
+        .withEC2Host(resolver().build())
+        .withClock(clock)
+        .withTransport(mock(Transport.class))
+        .withIntervalAlignment(true)
+        .withJitter(10, TimeUnit.SECONDS)
+        .build()) {
+      var cycles = reporter.getScheduledFuture(10, 10, TimeUnit.SECONDS, () -> { }, executor);
+      var resolved = new IntervalSchedule(10_000, IntervalSchedule.offsetFor(INSTANCE_ID, 10_000, 10_000));
+      var delays = ArgumentCaptor.forClass(Long.class);
+      verify(executor, timeout(5000).times(2)).scheduleAtFixedRate(any(Runnable.class),
+          delays.capture(), eq(10_000L), eq(TimeUnit.MILLISECONDS));
+      assertEquals(resolved.initialDelayMillis(now), (long) delays.getAllValues().get(1));
+      verify(firstCycles).cancel(false);
+
+      cycles.cancel(false);
+      verify(movedCycles).cancel(false);
+    }
+  }
+
+  @Test
+  public void givesUpAfterTheTimeout() {
+    latencyMillis = 5000;
+    var resolver = resolver().withTimeout(200).build();
+
+    var start = System.nanoTime();
+    try {
+      resolver.fetchInstanceId();
+      fail("metadata service is too slow");
+    } catch (IOException e) {
+      var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+      assertTrue("lookup took " + elapsedMillis + " ms", elapsedMillis < 2000);
+    }
+  }
+
+  @Test
+  public void reporterStartsBeforeTheHostIsKnown() throws Exception {
+    latencyMillis = 1500;
+    var transport = mock(Transport.class);
+    var request = mock(Transport.Request.class);
+    when(transport.prepare()).thenReturn(new ReplayingRequest(request));
+    var registry = new MetricRegistry();
+    registry.gauge("queue.size", () -> () -> 1);
+
+    var start = System.nanoTime();
+    try (var reporter = DatadogReporter.forRegistry(registry)
+        .withEC2Host(resolver().withTimeout(3000).build())
+        .withTransport(transport)
+        .build()) {
+      assertTrue((System.nanoTime() - start) / 1_000_000 < 1000);
+
+      reporter.report();
+      var gauges = ArgumentCaptor.forClass(DatadogGauge.class);
+      verify(request).addGauge(gauges.capture());
+      assertNull(gauges.getValue().getHost());
+
+      var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      do {
+        Thread.sleep(20);
+        reporter.report();
+        verify(request, atLeastOnce()).addGauge(gauges.capture());
+      } while (gauges.getValue().getHost() == null && System.nanoTime() < deadline);
+      assertEquals(INSTANCE_ID, gauges.getValue().getHost());
+    }
+  }
+
+  private Ec2HostResolver.Builder resolver() {
+    return new Ec2HostResolver.Builder()
+        .withMetadataUrl("http://localhost:" + server.getAddress().getPort())
+        .withTimeout(1000);
+  }
+
+  private void token(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!tokens) {
+        respond(exchange, 404, "");
+      } else if (!"PUT".equals(exchange.getRequestMethod())
+          || exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token-ttl-seconds") == null) {
+        respond(exchange, 400, "");
+      } else {
+        respond(exchange, 200, TOKEN);
+      }
+    }
+  }
+
+  private void instanceId(HttpExchange exchange) throws IOException {
+    lookups.incrementAndGet();
+    if (dropConnections) {
+      // Closing the exchange before any response drops the connection.
+      exchange.close();
+      return;
+    }
+    try (exchange) {
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+      if (failures.getAndUpdate(remaining -> Math.max(0, remaining - 1)) > 0) {
+        respond(exchange, 500, "");
+        return;
+      }
+      var token = exchange.getRequestHeaders().getFirst("X-aws-ec2-metadata-token");
+      if (tokens && !TOKEN.equals(token)) {
+        respond(exchange, 401, "");
+      } else {
+        respond(exchange, 200, INSTANCE_ID);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    var bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      exchange.getResponseBody().write(bytes);
+    }
+  }
+}
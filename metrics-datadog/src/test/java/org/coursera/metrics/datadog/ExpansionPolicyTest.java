@@ -0,0 +1,106 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpansionPolicyTest {
+
+  private static final EnumSet<Expansion> DEFAULTS = EnumSet.of(Expansion.COUNT, Expansion.P95);
+
+  @Test
+  public void uniformPolicyReturnsDefaults() {
+    var policy = ExpansionPolicy.uniform(DEFAULTS);
+
+    assertTrue(policy.isUniform());
+    assertEquals(DEFAULTS, policy.resolve("anything"));
+  }
+
+  @Test
+  public void unmatchedNamesFallBackToDefaults() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.*", EnumSet.of(Expansion.P999))
+        .build();
+
+    assertFalse(policy.isUniform());
+    assertEquals(DEFAULTS, policy.resolve("jvm.memory"));
+    assertEquals(DEFAULTS, policy.resolve("api"));
+  }
+
+  @Test
+  public void prefixRuleMatchesAllDescendants() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.*", EnumSet.of(Expansion.P999))
+        .build();
+
+    assertEquals(EnumSet.of(Expansion.P999), policy.resolve("api.checkout"));
+    assertEquals(EnumSet.of(Expansion.P999), policy.resolve("api.checkout.latency[env:prod]"));
+  }
+
+  @Test
+  public void exactRuleOnlyMatchesWholeName() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.checkout", EnumSet.of(Expansion.P999))
+        .build();
+
+    assertEquals(EnumSet.of(Expansion.P999), policy.resolve("api.checkout"));
+    assertEquals(DEFAULTS, policy.resolve("api.checkout.latency"));
+  }
+
+  @Test
+  public void wildcardInTheMiddle() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.*.latency", EnumSet.of(Expansion.P99))
+        .build();
+
+    assertEquals(EnumSet.of(Expansion.P99), policy.resolve("api.checkout.latency"));
+    assertEquals(EnumSet.of(Expansion.P99), policy.resolve("api.cart.items.latency"));
+    assertEquals(DEFAULTS, policy.resolve("api.checkout.errors"));
+  }
+
+  @Test
+  public void mostSpecificRuleWins() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.*", EnumSet.of(Expansion.COUNT))
+        .withRule("api.checkout.*", EnumSet.of(Expansion.P999))
+        .withRule("*", EnumSet.of(Expansion.MAX))
+        .build();
+
+    assertEquals(EnumSet.of(Expansion.P999), policy.resolve("api.checkout.latency"));
+    assertEquals(EnumSet.of(Expansion.COUNT), policy.resolve("api.cart.latency"));
+    assertEquals(EnumSet.of(Expansion.MAX), policy.resolve("jvm.threads"));
+  }
+
+  @Test
+  public void firstRuleWinsOnEqualSpecificity() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("api.*", EnumSet.of(Expansion.COUNT))
+        .withRule("*.api", EnumSet.of(Expansion.MAX))
+        .build();
+
+    assertEquals(EnumSet.of(Expansion.COUNT), policy.resolve("api.api"));
+  }
+
+  @Test(timeout = 5_000)
+  public void manyWildcardsStayLinearInTheNameLength() {
+    var policy = ExpansionPolicy.builder(DEFAULTS)
+        .withRule("*a*a*a*a*a*a*a*a*a*a*b", EnumSet.of(Expansion.P99))
+        .withRule("*a*a*a*a*a*a*a*a*a*a*", EnumSet.of(Expansion.P999))
+        .build();
+    var name = "a.".repeat(200);
+
+    assertEquals(EnumSet.of(Expansion.P999), policy.resolve(name));
+    assertEquals(EnumSet.of(Expansion.P99), policy.resolve(name + "b"));
+    assertEquals(DEFAULTS, policy.resolve("a.a.a"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyPattern() {
+    ExpansionPolicy.builder(DEFAULTS).withRule("", EnumSet.of(Expansion.COUNT));
+  }
+}
@@ -0,0 +1,61 @@
+package org.coursera.metrics.datadog;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntervalScheduleTest {
+
+  @Test
+  public void firstRunIsOnTheNextBoundary() {
+    var schedule = new IntervalSchedule(10_000, 0);
+
+    assertEquals(7_000, schedule.initialDelayMillis(1_000_003_000L));
+    assertEquals(10_000, schedule.initialDelayMillis(1_000_000_000L));
+  }
+
+  @Test
+  public void firstRunIsOnTheNextSlotOfTheHost() {
+    var schedule = new IntervalSchedule(10_000, 2_500);
+
+    assertEquals(2_500, schedule.initialDelayMillis(1_000_000_000L));
+    assertEquals(9_500, schedule.initialDelayMillis(1_000_003_000L));
+    assertEquals(500, schedule.initialDelayMillis(1_000_012_000L));
+  }
+
+  @Test
+  public void timestampsFallOnTheBoundary() {
+    var schedule = new IntervalSchedule(10_000, 2_500);
+
+    assertEquals(1_000_010, schedule.timestamp(1_000_012_500L));
+    // Late and early runs keep the boundary of their slot.
+    assertEquals(1_000_010, schedule.timestamp(1_000_016_000L));
+    assertEquals(1_000_010, schedule.timestamp(1_000_011_000L));
+  }
+
+  @Test
+  public void offsetIsDeterministicAndBounded() {
+    var offset = IntervalSchedule.offsetFor("web-1", 5_000, 10_000);
+
+    assertEquals(offset, IntervalSchedule.offsetFor("web-1", 5_000, 10_000));
+    assertTrue(offset >= 0 && offset < 5_000);
+    assertTrue(IntervalSchedule.offsetFor("web-1", 60_000, 10_000) < 10_000);
+    assertEquals(0, IntervalSchedule.offsetFor("web-1", 0, 10_000));
+  }
+
+  @Test
+  public void offsetsSpreadAcrossHosts() {
+    var first = IntervalSchedule.offsetFor("web-1", 10_000, 10_000);
+    var differs = false;
+    for (var i = 2; i < 10; i++) {
+      differs |= IntervalSchedule.offsetFor("web-" + i, 10_000, 10_000) != first;
+    }
+    assertTrue(differs);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNonPositivePeriod() {
+    new IntervalSchedule(0, 0);
+  }
+}
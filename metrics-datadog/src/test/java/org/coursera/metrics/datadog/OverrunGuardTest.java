@@ -0,0 +1,201 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.DatadogReporter.Expansion;
+import org.coursera.metrics.datadog.OverrunGuard.Mode;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OverrunGuardTest {
+
+  private static final long PERIOD = 1_000_000_000L;
+
+  private final FakeClock clock = new FakeClock();
+
+  @Test
+  public void skipsCatchUpRuns() {
+    var guard = new OverrunGuard(clock, false, null);
+    var runs = new AtomicInteger();
+
+    guard.run(cycle(runs, 3 * PERIOD), PERIOD);
+    // The scheduler fires the missed runs right away.
+    guard.run(cycle(runs, 0), PERIOD);
+    guard.run(cycle(runs, 0), PERIOD);
+    clock.tick += PERIOD;
+    guard.run(cycle(runs, 0), PERIOD);
+
+    assertEquals(2, runs.get());
+    assertEquals(2, guard.getSkippedCycles());
+  }
+
+  @Test
+  public void runsOnTimeCycles() {
+    var guard = new OverrunGuard(clock, false, null);
+    var runs = new AtomicInteger();
+
+    for (var i = 0; i < 5; i++) {
+      guard.run(cycle(runs, PERIOD / 10), PERIOD);
+      clock.tick += PERIOD;
+    }
+
+    assertEquals(5, runs.get());
+    assertEquals(0, guard.getSkippedCycles());
+  }
+
+  @Test
+  public void runsEveryFixedRateSlotWhenCyclesTakeMostOfThePeriod() {
+    var guard = new OverrunGuard(clock, false, null);
+    var schedule = new IntervalSchedule(PERIOD / 1_000_000, 0);
+    var runs = new AtomicInteger();
+
+    for (var i = 0; i < 5; i++) {
+      guard.run(cycle(runs, PERIOD * 6 / 10), PERIOD, schedule);
+      // The next slot comes 0.4 periods after the cycle ended.
+      clock.tick += PERIOD * 4 / 10;
+    }
+
+    assertEquals(5, runs.get());
+    assertEquals(0, guard.getSkippedCycles());
+  }
+
+  @Test
+  public void skipsFixedRateCatchUpRunsForReportedIntervals() {
+    var guard = new OverrunGuard(clock, false, null);
+    var schedule = new IntervalSchedule(PERIOD / 1_000_000, 0);
+    var runs = new AtomicInteger();
+
+    guard.run(cycle(runs, 3 * PERIOD), PERIOD, schedule);
+    // The first missed run reports the current interval, the others would repeat it.
+    guard.run(cycle(runs, 0), PERIOD, schedule);
+    guard.run(cycle(runs, 0), PERIOD, schedule);
+    guard.run(cycle(runs, 0), PERIOD, schedule);
+    clock.tick += PERIOD;
+    guard.run(cycle(runs, 0), PERIOD, schedule);
+
+    assertEquals(3, runs.get());
+    assertEquals(2, guard.getSkippedCycles());
+  }
+
+  @Test
+  public void degradesUnderSustainedOverrunAndRecovers() {
+    var selfRegistry = new MetricRegistry();
+    var guard = new OverrunGuard(clock, true, new SelfMetrics(selfRegistry));
+
+    overrun(guard, OverrunGuard.DEGRADE_AFTER - 1);
+    assertEquals(Mode.FULL, guard.getMode());
+    overrun(guard, 1);
+    assertEquals(Mode.REDUCED, guard.getMode());
+    overrun(guard, OverrunGuard.DEGRADE_AFTER * 3);
+    assertEquals(Mode.MINIMAL, guard.getMode());
+
+    recover(guard, OverrunGuard.RECOVER_AFTER);
+    assertEquals(Mode.REDUCED, guard.getMode());
+    recover(guard, OverrunGuard.RECOVER_AFTER);
+    assertEquals(Mode.FULL, guard.getMode());
+
+    assertEquals(4, guard.getTransitions());
+    assertEquals(4, selfRegistry.counter("datadog.reporter.mode.changes").getCount());
+  }
+
+  @Test
+  public void staysInFullModeWithoutDegradation() {
+    var guard = new OverrunGuard(clock, false, null);
+
+    overrun(guard, OverrunGuard.DEGRADE_AFTER * 5);
+
+    assertEquals(Mode.FULL, guard.getMode());
+    assertEquals(0, guard.getTransitions());
+  }
+
+  @Test
+  public void restrictsExpansionsByMode() {
+    var guard = new OverrunGuard(clock, true, null);
+    var expansions = EnumSet.of(Expansion.COUNT, Expansion.P999, Expansion.P99, Expansion.MEDIAN);
+
+    assertEquals(expansions, guard.restrict(expansions));
+    overrun(guard, OverrunGuard.DEGRADE_AFTER);
+    assertEquals(EnumSet.of(Expansion.COUNT, Expansion.P99), guard.restrict(expansions));
+    assertEquals(EnumSet.of(Expansion.COUNT, Expansion.MAX),
+        guard.restrict(EnumSet.of(Expansion.COUNT, Expansion.MAX)));
+  }
+
+  @Test
+  public void minimalModeLeavesOutUnchangedMetrics() throws Exception {
+    var registry = new MetricRegistry();
+    var changing = registry.counter("changing");
+    registry.counter("unchanged").inc();
+    registry.timer("latency");
+    var transport = mock(Transport.class);
+    var request = mock(Transport.Request.class);
+    when(transport.prepare()).thenReturn(new ReplayingRequest(request));
+    var reporter = DatadogReporter.forRegistry(registry)
+        .withHost("host")
+        .withClock(clock)
+        .withDegradeOnOverrun(true)
+        .withTransport(transport)
+        .build();
+    var guard = reporter.getOverrunGuard();
+
+    overrun(guard, OverrunGuard.DEGRADE_AFTER * 2);
+    assertEquals(Mode.MINIMAL, guard.getMode());
+    reporter.report();
+    changing.inc();
+    registry.timer("latency").update(Duration.ofMillis(5));
+    reporter.report();
+
+    var gauges = ArgumentCaptor.forClass(DatadogGauge.class);
+    verify(request, atLeastOnce()).addGauge(gauges.capture());
+    var second = gauges.getAllValues().subList(gauges.getAllValues().size() - 3, gauges.getAllValues().size());
+    assertEquals("changing", second.get(0).getMetric());
+    assertEquals("latency.p99", second.get(1).getMetric());
+    assertEquals("latency.count", second.get(2).getMetric());
+  }
+
+  private void overrun(OverrunGuard guard, int cycles) {
+    for (var i = 0; i < cycles; i++) {
+      guard.run(cycle(new AtomicInteger(), 2 * PERIOD), PERIOD);
+      clock.tick += PERIOD;
+    }
+  }
+
+  private void recover(OverrunGuard guard, int cycles) {
+    for (var i = 0; i < cycles; i++) {
+      guard.run(cycle(new AtomicInteger(), PERIOD / 10), PERIOD);
+      clock.tick += PERIOD;
+    }
+  }
+
+  private Runnable cycle(AtomicInteger runs, long duration) {
+    return () -> {
+      runs.incrementAndGet();
+      clock.tick += duration;
+    };
+  }
+
+  private static class FakeClock extends Clock {
+    private long tick = 1;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+
+    @Override
+    public long getTime() {
+      return 1_000_000_000_000L + tick / 1_000_000;
+    }
+  }
+}
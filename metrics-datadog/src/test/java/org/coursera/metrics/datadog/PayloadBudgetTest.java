@@ -0,0 +1,137 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.PayloadBudget.Priority;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class PayloadBudgetTest {
+  private static final String HOST = "hostname";
+  private static final long TIMESTAMP = 1000L;
+  private static final List<String> TAGS = List.of("env:prod");
+
+  private final Transport.Request request = mock(Transport.Request.class);
+
+  @Test
+  public void forwardsEverythingWithinBudget() throws Exception {
+    var budget = new PayloadBudget(10, 0);
+    var budgeted = budget.wrap(new ReplayingRequest(request), TIMESTAMP, HOST, TAGS);
+
+    budgeted.add(gauge("a"), Priority.LOW);
+    budgeted.addCounter(new DatadogCounter("b", 1L, TIMESTAMP, HOST, TAGS));
+    budgeted.send();
+
+    var inOrder = inOrder(request);
+    inOrder.verify(request).addGauge(gauge("a"));
+    inOrder.verify(request).addCounter(new DatadogCounter("b", 1L, TIMESTAMP, HOST, TAGS));
+    inOrder.verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 0, TIMESTAMP, HOST, TAGS));
+    inOrder.verify(request).send();
+    verifyNoMoreInteractions(request);
+    assertEquals(0, budget.getShedSeries());
+  }
+
+  @Test
+  public void shedsLowestPriorityFirstAndKeepsOrder() throws Exception {
+    var budget = new PayloadBudget(4, 0);
+    var budgeted = budget.wrap(new ReplayingRequest(request), TIMESTAMP, HOST, TAGS);
+
+    budgeted.add(gauge("high1"), Priority.HIGH);
+    budgeted.add(gauge("low1"), Priority.LOW);
+    budgeted.add(gauge("normal1"), Priority.NORMAL);
+    budgeted.add(gauge("low2"), Priority.LOW);
+    budgeted.add(gauge("high2"), Priority.HIGH);
+    budgeted.send();
+
+    // Three series fit next to the shed gauge: both low priority series go.
+    var inOrder = inOrder(request);
+    inOrder.verify(request).addGauge(gauge("high1"));
+    inOrder.verify(request).addGauge(gauge("normal1"));
+    inOrder.verify(request).addGauge(gauge("high2"));
+    inOrder.verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 2, TIMESTAMP, HOST, TAGS));
+    inOrder.verify(request).send();
+    verifyNoMoreInteractions(request);
+    assertEquals(2, budget.getShedSeries());
+  }
+
+  @Test
+  public void shedsLatestSeriesWithinAPriority() throws Exception {
+    var budget = new PayloadBudget(3, 0);
+    var budgeted = budget.wrap(new ReplayingRequest(request), TIMESTAMP, HOST, TAGS);
+
+    budgeted.add(gauge("normal1"), Priority.NORMAL);
+    budgeted.add(gauge("normal2"), Priority.NORMAL);
+    budgeted.add(gauge("normal3"), Priority.NORMAL);
+    budgeted.send();
+
+    verify(request).addGauge(gauge("normal1"));
+    verify(request).addGauge(gauge("normal2"));
+    verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 1, TIMESTAMP, HOST, TAGS));
+    verify(request).send();
+    verifyNoMoreInteractions(request);
+  }
+
+  @Test
+  public void enforcesByteBudget() throws Exception {
+    var seriesBytes = PayloadBudget.estimateBytes(gauge("series0"));
+    var shedBytes = PayloadBudget.estimateBytes(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 0, TIMESTAMP, HOST, TAGS));
+    var budget = new PayloadBudget(0, shedBytes + 2L * seriesBytes);
+    var budgeted = budget.wrap(new ReplayingRequest(request), TIMESTAMP, HOST, TAGS);
+
+    for (var i = 0; i < 5; i++) {
+      budgeted.add(gauge("series" + i), Priority.NORMAL);
+    }
+    budgeted.send();
+
+    verify(request).addGauge(gauge("series0"));
+    verify(request).addGauge(gauge("series1"));
+    verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 3, TIMESTAMP, HOST, TAGS));
+    verify(request).send();
+    verifyNoMoreInteractions(request);
+    assertEquals(3, budget.getShedSeries());
+  }
+
+  @Test
+  public void reportsNoSheddingAfterASheddingCycle() throws Exception {
+    var budget = new PayloadBudget(2, 0);
+
+    var overBudget = budget.wrap(new ReplayingRequest(request), TIMESTAMP, HOST, TAGS);
+    overBudget.add(gauge("a"), Priority.NORMAL);
+    overBudget.add(gauge("b"), Priority.NORMAL);
+    overBudget.send();
+
+    var withinBudget = budget.wrap(new ReplayingRequest(request), TIMESTAMP + 10, HOST, TAGS);
+    withinBudget.add(gauge("a"), Priority.NORMAL);
+    withinBudget.send();
+
+    // Without the second point the shed gauge would keep showing the last shedding cycle.
+    var inOrder = inOrder(request);
+    inOrder.verify(request).addGauge(gauge("a"));
+    inOrder.verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 1, TIMESTAMP, HOST, TAGS));
+    inOrder.verify(request).send();
+    inOrder.verify(request).addGauge(gauge("a"));
+    inOrder.verify(request).addGauge(
+        new DatadogGauge(PayloadBudget.SHED_SERIES_METRIC, 0, TIMESTAMP + 10, HOST, TAGS));
+    inOrder.verify(request).send();
+    verifyNoMoreInteractions(request);
+    assertEquals(1, budget.getShedSeries());
+  }
+
+  private static DatadogGauge gauge(String name) {
+    return new DatadogGauge(name, 1L, TIMESTAMP, HOST, TAGS);
+  }
+}
@@ -0,0 +1,51 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+
+import java.io.IOException;
+
+/**
+ * Hands each row of a batch to a mocked request as a series, so that tests can verify the
+ * series a report produced.
+ */
+class ReplayingRequest implements Transport.Request {
+  private final Transport.Request delegate;
+
+  ReplayingRequest(Transport.Request delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void addBatch(SeriesBatch batch) throws IOException {
+    Transport.Request.addEachSeries(batch, delegate);
+  }
+
+  @Override
+  public void addGauge(DatadogGauge gauge) throws IOException {
+    delegate.addGauge(gauge);
+  }
+
+  @Override
+  public void addCounter(DatadogCounter counter) throws IOException {
+    delegate.addCounter(counter);
+  }
+
+  @Override
+  public void addRate(DatadogRate rate) throws IOException {
+    delegate.addRate(rate);
+  }
+
+  @Override
+  public void send() throws Exception {
+    delegate.send();
+  }
+
+  @Override
+  public void abort() {
+    delegate.abort();
+  }
+}
@@ -0,0 +1,90 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SelfMetricsTest {
+
+  @Test
+  public void reporterPublishesCycleMetrics() throws Exception {
+    var registry = new MetricRegistry();
+    registry.counter("requests").inc();
+    registry.meter("events").mark();
+    var selfRegistry = new MetricRegistry();
+    var reporter = reporter(registry, new SelfMetrics(selfRegistry));
+
+    reporter.report();
+    reporter.report();
+
+    assertEquals(2, selfRegistry.timer("datadog.reporter.collect").getCount());
+    assertEquals(2, selfRegistry.timer("datadog.reporter.send").getCount());
+    var series = selfRegistry.histogram("datadog.reporter.series");
+    assertEquals(2, series.getCount());
+    assertEquals(3, series.getSnapshot().getMax());
+  }
+
+  @Test
+  public void reportingIntoTheReportedRegistryDoesNotRegisterMetrics() throws Exception {
+    var registry = new MetricRegistry();
+    registry.counter("requests").inc();
+    var reporter = reporter(registry, new SelfMetrics(registry, "self"));
+    var metrics = registry.getNames();
+
+    reporter.report();
+    reporter.report();
+
+    assertEquals(metrics, registry.getNames());
+    assertEquals(2, registry.timer("self.collect").getCount());
+  }
+
+  @Test
+  public void recordingDoesNotAllocate() {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    var selfMetrics = new SelfMetrics(new MetricRegistry());
+    for (var i = 0; i < 20_000; i++) {
+      record(selfMetrics, i);
+    }
+
+    var before = threads.getCurrentThreadAllocatedBytes();
+    for (var i = 0; i < 10_000; i++) {
+      record(selfMetrics, i);
+    }
+    var allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+  }
+
+  private static void record(SelfMetrics selfMetrics, int i) {
+    selfMetrics.recordCollect(i);
+    selfMetrics.recordSerialize(i);
+    selfMetrics.recordSend(i);
+    selfMetrics.recordSeries(i);
+    selfMetrics.recordPayload(i, i / 2);
+    selfMetrics.recordHttpStatus(202);
+    selfMetrics.recordDropped(1);
+  }
+
+  private static DatadogReporter reporter(MetricRegistry registry, SelfMetrics selfMetrics)
+      throws Exception {
+    var transport = mock(Transport.class);
+    when(transport.prepare()).thenReturn(mock(Transport.Request.class));
+    return DatadogReporter.forRegistry(registry)
+        .withHost("host")
+        .withExpansions(EnumSet.of(DatadogReporter.Expansion.COUNT, DatadogReporter.Expansion.RATE_1_MINUTE))
+        .withSelfMetrics(selfMetrics)
+        .withTransport(transport)
+        .build();
+  }
+}
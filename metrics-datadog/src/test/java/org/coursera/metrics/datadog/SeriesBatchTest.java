@@ -0,0 +1,121 @@
+package org.coursera.metrics.datadog;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SeriesBatchTest {
+
+  @Test
+  public void sharesTagSetsAndGrows() {
+    var batch = new SeriesBatch("host", 1);
+    var tags = List.of("env:prod");
+    var first = batch.addTagSet(tags);
+    assertEquals(first, batch.addTagSet(tags));
+    var second = batch.addTagSet(List.of("env:prod"));
+
+    for (var i = 0; i < 10; i++) {
+      batch.add(batch.addMetric("metric" + i), i % 2 == 0 ? first : second, SeriesBatch.GAUGE, 1000L + i, i);
+    }
+
+    assertEquals(10, batch.size());
+    assertEquals(2, batch.tagSetCount());
+    assertEquals("metric9", batch.metric(9));
+    assertEquals(second, batch.tagSetId(9));
+    assertEquals(1009L, batch.timestamp(9));
+    assertEquals(9.0, batch.value(9), 0);
+
+    batch.clear();
+    assertEquals(0, batch.size());
+    assertEquals(0, batch.tagSetCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownMetrics() {
+    var batch = new SeriesBatch("host");
+    batch.add(0, batch.addTagSet(List.of()), SeriesBatch.GAUGE, 1000L, 1);
+  }
+
+  @Test
+  public void addsRowsAsSeriesWithTheirNamesAsGiven() throws Exception {
+    var batch = new SeriesBatch("host");
+    var tags = batch.addTagSet(List.of("env:prod"));
+    batch.add(batch.addMetric("queue.size"), tags, SeriesBatch.GAUGE, 1000L, 7.5);
+    batch.add(batch.addMetric("requests"), tags, SeriesBatch.COUNTER, 1000L, 42);
+    batch.add(batch.addMetric("hits"), tags, SeriesBatch.RATE, 1000L, 3);
+    batch.add(batch.addMetric("queue[user:1]"), tags, SeriesBatch.GAUGE, 1000L, 1);
+
+    var series = new ArrayList<DatadogSeries<?>>();
+    Transport.Request.addEachSeries(batch, new Transport.Request() {
+      @Override
+      public void addBatch(SeriesBatch batch) {
+        throw new AssertionError("rows are added as series");
+      }
+
+      @Override
+      public void addGauge(DatadogGauge gauge) {
+        series.add(gauge);
+      }
+
+      @Override
+      public void addCounter(DatadogCounter counter) {
+        series.add(counter);
+      }
+
+      @Override
+      public void addRate(DatadogRate rate) {
+        series.add(rate);
+      }
+
+      @Override
+      public void send() {
+      }
+    });
+
+    assertEquals(List.of(
+        new DatadogGauge("queue.size", 7.5, 1000L, "host", List.of("env:prod")),
+        new DatadogCounter("requests", 42L, 1000L, "host", List.of("env:prod")),
+        new DatadogRate("hits", 3L, 1000L, "host", List.of("env:prod"))), series.subList(0, 3));
+    assertEquals("queue[user:1]", series.get(3).getMetric());
+    assertEquals(List.of("env:prod"), series.get(3).getTags());
+  }
+
+  @Test
+  public void addsSeriesAsBatchesOfOneByDefault() throws Exception {
+    var batches = new ArrayList<SeriesBatch>();
+    var request = new Transport.Request() {
+      @Override
+      public void addBatch(SeriesBatch batch) {
+        batches.add(batch);
+      }
+
+      @Override
+      public void send() {
+      }
+    };
+
+    request.addGauge(new DatadogGauge("queue[user:1]", 7.5, 1000L, "host", List.of("env:prod")));
+    request.addCounter(new DatadogCounter("requests", 42L, 1000L, "host", List.of()));
+
+    assertEquals(2, batches.size());
+    var gauge = batches.get(0);
+    assertEquals("host", gauge.getHost());
+    assertEquals(1, gauge.size());
+    assertEquals("queue", gauge.metric(0));
+    assertEquals(List.of("user:1", "env:prod"), gauge.tags(0));
+    assertEquals(SeriesBatch.GAUGE, gauge.type(0));
+    assertEquals(1000L, gauge.timestamp(0));
+    assertEquals(7.5, gauge.value(0), 0);
+    assertEquals(SeriesBatch.COUNTER, batches.get(1).type(0));
+    assertEquals(42.0, batches.get(1).value(0), 0);
+  }
+}
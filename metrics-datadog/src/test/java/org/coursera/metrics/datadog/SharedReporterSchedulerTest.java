@@ -0,0 +1,168 @@
+package org.coursera.metrics.datadog;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedReporterSchedulerTest {
+
+  private final SharedReporterScheduler scheduler = new SharedReporterScheduler();
+  private final List<DatadogReporter> reporters = new ArrayList<>();
+
+  @After
+  public void tearDown() {
+    reporters.forEach(DatadogReporter::stop);
+    scheduler.close();
+  }
+
+  @Test
+  public void manyReportersShareOneThread() throws Exception {
+    var transport = new RecordingTransport(0);
+    var tenants = 200;
+    for (var i = 0; i < tenants; i++) {
+      var registry = new MetricRegistry();
+      registry.counter("requests").inc(i);
+      var reporter = DatadogReporter.forRegistry(registry)
+          .withHost("tenant-" + i)
+          .withTransport(transport)
+          .withScheduler(scheduler)
+          .build();
+      reporters.add(reporter);
+      reporter.start(20, TimeUnit.MILLISECONDS);
+    }
+
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (transport.hosts.size() < tenants && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(tenants, transport.hosts.size());
+    assertEquals(0, transport.platformThreadSends.get());
+    var reporterThreads = Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().startsWith("datadog-reporter"))
+        .count();
+    assertEquals(1, reporterThreads);
+  }
+
+  @Test
+  public void skipsCyclesWhileThePreviousIsRunning() throws Exception {
+    var transport = new RecordingTransport(200);
+    var registry = new MetricRegistry();
+    registry.counter("requests").inc();
+    var reporter = DatadogReporter.forRegistry(registry)
+        .withTransport(transport)
+        .withScheduler(scheduler)
+        .build();
+    reporters.add(reporter);
+
+    reporter.start(20, TimeUnit.MILLISECONDS);
+    Thread.sleep(500);
+
+    assertTrue(reporter.getOverrunGuard().getSkippedCycles() > 0);
+    assertEquals(1, transport.maxConcurrentSends.get());
+  }
+
+  @Test
+  public void capsConcurrentCycles() throws Exception {
+    var limited = new SharedReporterScheduler(2);
+    var transport = new RecordingTransport(100);
+    try {
+      for (var i = 0; i < 10; i++) {
+        var registry = new MetricRegistry();
+        registry.counter("requests").inc();
+        var reporter = DatadogReporter.forRegistry(registry)
+            .withHost("tenant-" + i)
+            .withTransport(transport)
+            .withScheduler(limited)
+            .build();
+        reporters.add(reporter);
+        reporter.start(20, TimeUnit.MILLISECONDS);
+      }
+
+      var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (transport.hosts.size() < 10 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+
+      assertEquals(10, transport.hosts.size());
+      // Fewer may run at once on a machine with fewer carrier threads.
+      assertTrue(transport.maxConcurrentSends.get() <= 2);
+    } finally {
+      reporters.forEach(DatadogReporter::stop);
+      limited.close();
+    }
+  }
+
+  private static class RecordingTransport implements Transport {
+    private final long sendMillis;
+    private final Set<String> hosts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger platformThreadSends = new AtomicInteger();
+    private final AtomicInteger concurrentSends = new AtomicInteger();
+    private final AtomicInteger maxConcurrentSends = new AtomicInteger();
+
+    RecordingTransport(long sendMillis) {
+      this.sendMillis = sendMillis;
+    }
+
+    @Override
+    public Request prepare() {
+      return new Request() {
+        private final List<String> requestHosts = new ArrayList<>();
+
+        @Override
+        public void addBatch(SeriesBatch batch) {
+          for (var row = 0; row < batch.size(); row++) {
+            requestHosts.add(batch.getHost());
+          }
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) {
+          requestHosts.add(gauge.getHost());
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) {
+          requestHosts.add(counter.getHost());
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) {
+        }
+
+        @Override
+        public void send() throws Exception {
+          maxConcurrentSends.accumulateAndGet(concurrentSends.incrementAndGet(), Math::max);
+          try {
+            if (!Thread.currentThread().isVirtual()) {
+              platformThreadSends.incrementAndGet();
+            }
+            Thread.sleep(sendMillis);
+            requestHosts.stream().filter(host -> host != null).forEach(hosts::add);
+          } finally {
+            concurrentSends.decrementAndGet();
+          }
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package org.coursera.metrics.datadog.jfr;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.coursera.metrics.datadog.DatadogReporter;
+import org.coursera.metrics.datadog.transport.FakeDatadogIntake;
+import org.coursera.metrics.datadog.transport.HttpTransport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatadogEventsTest {
+
+  private FakeDatadogIntake intake;
+  private DatadogReporter reporter;
+
+  @Before
+  public void setUp() throws Exception {
+    intake = new FakeDatadogIntake();
+    var registry = new MetricRegistry();
+    registry.counter("requests").inc(3);
+    registry.register("fast", (Gauge<Integer>) () -> 1);
+    registry.register("slow", (Gauge<Integer>) () -> {
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return 2;
+    });
+    reporter = DatadogReporter.forRegistry(registry)
+        .withHost("host")
+        .withExpansions(EnumSet.of(DatadogReporter.Expansion.COUNT))
+        .withTransport(new HttpTransport.Builder()
+            .withSeriesUrl(intake.getSeriesUrl())
+            .withApiKey("test-key")
+            .withCompression(true)
+            .build())
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    intake.close();
+  }
+
+  @Test
+  public void emitsEventsDuringReport() throws Exception {
+    var events = record(() -> reporter.report(), Duration.ofMillis(10));
+
+    var cycles = ofType(events, "org.coursera.metrics.datadog.ReportCycle");
+    assertEquals(1, cycles.size());
+    assertEquals(3, cycles.getFirst().getInt("seriesCount"));
+    assertTrue(cycles.getFirst().getLong("collectDuration") >= Duration.ofMillis(20).toNanos());
+    assertTrue(cycles.getFirst().getLong("sendDuration") > 0);
+
+    var sends = ofType(events, "org.coursera.metrics.datadog.HttpSend");
+    assertEquals(1, sends.size());
+    assertEquals(202, sends.getFirst().getInt("status"));
+    assertEquals(3, sends.getFirst().getInt("seriesCount"));
+    assertTrue(sends.getFirst().getLong("compressedBytes") < sends.getFirst().getLong("bytes"));
+    assertEquals(intake.getSeriesUrl(), sends.getFirst().getString("url"));
+
+    var gauges = ofType(events, "org.coursera.metrics.datadog.GaugeEvaluation");
+    assertEquals(1, gauges.size());
+    assertEquals("slow", gauges.getFirst().getString("metric"));
+  }
+
+  @Test
+  public void eventsAreDisabledWhenNotRecording() {
+    reporter.report();
+
+    assertFalse(DatadogReportCycle.isEventEnabled());
+    assertFalse(DatadogHttpSend.isEventEnabled());
+    assertFalse(DatadogGaugeEvaluation.isEventEnabled());
+    assertEquals(1, intake.getRequestCount());
+  }
+
+  private static List<RecordedEvent> record(Runnable action, Duration gaugeThreshold) throws Exception {
+    var file = Files.createTempFile("datadog", ".jfr");
+    try (var recording = new Recording()) {
+      recording.enable(DatadogReportCycle.class);
+      recording.enable(DatadogHttpSend.class);
+      recording.enable(DatadogGaugeEvaluation.class).withThreshold(gaugeThreshold);
+      recording.start();
+      action.run();
+      recording.stop();
+      recording.dump(file);
+      return RecordingFile.readAllEvents(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static List<RecordedEvent> ofType(List<RecordedEvent> events, String name) {
+    return events.stream().filter(e -> e.getEventType().getName().equals(name)).toList();
+  }
+}
@@ -0,0 +1,270 @@
+package org.coursera.metrics.datadog.relay;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.RelayTransport;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatadogRelayTest {
+
+  private static final long EPOCH = 1_700_000_000L;
+
+  private MetricRegistry registry;
+  private CapturingTransport upstream;
+  private DatadogRelay relay;
+
+  @Before
+  public void setUp() {
+    registry = new MetricRegistry();
+    upstream = new CapturingTransport();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (relay != null) {
+      relay.close();
+    }
+  }
+
+  @Test
+  public void mergesReportsFromSeveralReporters() throws Exception {
+    relay = udpRelay().build().start();
+
+    try (var first = relayTransport(); var second = relayTransport()) {
+      send(first, new DatadogCounter("requests", 3L, EPOCH, "host", List.of("env:prod")),
+          new DatadogGauge("threads", 10, EPOCH, "host", List.of()));
+      awaitReceived(2);
+      send(second, new DatadogCounter("requests", 4L, EPOCH, "host", List.of("env:prod")),
+          new DatadogGauge("threads", 12, EPOCH, "host", List.of()),
+          new DatadogRate("hits", 5L, EPOCH, null, List.of()));
+      awaitReceived(5);
+    }
+    relay.flush();
+
+    assertEquals(1, upstream.requests.size());
+    assertEquals(List.of(
+        new DatadogCounter("requests", 7L, EPOCH, "host", List.of("env:prod")).toString(),
+        new DatadogGauge("threads", 12.0, EPOCH, "host", List.of()).toString(),
+        new DatadogRate("hits", 5L, EPOCH, null, List.of()).toString()),
+        upstream.requests.getFirst().stream().map(Object::toString).toList());
+    assertEquals("rate", upstream.requests.getFirst().get(2).getType());
+    assertEquals(3, registry.counter("datadog.relay.sent").getCount());
+  }
+
+  @Test
+  public void receivesOverAUnixSocket() throws Exception {
+    var socket = Files.createTempDirectory("relay").resolve("relay.socket");
+    relay = new DatadogRelay.Builder()
+        .withUpstream(upstream)
+        .withSocket(socket)
+        .withMetricRegistry(registry)
+        .build()
+        .start();
+
+    try (var transport = new RelayTransport.Builder().withSocket(socket).build()) {
+      send(transport, new DatadogGauge("threads", 10, EPOCH, "host", List.of()));
+      send(transport, new DatadogGauge("threads", 11, EPOCH + 10, "host", List.of()));
+      awaitReceived(2);
+    }
+    relay.flush();
+
+    assertEquals(2, upstream.requests.getFirst().size());
+  }
+
+  @Test
+  public void disconnectsClientsSendingOversizedFrames() throws Exception {
+    var socket = Files.createTempDirectory("relay").resolve("relay.socket");
+    relay = new DatadogRelay.Builder()
+        .withUpstream(upstream)
+        .withSocket(socket)
+        .withMaxFrameSize(1000)
+        .withMetricRegistry(registry)
+        .build()
+        .start();
+
+    try (var client = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      // No newline: a reader without a bound would keep buffering.
+      var oversized = ByteBuffer.wrap(new byte[10_000]);
+      while (oversized.hasRemaining()) {
+        client.write(oversized);
+      }
+      assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+    }
+    assertEquals(1, registry.counter("datadog.relay.malformed").getCount());
+
+    try (var transport = new RelayTransport.Builder().withSocket(socket).build()) {
+      send(transport, new DatadogGauge("threads", 10, EPOCH, "host", List.of()));
+      awaitReceived(1);
+    }
+  }
+
+  @Test
+  public void splitsReportsThatDoNotFitInADatagram() throws Exception {
+    relay = udpRelay().build().start();
+
+    try (var transport = new RelayTransport.Builder()
+        .withAddress("127.0.0.1", relay.getUdpAddress().getPort())
+        .withMaxFrameSize(1000)
+        .build()) {
+      var series = new ArrayList<DatadogSeries<?>>();
+      for (var i = 0; i < 100; i++) {
+        series.add(new DatadogGauge("gauge" + i, i, EPOCH, "host", List.of("env:prod")));
+      }
+      send(transport, series.toArray(new DatadogSeries<?>[0]));
+      awaitReceived(100);
+    }
+  }
+
+  @Test
+  public void batchesUpstreamRequests() throws Exception {
+    relay = udpRelay().withMaxBatchSeries(2).build();
+
+    relay.accept(frame(5), frame(5).length);
+    relay.flush();
+
+    assertEquals(List.of(2, 2, 1), upstream.requests.stream().map(List::size).toList());
+  }
+
+  @Test
+  public void countsMalformedFrames() throws Exception {
+    relay = udpRelay().build();
+
+    var garbage = "{\"series\":[{".getBytes(StandardCharsets.UTF_8);
+    relay.accept(garbage, garbage.length);
+    relay.flush();
+
+    assertEquals(1, registry.counter("datadog.relay.malformed").getCount());
+    assertTrue(upstream.requests.isEmpty());
+  }
+
+  @Test
+  public void keepsReceivingAfterSeriesWithoutPoints() throws Exception {
+    relay = udpRelay().build().start();
+
+    try (var channel = DatagramChannel.open(); var transport = relayTransport()) {
+      for (var json : List.of("{\"series\":[{\"metric\":\"x\"}]}", "{\"series\":[{\"points\":[]}]}",
+          "{\"series\":[{\"metric\":\"x\",\"points\":[null]}]}")) {
+        channel.send(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)), relay.getUdpAddress());
+      }
+      send(transport, new DatadogGauge("threads", 10, EPOCH, "host", List.of()));
+      awaitReceived(1);
+    }
+    relay.flush();
+
+    assertEquals(3, registry.counter("datadog.relay.malformed").getCount());
+    assertEquals(1, upstream.requests.getFirst().size());
+  }
+
+  private DatadogRelay.Builder udpRelay() {
+    return new DatadogRelay.Builder()
+        .withUpstream(upstream)
+        .withUdpAddress(new InetSocketAddress("127.0.0.1", 0))
+        .withFlushInterval(1, TimeUnit.HOURS)
+        .withMetricRegistry(registry);
+  }
+
+  private RelayTransport relayTransport() throws Exception {
+    return new RelayTransport.Builder()
+        .withAddress("127.0.0.1", relay.getUdpAddress().getPort())
+        .build();
+  }
+
+  private static byte[] frame(int gauges) {
+    var json = new StringBuilder("{\"series\":[");
+    for (var i = 0; i < gauges; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"metric\":\"gauge").append(i).append("\",\"points\":[{\"timestamp\":").append(EPOCH)
+          .append(",\"value\":1.0}],\"tags\":[],\"type\":3,\"resources\":[{\"name\":\"host\",\"type\":\"host\"}]}");
+    }
+    return json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static void send(Transport transport, DatadogSeries<?>... series) throws Exception {
+    var request = transport.prepare();
+    for (var item : series) {
+      if (item instanceof DatadogCounter counter) {
+        request.addCounter(counter);
+      } else if (item instanceof DatadogRate rate) {
+        request.addRate(rate);
+      } else {
+        request.addGauge((DatadogGauge) item);
+      }
+    }
+    request.send();
+  }
+
+  private void awaitReceived(long count) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (registry.counter("datadog.relay.received").getCount() < count) {
+      if (System.nanoTime() > deadline) {
+        fail("received " + registry.counter("datadog.relay.received").getCount() + " of " + count + " series");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static class CapturingTransport implements Transport {
+    private final List<List<DatadogSeries<?>>> requests = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Request prepare() {
+      var series = new ArrayList<DatadogSeries<?>>();
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          Transport.Request.addEachSeries(batch, this);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) {
+          series.add(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) {
+          series.add(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) {
+          series.add(rate);
+        }
+
+        @Override
+        public void send() {
+          requests.add(series);
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
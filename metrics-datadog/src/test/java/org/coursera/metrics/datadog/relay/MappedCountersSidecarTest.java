@@ -0,0 +1,90 @@
+package org.coursera.metrics.datadog.relay;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.transport.MappedCountersTransport;
+import org.coursera.metrics.datadog.transport.Transport;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedCountersSidecarTest {
+
+  private static final long EPOCH = 1_700_000_000L;
+
+  @Test
+  public void forwardsEveryFileInOneRequest() throws Exception {
+    var directory = Files.createTempDirectory("counters");
+    var first = new MappedCountersTransport.Builder().withFile(directory.resolve("first.counters")).build();
+    var second = new MappedCountersTransport.Builder().withFile(directory.resolve("second.counters")).build();
+    var upstream = new CapturingTransport();
+    var sidecar = new MappedCountersSidecar.Builder()
+        .withFile(first.getFile())
+        .withFile(second.getFile())
+        .withFile(directory.resolve("missing.counters"))
+        .withUpstream(upstream)
+        .build();
+
+    var request = first.prepare();
+    request.addCounter(new DatadogCounter("requests", 3L, EPOCH, "host", List.of("env:prod")));
+    request.send();
+    request = second.prepare();
+    request.addGauge(new DatadogGauge("threads", 10, EPOCH, "host", List.of()));
+    request.send();
+
+    assertEquals(2, sidecar.forward());
+    assertEquals(0, sidecar.forward());
+    sidecar.close();
+
+    assertEquals(1, upstream.requests.size());
+    assertEquals(List.of("requests", "threads"),
+        upstream.requests.getFirst().stream().map(DatadogSeries::getMetric).toList());
+  }
+
+  private static class CapturingTransport implements Transport {
+    private final List<List<DatadogSeries<?>>> requests = new ArrayList<>();
+
+    @Override
+    public Request prepare() {
+      var series = new ArrayList<DatadogSeries<?>>();
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          Transport.Request.addEachSeries(batch, this);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) {
+          series.add(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) {
+          series.add(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) {
+          series.add(rate);
+        }
+
+        @Override
+        public void send() {
+          requests.add(series);
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
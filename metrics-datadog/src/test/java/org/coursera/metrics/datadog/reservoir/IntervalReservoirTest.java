@@ -0,0 +1,98 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntervalReservoirTest {
+
+  @Test
+  public void emptyIntervalHasZeroStatistics() {
+    var snapshot = (IntervalSnapshot) new IntervalReservoir().getSnapshot();
+
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.size());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0.0, snapshot.getMedian(), 0.0);
+  }
+
+  @Test
+  public void reportsEachIntervalOnce() {
+    var reservoir = new IntervalReservoir();
+    for (var i = 1; i <= 100; i++) {
+      reservoir.update(i);
+    }
+
+    var first = (IntervalSnapshot) reservoir.getSnapshot();
+    assertEquals(100, first.getCount());
+    assertEquals(1, first.getMin());
+    assertEquals(100, first.getMax());
+    assertEquals(50.5, first.getMean(), 0.0);
+    assertEquals(50.5, first.getMedian(), 0.0);
+
+    reservoir.update(500);
+    var second = (IntervalSnapshot) reservoir.getSnapshot();
+    assertEquals(1, second.getCount());
+    assertEquals(500, second.getMin());
+    assertEquals(500, second.getMax());
+
+    assertEquals(0, ((IntervalSnapshot) reservoir.getSnapshot()).getCount());
+  }
+
+  @Test
+  public void minAndMaxAreExactBeyondTheSample() {
+    var reservoir = new IntervalReservoir(16);
+    for (var i = 0; i < 10_000; i++) {
+      reservoir.update(1000 + i);
+    }
+    reservoir.update(1);
+    reservoir.update(1_000_000);
+
+    var snapshot = (IntervalSnapshot) reservoir.getSnapshot();
+    assertEquals(10_002, snapshot.getCount());
+    assertEquals(16, snapshot.size());
+    assertEquals(1, snapshot.getMin());
+    assertEquals(1_000_000, snapshot.getMax());
+  }
+
+  @Test
+  public void countsEveryValueExactlyOnceUnderConcurrency() throws Exception {
+    var reservoir = new IntervalReservoir();
+    var threads = 8;
+    var updates = 200_000;
+    var start = new CountDownLatch(1);
+    var done = new AtomicBoolean();
+    var writers = new ArrayList<Thread>();
+    for (var t = 0; t < threads; t++) {
+      var writer = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (var i = 0; i < updates; i++) {
+          reservoir.update(i);
+        }
+      });
+      writer.start();
+      writers.add(writer);
+    }
+
+    start.countDown();
+    var total = 0L;
+    while (!done.get()) {
+      total += ((IntervalSnapshot) reservoir.getSnapshot()).getCount();
+      done.set(writers.stream().noneMatch(Thread::isAlive));
+    }
+    for (var writer : writers) {
+      writer.join();
+    }
+    total += ((IntervalSnapshot) reservoir.getSnapshot()).getCount();
+
+    assertEquals((long) threads * updates, total);
+  }
+}
@@ -0,0 +1,113 @@
+package org.coursera.metrics.datadog.reservoir;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedHistogramReservoirTest {
+
+  @Test
+  public void emptyReservoirHasZeroStatistics() {
+    var snapshot = (HistogramSnapshot) new StripedHistogramReservoir().getSnapshot();
+
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0.0, snapshot.getMedian(), 0.0);
+    assertEquals(0, snapshot.getValues().length);
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    var reservoir = new StripedHistogramReservoir(6, 1);
+    for (var i = 1; i <= 60; i++) {
+      reservoir.update(i);
+    }
+
+    var snapshot = (HistogramSnapshot) reservoir.getSnapshot();
+    assertEquals(60, snapshot.getCount());
+    assertEquals(1, snapshot.getMin());
+    assertEquals(60, snapshot.getMax());
+    assertEquals(30.5, snapshot.getMean(), 0.0);
+    assertEquals(30.0, snapshot.getMedian(), 0.0);
+    assertEquals(57.0, snapshot.get95thPercentile(), 0.0);
+  }
+
+  @Test
+  public void bucketsAreContiguous() {
+    var reservoir = new StripedHistogramReservoir(4, 1);
+    var previous = -1;
+    for (var value = 0L; value < 1 << 16; value++) {
+      var index = reservoir.bucketIndex(value);
+      assertTrue(index == previous || index == previous + 1);
+      assertTrue(reservoir.lowerBound(index) <= value && value <= reservoir.upperBound(index));
+      previous = index;
+    }
+    assertEquals(Long.MAX_VALUE, reservoir.upperBound(reservoir.bucketIndex(Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void quantilesHaveBoundedRelativeError() {
+    var reservoir = new StripedHistogramReservoir(6, 4);
+    for (var i = 1; i <= 100_000; i++) {
+      reservoir.update(i * 1000L);
+    }
+
+    var snapshot = reservoir.getSnapshot();
+    assertEquals(1000, snapshot.getMin());
+    assertEquals(100_000_000, snapshot.getMax());
+    assertEquals(50_000_000, snapshot.getMedian(), 50_000_000 / 32.0);
+    assertEquals(99_000_000, snapshot.get99thPercentile(), 99_000_000 / 32.0);
+  }
+
+  @Test
+  public void reportsEachValueOnce() {
+    var reservoir = new StripedHistogramReservoir();
+    reservoir.update(10);
+    reservoir.update(-5);
+
+    var first = (HistogramSnapshot) reservoir.getSnapshot();
+    assertEquals(2, first.getCount());
+    assertEquals(0, first.getMin());
+    assertEquals(0, reservoir.size());
+    assertEquals(0, ((HistogramSnapshot) reservoir.getSnapshot()).getCount());
+  }
+
+  @Test
+  public void countsEveryValueExactlyOnceUnderConcurrency() throws Exception {
+    var reservoir = new StripedHistogramReservoir(6, 4);
+    var threads = 8;
+    var updates = 200_000;
+    var start = new CountDownLatch(1);
+    var writers = new ArrayList<Thread>();
+    for (var t = 0; t < threads; t++) {
+      var writer = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (var i = 0; i < updates; i++) {
+          reservoir.update(i);
+        }
+      });
+      writer.start();
+      writers.add(writer);
+    }
+
+    start.countDown();
+    var total = 0L;
+    while (writers.stream().anyMatch(Thread::isAlive)) {
+      total += ((HistogramSnapshot) reservoir.getSnapshot()).getCount();
+    }
+    for (var writer : writers) {
+      writer.join();
+    }
+    total += ((HistogramSnapshot) reservoir.getSnapshot()).getCount();
+
+    assertEquals((long) threads * updates, total);
+  }
+}
@@ -0,0 +1,238 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.coursera.metrics.datadog.relay.DatadogRelay;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends the same batch through every transport and checks that each delivers the same metric
+ * names, tags, types and values. Rates are left out, since dogstatsd has none.
+ */
+public class BatchConsistencyTest {
+
+  private static final long EPOCH = 1_700_000_000L;
+
+  private FakeDatadogIntake intake;
+  private DatagramSocket agent;
+  private SeriesBatch batch;
+
+  @Before
+  public void setUp() throws Exception {
+    intake = new FakeDatadogIntake();
+    agent = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    agent.setSoTimeout(5000);
+
+    batch = new SeriesBatch("web-1");
+    var shared = batch.addTagSet(List.of("env:prod", "shard:1"));
+    batch.add(batch.addMetric("queue.size"), shared, SeriesBatch.GAUGE, EPOCH, 7.5);
+    batch.add(batch.addMetric("requests"), shared, SeriesBatch.COUNTER, EPOCH, 42);
+    batch.add(batch.addMetric("threads"), batch.addTagSet(List.of()), SeriesBatch.GAUGE, EPOCH, 12);
+    // Tags are decoded from names before they reach a batch; no transport decodes them again.
+    batch.add(batch.addMetric("queue[user:1]"), shared, SeriesBatch.GAUGE, EPOCH, 3);
+  }
+
+  @After
+  public void tearDown() {
+    intake.close();
+    agent.close();
+  }
+
+  @Test
+  public void everyTransportDeliversTheSameSeries() throws Exception {
+    var expected = new ArrayList<String>();
+    for (var row = 0; row < batch.size(); row++) {
+      expected.add(line(batch.metric(row), batch.tags(row),
+          batch.type(row) == SeriesBatch.COUNTER ? "c" : "g", batch.value(row)));
+    }
+    expected.sort(null);
+
+    assertEquals("http", expected, http(httpTransport()));
+    assertEquals("http pipelined", expected, http(httpTransport().withPipelining(true)));
+    assertEquals("http sharded", expected, http(httpTransport().withShards(4)));
+    assertEquals("fanout", expected, fanout());
+    assertEquals("dogstatsd", expected, dogstatsd(false));
+    assertEquals("dogstatsd line cache", expected, dogstatsd(true));
+    assertEquals("relay", expected, relay());
+    assertEquals("mapped counters", expected, mappedCounters());
+  }
+
+  private HttpTransport.Builder httpTransport() {
+    return new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key");
+  }
+
+  private List<String> http(HttpTransport.Builder builder) throws Exception {
+    intake.reset();
+    try (var transport = builder.build()) {
+      send(transport);
+    }
+    return intakeLines();
+  }
+
+  private List<String> fanout() throws Exception {
+    intake.reset();
+    var transport = new FanoutTransport.Builder()
+        .withDestination(httpTransport().build())
+        .build();
+    send(transport);
+    transport.close();
+    return intakeLines();
+  }
+
+  private List<String> intakeLines() {
+    var lines = new ArrayList<String>();
+    for (var series : intake.getSeries()) {
+      lines.add(line(series.metric(), series.tags(), series.type() == 3 ? "g" : "c", series.value()));
+    }
+    lines.sort(null);
+    return lines;
+  }
+
+  private List<String> dogstatsd(boolean lineCache) throws Exception {
+    try (var transport = new UdpTransport.Builder()
+        .withStatsdHost("127.0.0.1")
+        .withPort(agent.getLocalPort())
+        .withLineCache(lineCache)
+        .build()) {
+      send(transport);
+
+      var lines = new ArrayList<String>();
+      var buffer = new byte[1500];
+      while (lines.size() < batch.size()) {
+        var packet = new DatagramPacket(buffer, buffer.length);
+        agent.receive(packet);
+        var received = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+        for (var statsdLine : received.split("\n")) {
+          // name:value|type|#tags
+          var fields = statsdLine.split("\\|");
+          var separator = fields[0].lastIndexOf(':');
+          var tags = fields.length > 2 ? Arrays.asList(fields[2].substring(1).split(",")) : List.<String>of();
+          lines.add(line(fields[0].substring(0, separator), tags, fields[1],
+              Double.parseDouble(fields[0].substring(separator + 1))));
+        }
+      }
+      lines.sort(null);
+      return lines;
+    }
+  }
+
+  private List<String> relay() throws Exception {
+    var registry = new MetricRegistry();
+    var upstream = new CapturingTransport();
+    var relay = new DatadogRelay.Builder()
+        .withUpstream(upstream)
+        .withUdpAddress(new InetSocketAddress("127.0.0.1", 0))
+        .withFlushInterval(1, TimeUnit.HOURS)
+        .withMetricRegistry(registry)
+        .build()
+        .start();
+    try (var transport = new RelayTransport.Builder()
+        .withAddress("127.0.0.1", relay.getUdpAddress().getPort())
+        .build()) {
+      send(transport);
+      var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (registry.counter("datadog.relay.received").getCount() < batch.size()) {
+        if (System.nanoTime() > deadline) {
+          fail("the relay did not receive the batch");
+        }
+        Thread.sleep(10);
+      }
+    } finally {
+      // Flushes what was received to the upstream.
+      relay.close();
+    }
+    return seriesLines(upstream.series);
+  }
+
+  private List<String> mappedCounters() throws Exception {
+    var file = Files.createTempDirectory("counters").resolve("app.counters");
+    try (var transport = new MappedCountersTransport.Builder().withFile(file).build()) {
+      send(transport);
+    }
+    var upstream = new CapturingTransport();
+    new MappedCountersReader(file).read(upstream.prepare());
+    return seriesLines(upstream.series);
+  }
+
+  private void send(Transport transport) throws Exception {
+    var request = transport.prepare();
+    request.addBatch(batch);
+    request.send();
+  }
+
+  private static List<String> seriesLines(List<DatadogSeries<?>> series) {
+    var lines = new ArrayList<String>();
+    for (var item : series) {
+      lines.add(line(item.getMetric(), item.getTags(), item instanceof DatadogGauge ? "g" : "c",
+          item.getPoints().getFirst().get(1).doubleValue()));
+    }
+    lines.sort(null);
+    return lines;
+  }
+
+  private static String line(String metric, List<String> tags, String type, double value) {
+    var sortedTags = new ArrayList<>(tags);
+    sortedTags.sort(null);
+    return metric + sortedTags + " " + type + " " + value;
+  }
+
+  private static class CapturingTransport implements Transport {
+    private final List<DatadogSeries<?>> series = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Request prepare() {
+      return new Request() {
+        @Override
+        public void addBatch(SeriesBatch batch) throws IOException {
+          Transport.Request.addEachSeries(batch, this);
+        }
+
+        @Override
+        public void addGauge(DatadogGauge gauge) {
+          series.add(gauge);
+        }
+
+        @Override
+        public void addCounter(DatadogCounter counter) {
+          series.add(counter);
+        }
+
+        @Override
+        public void addRate(DatadogRate rate) {
+          series.add(rate);
+        }
+
+        @Override
+        public void send() {
+        }
+      };
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.alibaba.dcm.DnsCacheManipulator;
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CachingAddressResolverTest {
+  private static final String TEST_HOST = "fastandunresolvable";
+
+  private MetricRegistry registry;
+  private SelfMetrics selfMetrics;
+
+  @Before
+  public void setUp() {
+    DnsCacheManipulator.clearDnsCache();
+    registry = new MetricRegistry();
+    selfMetrics = new SelfMetrics(registry);
+  }
+
+  @Test
+  public void resolvesUpFront() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.1");
+
+    try (var resolver = new CachingAddressResolver(TEST_HOST, 8125, 1, TimeUnit.HOURS, selfMetrics)) {
+      assertEquals(new InetSocketAddress("127.0.0.1", 8125), resolver.getAddress());
+      assertEquals(resolver.getAddress(), resolver.asLookup().call());
+      assertEquals(1, registry.timer("datadog.reporter.dns.resolve").getCount());
+    }
+  }
+
+  @Test
+  public void refreshesAndNotifiesWhenTheAddressChanges() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.1");
+
+    try (var resolver = new CachingAddressResolver(TEST_HOST, 8125, 20, TimeUnit.MILLISECONDS, selfMetrics)) {
+      var changed = new CompletableFuture<InetSocketAddress>();
+      resolver.onChange(changed::complete);
+
+      DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.2");
+
+      var moved = new InetSocketAddress("127.0.0.2", 8125);
+      assertEquals(moved, changed.get(5, TimeUnit.SECONDS));
+      assertEquals(moved, resolver.getAddress());
+      assertEquals(1, registry.counter("datadog.reporter.dns.changes").getCount());
+    }
+  }
+
+  @Test
+  public void keepsTheLastAddressWhenResolutionFails() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.1");
+
+    try (var resolver = new CachingAddressResolver(TEST_HOST, 8125, 20, TimeUnit.MILLISECONDS, selfMetrics)) {
+      DnsCacheManipulator.removeDnsCache(TEST_HOST);
+
+      awaitTrue(() -> registry.counter("datadog.reporter.dns.errors").getCount() > 0);
+      assertEquals(new InetSocketAddress("127.0.0.1", 8125), resolver.getAddress());
+      assertEquals(0, registry.counter("datadog.reporter.dns.changes").getCount());
+    }
+  }
+
+  @Test
+  public void startsWithoutAnAddress() throws Exception {
+    try (var resolver = new CachingAddressResolver(TEST_HOST, 8125, 1, TimeUnit.HOURS, selfMetrics)) {
+      assertNull(resolver.getAddress());
+      assertEquals(1, registry.counter("datadog.reporter.dns.errors").getCount());
+      try {
+        resolver.asLookup().call();
+        fail();
+      } catch (UnknownHostException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void closeRunsDelayedTasks() {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.1");
+    var ran = new CompletableFuture<Void>();
+
+    var resolver = new CachingAddressResolver(TEST_HOST, 8125, 1, TimeUnit.HOURS, null);
+    resolver.later(() -> ran.complete(null), 1, TimeUnit.HOURS);
+    resolver.close();
+
+    assertTrue(ran.isDone());
+  }
+
+  static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() > deadline) {
+        fail("timed out");
+      }
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.Clock;
+import org.coursera.metrics.datadog.transport.CircuitBreaker.State;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+  private static final long OPEN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  private final FakeClock clock = new FakeClock();
+  private final CircuitBreaker breaker = new CircuitBreaker(3, 30, TimeUnit.SECONDS, clock);
+
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void successResetsTheFailureCount() {
+    breaker.recordFailure();
+    breaker.recordFailure();
+    breaker.recordSuccess();
+    breaker.recordFailure();
+    breaker.recordFailure();
+
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void letsOneProbeThroughAfterTheOpenDuration() {
+    open();
+    clock.tick += OPEN_NANOS;
+
+    assertTrue(breaker.allowRequest());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+
+    breaker.recordSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void failedProbeReopens() {
+    open();
+    clock.tick += OPEN_NANOS;
+    assertTrue(breaker.allowRequest());
+
+    breaker.recordFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    clock.tick += OPEN_NANOS - 1;
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void abandonedProbeIsReplaced() {
+    open();
+    clock.tick += OPEN_NANOS;
+    assertTrue(breaker.allowRequest());
+
+    clock.tick += OPEN_NANOS;
+    assertTrue(breaker.allowRequest());
+  }
+
+  private void open() {
+    for (var i = 0; i < 3; i++) {
+      breaker.recordFailure();
+    }
+  }
+
+  private static class FakeClock extends Clock {
+    private long tick = 1;
+
+    @Override
+    public long getTick() {
+      return tick;
+    }
+  }
+}
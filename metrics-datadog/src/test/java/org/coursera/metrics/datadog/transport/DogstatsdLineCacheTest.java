@@ -0,0 +1,216 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+public class DogstatsdLineCacheTest {
+
+  private DatagramSocket agent;
+  private DogstatsdLineCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    agent = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    agent.setSoTimeout(5000);
+    cache = newCache("app", 1432);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    cache.close();
+    agent.close();
+  }
+
+  @Test
+  public void formatsValuesLikeTheDogstatsdClient() {
+    var format = new DecimalFormat("#.######", DecimalFormatSymbols.getInstance(Locale.US));
+    double[] values = {0, 1, -1, 42, 0.5, -0.25, 1.0 / 3, 2.0 / 3, 123456.789, 1e-7, 0.0000015,
+        1e15, -9.87654321e10, 1e20, Long.MAX_VALUE, 4.9e-324};
+    for (var value : values) {
+      assertEquals(String.valueOf(value), format.format(value), format(value));
+    }
+  }
+
+  @Test
+  public void formatsLongs() {
+    long[] values = {0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE};
+    for (var value : values) {
+      var buffer = ByteBuffer.allocate(32);
+      DogstatsdLineCache.putLong(buffer, value);
+      assertEquals(Long.toString(value), new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+    }
+  }
+
+  @Test
+  public void packsLinesIntoOnePacket() throws Exception {
+    var request = cache.newRequest();
+    request.addGauge(new DatadogGauge("gauge", 1.5, 0L, null, List.of("env:prod", "shard:1")));
+    request.addCounter(new DatadogCounter("counter", 3L, 0L, null, List.of()));
+    request.send();
+
+    assertEquals("app.gauge:1.5|g|#env:prod,shard:1\napp.counter:3|c", receive());
+  }
+
+  @Test
+  public void splitsPacketsAtTheMaxPacketSize() throws Exception {
+    cache.close();
+    cache = newCache(null, 60);
+
+    var request = cache.newRequest();
+    for (var i = 0; i < 4; i++) {
+      request.addGauge(new DatadogGauge("gauge" + i, i, 0L, null, List.of()));
+    }
+    request.send();
+
+    // Each line reserves room for the longest value, so only two fit in 60 bytes.
+    assertEquals("gauge0:0|g\ngauge1:1|g", receive());
+    assertEquals("gauge2:2|g\ngauge3:3|g", receive());
+  }
+
+  @Test
+  public void sendsCounterDeltasAndReusesEncodedSeries() throws Exception {
+    for (var count : new long[]{5, 8, 6}) {
+      var request = cache.newRequest();
+      request.addCounter(new DatadogCounter("requests", count, 0L, null, List.of("env:prod")));
+      request.send();
+    }
+
+    assertEquals("app.requests:5|c|#env:prod", receive());
+    assertEquals("app.requests:3|c|#env:prod", receive());
+    assertEquals("app.requests:0|c|#env:prod", receive());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void evictsUnusedSeriesAndKeepsCounterDeltas() throws Exception {
+    cache.close();
+    var address = agent.getLocalSocketAddress();
+    cache = new DogstatsdLineCache(null, new String[0], () -> address, 1432, 0, null, 4);
+
+    report(5, "a", "b", "c");
+    // Full: nothing was unused yet, so this only starts tracking use.
+    report(8, "d");
+    // Full again: a, b and c were not reported since, d and the counter were.
+    report(10, "d", "e");
+
+    assertEquals("requests:5|c\na:0|g\nb:0|g\nc:0|g", receive());
+    assertEquals("requests:3|c\nd:0|g", receive());
+    assertEquals("requests:2|c\nd:0|g\ne:0|g", receive());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void keepsCounterDeltasOfEvictedSeries() throws Exception {
+    cache.close();
+    var address = agent.getLocalSocketAddress();
+    cache = new DogstatsdLineCache(null, new String[0], () -> address, 1432, 0, null, 2);
+
+    report(5, "a");
+    // The counter is skipped, e.g. because it did not change, while the cache fills up twice.
+    reportGauges("b", "c");
+    reportGauges("d", "e");
+    report(7);
+
+    assertEquals("requests:5|c\na:0|g", receive());
+    assertEquals("b:0|g\nc:0|g", receive());
+    assertEquals("d:0|g\ne:0|g", receive());
+    assertEquals("requests:2|c", receive());
+  }
+
+  @Test
+  public void writesHugeValuesInScientificNotation() throws Exception {
+    assertEquals("1.0E300", format(1e300));
+    assertEquals("-1.7976931348623157E308", format(-Double.MAX_VALUE));
+
+    cache.close();
+    cache = newCache(null, 45);
+    var request = cache.newRequest();
+    request.addGauge(new DatadogGauge("huge", 1e300, 0L, null, List.of()));
+    request.send();
+
+    assertEquals("huge:1.0E300|g", receive());
+  }
+
+  @Test
+  public void writesBatchesLikeSeries() throws Exception {
+    var request = cache.newRequest();
+    request.addCounter(new DatadogCounter("requests", 5L, 0L, null, List.of("env:prod")));
+    request.send();
+
+    var batch = new SeriesBatch(null);
+    var tags = batch.addTagSet(List.of("env:prod"));
+    batch.add(batch.addMetric("requests"), tags, SeriesBatch.COUNTER, 10L, 8);
+    batch.add(batch.addMetric("gauge"), tags, SeriesBatch.GAUGE, 10L, 1.5);
+    batch.add(batch.addMetric("hits"), tags, SeriesBatch.RATE, 10L, 2);
+    request = cache.newRequest();
+    request.addBatch(batch);
+    request.send();
+
+    assertEquals("app.requests:5|c|#env:prod", receive());
+    assertEquals("app.requests:3|c|#env:prod\napp.gauge:1.5|g|#env:prod", receive());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void dropsLinesThatCannotFit() throws Exception {
+    cache.close();
+    cache = newCache(null, 64);
+
+    var request = cache.newRequest();
+    request.addGauge(new DatadogGauge("a.very.long.metric.name.that.does.not.fit", 1, 0L, null, List.of()));
+    request.addGauge(new DatadogGauge("small", 1, 0L, null, List.of()));
+    request.send();
+
+    assertEquals("small:1|g", receive());
+  }
+
+  private void report(long count, String... gauges) throws Exception {
+    var request = cache.newRequest();
+    request.addCounter(new DatadogCounter("requests", count, 0L, null, List.of()));
+    for (var gauge : gauges) {
+      request.addGauge(new DatadogGauge(gauge, 0, 0L, null, List.of()));
+    }
+    request.send();
+  }
+
+  private void reportGauges(String... gauges) throws Exception {
+    var request = cache.newRequest();
+    for (var gauge : gauges) {
+      request.addGauge(new DatadogGauge(gauge, 0, 0L, null, List.of()));
+    }
+    request.send();
+  }
+
+  private DogstatsdLineCache newCache(String prefix, int maxPacketSize) throws Exception {
+    var address = agent.getLocalSocketAddress();
+    return new DogstatsdLineCache(prefix, new String[0], () -> address, maxPacketSize, 0, null);
+  }
+
+  private String receive() throws Exception {
+    var packet = new DatagramPacket(new byte[2048], 2048);
+    agent.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+
+  private static String format(double value) {
+    var buffer = ByteBuffer.allocate(64);
+    DogstatsdLineCache.putDouble(buffer, value);
+    return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,243 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An in-process stand-in for the Datadog v2 series intake.
+ * <p/>
+ * Accepts {@code POST /api/v2/series} bodies that are plain, deflate or gzip encoded, validates
+ * them against the v2 series schema, and records every series it accepts. Invalid payloads get a
+ * 400 with the validation errors. Latency and error responses can be injected to exercise the
+ * transport's failure handling.
+ */
+public class FakeDatadogIntake implements AutoCloseable {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final HttpServer server;
+  private final Queue<Series> series = new ConcurrentLinkedQueue<>();
+  private final Queue<String> rejections = new ConcurrentLinkedQueue<>();
+  private final Queue<Integer> injectedStatuses = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger compressedRequests = new AtomicInteger();
+  private volatile long latencyMillis;
+  private volatile String retryAfter;
+
+  public FakeDatadogIntake() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/api/v2/series", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  public String getSeriesUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/api/v2/series";
+  }
+
+  /**
+   * Delay every response by the given time.
+   */
+  public FakeDatadogIntake withLatency(long millis) {
+    this.latencyMillis = millis;
+    return this;
+  }
+
+  /**
+   * Send a {@code Retry-After} header with injected failures.
+   */
+  public FakeDatadogIntake withRetryAfter(String retryAfter) {
+    this.retryAfter = retryAfter;
+    return this;
+  }
+
+  /**
+   * Answer the next {@code times} requests with the given status, without recording them.
+   */
+  public FakeDatadogIntake failNext(int status, int times) {
+    for (var i = 0; i < times; i++) {
+      injectedStatuses.add(status);
+    }
+    return this;
+  }
+
+  public List<Series> getSeries() {
+    return new ArrayList<>(series);
+  }
+
+  public List<String> getRejections() {
+    return new ArrayList<>(rejections);
+  }
+
+  public int getRequestCount() {
+    return requests.get();
+  }
+
+  public int getCompressedRequestCount() {
+    return compressedRequests.get();
+  }
+
+  public void reset() {
+    series.clear();
+    rejections.clear();
+    injectedStatuses.clear();
+    requests.set(0);
+    compressedRequests.set(0);
+    latencyMillis = 0;
+    retryAfter = null;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      requests.incrementAndGet();
+      var body = decode(exchange);
+      if (latencyMillis > 0) {
+        Thread.sleep(latencyMillis);
+      }
+
+      var injected = injectedStatuses.poll();
+      if (injected != null) {
+        if (retryAfter != null) {
+          exchange.getResponseHeaders().add("Retry-After", retryAfter);
+        }
+        respond(exchange, injected, "{\"errors\":[\"injected failure\"]}");
+        return;
+      }
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "{\"errors\":[\"method not allowed\"]}");
+        return;
+      }
+      if (exchange.getRequestHeaders().getFirst("DD-API-KEY") == null) {
+        respond(exchange, 403, "{\"errors\":[\"Forbidden\"]}");
+        return;
+      }
+
+      var errors = new ArrayList<String>();
+      var accepted = validate(body, errors);
+      if (!errors.isEmpty()) {
+        rejections.addAll(errors);
+        respond(exchange, 400, MAPPER.writeValueAsString(new Errors(errors)));
+        return;
+      }
+      series.addAll(accepted);
+      respond(exchange, 202, "{\"errors\":[]}");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private byte[] decode(HttpExchange exchange) throws IOException {
+    var encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    if (encoding != null) {
+      compressedRequests.incrementAndGet();
+    }
+    try (var in = decoding(exchange.getRequestBody(), encoding)) {
+      return in.readAllBytes();
+    }
+  }
+
+  private static InputStream decoding(InputStream in, String encoding) throws IOException {
+    if ("deflate".equalsIgnoreCase(encoding)) {
+      return new InflaterInputStream(in);
+    } else if ("gzip".equalsIgnoreCase(encoding)) {
+      return new GZIPInputStream(in);
+    }
+    return in;
+  }
+
+  private static List<Series> validate(byte[] body, List<String> errors) {
+    var accepted = new ArrayList<Series>();
+    JsonNode root;
+    try {
+      root = MAPPER.readTree(body);
+    } catch (IOException e) {
+      errors.add("Malformed JSON: " + e.getMessage());
+      return accepted;
+    }
+    var seriesNode = root == null ? null : root.get("series");
+    if (seriesNode == null || !seriesNode.isArray()) {
+      errors.add("Missing series array");
+      return accepted;
+    }
+
+    for (var node : seriesNode) {
+      var metric = node.path("metric");
+      if (!metric.isTextual() || metric.asText().isEmpty()) {
+        errors.add("Series without metric name: " + node);
+        continue;
+      }
+      var name = metric.asText();
+      var type = node.path("type");
+      if (!type.isInt() || type.asInt() < 0 || type.asInt() > 3) {
+        errors.add("Invalid type for " + name + ": " + type);
+        continue;
+      }
+      var points = node.path("points");
+      if (!points.isArray() || points.isEmpty()) {
+        errors.add("No points for " + name);
+        continue;
+      }
+      var point = points.get(0);
+      if (!point.path("timestamp").canConvertToLong() || !point.path("value").isNumber()) {
+        errors.add("Invalid point for " + name + ": " + point);
+        continue;
+      }
+      var tags = new ArrayList<String>();
+      for (var tag : node.path("tags")) {
+        if (!tag.isTextual()) {
+          errors.add("Non-string tag for " + name + ": " + tag);
+        }
+        tags.add(tag.asText());
+      }
+      String host = null;
+      for (var resource : node.path("resources")) {
+        if ("host".equals(resource.path("type").asText())) {
+          host = resource.path("name").isNull() ? null : resource.path("name").asText();
+        }
+      }
+      accepted.add(new Series(name, type.asInt(), point.get("timestamp").asLong(),
+          point.get("value").asDouble(), tags, host));
+    }
+    return accepted;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    var bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  /**
+   * A series as received by the intake.
+   *
+   * @param type 0 unspecified, 1 count, 2 rate, 3 gauge
+   */
+  public record Series(String metric, int type, long timestamp, double value, List<String> tags,
+                       String host) {
+  }
+
+  private record Errors(List<String> errors) {
+  }
+}
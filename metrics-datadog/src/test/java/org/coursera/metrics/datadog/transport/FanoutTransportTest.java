@@ -0,0 +1,139 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FanoutTransportTest {
+
+  private FakeDatadogIntake first;
+  private FakeDatadogIntake second;
+
+  @Before
+  public void setUp() throws Exception {
+    first = new FakeDatadogIntake();
+    second = new FakeDatadogIntake();
+  }
+
+  @After
+  public void tearDown() {
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void sendsTheSameSeriesToEveryDestination() throws Exception {
+    var transport = new FanoutTransport.Builder()
+        .withDestination(destination(first, "first-key", true).build())
+        .withDestination(destination(second, "second-key", false).build())
+        .build();
+
+    send(transport, 3);
+    transport.close();
+
+    assertEquals(3, first.getSeries().size());
+    assertEquals(first.getSeries(), second.getSeries());
+    assertEquals(1, first.getCompressedRequestCount());
+    assertEquals(0, second.getCompressedRequestCount());
+  }
+
+  @Test
+  public void slowDestinationDoesNotHoldUpTheOthers() throws Exception {
+    second.withLatency(1500);
+    var slowRegistry = new MetricRegistry();
+    var transport = new FanoutTransport.Builder()
+        .withDestination(destination(first, "first-key", true).build())
+        .withDestination(destination(second, "second-key", true)
+            .withSelfMetrics(new SelfMetrics(slowRegistry))
+            .build())
+        .build();
+
+    var start = System.nanoTime();
+    send(transport, 2);
+    Thread.sleep(200);
+    send(transport, 2);
+    var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    transport.close();
+
+    assertTrue("send took " + elapsedMillis + " ms", elapsedMillis < 1000);
+    assertEquals(2, first.getRequestCount());
+    assertEquals(1, second.getRequestCount());
+    assertEquals(2, slowRegistry.counter("datadog.reporter.dropped").getCount());
+  }
+
+  @Test
+  public void destinationsRetryIndependently() throws Exception {
+    first.failNext(503, 1);
+    var breaker = new CircuitBreaker(1, 1, TimeUnit.HOURS);
+    second.failNext(503, 1);
+    var transport = new FanoutTransport.Builder()
+        .withDestination(destination(first, "first-key", false)
+            .withRetries(2)
+            .withRetryBackoff(10, 10)
+            .build())
+        .withDestination(destination(second, "second-key", false)
+            .withCircuitBreaker(breaker)
+            .build())
+        .build();
+
+    send(transport, 1);
+    transport.close();
+
+    assertEquals(1, first.getSeries().size());
+    assertEquals(0, second.getSeries().size());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(transport.isPaused());
+  }
+
+  @Test
+  public void keepsTheBodyUntilEveryDestinationPostedIt() throws Exception {
+    second.withLatency(500);
+    var pooled = destination(first, "first-key", true).build();
+    var transport = new FanoutTransport.Builder()
+        .withDestination(pooled)
+        .withDestination(destination(second, "second-key", false).build())
+        .build();
+
+    send(transport, 3);
+    Thread.sleep(200);
+    // Posted from the serializer's buffer, which goes back to the pool with its size once the
+    // slow destination is done with it.
+    assertEquals(0, pooled.getBufferPool().getAverageSize());
+    transport.close();
+
+    assertTrue(pooled.getBufferPool().getAverageSize() > 0);
+    assertEquals(3, second.getSeries().size());
+    assertEquals(first.getSeries(), second.getSeries());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsNoDestinations() {
+    new FanoutTransport.Builder().build();
+  }
+
+  private static HttpTransport.Builder destination(FakeDatadogIntake intake, String apiKey,
+                                                   boolean compression) {
+    return new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey(apiKey)
+        .withCompression(compression);
+  }
+
+  private static void send(Transport transport, int series) throws Exception {
+    var request = transport.prepare();
+    for (var i = 0; i < series; i++) {
+      request.addGauge(new DatadogGauge("queue.size" + i, i, 1000L, "web-1", List.of("env:prod")));
+    }
+    request.send();
+  }
+}
@@ -0,0 +1,504 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpTransportTest {
+
+  private FakeDatadogIntake intake;
+
+  @Before
+  public void setUp() throws Exception {
+    intake = new FakeDatadogIntake();
+  }
+
+  @After
+  public void tearDown() {
+    intake.close();
+  }
+
+  @Test
+  public void sendsSeriesToConfiguredUrl() throws Exception {
+    send(transport(false));
+
+    assertEquals(1, intake.getRequestCount());
+    assertEquals(0, intake.getCompressedRequestCount());
+    assertEquals(List.of(), intake.getRejections());
+    var series = intake.getSeries();
+    assertEquals(2, series.size());
+    assertEquals(new FakeDatadogIntake.Series("requests", 0, 1000L, 42.0, List.of("env:prod"), "web-1"),
+        series.get(0));
+    assertEquals(new FakeDatadogIntake.Series("queue.size", 3, 1000L, 7.5, List.of(), "web-1"),
+        series.get(1));
+  }
+
+  @Test
+  public void sendsDeflatedSeries() throws Exception {
+    send(transport(true));
+
+    assertEquals(1, intake.getCompressedRequestCount());
+    assertEquals(2, intake.getSeries().size());
+  }
+
+  @Test
+  public void survivesErrorResponses() throws Exception {
+    var transport = transport(true);
+    intake.failNext(429, 1).failNext(503, 1);
+
+    send(transport);
+    send(transport);
+    assertEquals(0, intake.getSeries().size());
+
+    send(transport);
+    assertEquals(3, intake.getRequestCount());
+    assertEquals(2, intake.getSeries().size());
+  }
+
+  @Test
+  public void appliesResponseTimeoutInMilliseconds() throws Exception {
+    intake.withLatency(2000);
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withResponseTimeout(200)
+        .build();
+
+    var start = System.nanoTime();
+    send(transport);
+    var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertTrue("send took " + elapsedMillis + " ms", elapsedMillis < 1500);
+    assertEquals(0, intake.getSeries().size());
+  }
+
+  @Test
+  public void publishesSelfMetrics() throws Exception {
+    var registry = new MetricRegistry();
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withSelfMetrics(new SelfMetrics(registry))
+        .build();
+    intake.failNext(503, 1);
+
+    send(transport);
+    send(transport);
+
+    assertEquals(1, registry.counter("datadog.reporter.http.5xx").getCount());
+    assertEquals(1, registry.counter("datadog.reporter.http.2xx").getCount());
+    assertEquals(2, registry.counter("datadog.reporter.dropped").getCount());
+    assertEquals(2, registry.timer("datadog.reporter.serialize").getCount());
+    var raw = registry.histogram("datadog.reporter.payload.bytes").getSnapshot();
+    var compressed = registry.histogram("datadog.reporter.payload.compressedBytes").getSnapshot();
+    assertEquals(2, raw.size());
+    assertTrue(compressed.getMax() > 0 && compressed.getMax() < raw.getMax());
+  }
+
+  @Test
+  public void retriesServerErrorsAndThrottling() throws Exception {
+    var registry = new MetricRegistry();
+    var transport = retrying(3, 60_000)
+        .withSelfMetrics(new SelfMetrics(registry))
+        .build();
+    intake.failNext(503, 1).failNext(429, 1);
+
+    send(transport);
+
+    assertEquals(3, intake.getRequestCount());
+    assertEquals(2, intake.getSeries().size());
+    assertEquals(2, registry.counter("datadog.reporter.retries").getCount());
+    assertEquals(0, registry.counter("datadog.reporter.dropped").getCount());
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() throws Exception {
+    intake.failNext(400, 1);
+
+    send(retrying(3, 60_000).build());
+
+    assertEquals(1, intake.getRequestCount());
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() throws Exception {
+    intake.failNext(503, 3);
+
+    send(retrying(2, 60_000).build());
+
+    assertEquals(3, intake.getRequestCount());
+    assertEquals(0, intake.getSeries().size());
+  }
+
+  @Test
+  public void honorsRetryAfter() throws Exception {
+    intake.failNext(503, 1).withRetryAfter("1");
+
+    var start = System.nanoTime();
+    send(retrying(1, 60_000).build());
+    var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertTrue("send took " + elapsedMillis + " ms", elapsedMillis >= 1000);
+    assertEquals(2, intake.getSeries().size());
+  }
+
+  @Test
+  public void doesNotRetryPastTheDeadline() throws Exception {
+    intake.failNext(503, 1).withRetryAfter("30");
+
+    var start = System.nanoTime();
+    send(retrying(3, 1_000).build());
+    var elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+    assertTrue("send took " + elapsedMillis + " ms", elapsedMillis < 1000);
+    assertEquals(1, intake.getRequestCount());
+  }
+
+  @Test
+  public void parsesRetryAfter() {
+    var now = 1_700_000_000_000L;
+    assertEquals(120_000, HttpTransport.retryAfterMillis(" 120 ", now));
+    assertEquals(5_000, HttpTransport.retryAfterMillis("Tue, 14 Nov 2023 22:13:25 GMT", now));
+    assertEquals(0, HttpTransport.retryAfterMillis("Tue, 14 Nov 2023 22:00:00 GMT", now));
+    assertEquals(-1, HttpTransport.retryAfterMillis("soon", now));
+    assertEquals(-1, HttpTransport.retryAfterMillis(null, now));
+  }
+
+  @Test
+  public void circuitBreakerPausesTheTransport() throws Exception {
+    var breaker = new CircuitBreaker(2, 1, TimeUnit.HOURS);
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCircuitBreaker(breaker)
+        .build();
+    intake.failNext(503, 2);
+
+    assertFalse(transport.isPaused());
+    send(transport);
+    send(transport);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(transport.isPaused());
+  }
+
+  @Test
+  public void clientErrorsTripTheCircuitBreaker() throws Exception {
+    var breaker = new CircuitBreaker(2, 1, TimeUnit.HOURS);
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCircuitBreaker(breaker)
+        .build();
+    intake.failNext(403, 2);
+
+    send(transport);
+    send(transport);
+
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptySeriesUrl() {
+    new HttpTransport.Builder().withApiKey("test-key").withSeriesUrl("").build();
+  }
+
+  @Test
+  public void gaugeWithoutHostHasNoHostResource() throws Exception {
+    var request = transport(false).prepare();
+    request.addGauge(new DatadogGauge("uptime", 1, 1000L, null, List.of()));
+    request.send();
+
+    assertNull(intake.getSeries().getFirst().host());
+  }
+
+  @Test
+  public void sendsBatches() throws Exception {
+    var batch = new SeriesBatch("web-1");
+    batch.add(batch.addMetric("requests"), batch.addTagSet(List.of("env:prod")), SeriesBatch.COUNTER, 1000L, 42);
+    batch.add(batch.addMetric("queue.size"), batch.addTagSet(List.of()), SeriesBatch.GAUGE, 1000L, 7.5);
+    var request = transport(false).prepare();
+    request.addBatch(batch);
+    request.send();
+
+    assertEquals(List.of(
+        new FakeDatadogIntake.Series("requests", 0, 1000L, 42.0, List.of("env:prod"), "web-1"),
+        new FakeDatadogIntake.Series("queue.size", 3, 1000L, 7.5, List.of(), "web-1")),
+        intake.getSeries());
+  }
+
+  @Test
+  public void pipeliningSendsTheSameSeries() throws Exception {
+    for (var compression : List.of(false, true)) {
+      sendMany(transport(compression));
+      var expected = intake.getSeries();
+      intake.close();
+      intake = new FakeDatadogIntake();
+
+      sendMany(new HttpTransport.Builder()
+          .withSeriesUrl(intake.getSeriesUrl())
+          .withApiKey("test-key")
+          .withCompression(compression)
+          .withPipelining(true)
+          .build());
+
+      assertEquals(List.of(), intake.getRejections());
+      assertEquals(compression ? 1 : 0, intake.getCompressedRequestCount());
+      assertEquals(2 * HttpTransport.PipelinedRequest.CHUNK_SERIES + 3, expected.size());
+      assertEquals(expected, intake.getSeries());
+      intake.close();
+      intake = new FakeDatadogIntake();
+    }
+  }
+
+  @Test
+  public void pipeliningFeedsPayloadSizesToTheBufferPool() throws Exception {
+    var registry = new MetricRegistry();
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withPipelining(true)
+        .withSelfMetrics(new SelfMetrics(registry))
+        .build();
+    sendMany(transport);
+
+    var bodyBytes = registry.histogram("datadog.reporter.payload.bytes").getSnapshot().getMax();
+    assertTrue(bodyBytes > 2048);
+    assertEquals(bodyBytes, transport.getBufferPool().getAverageSize());
+  }
+
+  @Test
+  public void pipeliningWritesBatches() throws Exception {
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withPipelining(true)
+        .build();
+    var batch = new SeriesBatch("web-1");
+    var request = transport.prepare();
+    request.addCounter(new DatadogCounter("requests", 1L, 1000L, "web-1", List.of()));
+    batch.add(batch.addMetric("queue.size"), batch.addTagSet(List.of("env:prod")), SeriesBatch.GAUGE, 1000L, 7.5);
+    request.addBatch(batch);
+    // The caller may reuse the batch as soon as it was added.
+    batch.clear();
+    batch.add(batch.addMetric("hits"), batch.addTagSet(List.of()), SeriesBatch.RATE, 1000L, 3);
+    request.addBatch(batch);
+    request.send();
+
+    assertEquals(List.of(), intake.getRejections());
+    assertEquals(List.of(
+        new FakeDatadogIntake.Series("requests", 0, 1000L, 1.0, List.of(), "web-1"),
+        new FakeDatadogIntake.Series("queue.size", 3, 1000L, 7.5, List.of("env:prod"), "web-1"),
+        new FakeDatadogIntake.Series("hits", 2, 1000L, 3.0, List.of(), "web-1")),
+        intake.getSeries());
+  }
+
+  @Test(timeout = 10_000)
+  public void pipelinedStageFailuresDoNotBlockTheReporter() throws Exception {
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withPipelining(true)
+        .build();
+    var request = transport.prepare();
+    request.addGauge(new DatadogGauge("broken", 1, 1000L, "web-1", List.of()) {
+      @Override
+      public String getMetric() {
+        throw new IllegalStateException("broken series");
+      }
+    });
+    IOException failure = null;
+    // Far more chunks than the rings hold, so a stage that stopped draining would block this.
+    for (var i = 0; i < 64 * HttpTransport.PipelinedRequest.CHUNK_SERIES && failure == null; i++) {
+      try {
+        request.addGauge(new DatadogGauge("queue.size", i, 1000L, "web-1", List.of()));
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure == null) {
+      try {
+        request.send();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    request.abort();
+
+    assertTrue(failure.getCause() instanceof IllegalStateException);
+    assertEquals(0, intake.getRequestCount());
+  }
+
+  @Test
+  public void shardsAreSentAsSeparateRequests() throws Exception {
+    sendMany(transport(true));
+    var expected = intake.getSeries();
+    intake.reset();
+
+    var transport = new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withShards(4)
+        .build();
+    sendMany(transport);
+
+    assertEquals(List.of(), intake.getRejections());
+    assertEquals(4, intake.getRequestCount());
+    assertEquals(4, intake.getCompressedRequestCount());
+    var byMetric = Comparator.comparing(FakeDatadogIntake.Series::metric);
+    assertEquals(expected.stream().sorted(byMetric).toList(), intake.getSeries().stream().sorted(byMetric).toList());
+  }
+
+  @Test
+  public void shardsSeriesByStableHash() throws Exception {
+    var counter = new DatadogCounter("requests", 1L, 1000L, "web-1", List.of("env:prod"));
+    var later = new DatadogCounter("requests", 2L, 2000L, "web-1", List.of("env:prod"));
+    assertEquals(HttpTransport.ShardedRequest.shard(counter, 8), HttpTransport.ShardedRequest.shard(later, 8));
+
+    var transport = new HttpTransport.Builder().withApiKey("test-key").withShards(8).build();
+    var request = (HttpTransport.ShardedRequest) transport.prepare();
+    var added = new ArrayList<DatadogGauge>();
+    for (var i = 0; i < 100; i++) {
+      var gauge = new DatadogGauge("queue.size." + i, i, 1000L, "web-1", List.of());
+      added.add(gauge);
+      request.addGauge(gauge);
+    }
+    var payloads = request.payloads();
+    assertEquals(8, payloads.size());
+    for (var i = 0; i < 8; i++) {
+      var shard = i;
+      var inShard = added.stream().filter(gauge -> HttpTransport.ShardedRequest.shard(gauge, 8) == shard).count();
+      assertEquals(inShard, payloads.get(i).getSeriesCount());
+    }
+  }
+
+  @Test
+  public void shardsBatchRows() throws Exception {
+    var transport = sharded(null);
+    var batch = new SeriesBatch("web-1");
+    var tags = batch.addTagSet(List.of("env:prod"));
+    for (var i = 0; i < 100; i++) {
+      batch.add(batch.addMetric("queue.size." + i), tags, SeriesBatch.GAUGE, 1000L, i);
+    }
+    var request = transport.prepare();
+    request.addBatch(batch);
+    request.send();
+
+    assertEquals(List.of(), intake.getRejections());
+    assertEquals(4, intake.getRequestCount());
+    assertEquals(100, intake.getSeries().size());
+  }
+
+  @Test
+  public void partialShardFailuresCountOncePerReport() throws Exception {
+    var breaker = new CircuitBreaker(2, 1, TimeUnit.HOURS);
+    var transport = sharded(breaker);
+
+    intake.failNext(400, 1);
+    sendMany(transport);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    intake.failNext(400, 1);
+    sendMany(transport);
+
+    // The shards that got through do not reset the failures of the others.
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(8, intake.getRequestCount());
+  }
+
+  @Test
+  public void halfOpenShardedReportsProbeWithOneShard() throws Exception {
+    var breaker = new CircuitBreaker(1, 1, TimeUnit.NANOSECONDS);
+    var transport = sharded(breaker);
+    breaker.recordFailure();
+    awaitProbe(breaker);
+
+    intake.failNext(400, 1);
+    sendMany(transport);
+    assertEquals(1, intake.getRequestCount());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    awaitProbe(breaker);
+    sendMany(transport);
+    assertEquals(5, intake.getRequestCount());
+    assertEquals(2 * HttpTransport.PipelinedRequest.CHUNK_SERIES + 3, intake.getSeries().size());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsPipeliningWithShards() {
+    new HttpTransport.Builder().withApiKey("test-key").withPipelining(true).withShards(2).build();
+  }
+
+  private HttpTransport transport(boolean compression) {
+    return new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(compression)
+        .build();
+  }
+
+  private HttpTransport sharded(CircuitBreaker breaker) {
+    return new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withCompression(true)
+        .withShards(4)
+        .withCircuitBreaker(breaker)
+        .build();
+  }
+
+  private static void awaitProbe(CircuitBreaker breaker) {
+    while (!breaker.allowRequest()) {
+      Thread.onSpinWait();
+    }
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  private HttpTransport.Builder retrying(int maxRetries, int deadlineMillis) {
+    return new HttpTransport.Builder()
+        .withSeriesUrl(intake.getSeriesUrl())
+        .withApiKey("test-key")
+        .withRetries(maxRetries)
+        .withRetryBackoff(10, 50)
+        .withRetryDeadline(deadlineMillis);
+  }
+
+  private static void send(HttpTransport transport) throws Exception {
+    var request = transport.prepare();
+    request.addCounter(new DatadogCounter("requests", 42L, 1000L, "web-1", List.of("env:prod")));
+    request.addGauge(new DatadogGauge("queue.size", 7.5, 1000L, "web-1", List.of()));
+    request.send();
+  }
+
+  private static void sendMany(HttpTransport transport) throws Exception {
+    var request = transport.prepare();
+    for (var i = 0; i < 2 * HttpTransport.PipelinedRequest.CHUNK_SERIES + 3; i++) {
+      if (i % 2 == 0) {
+        request.addCounter(new DatadogCounter("requests." + i, (long) i, 1000L, "web-1", List.of("env:prod")));
+      } else {
+        request.addGauge(new DatadogGauge("queue.size." + i, i / 2.0, 1000L, null, List.of()));
+      }
+    }
+    request.send();
+  }
+}
@@ -0,0 +1,216 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogRate;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.coursera.metrics.datadog.model.SeriesBatch;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedCountersTransportTest {
+
+  private static final long EPOCH = 1_700_000_000L;
+
+  private Path file;
+  private MappedCountersReader reader;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempDirectory("counters").resolve("app.counters");
+    reader = new MappedCountersReader(file);
+  }
+
+  @Test
+  public void readsBackWhatWasReported() throws Exception {
+    var transport = new MappedCountersTransport.Builder().withFile(file).build();
+    var request = transport.prepare();
+    request.addGauge(new DatadogGauge("threads", 12.5, EPOCH, "host", List.of("env:prod", "shard:1")));
+    request.addCounter(new DatadogCounter("requests", 42L, EPOCH, null, List.of()));
+    request.addRate(new DatadogRate("hits", 7L, EPOCH, "host", List.of("env:prod")));
+    request.send();
+
+    var series = read();
+    assertEquals(List.of(
+        new DatadogGauge("threads", 12.5, EPOCH, "host", List.of("env:prod", "shard:1")).toString(),
+        new DatadogCounter("requests", 42L, EPOCH, null, List.of()).toString(),
+        new DatadogRate("hits", 7L, EPOCH, "host", List.of("env:prod")).toString()),
+        series.stream().map(Object::toString).toList());
+    assertEquals(List.of("gauge", "counter", "rate"), series.stream().map(DatadogSeries::getType).toList());
+  }
+
+  @Test
+  public void readsOnlySeriesUpdatedSinceTheLastRead() throws Exception {
+    var transport = new MappedCountersTransport.Builder().withFile(file).build();
+    report(transport, new DatadogCounter("a", 1L, EPOCH, null, List.of()), new DatadogCounter("b", 1L, EPOCH, null, List.of()));
+    assertEquals(2, read().size());
+    assertEquals(0, read().size());
+
+    report(transport, new DatadogCounter("b", 5L, EPOCH + 10, null, List.of()));
+    assertEquals(List.of(new DatadogCounter("b", 5L, EPOCH + 10, null, List.of()).toString()),
+        read().stream().map(Object::toString).toList());
+  }
+
+  @Test
+  public void dropsSeriesWhenTheFileIsFull() throws Exception {
+    var registry = new MetricRegistry();
+    var transport = new MappedCountersTransport.Builder()
+        .withFile(file)
+        .withSlotCount(2)
+        .withSlotSize(64)
+        .withSelfMetrics(new SelfMetrics(registry))
+        .build();
+    report(transport,
+        new DatadogGauge("a", 1, EPOCH, null, List.of()),
+        new DatadogGauge("b", 2, EPOCH, null, List.of()),
+        new DatadogGauge("c", 3, EPOCH, null, List.of()),
+        new DatadogGauge("a.label.that.is.longer.than.the.thirty.two.bytes.a.slot.holds", 4, EPOCH, null, List.of()));
+
+    assertEquals(List.of("a", "b"), read().stream().map(DatadogSeries::getMetric).toList());
+    assertEquals(2, registry.counter("datadog.reporter.dropped").getCount());
+  }
+
+  @Test
+  public void followsTheFileWhenTheProcessRestarts() throws Exception {
+    report(new MappedCountersTransport.Builder().withFile(file).build(), new DatadogGauge("old", 1, EPOCH, null, List.of()));
+    assertEquals(List.of("old"), read().stream().map(DatadogSeries::getMetric).toList());
+
+    report(new MappedCountersTransport.Builder().withFile(file).build(), new DatadogGauge("new", 1, EPOCH, null, List.of()));
+    assertEquals(List.of("new"), read().stream().map(DatadogSeries::getMetric).toList());
+  }
+
+  @Test
+  public void skipsASlotThatIsBeingWritten() throws Exception {
+    var transport = new MappedCountersTransport.Builder().withFile(file).build();
+    report(transport, new DatadogCounter("a", 1L, EPOCH, null, List.of()));
+
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      var sequence = MappedCountersTransport.HEADER_BYTES + MappedCountersTransport.SEQUENCE_OFFSET;
+      var even = (long) MappedCountersTransport.LONGS.get(buffer, sequence);
+      MappedCountersTransport.LONGS.setRelease(buffer, sequence, even + 1);
+      assertTrue(read().isEmpty());
+
+      MappedCountersTransport.LONGS.setRelease(buffer, sequence, even);
+      assertEquals(List.of("a"), read().stream().map(DatadogSeries::getMetric).toList());
+    }
+  }
+
+  @Test
+  public void waitsForAnotherWriterOfTheSameSlot() throws Exception {
+    var transport = new MappedCountersTransport.Builder().withFile(file).build();
+    report(transport, new DatadogCounter("a", 1L, EPOCH, null, List.of()));
+
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      var sequence = MappedCountersTransport.HEADER_BYTES + MappedCountersTransport.SEQUENCE_OFFSET;
+      var even = (long) MappedCountersTransport.LONGS.get(buffer, sequence);
+      // Another reporter sharing the transport is in the middle of writing the slot.
+      MappedCountersTransport.LONGS.setRelease(buffer, sequence, even + 1);
+      var writer = Thread.ofPlatform().start(() -> {
+        try {
+          report(transport, new DatadogCounter("a", 2L, EPOCH + 10, null, List.of()));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      writer.join(200);
+      assertTrue(writer.isAlive());
+
+      MappedCountersTransport.LONGS.setRelease(buffer, sequence, even + 2);
+      writer.join();
+      assertEquals(even + 4, (long) MappedCountersTransport.LONGS.getAcquire(buffer, sequence));
+      assertEquals(2L, read().getFirst().getPoints().getFirst().getLast().longValue());
+    }
+  }
+
+  @Test
+  public void neverReadsATimestampWithAnotherReportsValue() throws Exception {
+    var transport = new MappedCountersTransport.Builder().withFile(file).build();
+    report(transport, new DatadogCounter("a", EPOCH, EPOCH, null, List.of()));
+    var writer = Thread.ofPlatform().start(() -> {
+      var request = transport.prepare();
+      try {
+        for (var timestamp = EPOCH + 1; !Thread.currentThread().isInterrupted(); timestamp++) {
+          request.addCounter(new DatadogCounter("a", timestamp, timestamp, null, List.of()));
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    try {
+      for (var i = 0; i < 10_000; i++) {
+        for (var series : read()) {
+          assertEquals(series.getPoints().getFirst().getFirst().longValue(),
+              series.getPoints().getFirst().getLast().longValue());
+        }
+      }
+    } finally {
+      writer.interrupt();
+      writer.join();
+    }
+  }
+
+  @Test
+  public void readsNothingBeforeTheFileExists() throws Exception {
+    assertTrue(read().isEmpty());
+  }
+
+  private static void report(Transport transport, DatadogSeries<?>... series) throws Exception {
+    var request = transport.prepare();
+    for (var item : series) {
+      if (item instanceof DatadogCounter counter) {
+        request.addCounter(counter);
+      } else if (item instanceof DatadogRate rate) {
+        request.addRate(rate);
+      } else {
+        request.addGauge((DatadogGauge) item);
+      }
+    }
+    request.send();
+  }
+
+  private List<DatadogSeries<?>> read() throws Exception {
+    var series = new ArrayList<DatadogSeries<?>>();
+    reader.read(new Transport.Request() {
+      @Override
+      public void addBatch(SeriesBatch batch) throws IOException {
+        Transport.Request.addEachSeries(batch, this);
+      }
+
+      @Override
+      public void addGauge(DatadogGauge gauge) {
+        series.add(gauge);
+      }
+
+      @Override
+      public void addCounter(DatadogCounter counter) {
+        series.add(counter);
+      }
+
+      @Override
+      public void addRate(DatadogRate rate) {
+        series.add(rate);
+      }
+
+      @Override
+      public void send() {
+      }
+    });
+    return series;
+  }
+}
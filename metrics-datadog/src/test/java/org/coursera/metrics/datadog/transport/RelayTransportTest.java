@@ -0,0 +1,56 @@
+package org.coursera.metrics.datadog.transport;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.DatadogSeries;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RelayTransportTest {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void packsWholeSeriesIntoFrames() throws Exception {
+    var transport = new RelayTransport.Builder().withMaxFrameSize(1000).build();
+    var series = new ArrayList<DatadogSeries<?>>();
+    for (var i = 0; i < 100; i++) {
+      series.add(new DatadogGauge("gauge" + i, i, 1_700_000_000L, "host", List.of("env:prod")));
+    }
+
+    var frames = transport.frames(series);
+
+    var metrics = new ArrayList<String>();
+    for (var frame : frames) {
+      assertTrue(frame.length <= 1000);
+      // A frame is only cut when the next series, about 130 bytes, does not fit.
+      assertTrue(frame == frames.getLast() || frame.length > 1000 - 140);
+      for (JsonNode node : MAPPER.readTree(frame).get("series")) {
+        metrics.add(node.get("metric").asText());
+      }
+    }
+    assertEquals(series.stream().map(DatadogSeries::getMetric).toList(), metrics);
+  }
+
+  @Test
+  public void dropsSeriesLargerThanAFrame() throws Exception {
+    var transport = new RelayTransport.Builder().withMaxFrameSize(300).build();
+    var series = List.<DatadogSeries<?>>of(
+        new DatadogGauge("small", 1, 1_700_000_000L, "host", List.of()),
+        new DatadogGauge("large", 1, 1_700_000_000L, "host", List.of("tag:" + "x".repeat(300))),
+        new DatadogGauge("small2", 1, 1_700_000_000L, "host", List.of()));
+
+    var frames = transport.frames(series);
+
+    assertEquals(1, frames.size());
+    var sent = MAPPER.readTree(frames.getFirst()).get("series");
+    assertEquals(2, sent.size());
+    assertEquals("small2", sent.get(1).get("metric").asText());
+  }
+}
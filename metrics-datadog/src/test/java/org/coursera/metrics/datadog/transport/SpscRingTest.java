@@ -0,0 +1,46 @@
+package org.coursera.metrics.datadog.transport;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscRingTest {
+
+  @Test
+  public void handsItemsOverInOrder() throws Exception {
+    var ring = new SpscRing<Integer>(4);
+    var count = 100_000;
+    var producer = Thread.ofPlatform().start(() -> {
+      for (var i = 0; i < count; i++) {
+        ring.put(i);
+      }
+    });
+
+    for (var i = 0; i < count; i++) {
+      assertEquals(Integer.valueOf(i), ring.take(10, TimeUnit.SECONDS));
+    }
+    producer.join();
+    assertNull(ring.poll());
+  }
+
+  @Test
+  public void refusesItemsWhenFull() {
+    var ring = new SpscRing<String>(2);
+    assertTrue(ring.offer("a"));
+    assertTrue(ring.offer("b"));
+    assertFalse(ring.offer("c"));
+    assertEquals("a", ring.poll());
+    assertTrue(ring.offer("c"));
+    assertNull(new SpscRing<String>(2).take(1, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsCapacityThatIsNotAPowerOfTwo() {
+    new SpscRing<String>(3);
+  }
+}
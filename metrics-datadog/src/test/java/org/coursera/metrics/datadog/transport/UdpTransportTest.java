@@ -1,14 +1,44 @@
 package org.coursera.metrics.datadog.transport;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import com.alibaba.dcm.DnsCacheManipulator;
+import com.codahale.metrics.MetricRegistry;
+import com.timgroup.statsd.StatsDClient;
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+
+import org.coursera.metrics.datadog.SelfMetrics;
+import org.coursera.metrics.datadog.model.DatadogCounter;
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.coursera.metrics.datadog.model.SeriesBatch;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 public class UdpTransportTest {
   private static final String LOCAL_IP = "127.0.0.1";
@@ -28,6 +58,19 @@ public class UdpTransportTest {
     assertNotNull(transport);
   }
 
+  @Test
+  public void publishesQueueDepth() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, LOCAL_IP);
+    final MetricRegistry registry = new MetricRegistry();
+
+    try (UdpTransport transport = new UdpTransport.Builder()
+        .withStatsdHost(TEST_HOST)
+        .withSelfMetrics(new SelfMetrics(registry))
+        .build()) {
+      assertEquals(0, registry.getGauges().get("datadog.reporter.udp.queueDepth").getValue());
+    }
+  }
+
   @Test(expected = RuntimeException.class)
   public void constructsWhenUnreachableHostWithRetry() {
     assertNotNull(new UdpTransport.Builder().withStatsdHost(TEST_HOST).withRetryingLookup(true).build());
@@ -52,4 +95,191 @@ public class UdpTransportTest {
     DnsCacheManipulator.setDnsCache(TEST_HOST, LOCAL_IP); // Make host resolvable.
     assertNotNull(retryingCallable.call()); // Returns with resolved by the time it's resolvable.
   }
+
+  @Test
+  public void startsBeforeTheAgentResolvesWhenRefreshing() throws Exception {
+    try (UdpTransport transport = new UdpTransport.Builder()
+        .withStatsdHost(TEST_HOST)
+        .withAddressRefresh(1, TimeUnit.HOURS)
+        .build()) {
+      transport.prepare().addGauge(gauge());
+    }
+  }
+
+  @Test
+  public void followsTheAgentWhenItMoves() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, LOCAL_IP);
+    try (DatagramSocket first = new DatagramSocket(new InetSocketAddress(LOCAL_IP, 0));
+         DatagramSocket second = new DatagramSocket(new InetSocketAddress("127.0.0.2", first.getLocalPort()));
+         UdpTransport transport = new UdpTransport.Builder()
+             .withStatsdHost(TEST_HOST)
+             .withPort(first.getLocalPort())
+             .withAddressRefresh(20, TimeUnit.MILLISECONDS)
+             .build()) {
+      transport.prepare().addGauge(gauge());
+      // The client aggregates gauges and flushes them every few seconds.
+      assertTrue(receive(first, 10000).startsWith("test.gauge:1"));
+
+      DnsCacheManipulator.setDnsCache(TEST_HOST, "127.0.0.2");
+
+      var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      String received = null;
+      while (received == null && System.nanoTime() < deadline) {
+        transport.prepare().addGauge(gauge());
+        received = receive(second, 100);
+      }
+      assertNotNull(received);
+    }
+  }
+
+  private static DatadogGauge gauge() {
+    return new DatadogGauge("test.gauge", 1, 0L, null, List.of());
+  }
+
+  private static String receive(DatagramSocket socket, int timeoutMillis) throws Exception {
+    socket.setSoTimeout(timeoutMillis);
+    var packet = new DatagramPacket(new byte[1024], 1024);
+    try {
+      socket.receive(packet);
+    } catch (SocketTimeoutException e) {
+      return null;
+    }
+    return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void sendsThroughTheLineCache() throws Exception {
+    DnsCacheManipulator.setDnsCache(TEST_HOST, LOCAL_IP);
+    try (DatagramSocket agent = new DatagramSocket(new InetSocketAddress(LOCAL_IP, 0));
+         UdpTransport transport = new UdpTransport.Builder()
+             .withStatsdHost(TEST_HOST)
+             .withPort(agent.getLocalPort())
+             .withPrefix("app")
+             .withLineCache(true)
+             .build()) {
+      var request = transport.prepare();
+      request.addGauge(gauge());
+      request.send();
+
+      assertEquals("app.test.gauge:1|g", receive(agent, 5000));
+    }
+  }
+
+  @Test
+  public void sendsBatchesLikeSeries() {
+    var client = mock(StatsDClient.class);
+    var request = new UdpTransport.DogstatsdRequest(client, new HashMap<>());
+    var tags = List.of("env:prod", "shard:1");
+    request.addCounter(new DatadogCounter("requests", 5L, 1000L, null, tags));
+
+    var batch = new SeriesBatch(null);
+    var tagSet = batch.addTagSet(tags);
+    batch.add(batch.addMetric("requests"), tagSet, SeriesBatch.COUNTER, 1010L, 8);
+    batch.add(batch.addMetric("queue.size"), tagSet, SeriesBatch.GAUGE, 1010L, 7.5);
+    batch.add(batch.addMetric("hits"), tagSet, SeriesBatch.RATE, 1010L, 3);
+    request.addBatch(batch);
+
+    var expectedTags = new String[]{"env:prod", "shard:1"};
+    verify(client).count("requests", 5L, expectedTags);
+    verify(client).count("requests", 3L, expectedTags);
+    verify(client).gauge("queue.size", 7.5, expectedTags);
+    verifyNoMoreInteractions(client);
+  }
+
+  @Test
+  public void unixSocketUrlFollowsTheSchemeUnlessTheTypeIsSet() {
+    assertEquals("unixgram:///tmp/dsd.socket", UdpTransport.unixSocketUrl("unix:///tmp/dsd.socket", null));
+    assertEquals("unixstream:///tmp/dsd.socket", UdpTransport.unixSocketUrl("unixstream:///tmp/dsd.socket", null));
+    assertEquals("unixstream:///tmp/dsd.socket",
+        UdpTransport.unixSocketUrl("unix:///tmp/dsd.socket", UdpTransport.UnixSocketType.STREAM));
+    assertNull(UdpTransport.unixSocketUrl("localhost", UdpTransport.UnixSocketType.STREAM));
+    assertFalse(UdpTransport.isUnixSocket("unixbox"));
+  }
+
+  @Test
+  public void sendsLargeFramesOverAUnixStreamSocket() throws Exception {
+    var socket = Files.createTempDirectory("dsd").resolve("dsd.socket");
+    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      server.bind(UnixDomainSocketAddress.of(socket));
+      var frame = CompletableFuture.supplyAsync(() -> readFrame(server));
+
+      try (UdpTransport transport = new UdpTransport.Builder()
+          .withStatsdHost("unix://" + socket)
+          .withUnixSocketType(UdpTransport.UnixSocketType.STREAM)
+          .withMaxPacketSize(64 * 1024)
+          .build()) {
+        transport.prepare().addGauge(largeGauge());
+        assertLargeGauge(frame.get(20, TimeUnit.SECONDS));
+      }
+    } finally {
+      Files.deleteIfExists(socket);
+    }
+  }
+
+  @Test
+  public void sendsLargeDatagramsOverAUnixDatagramSocket() throws Exception {
+    var socket = Files.createTempDirectory("dsd").resolve("dsd.socket");
+    try (var server = UnixDatagramChannel.open()) {
+      server.bind(new UnixSocketAddress(socket.toFile()));
+      var datagram = CompletableFuture.supplyAsync(() -> readDatagram(server));
+
+      try (UdpTransport transport = new UdpTransport.Builder()
+          .withStatsdHost("unix://" + socket)
+          .withMaxPacketSize(64 * 1024)
+          .withSocketBufferSize(256 * 1024)
+          .build()) {
+        transport.prepare().addGauge(largeGauge());
+        assertLargeGauge(datagram.get(20, TimeUnit.SECONDS));
+      }
+    } finally {
+      Files.deleteIfExists(socket);
+    }
+  }
+
+  /**
+   * A gauge too large for the default 8 KB unix socket packets, which the client would drop.
+   */
+  private static DatadogGauge largeGauge() {
+    var tags = new ArrayList<String>();
+    for (var i = 0; i < 1000; i++) {
+      tags.add("tag" + i + ":value" + i);
+    }
+    return new DatadogGauge("test.large", 1, 0L, null, tags);
+  }
+
+  private static void assertLargeGauge(String packet) {
+    assertTrue(packet.length() > 8192);
+    assertTrue(packet.startsWith("test.large:1|g|#"));
+  }
+
+  private static String readFrame(ServerSocketChannel server) {
+    try (SocketChannel client = server.accept()) {
+      var header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(client, header);
+      var frame = ByteBuffer.allocate(header.getInt(0));
+      readFully(client, frame);
+      return new String(frame.array(), StandardCharsets.UTF_8);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String readDatagram(UnixDatagramChannel server) {
+    try {
+      var buffer = ByteBuffer.allocate(128 * 1024);
+      server.receive(buffer);
+      buffer.flip();
+      return StandardCharsets.UTF_8.decode(buffer).toString();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void readFully(SocketChannel channel, ByteBuffer buffer) throws Exception {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IllegalStateException("connection closed");
+      }
+    }
+  }
 }
@@ -0,0 +1,78 @@
+package org.coursera.metrics.serializer;
+
+import org.coursera.metrics.datadog.model.DatadogGauge;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SerializerBufferPoolTest {
+
+  @Test
+  public void reusesBuffers() throws Exception {
+    var pool = new SerializerBufferPool();
+    var serializer = new JsonSerializer(pool);
+
+    var first = serialize(serializer, 10);
+    var buffer = pool.acquire();
+    pool.release(buffer);
+    var second = serialize(serializer, 10);
+
+    assertEquals(first, second);
+    assertSame(buffer, pool.acquire());
+  }
+
+  @Test
+  public void sizesNewBuffersFromRecentPayloads() {
+    var pool = new SerializerBufferPool(16, 0);
+    for (var i = 0; i < 20; i++) {
+      release(pool, 100_000);
+    }
+
+    assertEquals(100_000, pool.getAverageSize());
+    assertTrue(capacity(pool.acquire()) >= 100_000);
+  }
+
+  @Test
+  public void dropsBuffersThatOutgrewThePayloads() {
+    var pool = new SerializerBufferPool(16, 2);
+    release(pool, 1000);
+
+    var large = pool.acquire();
+    large.write(new byte[1_000_000], 0, 1_000_000);
+    pool.release(large);
+
+    assertEquals(0, pool.getPooledCount());
+    // Payloads shrink back, and so do new buffers.
+    for (var i = 0; i < 30; i++) {
+      release(pool, 1000);
+    }
+    assertTrue(capacity(pool.acquire()) < 10_000);
+  }
+
+  private static int capacity(ByteArrayOutputStream buffer) {
+    return ((SerializerBufferPool.Buffer) buffer).capacity();
+  }
+
+  private static void release(SerializerBufferPool pool, int size) {
+    var buffer = pool.acquire();
+    buffer.write(new byte[size], 0, size);
+    pool.release(buffer);
+  }
+
+  private static String serialize(JsonSerializer serializer, int gauges) throws Exception {
+    serializer.startObject();
+    for (var i = 0; i < gauges; i++) {
+      serializer.appendGauge(new DatadogGauge("gauge" + i, i, 1000L, "host", List.of("env:prod")));
+    }
+    serializer.endObject();
+    var body = new String(serializer.getAsBytes(), StandardCharsets.UTF_8);
+    serializer.reset();
+    return body;
+  }
+}